@@ -6,9 +6,15 @@
 
 package com.skype.research.util.adaptable;
 
+import com.skype.research.util.primitives.Aggregator;
+import com.skype.research.util.primitives.Loader;
+
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Random;
 
 /** Container with the following properties:
  * - ordered at model level (the universe)
@@ -58,6 +64,7 @@ public interface Adaptable<T> extends Iterable<Map.Entry<T, int[]>>,
 	 * Add an item to the container, if there is no such item yet or duplicates are allowed.
 	 * The item will be placed according to the current comparison order 
 	 * and filtered according to the current filters.
+	 * Appending an item that sorts after the current maximum takes a single comparison.
 	 * @param element item to add
 	 * @return whether the operation resulted in a modification of the container.
 	 */
@@ -81,6 +88,23 @@ public interface Adaptable<T> extends Iterable<Map.Entry<T, int[]>>,
 	 */
 	boolean remove(int filterIndex, int elementIndex);
 	
+	/**
+	 * Remove the first element of a selection and return it.
+	 * If the first element of the selection is the first element of the container,
+	 * it is unlinked in O(1) expected time, without a lookup.
+	 * @param filterIndex index of the selection to remove from.
+	 * @return the removed element, or null if the selection is empty.
+	 */
+	T pollFirst(int filterIndex);
+	
+	/**
+	 * Remove the first (lowest) element of the container and return it.
+	 * Equivalent to {@link #pollFirst(int)} for the universe, but does not accept an empty container.
+	 * @return the removed element.
+	 * @throws java.util.NoSuchElementException if the container is empty.
+	 */
+	T removeFirst();
+	
 	/**
 	 * Return iterator over a given selection.
 	 * Use {@link #getUniverseFilterIndex()} as filterIndex to iterate over all stored elements.
@@ -89,6 +113,34 @@ public interface Adaptable<T> extends Iterable<Map.Entry<T, int[]>>,
 	 */
 	Iterator<T> iterator(int filterIndex);
 	
+	/**
+	 * Return iterator over a given selection, starting at a given element.
+	 * Positioning the iterator takes a single O(log N) lookup.
+	 * @param filterIndex index of the selection to iterate over.
+	 * @param elementIndex index of the first element to return within the selection.
+	 * @return iterator that returns elements matching a specific filter, starting at the given index.
+	 */
+	Iterator<T> iterator(int filterIndex, int elementIndex);
+	
+	/**
+	 * Return a sized iterator over a given selection that can be split for parallel traversal.
+	 * Each split cuts the remaining range in half by index and costs a single O(log N) lookup.
+	 * The container must not be modified while the iterator or any of its splits is in use.
+	 * @param filterIndex index of the selection to iterate over.
+	 * @return splittable iterator over all elements matching a specific filter.
+	 */
+	SplittableIterator<T> splittableIterator(int filterIndex);
+	
+	/**
+	 * Expose a selection as a live, read-and-remove {@link NavigableSet} view.
+	 * The view copies nothing: its navigation methods and (sub)set sizes are computed with
+	 * {@link #rank(int, Object, boolean)} lookups in O(log N). Elements are removed from
+	 * the container when removed through the view, but additions must go through the container.
+	 * @param filterIndex index of the selection to expose.
+	 * @return set view of the selection, ordered by the current comparator.
+	 */
+	NavigableSet<T> asNavigableSet(int filterIndex);
+	
 	/**
 	 * Convenience method: get element by index from the universe.
 	 * Equivalent to #get(#getUniverseFilterIndex(), elementIndex).
@@ -107,6 +159,67 @@ public interface Adaptable<T> extends Iterable<Map.Entry<T, int[]>>,
 	int indexOf(T item);
 	int indexOf(int filterIndex, T item);
 	
+	/**
+	 * Get element by weighted offset within a selection, i.e. the element
+	 * whose weight spans the offset when the selection elements are laid out end to end.
+	 * Requires weighted indexing, see {@link AdaptableSkipList#setWeightedIndexing(boolean)}.
+	 * @param filterIndex index of the selection in which the element will be looked up.
+	 * @param weightOffset offset within the selection, from 0 to {@link #totalWeight(int)} exclusive.
+	 * @return the element at the specified offset, or null if bounds are not satisfied.
+	 */
+	T getByOffset(int filterIndex, int weightOffset);
+	
+	/**
+	 * Find the weighted offset of an element within a selection, i.e. the total weight of the preceding elements.
+	 * Requires weighted indexing, see {@link AdaptableSkipList#setWeightedIndexing(boolean)}.
+	 * @param filterIndex index of the selection in which the element will be looked up.
+	 * @param item element to find.
+	 * @return offset of the element, or -1 if it is not found in the selection.
+	 */
+	int offsetOf(int filterIndex, T item);
+	
+	/**
+	 * The total weight of a selection, i.e. the weighted counterpart of {@link #size(int)}.
+	 * Requires weighted indexing, see {@link AdaptableSkipList#setWeightedIndexing(boolean)}.
+	 * @param filterIndex number of the filter (and, respectively, the selection)
+	 * @return the current total weight of the elements passing a given filter.
+	 */
+	int totalWeight(int filterIndex);
+	
+	/**
+	 * Fold a range of a selection into a summary, e.g. sum up a field of the elements within the range.
+	 * Requires an aggregator, see {@link AdaptableSkipList#setAggregator(Aggregator)}.
+	 * Takes O(log N) combinations, as summaries are maintained along the container structure.
+	 * @param aggregator the aggregator set on the container, which types the summary.
+	 * @param filterIndex index of the selection to fold.
+	 * @param fromIndex index of the first element to fold, inclusive.
+	 * @param toIndex index of the last element to fold, exclusive.
+	 * @param <A> summary type of the aggregator.
+	 * @return summary of the elements within the range (clipped to the selection), in order.
+	 * @throws IllegalArgumentException if the aggregator is not the one set on the container.
+	 */
+	<A> A aggregate(Aggregator<? super T, A> aggregator, int filterIndex, int fromIndex, int toIndex);
+	
+	/**
+	 * Draw distinct elements of a selection uniformly at random, without copying the selection.
+	 * The draws are looked up in a single forward walk, in O(log N) each at worst.
+	 * @param filterIndex index of the selection to sample.
+	 * @param count number of elements to draw, at most the selection size.
+	 * @param random source of randomness.
+	 * @return sampled elements, in the selection order.
+	 */
+	List<T> sample(int filterIndex, int count, Random random);
+	
+	/**
+	 * Draw elements of a selection at random, with probabilities proportional to their weights,
+	 * and with replacement. Requires weighted indexing, see {@link AdaptableSkipList#setWeightedIndexing(boolean)}.
+	 * @param filterIndex index of the selection to sample.
+	 * @param count number of elements to draw.
+	 * @param random source of randomness.
+	 * @return sampled elements, in the selection order, or none if the selection weighs nothing.
+	 */
+	List<T> sampleWeighted(int filterIndex, int count, Random random);
+	
 	/**
 	 * Overload of {@link #convertIndex(int, int, int, boolean)} with default policy ("floor").
 	 * @param sourceElementIndex zero-based position number within the source view
@@ -130,6 +243,31 @@ public interface Adaptable<T> extends Iterable<Map.Entry<T, int[]>>,
 	 * and the sourceElementIndex is outside the [0; {@link Adaptable#size(int sourceFilterIndex)}) range.
 	 */
 	int convertIndex(int sourceElementIndex, int sourceFilterIndex, int targetFilterIndex, boolean roundToCeiling);
+
+	/**
+	 * Find the position a value has, or would have, within a selection.
+	 * Unlike {@link #indexOf(int, Object)}, the value need not be present in the container.
+	 *
+	 * @param filterIndex index of the selection to rank the value in (may be the universe)
+	 * @param value value to look up according to the current comparator
+	 * @param roundToCeiling if true, return the index of the first element not less than the value,
+	 *                       or the selection size if there is none; otherwise return the index
+	 *                       of the last element not greater than the value, or -1 if there is none.
+	 * @return ceiling or floor index of the value within the selection.
+	 */
+	int rank(int filterIndex, T value, boolean roundToCeiling);
+
+	/**
+	 * Count the elements of a selection that fall within a value range.
+	 * Equivalent to (but cheaper than) iterating over the selection and comparing every element.
+	 *
+	 * @param filterIndex index of the selection to count in (may be the universe)
+	 * @param lowest lower bound of the range, inclusive
+	 * @param highest upper bound of the range, inclusive
+	 * @return number of elements between the bounds, or 0 if the lower bound is greater than the upper one.
+	 */
+	int countBetween(int filterIndex, T lowest, T highest);
+
 	/**
 	 * Delete all contents without broadcasting removal of any individual element.
 	 * That this method breaks the usual {@link ElementObserver} contract in its 
@@ -177,4 +315,23 @@ public interface Adaptable<T> extends Iterable<Map.Entry<T, int[]>>,
 	 * @param autoAdd true to set auto-add on, false to turn off.
 	 */
 	void setAutoAdd(boolean autoAdd);
+	
+	/**
+	 * Set the source of missing values in auto-add mode. When a locator is not found,
+	 * the value to modify and insert is loaded from the loader instead of being taken
+	 * from the locator itself. If the loader does not find the value either, nothing is inserted.
+	 * The loaded value must compare equal to the locator.
+	 * @param loader read-through loader, or null to insert locators as is.
+	 * @see ReadThrough for asynchronous, coalesced loading.
+	 */
+	void setLoader(Loader<T> loader);
+
+	/**
+	 * Take an immutable snapshot of the contents, e.g. to publish to reader threads.
+	 * The snapshot does not follow later updates of the container, but shares its elements:
+	 * they must not be modified in place while the snapshot is in use.
+	 * @return elements in container order along with their filter memberships.
+	 * @see FrozenAdaptable#FrozenAdaptable(Adaptable, com.skype.research.util.primitives.Copier)
+	 */
+	FrozenAdaptable<T> freeze();
 }
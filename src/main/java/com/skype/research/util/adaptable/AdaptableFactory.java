@@ -6,8 +6,10 @@
 
 package com.skype.research.util.adaptable;
 
+import com.skype.research.util.primitives.Aggregator;
 import com.skype.research.util.primitives.Factory;
 import com.skype.research.util.primitives.Filter;
+import com.skype.research.util.primitives.Weigher;
 import com.skype.research.util.projection.CompositeProjectorImpl;
 import com.skype.research.util.projection.Derivative;
 import com.skype.research.util.projection.ProjectorBuilder;
@@ -34,7 +36,23 @@ public class AdaptableFactory<T> implements ProjectorBuilder<T>, Factory<Flexibl
     int levelCount = 15;
     
 	private boolean allowDuplicates;
+	private boolean countDuplicates;
+	private boolean weightedIndexing;
+	private boolean lazyRemoval;
+	private int nodePoolCapacity;
+	private boolean autoRebalance;
+	private boolean deterministic;
+	private int blockSize;
+	private boolean persistent;
+	private boolean concurrent;
+	private Aggregator<? super T, ?> aggregator;
     private boolean broadcastOldValue;
+    private Retention<? super T> retention;
+    private long capacity = Long.MAX_VALUE;
+    private Weigher<? super T> weigher;
+    private Weigher<? super T> indexWeigher;
+    private boolean evictFromTail;
+    private int keepFilter = -1;
 
     public AdaptableFactory() {
         this(false);
@@ -69,10 +87,137 @@ public class AdaptableFactory<T> implements ProjectorBuilder<T>, Factory<Flexibl
 		this.allowDuplicates = allowDuplicates;
 	}
 
+	/**
+	 * @param countDuplicates true to store equal elements as a single node with a count.
+	 * @see AdaptableSkipList#setCountDuplicates(boolean)
+	 */
+	public void setCountDuplicates(boolean countDuplicates) {
+		this.countDuplicates = countDuplicates;
+	}
+
+	/**
+	 * @param weightedIndexing true to track weighted offsets, as measured by the index weigher.
+	 * @see AdaptableSkipList#setWeightedIndexing(boolean)
+	 */
+	public void setWeightedIndexing(boolean weightedIndexing) {
+		this.weightedIndexing = weightedIndexing;
+	}
+
+	/**
+	 * @param indexWeigher element weight estimator for weighted indexing, or null to weigh 1 each.
+	 * @see AdaptableSkipList#setIndexWeigher(Weigher)
+	 */
+	public void setIndexWeigher(Weigher<? super T> indexWeigher) {
+		this.indexWeigher = indexWeigher;
+	}
+
+	/**
+	 * @param lazyRemoval true to leave tombstones behind on removal and unlink them later.
+	 * @see AdaptableSkipList#setLazyRemoval(boolean)
+	 */
+	public void setLazyRemoval(boolean lazyRemoval) {
+		this.lazyRemoval = lazyRemoval;
+	}
+
+	/**
+	 * @param nodePoolCapacity maximum number of removed nodes to keep for reuse, or 0.
+	 * @see AdaptableSkipList#setNodePoolCapacity(int)
+	 */
+	public void setNodePoolCapacity(int nodePoolCapacity) {
+		this.nodePoolCapacity = nodePoolCapacity;
+	}
+
+	/**
+	 * @param autoRebalance true to relevel nodes after bulk operations that leave the levels skewed.
+	 * @see AdaptableSkipList#setAutoRebalance(boolean)
+	 */
+	public void setAutoRebalance(boolean autoRebalance) {
+		this.autoRebalance = autoRebalance;
+	}
+
+	/**
+	 * @param deterministic true to bound the steps on every level rather than draw node levels at random.
+	 * @see AdaptableSkipList#setDeterministic(boolean)
+	 */
+	public void setDeterministic(boolean deterministic) {
+		this.deterministic = deterministic;
+	}
+
+	/**
+	 * @param blockSize number of elements held by a level-0 node, or 0 for a node per element.
+	 * A positive block size makes {@link #create()} build a {@link BlockedAdaptableSkipList},
+	 * which does not support node management, weighing, aggregation, retention or capacity.
+	 * @see BlockedAdaptableSkipList
+	 */
+	public void setBlockSize(int blockSize) {
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * @param persistent true to build a {@link PersistentAdaptable}, offering O(1) snapshots,
+	 * which supports the same options as {@link BlockedAdaptableSkipList}.
+	 * @see PersistentAdaptable#snapshot()
+	 */
+	public void setPersistent(boolean persistent) {
+		this.persistent = persistent;
+	}
+
+	/**
+	 * @param concurrent true to build a {@link ConcurrentAdaptableSkipList}, open to concurrent producers,
+	 * which supports ordering and filtering only, without duplicates or observers.
+	 */
+	public void setConcurrent(boolean concurrent) {
+		this.concurrent = concurrent;
+	}
+
+	/**
+	 * @param aggregator element summary monoid to maintain, or null.
+	 * @see AdaptableSkipList#setAggregator(Aggregator)
+	 */
+	public void setAggregator(Aggregator<? super T, ?> aggregator) {
+		this.aggregator = aggregator;
+	}
+
 	public void setBroadcastOldValue(boolean broadcastOldValue) {
 		this.broadcastOldValue = broadcastOldValue;
 	}
 
+	/**
+	 * @param retention sliding window retention policy for time-ordered data, or null to retain all.
+	 */
+	public void setRetention(Retention<? super T> retention) {
+		this.retention = retention;
+	}
+
+	/**
+	 * @param capacity maximum element count, or maximum total weight if a weigher is set.
+	 * @see AdaptableSkipList#setCapacity(long)
+	 */
+	public void setCapacity(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @param weigher element weight estimator to measure the load with, or null to count elements.
+	 */
+	public void setWeigher(Weigher<? super T> weigher) {
+		this.weigher = weigher;
+	}
+
+	/**
+	 * @param evictFromTail true to evict the greatest elements on overflow, false to evict the least ones.
+	 */
+	public void setEvictFromTail(boolean evictFromTail) {
+		this.evictFromTail = evictFromTail;
+	}
+
+	/**
+	 * @param keepFilter index of the selection of elements never to evict, or -1 to evict any.
+	 */
+	public void setKeepFilter(int keepFilter) {
+		this.keepFilter = keepFilter;
+	}
+
     @Override
     public int addFilter(Filter<? super T> filter) {
         return projector.addFilter(filter);
@@ -123,22 +268,113 @@ public class AdaptableFactory<T> implements ProjectorBuilder<T>, Factory<Flexibl
 			throw new IllegalStateException("Ranger expected");
 		}
         projector.freeze();
+		if (concurrent) {
+			return createConcurrent();
+		}
+		if (persistent) {
+			return createPersistent();
+		}
+		if (blockSize > 0) {
+			return createBlocked();
+		}
 		AdaptableSkipList<T> adaptable = new AdaptableSkipList<T>(levelCount, denominator, comparator, universeFilter, projector);
 		adaptable.setBroadcastOldValue(broadcastOldValue);
 	    adaptable.setAllowDuplicates(allowDuplicates);
+	    adaptable.setCountDuplicates(countDuplicates);
+	    adaptable.setWeightedIndexing(weightedIndexing);
+	    adaptable.setIndexWeigher(indexWeigher);
+	    adaptable.setLazyRemoval(lazyRemoval);
+	    adaptable.setNodePoolCapacity(nodePoolCapacity);
+	    adaptable.setAutoRebalance(autoRebalance);
+	    adaptable.setDeterministic(deterministic);
+	    adaptable.setAggregator(aggregator);
+	    adaptable.setRetention(retention);
+	    adaptable.setWeigher(weigher);
+	    adaptable.setEvictFromTail(evictFromTail);
+	    adaptable.setKeepFilter(keepFilter);
+	    adaptable.setCapacity(capacity);
 		return adaptable;
     }
 
+	/**
+	 * Reject the options that need a node per element, see {@link BlockedAdaptableSkipList}.
+	 */
+	private void checkElementOptions(String variant) {
+		if (countDuplicates || weightedIndexing || indexWeigher != null || aggregator != null
+				|| retention != null || capacity != Long.MAX_VALUE || weigher != null || keepFilter >= 0) {
+			throw new IllegalStateException("Only ordering, filtering and observation are supported " + variant);
+		}
+		if (lazyRemoval || nodePoolCapacity > 0 || autoRebalance || deterministic) {
+			throw new IllegalStateException("Node management options are not supported " + variant);
+		}
+	}
+
+	private FlexibleAdaptable<T> createBlocked() {
+		checkElementOptions("with blocks");
+		BlockedAdaptableSkipList<T> adaptable = new BlockedAdaptableSkipList<T>(levelCount, denominator, blockSize, comparator, universeFilter, projector);
+		adaptable.setBroadcastOldValue(broadcastOldValue);
+		adaptable.setAllowDuplicates(allowDuplicates);
+		return adaptable;
+	}
+
+	private FlexibleAdaptable<T> createPersistent() {
+		checkElementOptions("with persistence");
+		if (blockSize > 0) {
+			throw new IllegalStateException("Blocks not supported with persistence");
+		}
+		PersistentAdaptable<T> adaptable = new PersistentAdaptable<T>(comparator, universeFilter, projector);
+		adaptable.setBroadcastOldValue(broadcastOldValue);
+		adaptable.setAllowDuplicates(allowDuplicates);
+		return adaptable;
+	}
+
+	private FlexibleAdaptable<T> createConcurrent() {
+		checkElementOptions("concurrently");
+		if (allowDuplicates) {
+			throw new IllegalStateException("Duplicates not supported concurrently");
+		}
+		if (blockSize > 0 || persistent) {
+			throw new IllegalStateException("Blocks and persistence not supported concurrently");
+		}
+		return new ConcurrentAdaptableSkipList<T>(comparator, universeFilter, projector);
+	}
+
     public <G> RangedAdaptable<T> create(Ranger<G, T> ranger) {
 	    if (!withRanging) {
 		    throw new IllegalStateException("Ranger not expected");
 	    }
+	    if (blockSize > 0) {
+		    throw new IllegalStateException("Blocks not supported with ranging");
+	    }
+	    if (persistent) {
+		    throw new IllegalStateException("Persistence not supported with ranging");
+	    }
+	    if (concurrent) {
+		    throw new IllegalStateException("Concurrency not supported with ranging");
+	    }
+	    if (retention != null) {
+		    throw new IllegalStateException("Retention not supported with ranging");
+	    }
+	    if (capacity != Long.MAX_VALUE) {
+		    throw new IllegalStateException("Capacity not supported with ranging");
+	    }
+	    if (countDuplicates) {
+		    throw new IllegalStateException("Duplicate counting not supported with ranging");
+	    }
         projector.setFilter(headItemFilter, ranger);
         projector.freezeFilter(headItemFilter);
         projector.freeze();
 	    RangedAdaptableSkipList<G, T> adaptable = new RangedAdaptableSkipList<G, T>(ranger, levelCount, denominator, comparator, universeFilter, headItemFilter, projector);
 	    // adaptable.setBroadcastOldValue(broadcastOldValue) is not needed here as it's automatic for RASL
 	    adaptable.setAllowDuplicates(allowDuplicates);
+	    adaptable.setWeightedIndexing(weightedIndexing);
+	    adaptable.setIndexWeigher(indexWeigher);
+	    adaptable.setLazyRemoval(lazyRemoval);
+	    adaptable.setNodePoolCapacity(nodePoolCapacity);
+	    adaptable.setAutoRebalance(autoRebalance);
+	    adaptable.setDeterministic(deterministic);
+	    adaptable.setWeigher(weigher);
+	    adaptable.setAggregator(aggregator);
 	    return adaptable;
     }
 }
@@ -6,13 +6,20 @@
 
 package com.skype.research.util.adaptable;
 
+import com.skype.research.util.pool.MultipleEntryPool;
+import com.skype.research.util.primitives.Aggregator;
+import com.skype.research.util.primitives.Factory;
+import com.skype.research.util.primitives.Loader;
 import com.skype.research.util.primitives.Update;
+import com.skype.research.util.primitives.Weigher;
 import com.skype.research.util.projection.CompositeProjector;
 import com.skype.research.util.projection.CompositeProjectorImpl;
 import com.skype.research.util.projection.Projector;
 import com.skype.research.util.projection.ProjectorEditor;
 
 import java.lang.reflect.Array;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Comparator;
@@ -20,9 +27,13 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
 
 import static com.skype.research.util.adaptable.Distance.isZero;
+import static com.skype.research.util.adaptable.Distance.mul;
 import static com.skype.research.util.adaptable.Distance.set;
 import static com.skype.research.util.adaptable.Distance.sub;
 
@@ -42,6 +53,7 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 	final Meter doNotMeasure = new Meter();
 	
 	// no use counting indices beyond it
+	// (with weighted indexing, the weighted counts follow the filter counts in every vector)
 	/* package */ int horizon;
 
 	abstract class Locator {
@@ -109,7 +121,58 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 			return nextNode;
 		}
 	}
-	
+
+	/**
+	 * Steps over the elements that have fallen out of the retention window.
+	 */
+	class ExpiryLocator extends AimingLocator {
+		final T newest;
+		Node nextNode;
+
+		ExpiryLocator(T newest) {
+			this.newest = newest;
+		}
+
+		@Override
+		final int evaluateNextStep(Node node, int level) {
+			nextNode = node.nodes[level];
+			return nextNode == null || !retention.isExpired(nextNode.element, newest)
+					? -1 // next is absMax or within the window
+					: 1;
+		}
+
+		@Override
+		final Node next(int level) {
+			return nextNode;
+		}
+	}
+
+	/**
+	 * Unlike {@link ValueLocator}, steps over the elements equal to the value
+	 * and stops right before the first greater one.
+	 */
+	class SuccessorLocator extends AimingLocator {
+		final T value;
+		Node nextNode;
+
+		SuccessorLocator(T value) {
+			this.value = value;
+		}
+
+		@Override
+		final int evaluateNextStep(Node node, int level) {
+			nextNode = node.nodes[level];
+			return nextNode == null || comparator.compare(value, nextNode.element) < 0
+					? -1 // next is absMax or greater than the value
+					: 1;
+		}
+
+		@Override
+		final Node next(int level) {
+			return nextNode;
+		}
+	}
+
 	class IndexLocator extends AimingLocator {
 		final int filterIndex, elementIndex;
 		int lookupIndex = -1, nextIndex;
@@ -133,6 +196,23 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 		}
 	}
 	
+	/**
+	 * Locates an element by its index among the elements failing a filter.
+	 */
+	class ComplementLocator extends IndexLocator {
+		ComplementLocator(int filterIndex, int elementIndex) {
+			super(filterIndex, elementIndex);
+		}
+
+		@Override
+		final int evaluateNextStep(Node node, int level) {
+			currentNode = node;
+			final int[] distance = node.distances[level];
+			nextIndex = lookupIndex + distance[universeFilter] - distance[filterIndex];
+			return elementIndex - nextIndex;
+		}
+	}
+	
 	final class Navigator {
 		Node node = absMinNode;
 		int level = orbitLevel;
@@ -172,6 +252,7 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 		
 		/**
 		 * Descend to the node that contains a specific value recording predecessor nodes on each level.
+		 * A tombstone found on the way is unlinked if the predecessors are tracked, and is never returned.
 		 * @param element value to find
 		 * @return container node, or {@link #absMinNode} if the value is not found.
 		 */
@@ -182,6 +263,12 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 				// post-descend
 				final Node found = locator.nextNode;
 				descend(new ExactLocator(found), false);
+				if (found.dead) {
+					if (tracker instanceof AdaptableSkipList.Section) {
+						purge((Section) tracker, found);
+					}
+					return absMinNode;
+				}
 				return found;
 			}
 			return absMinNode;
@@ -259,7 +346,7 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 
 	class Gap extends Section {
 
-		final int[][] distances = new int[levelCount][filterCount];
+		final int[][] distances = new int[levelCount][vectorSize()];
 
 		@Override
 		final void setDistance(int level, int[] value) {
@@ -268,12 +355,22 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 	}
 	
 	protected int[] newDistance() {
-		return new int[filterCount];
+		return new int[vectorSize()];
+	}
+
+	/**
+	 * @return length of the vectors in the filtered space, i.e. of edge lengths, positions and projections.
+	 */
+	final int vectorSize() {
+		return weightedIndexing ? 2 * filterCount : filterCount;
 	}
 	
 	class Node extends Gap implements Map.Entry<T, int[]> {
-		final T element;
-		final int level;
+		T element; // reassigned only when recycled, see #setNodePoolCapacity
+		int level;
+		int count = 1; // occurrences of the element, see #setCountDuplicates
+		Object[][] aggregates; // [level][filter], summaries along the edges, see #setAggregator
+		boolean dead; // removed but not yet unlinked, see #setLazyRemoval
 
 		Node(T element, int nodeLevel) {
 			this.element = element;
@@ -287,7 +384,7 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 
 		@Override
 		public final int[] getValue() {
-			return distances[0];
+			return observed(distances[0]);
 		}
 
 		@Override
@@ -301,15 +398,45 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 
 	// sub-products
 	Comparator<? super T> comparator, pendingComparator;
-	final int[] zero;
+	int[] zero;
 
 	// structural
 	Node absMinNode;
+	final Section tail; // last node on each level, or absMinNode
 	final int universeFilter;
 	boolean allowDuplicates;
+	boolean countDuplicates;
+	boolean weightedIndexing;
+	boolean lazyRemoval;
+	int deadCount;
 	boolean broadcastOldValue;
 	boolean positionUnaware;
 	boolean autoAdd;
+	Loader<T> loader;
+	Retention<? super T> retention;
+	int bulkOpDepth;
+
+	// summaries
+	Aggregator<? super T, Object> aggregator;
+
+	// structure health
+	static final int MIN_LEVEL_SAMPLE = 64; // nodes expected on a level for its count to be judged
+	static final double MAX_LEVEL_SKEW = 0.5; // relative deviation tolerated before rebalancing
+	final int[] levelCounts; // nodes linked at each level
+	boolean autoRebalance;
+	boolean deterministic;
+
+	// recycling
+	int nodePoolCapacity;
+	MultipleEntryPool<Node> nodePool;
+
+	// capacity
+	long capacity = Long.MAX_VALUE;
+	Weigher<? super T> weigher;
+	Weigher<? super T> indexWeigher;
+	long weight;
+	boolean evictFromTail;
+	int keepFilter = -1;
 
 	// multiple representations
 	final CompositeProjector<T> projector;
@@ -343,9 +470,29 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 		this.universeFilter = universeFilter;
 		this.projector = projector;
 		this.filterCount = projector.getFilterCount();
-		this.horizon = projector.getHorizon();
+		this.horizon = computeHorizon();
 		zero = newDistance();
 		absMinNode = new Node(null, orbitLevel);
+		levelCounts = new int[levelCount];
+		tail = new Section();
+		resetTail();
+	}
+
+	private int computeHorizon() {
+		return weightedIndexing ? filterCount + projector.getHorizon() : projector.getHorizon();
+	}
+
+	/**
+	 * @return number of leading filters to evaluate, see {@link #horizon}.
+	 */
+	final int filterHorizon() {
+		return weightedIndexing ? horizon - filterCount : horizon;
+	}
+
+	private void resetTail() {
+		for (int level = 0; level <= orbitLevel; ++level) {
+			tail.setNextNode(level, absMinNode);
+		}
 	}
 
 	/**
@@ -356,10 +503,227 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 		random.setSeed(seed);
 	}
 
+	/**
+	 * Switch to deterministic leveling, as in 1-2-3 skip lists: new nodes are only linked on level 0,
+	 * and a node is promoted whenever a step on the level above would span more than
+	 * {@code denominator} steps on its own level, after an addition or a removal.
+	 * Below the highest level, every step on a level then spans between 1 and {@code denominator}
+	 * steps on the level below, which bounds any descent in the worst case, not just on average.
+	 * The structure only depends on the sequence of updates, not on the random number generator.
+	 * Nodes are never demoted: a removal only shortens steps, except where it merges two of them.
+	 * Switching it on relevels the existing nodes in a single pass, see {@link #rebalance()}.
+	 * 
+	 * @param deterministic true to bound the steps on every level, false to draw node levels at random.
+	 */
+	public void setDeterministic(boolean deterministic) {
+		this.deterministic = deterministic;
+		if (deterministic) {
+			rebalance();
+		}
+	}
+
 	public void setAllowDuplicates(boolean allowDuplicates) {
+		if (allowDuplicates && lazyRemoval) {
+			throw new IllegalStateException("Duplicates cannot be told from tombstones");
+		}
 		this.allowDuplicates = allowDuplicates;
 	}
 
+	/**
+	 * Switch to lazy removal: a removed element is only marked dead and excluded from
+	 * all edge lengths along its search path, without unlinking its node on every level.
+	 * Dead nodes (tombstones) are unlinked when a lookup by value meets them, and all at once
+	 * by {@link #compact()}, which also runs by itself once tombstones outnumber live elements.
+	 * Speeds up removal-heavy churn, at the cost of longer walks until the next compaction.
+	 * Not compatible with duplicates, as an element equal to a dead one must replace it.
+	 * 
+	 * @param lazyRemoval true to leave tombstones behind, false to unlink removed nodes (and all tombstones) now.
+	 */
+	public void setLazyRemoval(boolean lazyRemoval) {
+		if (lazyRemoval && (allowDuplicates || countDuplicates)) {
+			throw new IllegalStateException("Duplicates cannot be told from tombstones");
+		}
+		this.lazyRemoval = lazyRemoval;
+		if (!lazyRemoval) {
+			compact();
+		}
+	}
+
+	/**
+	 * Unlink all tombstones left behind by lazy removal, in a single pass.
+	 * @return number of nodes unlinked.
+	 */
+	public int compact() {
+		int purged = 0;
+		if (deadCount != 0) {
+			final Section section = headSection();
+			Node next;
+			for (Node node = absMinNode.nodes[0]; node != null; node = next) {
+				next = node.nodes[0];
+				if (node.dead) {
+					finishRemoval(section, node);
+					recycle(node);
+					purged++;
+				} else {
+					for (int level = 0; level <= node.level; ++level) {
+						section.setNextNode(level, node);
+					}
+				}
+			}
+			deadCount = 0;
+		}
+		return purged;
+	}
+
+	/**
+	 * Unlink a single tombstone.
+	 * @param section predecessors of the dead node on each level.
+	 * @param container the dead node.
+	 */
+	private void purge(Section section, Node container) {
+		finishRemoval(section, container);
+		deadCount--;
+		recycle(container);
+	}
+
+	/**
+	 * Recycle removed nodes for later additions, to cut allocations under heavy churn.
+	 * Every node carries link and edge length arrays for all levels, so a removed node
+	 * of any level can be reused at any other, and a single pool serves all of them.
+	 * Iterators must not be advanced across removals while recycling is on,
+	 * as the node they stand on may be reused elsewhere.
+	 * 
+	 * @param capacity maximum number of idle nodes to keep, or 0 to recycle none.
+	 */
+	public void setNodePoolCapacity(int capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("Negative node pool capacity " + capacity);
+		}
+		nodePoolCapacity = capacity;
+		resetNodePool();
+	}
+
+	/**
+	 * @return number of additions that reused a removed node.
+	 */
+	public long getNodePoolHitCount() {
+		return nodePool == null ? 0 : nodePool.getHitCount();
+	}
+
+	/**
+	 * @return number of additions that allocated a new node while recycling was on.
+	 */
+	public long getNodePoolMissCount() {
+		return nodePool == null ? 0 : nodePool.getMissCount();
+	}
+
+	/**
+	 * @return number of idle nodes ready for reuse.
+	 */
+	public int getNodePoolSize() {
+		return nodePool == null ? 0 : nodePool.size();
+	}
+
+	private void resetNodePool() {
+		nodePool = nodePoolCapacity == 0 ? null : new MultipleEntryPool<Node>(
+				new ArrayBlockingQueue<Node>(nodePoolCapacity), nodeFactory, nodeLaundry);
+	}
+
+	final Factory<Node> nodeFactory = new Factory<Node>() {
+		@Override
+		public Node create() {
+			return new Node(null, 0);
+		}
+	};
+
+	// only the levels a node was linked at have been written to
+	final Update<Node> nodeLaundry = new Update<Node>() {
+		@Override
+		public boolean apply(Node node) {
+			for (int level = 0; level <= node.level; ++level) {
+				node.nodes[level] = null;
+				Arrays.fill(node.distances[level], 0);
+			}
+			node.element = null;
+			node.count = 1;
+			node.aggregates = null;
+			node.dead = false;
+			return true;
+		}
+	};
+
+	private Node newNode(T element, int nodeLevel) {
+		if (nodePool == null) {
+			return new Node(element, nodeLevel);
+		}
+		final Node node = nodePool.allocate();
+		node.element = element;
+		node.level = nodeLevel;
+		return node;
+	}
+
+	private void recycle(Node node) {
+		if (nodePool != null) {
+			nodePool.recycle(node);
+		}
+	}
+
+	/**
+	 * Switch to a compact multiset mode: equal elements (by comparator) share a single node
+	 * carrying their count, and adding or removing a duplicate updates the count in place,
+	 * without structural changes. Each occurrence still counts towards sizes and indices,
+	 * and is returned by element lookups and iterators. Takes precedence over
+	 * {@link #setAllowDuplicates(boolean)}. Only the first occurrence is kept as an instance.
+	 * Must be set while the container is empty.
+	 * 
+	 * @param countDuplicates true to count duplicates, false to store or reject each one separately.
+	 */
+	public void setCountDuplicates(boolean countDuplicates) {
+		if (countDuplicates && lazyRemoval) {
+			throw new IllegalStateException("Duplicates cannot be told from tombstones");
+		}
+		if (size() != 0) {
+			throw new IllegalStateException("Cannot change duplicate counting of a non-empty container");
+		}
+		this.countDuplicates = countDuplicates;
+	}
+
+	/**
+	 * Track the total weight of elements along with their count, to look elements up
+	 * by weighted offset, see {@link #getByOffset(int, int)} and {@link #offsetOf(int, Object)}.
+	 * Elements are weighed with the index weigher, see {@link #setIndexWeigher(Weigher)}, or weigh 1 each.
+	 * The weighted counts are kept past the filter counts of the internal vectors,
+	 * and are cut off from the vectors passed to observers and returned by entries.
+	 * Must be set while the container is empty.
+	 * 
+	 * @param weightedIndexing true to track weighted offsets in every selection, false otherwise.
+	 */
+	public void setWeightedIndexing(boolean weightedIndexing) {
+		if (absMinNode.nodes[0] != null) {
+			throw new IllegalStateException("Cannot change weighted indexing of a non-empty container");
+		}
+		this.weightedIndexing = weightedIndexing;
+		horizon = computeHorizon();
+		zero = newDistance();
+		absMinNode = new Node(null, orbitLevel);
+		resetTail();
+		resetNodePool(); // idle nodes have vectors of the old size
+	}
+
+	/**
+	 * Maintain summaries of every selection along the edges, to fold any index range
+	 * of a selection in O(log N), see {@link #aggregate(Aggregator, int, int, int)}.
+	 * Summaries are recomputed bottom-up along the search path of every update,
+	 * and rebuilt in one pass when set or when filters are refreshed.
+	 * 
+	 * @param aggregator element summary monoid, or null to maintain no summaries.
+	 */
+	@SuppressWarnings("unchecked") // summaries are only combined by the aggregator that made them
+	public void setAggregator(Aggregator<? super T, ?> aggregator) {
+		this.aggregator = (Aggregator<? super T, Object>) aggregator;
+		rebuildAggregates();
+	}
+
 	/**
 	 * If set to true, rank-preserving updates in {@link #updateReorder(Object, Update)}
 	 * broadcast a full remove-insert in order to deliver both the old and the new value
@@ -374,6 +738,129 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 		this.broadcastOldValue = broadcastOldValue;
 	}
 	
+	/**
+	 * Set a sliding window retention policy. Elements falling out of the window are evicted
+	 * from the head of the container as soon as the window moves, or at the end of a bulk operation.
+	 * Evictions are reported as a single range removal per update rather than per element.
+	 * 
+	 * @param retention retention policy, or null to retain all elements.
+	 */
+	public void setRetention(Retention<? super T> retention) {
+		this.retention = retention;
+		retain();
+	}
+
+	/**
+	 * Cap the container, turning it into a bounded cache. When the load exceeds the capacity,
+	 * elements are evicted from one end of the order, see {@link #setEvictFromTail(boolean)}
+	 * and {@link #setKeepFilter(int)}, until the load fits again.
+	 * Evictions are reported like removals, and batched where possible.
+	 * 
+	 * @param capacity maximum element count, or maximum total weight if a weigher is set.
+	 */
+	public void setCapacity(long capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("Negative capacity " + capacity);
+		}
+		this.capacity = capacity;
+		enforceCapacity();
+	}
+
+	/**
+	 * Measure the load by element weight rather than element count.
+	 * @param weigher element weight estimator, or null to count elements.
+	 */
+	public void setWeigher(Weigher<? super T> weigher) {
+		this.weigher = weigher;
+		weight = 0;
+		if (weigher != null) {
+			for (Node node = absMinNode.nodes[0]; node != null; node = node.nodes[0]) {
+				if (!node.dead) {
+					weight += (long) node.count * weigher.weigh(node.element);
+				}
+			}
+		}
+		enforceCapacity();
+	}
+
+	/**
+	 * Weigh elements for weighted indexing, independently of the load, see {@link #setWeigher(Weigher)}.
+	 * @param indexWeigher element weight estimator, or null to weigh 1 each.
+	 */
+	public void setIndexWeigher(Weigher<? super T> indexWeigher) {
+		this.indexWeigher = indexWeigher;
+		if (weightedIndexing) {
+			// re-weigh all elements
+			final BitSet filters = new BitSet();
+			filters.set(0, filterHorizon());
+			doRefreshFilters(filters);
+		}
+	}
+
+	/**
+	 * @param evictFromTail true to evict the greatest elements on overflow, false to evict the least ones.
+	 */
+	public void setEvictFromTail(boolean evictFromTail) {
+		this.evictFromTail = evictFromTail;
+	}
+
+	/**
+	 * Protect the elements of a selection from eviction.
+	 * Should all the elements pass the filter, the container may exceed its capacity.
+	 * @param keepFilter index of the selection of elements never to evict, or -1 to evict any.
+	 */
+	public void setKeepFilter(int keepFilter) {
+		this.keepFilter = keepFilter;
+		enforceCapacity();
+	}
+
+	/**
+	 * @return current load, i.e. total weight if a weigher is set, otherwise the element count.
+	 */
+	public long getLoad() {
+		return weigher == null ? size() : weight;
+	}
+
+	private int weigh(T element) {
+		return weigher == null ? 0 : weigher.weigh(element);
+	}
+
+	private long weigh(Node node) {
+		return (long) node.count * weigh(node.element);
+	}
+
+	/**
+	 * @return weight of an element for weighted indexing.
+	 */
+	private int weightOf(T element) {
+		return indexWeigher == null ? 1 : indexWeigher.weigh(element);
+	}
+
+	/**
+	 * Fill in the weighted counts of a vector from its filter counts.
+	 * @param target vector to fill in past the filter counts.
+	 * @param membership filter counts of the element(s).
+	 * @param weight weight of a single element.
+	 * @return the target vector.
+	 */
+	private int[] weighMembership(int[] target, int[] membership, int weight) {
+		final int filterHorizon = filterHorizon();
+		for (int filterIndex = 0; filterIndex < filterHorizon; ++filterIndex) {
+			target[filterCount + filterIndex] = membership[filterIndex] * weight;
+		}
+		return target;
+	}
+
+	/**
+	 * @return index of the weighted counts of a selection within vectors in the filtered space.
+	 */
+	private int weightIndexOf(int filterIndex) {
+		if (!weightedIndexing) {
+			throw new IllegalStateException("Weighted indexing is off");
+		}
+		return filterCount + filterIndex;
+	}
+
 	/**
 	 * If set to true, add/update/delete positions are not computed and are instead set to 0.
 	 * Useful if clients can only update their datasets in whole (as opposed to per-element).
@@ -386,12 +873,24 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 	
 	protected void onElementUpdated(T element, int[] position, int[] estimate, int deltaSign, int[] deltaCount) {
 		if (!observers.isEmpty()){
+			if (weightedIndexing) {
+				position = observed(position);
+				estimate = observed(estimate);
+				deltaCount = observed(deltaCount);
+			}
 			for (ElementObserver<? super T> observer : observers) {
 				observer.onElementUpdated(element, position, estimate, deltaSign, deltaCount);
 			}
 		}
 	}
 
+	/**
+	 * @return the filter counts of a vector in the filtered space, without the weighted counts.
+	 */
+	final int[] observed(int[] vector) {
+		return weightedIndexing ? Arrays.copyOf(vector, filterCount) : vector;
+	}
+
 	/**
 	 * Implements container-specific projection logic.
 	 * By default, condition evaluation is delegated to the {@link Projector} provided upon construction
@@ -448,34 +947,175 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 		}
 		return level;
 	}
+
+	/**
+	 * @return number of nodes linked at each level, starting from level 0, where all nodes are.
+	 */
+	public int[] getLevelCounts() {
+		return levelCounts.clone();
+	}
+
+	/**
+	 * Measure how far node levels have drifted from the geometric distribution random promotion yields.
+	 * Only the levels expected to hold enough nodes for the comparison to be meaningful are measured.
+	 * @return largest relative deviation of a level population from its expectation.
+	 */
+	public double getLevelSkew() {
+		double skew = 0;
+		double expected = levelCounts[0];
+		for (int level = 1; level <= cloudLevel; ++level) {
+			expected /= denominator;
+			if (expected < MIN_LEVEL_SAMPLE) {
+				break;
+			}
+			skew = Math.max(skew, Math.abs(levelCounts[level] / expected - 1));
+		}
+		return skew;
+	}
+
+	/**
+	 * Rebalance at the end of every bulk operation that leaves the levels skewed beyond tolerance,
+	 * see {@link #getLevelSkew()} and {@link #rebalance()}.
+	 * @param autoRebalance true to check the level distribution after bulk operations.
+	 */
+	public void setAutoRebalance(boolean autoRebalance) {
+		this.autoRebalance = autoRebalance;
+	}
+
+	/**
+	 * Redraw the level of every node and relink all levels above 0, in a single pass along level 0.
+	 * In deterministic mode, every {@code denominator}-th node of a level is linked on the level above.
+	 * Restores the expected logarithmic descent, whatever removals left behind.
+	 * Element order, positions and memberships are unchanged, so no updates are broadcast.
+	 * Meant for idle or bulk windows: takes linear time, and invalidates iterators.
+	 */
+	public void rebalance() {
+		final Gap last = new Gap(); // last relinked node and its position, on each level
+		for (int level = 0; level <= orbitLevel; ++level) {
+			last.setNextNode(level, absMinNode);
+		}
+		Arrays.fill(levelCounts, 1, levelCount, 0);
+		final int[] position = newDistance();
+		Node prev = absMinNode;
+		int ordinal = 0;
+		for (Node node = absMinNode.nodes[0]; node != null; node = node.nodes[0]) {
+			Distance.add(position, prev.distances[0], horizon);
+			for (int level = 1; level <= node.level; ++level) {
+				node.setNextNode(level, null);
+				Arrays.fill(node.distances[level], 0);
+			}
+			int nodeLevel = 0;
+			if (deterministic) {
+				// every denominator-th node on a level goes up one more level
+				for (int rank = ++ordinal; nodeLevel < cloudLevel && rank % denominator == 0; rank /= denominator) {
+					++nodeLevel;
+				}
+			} else {
+				while (nodeLevel < cloudLevel && random.nextInt(denominator) == 0) {
+					++nodeLevel;
+				}
+			}
+			node.level = nodeLevel;
+			node.aggregates = null;
+			for (int level = 1; level <= nodeLevel; ++level) {
+				final Node before = last.nodes[level];
+				sub(set(before.distances[level], position, horizon), last.distances[level], horizon);
+				before.setNextNode(level, node);
+				last.setNextNode(level, node);
+				last.setDistance(level, position);
+				levelCounts[level]++;
+			}
+			prev = node;
+		}
+		Distance.add(position, prev.distances[0], horizon); // total size
+		for (int level = 1; level <= orbitLevel; ++level) {
+			final Node before = last.nodes[level];
+			sub(set(before.distances[level], position, horizon), last.distances[level], horizon);
+			before.setNextNode(level, null);
+			tail.setNextNode(level, before);
+		}
+		rebuildAggregates();
+	}
 	
 	@Override
 	public boolean add(T element) {
-		return addPrecomputedDistance(element, project(element));
+		return addPrecomputedDistance(element, project(element), 1);
 	}
 
-	private boolean addPrecomputedDistance(T element, int[] projection) {
+	/**
+	 * @param repeats number of occurrences to add, only greater than one in duplicate counting mode.
+	 */
+	private boolean addPrecomputedDistance(T element, int[] projection, int repeats) {
+		// append past the maximum: one comparison, no descent
+		final Node last = tail.nodes[0];
+		if (last == absMinNode || comparator.compare(element, last.element) > 0) {
+			final VectorMeter meter = new VectorMeter();
+			finishAddition(element, projection, meter, trackTail(meter), repeats);
+			return true;
+		}
+		if (countDuplicates) {
+			final Gap tracker = new Gap();
+			final VectorMeter meter = new VectorMeter();
+			final Node container = new Navigator(tracker, meter).descendTo(element);
+			if (container == absMinNode) {
+				finishAddition(element, projection, meter, tracker, repeats);
+			} else {
+				addRepeats(tracker, container, repeats, meter.getPosition());
+			}
+			return true;
+		}
 		// insert sorted
 		final Locator locator = new ValueLocator(element);
 		final VectorMeter meter = new VectorMeter();
 
 		Gap tracker = new Gap();
 		final Navigator navigator = new Navigator(tracker, meter);
-		if (navigator.descend(locator, !allowDuplicates)) {
+		if (lazyRemoval) {
+			// a tombstone of the element is unlinked on the way
+			if (navigator.descendTo(element) != absMinNode) {
+				return false;
+			}
+		} else if (navigator.descend(locator, !allowDuplicates)) {
 			return false;
 		}
-		finishAddition(element, projection, meter, tracker);
+		finishAddition(element, projection, meter, tracker, 1);
 		return true;
 	}
 	
-	private void finishAddition(T element, int[] projection, VectorMeter meter, Gap tracker) {
+	/**
+	 * Build the gap after the last element, as a descent to absMax would have, from the tail nodes.
+	 * @param meter meter to receive the position of the gap on level 0.
+	 * @return tracker with the tail nodes and their positions.
+	 */
+	private Gap trackTail(VectorMeter meter) {
+		final Gap tracker = new Gap();
+		final int[] size = absMinNode.distances[orbitLevel];
+		for (int level = 0; level <= orbitLevel; ++level) {
+			final Node node = tail.nodes[level];
+			tracker.setNextNode(level, node);
+			// the last link on each level spans the rest of the list
+			sub(set(tracker.distances[level], size, horizon), node.distances[level], horizon);
+		}
+		set(meter.position, tracker.distances[0], horizon);
+		return tracker;
+	}
+	
+	private void finishAddition(T element, int[] projection, VectorMeter meter, Gap tracker, int repeats) {
 		int level = 0;
 		final int[] position = meter.getPosition();
+		if (repeats != 1) {
+			projection = mul(set(newDistance(), projection, horizon), repeats, horizon);
+		}
 		int[] ceiling = set(newDistance(), position, horizon);
 		Distance.add(ceiling, projection, horizon);
-		final int nodeLevel = randomLevel();
+		final int nodeLevel = deterministic ? 0 : randomLevel();
 		final int[] temp = newDistance();
-		Node inserted = new Node(element, nodeLevel);
+		Node inserted = newNode(element, nodeLevel);
+		inserted.count = repeats;
+		for (int linked = 0; linked <= nodeLevel; ++linked) {
+			levelCounts[linked]++;
+		}
+		weight += weigh(inserted);
 		boolean split = true;
 		do {
 			Node prev = tracker.nodes[level];
@@ -485,23 +1125,329 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 				Node next = prev.nodes[level];
 				inserted.setNextNode(level, next);
 				prev.setNextNode(level, inserted);
+				if (next == null) {
+					tail.setNextNode(level, inserted);
+				}
 				// edge lengths
 				sub(set(temp, ceiling, horizon), tracker.distances[level], horizon);
 				sub(set(inserted.distances[level], prev.distances[level], horizon), temp, horizon);
 				set(prev.distances[level], temp, horizon);
 			}
-		} while (++level <= orbitLevel);
-		onElementUpdated(element, position, projection, 1, projection);
+		} while (++level <= orbitLevel);
+		reaggregate(tracker, inserted);
+		if (deterministic) {
+			rebound(tracker, 0);
+		}
+		onElementUpdated(reported(inserted), position, projection, 1, projection);
+		if (bulkOpDepth == 0) {
+			retain();
+			enforceCapacity();
+		}
+	}
+
+	/**
+	 * Add occurrences of an element already present, in duplicate counting mode.
+	 * Only the edge lengths change, the links stay as they are.
+	 * @param section predecessors of the container node.
+	 * @param container node holding the element.
+	 * @param repeats number of occurrences to add.
+	 * @param position position of the first occurrence.
+	 */
+	private void addRepeats(Section section, Node container, int repeats, int[] position) {
+		final int[] delta = mul(membershipOf(section.nodes[0], container), repeats, horizon);
+		container.count += repeats;
+		adjustDistance(section, 1, delta);
+		reaggregate(section, null);
+		weight += (long) repeats * weigh(container.element);
+		onElementUpdated(repeats == 1 ? container.element : null, position, delta, 1, delta);
+		if (bulkOpDepth == 0) {
+			retain();
+			enforceCapacity();
+		}
+	}
+
+	/**
+	 * Remove some, but not all, occurrences of an element, in duplicate counting mode.
+	 * @param section predecessors of the container node.
+	 * @param container node holding the element.
+	 * @param repeats number of occurrences to remove, less than the count.
+	 * @param position position of the first occurrence.
+	 */
+	private void removeRepeats(Section section, Node container, int repeats, int[] position) {
+		final int[] delta = mul(membershipOf(section.nodes[0], container), repeats, horizon);
+		container.count -= repeats;
+		adjustDistance(section, -1, delta);
+		reaggregate(section, null);
+		weight -= (long) repeats * weigh(container.element);
+		onElementUpdated(repeats == 1 ? container.element : null, position, delta, -1, delta);
+	}
+
+	/**
+	 * @return selections a single occurrence of the node element belongs to.
+	 */
+	private int[] membershipOf(Node prev, Node node) {
+		return Distance.div(set(newDistance(), prev.distances[0], horizon), node.count, horizon);
+	}
+
+	/**
+	 * @return the element to report an update of all occurrences with, or null for a batch of them.
+	 */
+	private T reported(Node node) {
+		return node.count == 1 ? node.element : null;
+	}
+
+	/**
+	 * Evict the elements outside the retention window, if any.
+	 */
+	final void retain() {
+		if (retention == null) {
+			return;
+		}
+		// the window is measured from the newest live element
+		while (tail.nodes[0] != absMinNode && tail.nodes[0].dead) {
+			new Navigator(new Section(), doNotMeasure).descendTo(tail.nodes[0].element); // unlinks it
+		}
+		final Node head = absMinNode.nodes[0];
+		if (head != null && retention.isExpired(head.element, tail.nodes[0].element)) {
+			truncateHead(new ExpiryLocator(tail.nodes[0].element));
+		}
+	}
+
+	/**
+	 * Evict elements until the load fits the capacity, or nothing can be evicted.
+	 */
+	final void enforceCapacity() {
+		long excess = getLoad() - capacity;
+		if (excess <= 0) {
+			return;
+		}
+		if (keepFilter >= 0) {
+			// evict one by one, any further one might be protected
+			int evictable = size() - size(keepFilter);
+			while (excess > 0 && evictable > 0) {
+				final ComplementLocator locator = new ComplementLocator(keepFilter, evictFromTail ? evictable - 1 : 0);
+				final T evicted = removeAt(locator);
+				excess -= weigher == null ? 1 : weigher.weigh(evicted);
+				evictable--;
+			}
+		} else if (!evictFromTail) {
+			int count = 0;
+			if (weigher == null) {
+				count = (int) excess;
+			} else {
+				for (Node node = absMinNode.nodes[0]; excess > 0; node = node.nodes[0]) {
+					final int unit = weigher.weigh(node.element);
+					for (int repeat = node.dead ? 0 : node.count; repeat > 0 && excess > 0; --repeat, count++) {
+						excess -= unit;
+					}
+				}
+			}
+			truncateHead(count);
+		} else if (weigher == null) {
+			truncateTail(size() - (int) excess);
+		} else {
+			// no backward links to weigh the tail with
+			while (excess > 0) {
+				excess -= weigher.weigh(removeAt(new IndexLocator(universeFilter, size() - 1)));
+			}
+		}
+	}
+
+	/**
+	 * Remove the element an index-like locator points at.
+	 * @param locator locator that stops right before the element to remove.
+	 * @return the element removed.
+	 */
+	private T removeAt(IndexLocator locator) {
+		final Section section = new Section();
+		final Meter meter = allocateMeterForReporting();
+		final Navigator navigator = new Navigator(section, meter);
+		navigator.descend(locator, false);
+		final Node node = locator.currentNode.nodes[0];
+		final T element = node.element;
+		removeNodeAtSection(section, node, meter.getPosition());
+		return element;
+	}
+
+	/**
+	 * Remove all elements past a given count, in a single descent.
+	 * The last retained node on each level becomes the tail of the level.
+	 * A single batch removal is broadcast, starting past the retained elements of each selection.
+	 * @param retainedCount number of elements to keep.
+	 */
+	private void truncateTail(int retainedCount) {
+		if (countDuplicates) {
+			trimRun(retainedCount);
+			if (retainedCount == size()) {
+				return; // the cut fell on the last node
+			}
+		}
+		final Gap tracker = new Gap();
+		final VectorMeter meter = new VectorMeter();
+		final Navigator navigator = new Navigator(tracker, meter);
+		navigator.descend(new IndexLocator(universeFilter, retainedCount), false);
+		final int[] retained = tracker.distances[0];
+		final int[] evicted = sub(set(newDistance(), absMinNode.distances[orbitLevel], horizon), retained, horizon);
+		final Node first = tracker.nodes[0].nodes[0];
+		final Node firstTall = tracker.nodes[1].nodes[1];
+		for (int level = 0; level <= orbitLevel; ++level) {
+			final Node last = tracker.nodes[level];
+			sub(set(last.distances[level], retained, horizon), tracker.distances[level], horizon);
+			last.setNextNode(level, null);
+			tail.setNextNode(level, last);
+		}
+		unlevel(firstTall, null);
+		evict(first, null, evicted[universeFilter]);
+		reaggregate(tracker, null);
+		onElementUpdated(null, retained, evicted, -1, evicted);
+	}
+
+	/**
+	 * Make an element index fall on a node boundary, in duplicate counting mode,
+	 * by removing the occurrences of the element at that index from that index on.
+	 * @param elementIndex index of the first occurrence to remove.
+	 */
+	private void trimRun(int elementIndex) {
+		final IndexLocator locator = new IndexLocator(universeFilter, elementIndex);
+		final Section section = new Section();
+		final Meter meter = allocateMeterForReporting();
+		final Navigator navigator = new Navigator(section, meter);
+		navigator.descend(locator, false);
+		final Node container = locator.currentNode.nodes[0];
+		final int offset = elementIndex - locator.lookupIndex - 1;
+		if (offset > 0) {
+			removeRepeats(section, container, container.count - offset, meter.getPosition());
+		}
+	}
+
+	/**
+	 * Remove a number of elements from the head, in a single descent.
+	 * In duplicate counting mode, the first retained node may lose some of its occurrences too.
+	 * @param count number of elements to remove.
+	 */
+	private void truncateHead(int count) {
+		final IndexLocator locator = new IndexLocator(universeFilter, count);
+		truncateHead(locator);
+		final int partial = count - locator.lookupIndex - 1;
+		if (partial > 0) {
+			removeRepeats(headSection(), absMinNode.nodes[0], partial, zero);
+		}
+	}
+
+	/**
+	 * Account for a run of nodes unlinked in a batch: the weight of live ones, the tombstones,
+	 * and the nodes on level 0. The run must be unlinked already, and its nodes are recycled.
+	 * @param from first node of the run.
+	 * @param stop node past the run, or null for the rest of the list.
+	 * @param elements number of elements in the run.
+	 */
+	private void evict(Node from, Node stop, int elements) {
+		if (weigher != null || deadCount != 0 || nodePool != null || countDuplicates) {
+			Node next;
+			for (Node node = from; node != stop; node = next) {
+				next = node.nodes[0];
+				if (node.dead) {
+					deadCount--;
+				} else if (weigher != null) {
+					weight -= weigh(node);
+				}
+				levelCounts[0]--;
+				recycle(node);
+			}
+		} else {
+			levelCounts[0] -= elements; // one node per element
+		}
+	}
+
+	/**
+	 * Account for the taller nodes of a run unlinked in a batch, walking level 1 only.
+	 * Must precede {@link #evict(Node, Node, int)}, which recycles the nodes.
+	 * @param from first node of the run on level 1.
+	 * @param stop node past the run on level 1, or null for the rest of the list.
+	 */
+	private void unlevel(Node from, Node stop) {
+		for (Node node = from; node != stop; node = node.nodes[1]) {
+			for (int level = 1; level <= node.level; ++level) {
+				levelCounts[level]--;
+			}
+		}
+	}
+
+	/**
+	 * @return section of the head sentinel on every level, i.e. the predecessors of the first node.
+	 */
+	private Section headSection() {
+		final Section section = new Section();
+		for (int level = 0; level <= orbitLevel; ++level) {
+			section.setNextNode(level, absMinNode);
+		}
+		return section;
+	}
+
+	/**
+	 * Remove all elements a monotone locator steps over, in a single descent.
+	 * The head sentinel is relinked to the first remaining node on each level
+	 * and its edge lengths are shortened by the number of evicted elements.
+	 * A single batch removal is broadcast, starting at the beginning of each selection.
+	 * @param locator locator that never reports an exact match.
+	 */
+	private void truncateHead(Locator locator) {
+		final Gap tracker = new Gap();
+		final VectorMeter meter = new VectorMeter();
+		final Navigator navigator = new Navigator(tracker, meter);
+		navigator.descend(locator, false);
+		final int[] evicted = set(newDistance(), tracker.distances[0], horizon);
+		if (isZero(evicted, horizon)) {
+			return;
+		}
+		final Node first = absMinNode.nodes[0];
+		final Node stop = tracker.nodes[0].nodes[0];
+		final Node firstTall = absMinNode.nodes[1];
+		final Node stopTall = tracker.nodes[1].nodes[1];
+		for (int level = 0; level <= orbitLevel; ++level) {
+			final Node last = tracker.nodes[level];
+			if (last != absMinNode) {
+				// position of the first retained node, or the total size
+				final int[] distance = absMinNode.distances[level];
+				Distance.add(set(distance, tracker.distances[level], horizon), last.distances[level], horizon);
+				absMinNode.setNextNode(level, last.nodes[level]);
+			}
+			sub(absMinNode.distances[level], evicted, horizon);
+			if (absMinNode.nodes[level] == null) {
+				tail.setNextNode(level, absMinNode);
+			}
+		}
+		unlevel(firstTall, stopTall);
+		evict(first, stop, evicted[universeFilter]);
+		reaggregate(headSection(), null);
+		onElementUpdated(null, zero, evicted, -1, evicted);
 	}
 	
 	private boolean removeNodeAtSection(Section section, Node container, int[] position) {
 		if (container == absMinNode) {
 			return false;
 		}
+		if (container.count > 1) {
+			removeRepeats(section, container, 1, position);
+			return true;
+		}
 		final int[] oldEdge = set(newDistance(), section.nodes[0].distances[0], horizon);
 		adjustDistance(section, -1, oldEdge);
-		finishRemoval(section, container);
+		if (lazyRemoval) {
+			container.dead = true;
+			deadCount++;
+			reaggregate(section, null);
+		} else {
+			finishRemoval(section, container);
+		}
+		weight -= weigh(container.element);
 		onElementUpdated(container.element, position, oldEdge, -1, oldEdge);
+		if (!lazyRemoval) {
+			recycle(container);
+		}
+		if (bulkOpDepth == 0 && deadCount > size()) {
+			compact();
+		}
 		return true;
 	}
 	
@@ -512,9 +1458,76 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 				// merge idiom
 				Distance.add(prev.distances[level], container.distances[level], horizon);
 				prev.setNextNode(level, container.nodes[level]);
+				if (tail.nodes[level] == container) {
+					tail.setNextNode(level, prev);
+				}
+				levelCounts[level]--;
+			}
+		}
+		reaggregate(section, null);
+		if (deterministic) {
+			rebound(section, container.level);
+		}
+	}
+
+	/**
+	 * Restore the step bounds of deterministic leveling around an updated position,
+	 * promoting the middle node of every step found too long, bottom-up.
+	 * @param section predecessors of the updated position on each level, kept up to date with promotions.
+	 * @param topLevel highest level the update may have lengthened a step on, regardless of promotions.
+	 */
+	private void rebound(Section section, int topLevel) {
+		for (int level = 0; level < cloudLevel; ++level) {
+			final Node left = section.nodes[level + 1];
+			final Node right = left.nodes[level + 1];
+			int between = 0;
+			for (Node node = left.nodes[level]; node != right; node = node.nodes[level]) {
+				between++;
+			}
+			if (between >= denominator) {
+				promote(section, level, between / 2);
+			} else if (level >= topLevel) {
+				return;
 			}
 		}
 	}
+
+	/**
+	 * Link a node on the level above its own.
+	 * @param section predecessors of the updated position on each level.
+	 * @param level current level of the node.
+	 * @param index index of the node among those on its level that follow the predecessor one level up.
+	 */
+	private void promote(Section section, int level, int index) {
+		final int upper = level + 1;
+		final Node left = section.nodes[upper];
+		final int[] offset = set(newDistance(), left.distances[level], horizon);
+		boolean follows = section.nodes[level] == left;
+		Node middle = left.nodes[level];
+		for (int step = 0; step < index; ++step) {
+			follows |= section.nodes[level] == middle;
+			Distance.add(offset, middle.distances[level], horizon);
+			middle = middle.nodes[level];
+		}
+		middle.setNextNode(upper, left.nodes[upper]);
+		sub(set(middle.distances[upper], left.distances[upper], horizon), offset, horizon);
+		set(left.distances[upper], offset, horizon);
+		left.setNextNode(upper, middle);
+		if (middle.nodes[upper] == null) {
+			tail.setNextNode(upper, middle);
+		}
+		middle.level = upper;
+		levelCounts[upper]++;
+		if (!follows) {
+			// the updated position is past the promoted node (positions in a Gap are not maintained)
+			section.setNextNode(upper, middle);
+		}
+		if (aggregator != null) {
+			middle.aggregates = Arrays.copyOf(middle.aggregates, upper + 1);
+			recomputeAggregate(left, upper);
+			recomputeAggregate(middle, upper);
+		}
+	}
 	
 	@Override
 	public boolean remove(T element) {
@@ -534,12 +1547,48 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 		return removeNodeAtSection(section, node, meter.getPosition());
 	}
 
+	@Override
+	public T pollFirst(int filterIndex) {
+		if (size(filterIndex) == 0) {
+			return null;
+		}
+		final Section section;
+		final Meter meter = allocateMeterForReporting();
+		final Node node;
+		if (absMinNode.distances[0][filterIndex] != 0) {
+			// the head element passes: unlink it without a descent
+			section = headSection();
+			node = absMinNode.nodes[0];
+		} else {
+			section = new Section();
+			final Navigator navigator = new Navigator(section, meter);
+			node = navigator.descendTo(filterIndex, 0);
+		}
+		final T element = node.element;
+		removeNodeAtSection(section, node, meter.getPosition());
+		return element;
+	}
+
+	@Override
+	public T removeFirst() {
+		final T element = pollFirst(universeFilter);
+		if (element == null) {
+			throw new NoSuchElementException();
+		}
+		return element;
+	}
+
 	@Override
 	public void clear() {
 		int[] size = absMinNode.distances[orbitLevel];
 		comparator = pendingComparator;
-		horizon = projector.getHorizon();
+		horizon = computeHorizon();
 		absMinNode = new Node(null, orbitLevel);
+		resetTail();
+		rebuildAggregates();
+		Arrays.fill(levelCounts, 0);
+		deadCount = 0;
+		weight = 0;
 		onElementUpdated(null, zero, size, -1, size);
 	}
 
@@ -557,8 +1606,218 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 
 	@Override
 	public int indexOf(int filterIndex, T element) {
+		return positionOf(filterIndex, filterIndex, element);
+	}
+
+	@Override
+	public int offsetOf(int filterIndex, T element) {
+		return positionOf(filterIndex, weightIndexOf(filterIndex), element);
+	}
+
+	@Override
+	public T getByOffset(int filterIndex, int weightOffset) {
+		final int weightIndex = weightIndexOf(filterIndex);
+		if (weightOffset < 0 || weightOffset >= absMinNode.distances[orbitLevel][weightIndex]) {
+			return null;
+		}
+		// weighted counts are edge lengths, too
+		final IndexLocator locator = new IndexLocator(weightIndex, weightOffset);
+		final Navigator navigator = new Navigator(doNotTrack, doNotMeasure);
+		navigator.descend(locator, false);
+		return locator.currentNode.nodes[0].element;
+	}
+
+	@Override
+	public int totalWeight(int filterIndex) {
+		return absMinNode.distances[orbitLevel][weightIndexOf(filterIndex)];
+	}
+
+	@Override
+	public List<T> sample(int filterIndex, int count, Random random) {
+		return collectAt(filterIndex, Sampling.drawIndices(size(filterIndex), count, random));
+	}
+
+	@Override
+	public List<T> sampleWeighted(int filterIndex, int count, Random random) {
+		final int weightIndex = weightIndexOf(filterIndex);
+		final int totalWeight = absMinNode.distances[orbitLevel][weightIndex];
+		if (totalWeight == 0) {
+			return new ArrayList<T>(0);
+		}
+		final int[] offsets = new int[count];
+		for (int i = 0; i < count; ++i) {
+			offsets[i] = random.nextInt(totalWeight);
+		}
+		return collectAt(weightIndex, offsets);
+	}
+
+	/**
+	 * Look up a batch of elements by position in a single forward walk. Each lookup starts
+	 * from where the previous one stopped, climbing up before descending again, so that
+	 * the batch costs O(log N) per element at worst, and less for dense batches.
+	 * @param slot index of the count to walk by, filter count or weighted count.
+	 * @param positions indices or weighted offsets of the elements, within bounds, in any order.
+	 * @return elements at the positions, in the container order.
+	 */
+	private List<T> collectAt(int slot, int[] positions) {
+		Arrays.sort(positions);
+		final List<T> elements = new ArrayList<T>(positions.length);
+		Node node = absMinNode;
+		int position = -1; // last position stepped over
+		int level = 0;
+		for (int target : positions) {
+			while (true) {
+				while (level < node.level && position + node.distances[level + 1][slot] < target) {
+					++level;
+				}
+				while (level > 0 && position + node.distances[level][slot] >= target) {
+					--level;
+				}
+				final int distance = node.distances[level][slot];
+				if (position + distance >= target) {
+					break;
+				}
+				position += distance;
+				node = node.nodes[level];
+			}
+			elements.add(node.nodes[0].element);
+		}
+		return elements;
+	}
+
+	@Override
+	public <A> A aggregate(Aggregator<? super T, A> requested, int filterIndex, int fromIndex, int toIndex) {
+		if (aggregator == null) {
+			throw new IllegalStateException("No aggregator set");
+		}
+		if (requested != aggregator) {
+			throw new IllegalArgumentException("Not the aggregator set");
+		}
+		fromIndex = Math.max(fromIndex, 0);
+		toIndex = Math.min(toIndex, size(filterIndex));
+		Object result = aggregator.identity();
+		if (fromIndex < toIndex) {
+			final int lastIndex = toIndex - 1;
+			final IndexLocator locator = locate(filterIndex, fromIndex);
+			Node node = locator.currentNode;
+			int position = locator.lookupIndex; // last element folded, or skipped
+			final int skip = fromIndex - position - 1;
+			if (skip > 0) {
+				// start amid a run of duplicates
+				node = node.nodes[0];
+				final int repeats = Math.min(node.count - skip, toIndex - fromIndex);
+				result = power(aggregator.lift(node.element), repeats);
+				position += skip + repeats;
+			}
+			int level = 0;
+			while (position < lastIndex) {
+				while (level < node.level && position + node.distances[level + 1][filterIndex] <= lastIndex) {
+					++level;
+				}
+				while (level > 0 && position + node.distances[level][filterIndex] > lastIndex) {
+					--level;
+				}
+				final int distance = node.distances[level][filterIndex];
+				if (position + distance <= lastIndex) {
+					result = aggregator.combine(result, node.aggregates[level][filterIndex]);
+					position += distance;
+					node = node.nodes[level];
+				} else {
+					// end amid a run of duplicates
+					result = aggregator.combine(result, power(aggregator.lift(node.nodes[0].element), lastIndex - position));
+					position = lastIndex;
+				}
+			}
+		}
+		@SuppressWarnings("unchecked")
+		final A summary = (A) result; // summarized by the requested aggregator
+		return summary;
+	}
+
+	/**
+	 * @return summary of an element repeated a number of times, in O(log repeats) combinations.
+	 */
+	private Object power(Object summary, int repeats) {
+		Object result = aggregator.identity();
+		while (repeats > 0) {
+			if ((repeats & 1) != 0) {
+				result = aggregator.combine(result, summary);
+			}
+			repeats >>= 1;
+			if (repeats > 0) {
+				summary = aggregator.combine(summary, summary);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Recompute the summaries of an edge from the edges right below it.
+	 */
+	private void recomputeAggregate(Node node, int level) {
+		if (node.aggregates == null) {
+			node.aggregates = new Object[node.level + 1][];
+		}
+		final Object[] aggregate = new Object[filterCount];
+		final Node next = node.nodes[level];
+		if (level == 0) {
+			final Object summary = next == null ? null : power(aggregator.lift(next.element), next.count);
+			final int[] membership = node.distances[0];
+			for (int filterIndex = 0; filterIndex < filterCount; ++filterIndex) {
+				aggregate[filterIndex] = membership[filterIndex] != 0 ? summary : aggregator.identity();
+			}
+		} else {
+			final int below = level - 1;
+			final Object[] first = node.aggregates[below];
+			System.arraycopy(first, 0, aggregate, 0, filterCount);
+			for (Node step = node.nodes[below]; step != next; step = step.nodes[below]) {
+				for (int filterIndex = 0; filterIndex < filterCount; ++filterIndex) {
+					aggregate[filterIndex] = aggregator.combine(aggregate[filterIndex], step.aggregates[below][filterIndex]);
+				}
+			}
+		}
+		node.aggregates[level] = aggregate;
+	}
+
+	/**
+	 * Recompute the summaries along a search path, bottom-up.
+	 * @param section predecessors of the updated element on each level.
+	 * @param inserted node just linked after the predecessors, or null.
+	 */
+	private void reaggregate(Section section, Node inserted) {
+		if (aggregator != null) {
+			for (int level = 0; level <= orbitLevel; ++level) {
+				recomputeAggregate(section.nodes[level], level);
+				if (inserted != null && level <= inserted.level) {
+					recomputeAggregate(inserted, level);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Recompute all summaries, bottom-up, in O(N).
+	 */
+	private void rebuildAggregates() {
+		if (aggregator != null) {
+			for (int level = 0; level <= orbitLevel; ++level) {
+				for (Node node = absMinNode; node != null; node = node.nodes[level]) {
+					recomputeAggregate(node, level);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Find an element and measure the distance to it.
+	 * @param filterIndex index of the selection the element must belong to.
+	 * @param meterIndex index of the count to measure the distance with, filter count or weighted count.
+	 * @param element element to find.
+	 * @return index or offset of the element, or -1 if the element is not found or does not belong to the selection.
+	 */
+	private int positionOf(int filterIndex, int meterIndex, T element) {
 		final ValueLocator locator = new ValueLocator(element);
-		final ScalarMeter meter = new ScalarMeter(filterIndex);
+		final ScalarMeter meter = new ScalarMeter(meterIndex);
 		final Tracker tracker = doNotTrack;
 		final Navigator navigator = new Navigator(tracker, meter);
 		if (navigator.descend(locator, true)) {
@@ -566,11 +1825,38 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 			navigator.descend(new ExactLocator(found), false);
 			final Node predecessor = navigator.node;
 			final int projection = predecessor.distances[0][filterIndex];
-			return projection == 0 ? -1 : meter.position + projection;
+			return projection == 0 ? -1 : meter.position + 1;
 		}
 		return -1;
 	}
-	
+
+	@Override
+	public int rank(int filterIndex, T value, boolean ceiling) {
+		return ceiling
+				? countPreceding(filterIndex, new ValueLocator(value))
+				: countPreceding(filterIndex, new SuccessorLocator(value)) - 1;
+	}
+
+	@Override
+	public int countBetween(int filterIndex, T lowest, T highest) {
+		final int count = countPreceding(filterIndex, new SuccessorLocator(highest))
+				- countPreceding(filterIndex, new ValueLocator(lowest));
+		return Math.max(count, 0);
+	}
+
+	/**
+	 * Count the selection elements the locator steps over.
+	 * @param filterIndex index of the selection to count in.
+	 * @param locator locator that never reports an exact match.
+	 * @return number of elements passing the filter before the located position.
+	 */
+	private int countPreceding(int filterIndex, Locator locator) {
+		final ScalarMeter meter = new ScalarMeter(filterIndex);
+		final Navigator navigator = new Navigator(doNotTrack, meter);
+		navigator.descend(locator, false);
+		return meter.position + 1;
+	}
+
 	@Override
 	public int convertIndex(int sourceElementIndex, int sourceFilterIndex, int targetFilterIndex) {
 		return convertIndex(sourceElementIndex, sourceFilterIndex, targetFilterIndex, false);
@@ -593,7 +1879,11 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 				final Navigator navigator = new Navigator(doNotTrack, meter);
 				navigator.descend(locator, false);
 				final int projection = locator.currentNode.distances[0][targetFilterIndex];
-				targetElementIndex = meter.position + (ceiling ? 1 : projection);
+				// occurrence of a repeated element within its run
+				final int offset = sourceElementIndex - locator.lookupIndex - 1;
+				targetElementIndex = projection != 0
+						? meter.position + 1 + offset
+						: meter.position + (ceiling ? 1 : 0);
 			}
 		}
 		return targetElementIndex;
@@ -611,18 +1901,32 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 		final Navigator navigator = new Navigator(tracker, meter);
 		Node container = navigator.descendTo(oldValue);
 		if (container == absMinNode) {
-			if (autoAdd) {
-				modification.apply(oldValue);
-				finishAddition(oldValue, project(oldValue), (VectorMeter) meter, (Gap) tracker);
+			final T element = autoAdd ? loadMissing(oldValue) : null;
+			if (element != null) {
+				modification.apply(element);
+				finishAddition(element, project(element), (VectorMeter) meter, (Gap) tracker, 1);
 				return true;
 			}
 			return false;
 		}
-		if (modification.apply(container.element)) {
+		weight -= weigh(container);
+		final int oldWeight = weightedIndexing ? weightOf(container.element) : 0;
+		final boolean modified = modification.apply(container.element);
+		weight += weigh(container);
+		if (modified && weightedIndexing) {
+			final int deltaWeight = weightOf(container.element) - oldWeight;
+			if (deltaWeight != 0) {
+				adjustDistance(tracker, 1, weighMembership(newDistance(), tracker.nodes[0].distances[0], deltaWeight));
+			}
+		}
+		if (modified) {
+			reaggregate(tracker, null);
 			onElementUpdated(container.element, meter.getPosition(), tracker.nodes[0].distances[0], 0, zero);
-			return true;
+			if (bulkOpDepth == 0) {
+				enforceCapacity();
+			}
 		}
-		return false;
+		return modified;
 	}
 
 	@Override
@@ -632,22 +1936,29 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 		final Navigator navigator = new Navigator(tracker, meter);
 		Node container = navigator.descendTo(oldValue);
 		if (container == absMinNode) {
-			if (autoAdd) {
-				modification.apply(oldValue);
-				finishAddition(oldValue, project(oldValue), (VectorMeter) meter, (Gap) tracker);
+			final T element = autoAdd ? loadMissing(oldValue) : null;
+			if (element != null) {
+				modification.apply(element);
+				finishAddition(element, project(element), (VectorMeter) meter, (Gap) tracker, 1);
 				return true;
 			}
 			return false;
 		}
 		T element = container.element;
 		int[] oldEdge = tracker.nodes[0].distances[0];
+		weight -= weigh(container);
 		boolean modified = modification.apply(element);
+		weight += weigh(container);
 		if (modified) {
-			int[] changeEstimate = project(element);
+			int[] changeEstimate = mul(project(element), container.count, horizon);
 			int[] deltaCount = sub(set(newDistance(), changeEstimate, horizon), oldEdge, horizon);
 			Distance.add(changeEstimate, oldEdge, horizon);
 			adjustDistance(tracker, 1, deltaCount);
-			onElementUpdated(element, meter.getPosition(), changeEstimate, 1, deltaCount);
+			reaggregate(tracker, null);
+			onElementUpdated(reported(container), meter.getPosition(), changeEstimate, 1, deltaCount);
+			if (bulkOpDepth == 0) {
+				enforceCapacity();
+			}
 		}
 		return modified;
 	}
@@ -659,17 +1970,18 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 		final Navigator navigator = new Navigator(tracker, meter);
 		Node container = navigator.descendTo(oldValue);
 		if (container == absMinNode) {
-			if (autoAdd) {
-				boolean modified = modification.apply(oldValue);
+			final T element = autoAdd ? loadMissing(oldValue) : null;
+			if (element != null) {
+				boolean modified = modification.apply(element);
 				if (modified) {
 					Node prevNode = tracker.nodes[0];
-					if ((prevNode != absMinNode && compareWithNextNode(oldValue, prevNode) < 0)
-							|| compareWithNextNode(oldValue, prevNode.nodes[0]) > 0) {
-						addPrecomputedDistance(oldValue, project(oldValue));
+					if ((prevNode != absMinNode && compareWithNextNode(element, prevNode) < 0)
+							|| compareWithNextNode(element, prevNode.nodes[0]) > 0) {
+						addPrecomputedDistance(element, project(element), 1);
 						return true;
 					}
 				}
-				finishAddition(oldValue, project(oldValue), (VectorMeter) meter, (Gap) tracker);
+				finishAddition(element, project(element), (VectorMeter) meter, (Gap) tracker, 1);
 				return true;
 			}
 			return false;
@@ -679,27 +1991,40 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 		adjustDistance(tracker, -1, oldEdge);
 		T element = container.element;
 		if (broadcastOldValue) {
-			onElementUpdated(element, meter.getPosition(), oldEdge, -1, oldEdge);
+			onElementUpdated(reported(container), meter.getPosition(), oldEdge, -1, oldEdge);
 		}
+		weight -= weigh(container);
 		boolean modified = modification.apply(element);
+		// in duplicate counting mode, an element now equal to a neighbor merges with it,
+		// and in lazy removal mode, an element now equal to a tombstone replaces it
+		final Node prevNode = tracker.nodes[0];
+		final Node nextNode = container.nodes[0];
+		final int prevTie = countDuplicates || prevNode.dead ? 0 : 1;
+		final int nextTie = countDuplicates || nextNode != null && nextNode.dead ? 0 : 1;
 		boolean diffRank = modified
-				&& (compareWithNextNode(tracker.nodes[0].element, container) > 0
-				|| compareWithNextNode(element, container.nodes[0]) > 0);
+				&& (compareWithNextNode(prevNode.element, container) >= prevTie
+				|| compareWithNextNode(element, nextNode) >= nextTie);
 		if (diffRank) {
 			if (!broadcastOldValue) {
-				onElementUpdated(element, meter.getPosition(), oldEdge, -1, oldEdge);
+				onElementUpdated(reported(container), meter.getPosition(), oldEdge, -1, oldEdge);
 			}
 			// finish removal
 			finishRemoval(tracker, container);
-			add(element);
+			addPrecomputedDistance(element, project(element), container.count);
+			recycle(container);
 		} else {
 			// voila, order preserved!
-			final int[] projection = project(element);
+			weight += weigh(container);
+			final int[] projection = mul(project(element), container.count, horizon);
 			adjustDistance(tracker, 1, projection);
+			reaggregate(tracker, null);
 			if (!broadcastOldValue) {
 				sub(projection, oldEdge, horizon);
 			}
-			onElementUpdated(element, meter.getPosition(), projection, 1, projection);
+			onElementUpdated(reported(container), meter.getPosition(), projection, 1, projection);
+			if (bulkOpDepth == 0) {
+				enforceCapacity();
+			}
 		}
 		return modified;
 	}
@@ -713,7 +2038,8 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 	}
 	
 	private int[] project(T oldValue) {
-		return Distance.project(newDistance(), oldValue, horizon, this);
+		final int[] projection = Distance.project(newDistance(), oldValue, filterHorizon(), this);
+		return weightedIndexing ? weighMembership(projection, projection, weightOf(oldValue)) : projection;
 	}
 	
 	@Override
@@ -721,6 +2047,15 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 		this.autoAdd = autoAdd;
 	}
 
+	@Override
+	public void setLoader(Loader<T> loader) {
+		this.loader = loader;
+	}
+
+	private T loadMissing(T oldValue) {
+		return loader == null ? oldValue : loader.load(oldValue);
+	}
+
 	private void adjustDistance(Section previousNodes, int deltaSize, int[] deltaCount) {
 		if (deltaSize != 0 && !Distance.isZero(deltaCount, horizon)) {
 			for (int level = orbitLevel; level >= 0; --level) {
@@ -734,16 +2069,20 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 		if (dirtyMask.cardinality() == 0) {
 			return EMPTY;
 		}
-		horizon = projector.getHorizon();
+		horizon = computeHorizon();
 		hintBulkOpBegin();
 		final BitSet retVal;
-		if (dirtyMask.cardinality() == 1) {
-			int affectedElements = doRefreshFilters(dirtyMask.nextSetBit(0));
-			retVal = affectedElements == 0 ? EMPTY : dirtyMask;
-		} else {
-			retVal = doRefreshFilters(dirtyMask);
+		try {
+			if (dirtyMask.cardinality() == 1 && !weightedIndexing) {
+				int affectedElements = doRefreshFilters(dirtyMask.nextSetBit(0));
+				retVal = affectedElements == 0 ? EMPTY : dirtyMask;
+			} else {
+				retVal = doRefreshFilters(dirtyMask);
+			}
+			rebuildAggregates();
+		} finally {
+			hintBulkOpCompleted();
 		}
-		hintBulkOpCompleted();
 		return retVal;
 	}
 	
@@ -759,18 +2098,34 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 	
 	@Override
 	public Iterator<Map.Entry<T, int[]>> iterator() {
+		// entries carry the membership of each element, i.e. the length of its incoming edge
 		return new Iterator<Map.Entry<T, int[]>>() {
-			Node node = absMinNode;
+			Node prev, node = absMinNode;
+			int repeat;
 
 			@Override
 			public boolean hasNext() {
-				return node.nodes[0] != null;
+				if (repeat == 0) {
+					// skip tombstones ahead
+					while (node.nodes[0] != null && node.nodes[0].dead) {
+						prev = node;
+						node = node.nodes[0];
+					}
+				}
+				return repeat > 0 || node.nodes[0] != null;
 			}
 
 			@Override
 			public Map.Entry<T, int[]> next() {
-				node = node.nodes[0];
-				return node;
+				if (repeat == 0) {
+					do {
+						prev = node;
+						node = node.nodes[0];
+					} while (node.dead);
+					repeat = node.count;
+				}
+				repeat--;
+				return new AbstractMap.SimpleImmutableEntry<T, int[]>(node.element, observed(membershipOf(prev, node)));
 			}
 
 			@Override
@@ -782,31 +2137,84 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 
 	@Override
 	public Iterator<T> iterator(final int filterIndex) {
+		return iterator(filterIndex, 0);
+	}
+
+	@Override
+	public Iterator<T> iterator(int filterIndex, int elementIndex) {
+		if (elementIndex < 0) {
+			throw new IndexOutOfBoundsException("Negative start index " + elementIndex);
+		}
 		int filteredSize = size(filterIndex);
-		if (filteredSize < levelCount) {
-			return cherryIterator(filterIndex);
+		if (filteredSize - elementIndex < levelCount) {
+			return cherryIterator(filterIndex, elementIndex);
 		} else {
 			int universeSize = size();
 			// ladder beats walker starting from 1/d factor
 			if (filteredSize < universeSize / denominator) {
-				return ladderIterator(filterIndex);
+				return ladderIterator(filterIndex, elementIndex);
 			} else {
-				return walkerIterator(filterIndex);
+				return walkerIterator(filterIndex, elementIndex);
 			}
 		}
 	}
 
 	// factory methods exposed for unit testing / benchmarking
 	protected Iterator<T> cherryIterator(int filterIndex) {
-		return new CherryIterator(filterIndex);
+		return cherryIterator(filterIndex, 0);
 	}
 
 	protected Iterator<T> ladderIterator(int filterIndex) {
-		return new LadderIterator(filterIndex);
+		return ladderIterator(filterIndex, 0);
 	}
 
 	protected Iterator<T> walkerIterator(int filterIndex) {
-		return new WalkerIterator(filterIndex);
+		return walkerIterator(filterIndex, 0);
+	}
+
+	protected Iterator<T> cherryIterator(int filterIndex, int elementIndex) {
+		return new CherryIterator(filterIndex, elementIndex);
+	}
+
+	protected Iterator<T> ladderIterator(int filterIndex, int elementIndex) {
+		return new LadderIterator(filterIndex, elementIndex);
+	}
+
+	protected Iterator<T> walkerIterator(int filterIndex, int elementIndex) {
+		return new WalkerIterator(filterIndex, elementIndex);
+	}
+
+	@Override
+	public SplittableIterator<T> splittableIterator(int filterIndex) {
+		return new SplittingIterator(filterIndex, 0, size(filterIndex));
+	}
+
+	@Override
+	public NavigableSet<T> asNavigableSet(int filterIndex) {
+		return new NavigableSelection<T>(this, filterIndex);
+	}
+
+	/**
+	 * Locate the node immediately preceding a selection element, e.g. to start a walk from it.
+	 * @param filterIndex index of the selection in which the element will be looked up.
+	 * @param elementIndex index of the element within the selection, assumed to be within bounds.
+	 * @return locator holding the predecessor node on level 0, or {@link #absMinNode} for the first element,
+	 * and the selection index of the last element before the node holding the element.
+	 */
+	final IndexLocator locate(int filterIndex, int elementIndex) {
+		final IndexLocator locator = new IndexLocator(filterIndex, elementIndex);
+		if (elementIndex == 0) {
+			locator.currentNode = absMinNode;
+		} else {
+			final Navigator navigator = new Navigator(doNotTrack, doNotMeasure);
+			navigator.descend(locator, false);
+		}
+		return locator;
+	}
+
+	@Override
+	public FrozenAdaptable<T> freeze() {
+		return new FrozenAdaptable<T>(this);
 	}
 
 	@Override
@@ -820,20 +2228,29 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 	}
 
 	private void doAddAll(Adaptable<T> source, boolean dropExisting) {
-		hintBulkOpBegin();
 		if (source.getFilterCount() != getFilterCount()) {
 			throw new IllegalArgumentException("Incompatible source!");
 		}
-		Iterator<Map.Entry<T, int[]>> iterator = source.iterator();
-		if (dropExisting) {
-			// clear silently, preserving iterator.
-			clear();
-		}
-		while (iterator.hasNext()) {
-			Map.Entry<T, int[]> node = iterator.next();
-			addPrecomputedDistance(node.getKey(), node.getValue());
+		hintBulkOpBegin();
+		try {
+			Iterator<Map.Entry<T, int[]>> iterator = source.iterator();
+			if (dropExisting) {
+				// clear silently, preserving iterator.
+				clear();
+			}
+			while (iterator.hasNext()) {
+				Map.Entry<T, int[]> node = iterator.next();
+				int[] projection = node.getValue();
+				if (weightedIndexing) {
+					// the source may weigh differently, or not at all
+					projection = set(newDistance(), projection, filterHorizon());
+					weighMembership(projection, projection, weightOf(node.getKey()));
+				}
+				addPrecomputedDistance(node.getKey(), projection, 1);
+			}
+		} finally {
+			hintBulkOpCompleted();
 		}
-		hintBulkOpCompleted();
 	}
 
 	private BitSet doRefreshFilters(BitSet mask) {
@@ -851,20 +2268,36 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 			tracker.setNextNode(level, node);
 		}
 		boolean moreData;
-		final int[] indices = Distance.toArray(mask);
+		final int[] filters = Distance.toArray(mask);
+		final int[] indices = weightedIndexing ? withWeightIndices(filters) : filters;
 		final int[] deltaCount = newDistance();
 		T element;
 		do {
 			set(projection, node.distances[0], horizon);
 			nextNode = node.nodes[0];
 			moreData = nextNode != null;
-			if (moreData) {
+			if (moreData && !nextNode.dead) {
 				element = nextNode.element;
+				final int count = nextNode.count;
+				if (count != 1) {
+					// project a single occurrence
+					Distance.div(projection, count, horizon);
+				}
 				Distance.set(deltaCount, projection, indices);
-				Distance.project(projection, element, indices, this);
+				Distance.project(projection, element, filters, this);
+				if (weightedIndexing) {
+					final int weight = weightOf(element);
+					for (int filterIndex : filters) {
+						projection[filterCount + filterIndex] = projection[filterIndex] * weight;
+					}
+				}
 				Distance.sub(deltaCount, projection, indices);
+				if (count != 1) {
+					mul(projection, count, horizon);
+					mul(deltaCount, count, horizon);
+				}
 				if (!isZero(deltaCount, horizon)) {
-					onElementUpdated(element, selectionIndex, deltaCount, -1, deltaCount);
+					onElementUpdated(reported(nextNode), selectionIndex, deltaCount, -1, deltaCount);
 				}
 				Distance.add(selectionIndex, projection, horizon);
 			}
@@ -882,6 +2315,14 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 		return mask;
 	}
 
+	private int[] withWeightIndices(int[] filters) {
+		final int[] indices = Arrays.copyOf(filters, 2 * filters.length);
+		for (int i = 0; i < filters.length; ++i) {
+			indices[filters.length + i] = filterCount + filters[i];
+		}
+		return indices;
+	}
+
 	// optimized single-filter version
 	// 
 	// the traversal logic is similar to WalkerIterator, and can be further optimized
@@ -911,18 +2352,19 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 		do {
 			nextNode = node.nodes[0];
 			moreData = nextNode != null;
-			if (moreData) {
+			if (moreData && !nextNode.dead) {
 				element = nextNode.element;
-				distance = node.distances[0];
-				delta = -distance[filterIndex];
+				final int count = nextNode.count;
+				distance = count == 1 ? node.distances[0] : membershipOf(node, nextNode);
+				delta = -node.distances[0][filterIndex];
 				if (accept(element, filterIndex, distance)) {
-					++delta;
-					++selectionIndex;
+					delta += count;
+					selectionIndex += count;
 				}
 				if (delta != 0) {
 					deltaCount[filterIndex] = delta;
 					vPosition[filterIndex] = selectionIndex;
-					onElementUpdated(element, vPosition, deltaCount, 1, deltaCount);
+					onElementUpdated(reported(nextNode), vPosition, deltaCount, 1, deltaCount);
 				}
 			}
 			for (int level = 0; level < levelCount; ++level) {
@@ -940,11 +2382,68 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 
 	@SuppressWarnings("UnusedDeclaration")
 	void validateIntegrity() {
+		if (aggregator != null) {
+			for (int level = 0; level <= orbitLevel; ++level) {
+				for (Node node = absMinNode; node != null; node = node.nodes[level]) {
+					final Object[] expected = node.aggregates[level];
+					recomputeAggregate(node, level);
+					if (!Arrays.equals(expected, node.aggregates[level])) {
+						throw new IllegalStateException("Inconsistent summary after element "
+								+ node.element + " at level " + level);
+					}
+				}
+			}
+		}
+		int dead = 0;
+		for (Node prev = absMinNode; prev.nodes[0] != null; prev = prev.nodes[0]) {
+			if (prev.nodes[0].dead) {
+				if (!isZero(prev.distances[0], horizon)) {
+					throw new IllegalStateException("Tombstone " + prev.nodes[0].element + " is still counted");
+				}
+				dead++;
+			}
+		}
+		if (dead != deadCount) {
+			throw new IllegalStateException("Inconsistent tombstone count " + deadCount + ", found " + dead);
+		}
+		for (int level = 0; level <= orbitLevel; ++level) {
+			int linked = 0;
+			for (Node next = absMinNode.nodes[level]; next != null; next = next.nodes[level]) {
+				linked++;
+			}
+			if (linked != levelCounts[level]) {
+				throw new IllegalStateException("Inconsistent node count " + levelCounts[level]
+						+ " at level " + level + ", found " + linked);
+			}
+		}
+		if (deterministic) {
+			for (int level = 0; level < cloudLevel; ++level) {
+				for (Node left = absMinNode; left != null; left = left.nodes[level + 1]) {
+					int between = 0;
+					for (Node node = left.nodes[level]; node != left.nodes[level + 1]; node = node.nodes[level]) {
+						between++;
+					}
+					if (between >= denominator) {
+						throw new IllegalStateException("Step after " + left.element + " at level " + (level + 1)
+								+ " spans " + (between + 1) + " steps");
+					}
+				}
+			}
+		}
 		Node node = absMinNode;
 		Gap accumulated = new Gap();
 		for (int level = 0; level < orbitLevel; ++level) {
 			accumulated.setNextNode(level, absMinNode);
 		}
+		for (int level = 0; level <= orbitLevel; ++level) {
+			Node last = absMinNode;
+			while (last.nodes[level] != null) {
+				last = last.nodes[level];
+			}
+			if (last != tail.nodes[level]) {
+				throw new IllegalStateException("Inconsistent tail at level " + level);
+			}
+		}
 		Node nextNode;
 		do {
 			int[] walkSlow = accumulated.distances[0];
@@ -974,12 +2473,25 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 
 	@Override
 	public void hintBulkOpBegin() {
-		// no-op
+		++bulkOpDepth;
+		BulkHints.begin(observers);
 	}
 
 	@Override
 	public void hintBulkOpCompleted() {
-		// no-op
+		if (bulkOpDepth > 0) {
+			if (--bulkOpDepth == 0) {
+				retain();
+				enforceCapacity();
+				if (deadCount > size()) {
+					compact();
+				}
+				if (autoRebalance && getLevelSkew() > MAX_LEVEL_SKEW) {
+					rebalance();
+				}
+			}
+			BulkHints.completed(observers);
+		}
 	}
 
 	@Override
@@ -1004,13 +2516,16 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 
 	abstract class SimpleIterator implements Iterator<T> {
 		final int filterIndex;
-		final int returnedSize;
+		int returnedSize;
 		Node node = absMinNode;
-		int returnedCount = 0;
+		int returnedCount;
+		int repeat; // occurrences of the current element left to return
+		int skip; // occurrences of the next element to skip, if starting amid them
 
-		public SimpleIterator(int filterIndex) {
+		public SimpleIterator(int filterIndex, int elementIndex) {
 			this.filterIndex = filterIndex;
 			returnedSize = size(filterIndex);
+			returnedCount = Math.min(elementIndex, returnedSize);
 		}
 
 		@Override
@@ -1023,6 +2538,18 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 			throw new UnsupportedOperationException(); // no use case yet
 		}
 		
+		/**
+		 * Position the iterator right before the first element to return.
+		 */
+		protected final void seek() {
+			if (hasNext()) {
+				final IndexLocator locator = locate(filterIndex, returnedCount);
+				node = locator.currentNode;
+				skip = returnedCount - locator.lookupIndex - 1;
+				repeat = 0;
+			}
+		}
+		
 		/**
 		 * Actually return the found element, preparing iterator state 
 		 * for subsequent {@link #hasNext()} and {@link #next()} calls.
@@ -1033,21 +2560,96 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 			returnedCount ++;
 			return node.element;
 		}
+
+		/**
+		 * Return another occurrence of the current element, see {@link #repeat}.
+		 */
+		protected final T yieldAgain() {
+			repeat--;
+			return yield();
+		}
+
+		/**
+		 * Return the first (or the first unskipped) occurrence of a newly reached element.
+		 */
+		protected final T yieldFirst() {
+			repeat = node.count - 1 - skip;
+			skip = 0;
+			return yield();
+		}
 	}
 	
 	class WalkerIterator extends SimpleIterator {
-		public WalkerIterator(int filterIndex) {
-			super(filterIndex);
+		public WalkerIterator(int filterIndex, int elementIndex) {
+			this(filterIndex, elementIndex, true);
+		}
+
+		WalkerIterator(int filterIndex, int elementIndex, boolean seek) {
+			super(filterIndex, elementIndex);
+			if (seek) {
+				seek();
+			}
 		}
 
 		@Override
 		public T next() {
+			if (repeat > 0) {
+				return yieldAgain();
+			}
 			int stepDistance;
 			do {
 				stepDistance = node.distances[0][filterIndex];
 				node = node.nodes[0];
 			} while (stepDistance == 0);
-			return yield();
+			return yieldFirst();
+		}
+	}
+	
+	/**
+	 * Walker over an index range [returnedCount; returnedSize) of a selection.
+	 * Positioning is deferred until the first element is requested, so that
+	 * splitting a range takes one lookup per resulting iterator, and no more.
+	 */
+	class SplittingIterator extends WalkerIterator implements SplittableIterator<T> {
+		boolean positioned;
+
+		public SplittingIterator(int filterIndex, int elementIndex, int endIndex) {
+			super(filterIndex, elementIndex, false);
+			returnedSize = Math.min(endIndex, returnedSize);
+		}
+
+		@Override
+		public int remaining() {
+			return Math.max(returnedSize - returnedCount, 0);
+		}
+
+		@Override
+		public SplittableIterator<T> trySplit() {
+			final int remaining = remaining();
+			if (remaining < 2) {
+				return null;
+			}
+			final int splitIndex = returnedCount + remaining / 2;
+			final SplittingIterator prefix = new SplittingIterator(filterIndex, returnedCount, splitIndex);
+			prefix.node = node;
+			prefix.positioned = positioned;
+			prefix.repeat = repeat;
+			prefix.skip = skip;
+			returnedCount = splitIndex;
+			positioned = false;
+			return prefix;
+		}
+
+		@Override
+		public T next() {
+			if (!positioned) {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				seek();
+				positioned = true;
+			}
+			return super.next();
 		}
 	}
 	
@@ -1055,15 +2657,16 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 		int level, bestLevel;
 		int[][] distances;
 		
-		public LadderIterator(int filterIndex) {
-			super(filterIndex);
+		public LadderIterator(int filterIndex, int elementIndex) {
+			super(filterIndex, elementIndex);
 			bestLevel = 0;
 			final int totalSize = size();
 			int selectionSize = returnedSize;
 			while (bestLevel < node.level && (selectionSize *= denominator) < totalSize) {
 				++bestLevel;
 			}
-			level = bestLevel;
+			seek();
+			level = Math.min(bestLevel, node.level);
 			distances = node.distances;
 		}
 
@@ -1073,6 +2676,9 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 			// zero, nowhere to escalate -> jump
 			// nonzero, may descend -> descend
 			// nonzero, nowhere to descend -> yield
+			if (repeat > 0) {
+				return yieldAgain();
+			}
 			while (distances[0][filterIndex] == 0) {
 				while (level > 0 && distances[level][filterIndex] != 0) {
 					level--;
@@ -1083,14 +2689,14 @@ public class AdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T>
 			node = node.nodes[0];
 			distances = node.distances;
 			level = Math.min(bestLevel, node.level);
-			return yield();
+			return yieldFirst();
 		}
 		
 	}
 	
 	class CherryIterator extends SimpleIterator {
-		public CherryIterator(int filterIndex) {
-			super(filterIndex);
+		public CherryIterator(int filterIndex, int elementIndex) {
+			super(filterIndex, elementIndex);
 		}
 
 		@Override
@@ -0,0 +1,1110 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ *
+ * Licensed under the MIT license.
+ */
+
+package com.skype.research.util.adaptable;
+
+import com.skype.research.util.primitives.Aggregator;
+import com.skype.research.util.primitives.Loader;
+import com.skype.research.util.primitives.Update;
+import com.skype.research.util.projection.CompositeProjector;
+import com.skype.research.util.projection.Projector;
+import com.skype.research.util.projection.ProjectorEditor;
+
+import java.lang.reflect.Array;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Unrolled variant of {@link AdaptableSkipList}: every node holds a sorted run ("block") of elements
+ * along with a filter membership bitmask per element and per-filter element counts of the whole block.
+ * Upper levels link blocks, and edge lengths count elements as usual, so a positional lookup
+ * descends to a block and ranks within it, and iteration scans arrays rather than following
+ * one link per element.
+ *
+ * A full block is split in two on insertion, and a block is merged with its successor on removal
+ * once both fit in half a block. Neither is observable: {@link ElementObserver}s are notified
+ * of element positions exactly as {@link AdaptableSkipList} would notify them.
+ *
+ * At most {@link #MAX_FILTERS} filters are supported. Duplicate counting, weighted indexing,
+ * aggregation, retention, capacity and ranging are only offered by {@link AdaptableSkipList}.
+ */
+public class BlockedAdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T> {
+
+	public static final int MAX_FILTERS = Long.SIZE;
+	static final BitSet EMPTY = new BitSet();
+
+	// skip list geometry
+	final int levelCount;
+	final int orbitLevel; // top, guaranteed to have only one link on it
+	final int cloudLevel; // highest level allowed for real blocks
+	final int denominator;
+	final int blockCapacity;
+
+	/**
+	 * Sorted run of elements. Edge lengths count the elements after this block, up to and including
+	 * the elements of the next block on the same level; the head block holds no elements.
+	 */
+	final class Block {
+		final Object[] elements;
+		final long[] masks; // filter membership of each element, bit per filter
+		final int[] counts = new int[filterCount]; // elements of the block passing each filter
+		int size;
+		final int level;
+		final Block[] nodes = newBlocks(levelCount);
+		final int[][] distances = new int[levelCount][filterCount];
+
+		Block(int capacity, int level) {
+			this.elements = new Object[capacity];
+			this.masks = new long[capacity];
+			this.level = level;
+		}
+
+		@SuppressWarnings("unchecked")
+		T get(int slot) {
+			return (T) elements[slot];
+		}
+
+		T last() {
+			return get(size - 1);
+		}
+
+		boolean passes(int slot, int filterIndex) {
+			return (masks[slot] >>> filterIndex & 1) != 0;
+		}
+	}
+
+	@SuppressWarnings("unchecked") // arrays of an inner class of a generic class
+	final Block[] newBlocks(int length) {
+		return (Block[]) Array.newInstance(Block.class, length);
+	}
+
+	/**
+	 * Predecessors of a block on every level, along with the selection positions right after them.
+	 */
+	final class Path {
+		final Block[] blocks = newBlocks(levelCount);
+		final int[][] positions = new int[levelCount][filterCount];
+
+		/**
+		 * @return the block found, or null if the container is empty.
+		 */
+		Block target() {
+			return blocks[0].nodes[0];
+		}
+	}
+
+	// raw materials
+	final Random random = new Random();
+
+	// mutable state
+	Comparator<? super T> comparator, pendingComparator;
+	final int[] zero;
+	Block head;
+	final int universeFilter;
+	boolean allowDuplicates;
+	boolean broadcastOldValue;
+	boolean autoAdd;
+	Loader<T> loader;
+
+	// multiple representations
+	final CompositeProjector<T> projector;
+	final int filterCount;
+
+	// observation
+	final List<ElementObserver<? super T>> observers = new LinkedList<ElementObserver<? super T>>();
+
+	public BlockedAdaptableSkipList(int levelCount, int denominator, int blockCapacity,
+	                                Comparator<? super T> comparator, int universeFilter,
+	                                CompositeProjector<T> projector) {
+		if (blockCapacity < 2) {
+			throw new IllegalArgumentException("Block capacity must be at least 2, not " + blockCapacity);
+		}
+		if (projector.getFilterCount() > MAX_FILTERS) {
+			throw new IllegalArgumentException("At most " + MAX_FILTERS + " filters supported");
+		}
+		this.levelCount = levelCount;
+		orbitLevel = levelCount - 1;
+		cloudLevel = orbitLevel - 1;
+		this.denominator = denominator;
+		this.blockCapacity = blockCapacity;
+		this.comparator = comparator;
+		this.pendingComparator = comparator;
+		this.universeFilter = universeFilter;
+		this.projector = projector;
+		this.filterCount = projector.getFilterCount();
+		zero = new int[filterCount];
+		head = new Block(0, orbitLevel);
+	}
+
+	/**
+	 * Ensure determinism. Good for unit testing and other repeatable scenarios.
+	 */
+	public void setSeed(long seed) {
+		random.setSeed(seed);
+	}
+
+	public void setAllowDuplicates(boolean allowDuplicates) {
+		this.allowDuplicates = allowDuplicates;
+	}
+
+	/**
+	 * @see AdaptableSkipList#setBroadcastOldValue(boolean)
+	 */
+	public void setBroadcastOldValue(boolean broadcastOldValue) {
+		this.broadcastOldValue = broadcastOldValue;
+	}
+
+	/**
+	 * @return maximum number of elements held by a single block.
+	 */
+	public int getBlockCapacity() {
+		return blockCapacity;
+	}
+
+	protected void onElementUpdated(T element, int[] position, int[] estimate, int deltaSign, int[] deltaCount) {
+		if (!observers.isEmpty()) {
+			for (ElementObserver<? super T> observer : observers) {
+				observer.onElementUpdated(element, position, estimate, deltaSign, deltaCount);
+			}
+		}
+	}
+
+	/**
+	 * @see AdaptableSkipList#accept(Object, int, int[])
+	 */
+	@Override
+	public boolean accept(T element, int filterIndex, int[] precomputed) {
+		return projector.accept(element, filterIndex, precomputed);
+	}
+
+	@Override
+	public int size() {
+		return size(universeFilter);
+	}
+
+	@Override
+	public int size(int filterIndex) {
+		return head.distances[orbitLevel][filterIndex];
+	}
+
+	@Override
+	public int getFilterCount() {
+		return filterCount;
+	}
+
+	@Override
+	public int getUniverseFilterIndex() {
+		return universeFilter;
+	}
+
+	private int randomLevel() {
+		int level = 0;
+		while (level < cloudLevel && random.nextInt(denominator) == 0) {
+			++level;
+			// "fix-up" optimization: never grow up faster than one level at a time.
+			if (head.nodes[level] == null) {
+				break;
+			}
+		}
+		return level;
+	}
+
+	private int compare(T prev, T next) {
+		return prev == null || next == null
+				? -1 // prev is absMin or next is absMax
+				: comparator.compare(prev, next);
+	}
+
+	private int[] project(T element) {
+		return Distance.project(new int[filterCount], element, projector.getHorizon(), this);
+	}
+
+	private static long maskOf(int[] membership) {
+		long mask = 0;
+		for (int filterIndex = 0; filterIndex < membership.length; ++filterIndex) {
+			if (membership[filterIndex] != 0) {
+				mask |= 1L << filterIndex;
+			}
+		}
+		return mask;
+	}
+
+	private int[] membershipOf(long mask) {
+		final int[] membership = new int[filterCount];
+		for (int filterIndex = 0; filterIndex < filterCount; ++filterIndex) {
+			membership[filterIndex] = (int) (mask >>> filterIndex & 1);
+		}
+		return membership;
+	}
+
+	/**
+	 * Descend to the block that would hold a value: the first block whose last element is not
+	 * less than the value (or greater than it, if inclusive), or the last block if there is none.
+	 * @param value value to look up.
+	 * @param inclusive true to skip blocks ending with elements equal to the value.
+	 * @return predecessors of the block found.
+	 */
+	private Path seek(T value, boolean inclusive) {
+		final Path path = new Path();
+		final int tie = inclusive ? 1 : 0;
+		Block block = head;
+		int[] position = path.positions[orbitLevel];
+		for (int level = orbitLevel; level >= 0; --level) {
+			if (position != path.positions[level]) {
+				Distance.set(path.positions[level], position);
+				position = path.positions[level];
+			}
+			Block next;
+			while ((next = block.nodes[level]) != null && next.nodes[0] != null
+					&& comparator.compare(next.last(), value) < tie) {
+				Distance.add(position, block.distances[level]);
+				block = next;
+			}
+			path.blocks[level] = block;
+		}
+		return path;
+	}
+
+	/**
+	 * Descend to the block holding a selection element.
+	 * @param filterIndex selection to look the element up in.
+	 * @param elementIndex index of the element within the selection, assumed to be within bounds.
+	 * @return predecessors of the block found.
+	 */
+	private Path seek(int filterIndex, int elementIndex) {
+		final Path path = new Path();
+		Block block = head;
+		int[] position = path.positions[orbitLevel];
+		for (int level = orbitLevel; level >= 0; --level) {
+			if (position != path.positions[level]) {
+				Distance.set(path.positions[level], position);
+				position = path.positions[level];
+			}
+			Block next;
+			while ((next = block.nodes[level]) != null
+					&& position[filterIndex] + block.distances[level][filterIndex] <= elementIndex) {
+				Distance.add(position, block.distances[level]);
+				block = next;
+			}
+			path.blocks[level] = block;
+		}
+		return path;
+	}
+
+	/**
+	 * @return first slot of the block holding an element not less than (or greater than, if inclusive) the value.
+	 */
+	private int bound(Block block, T value, boolean inclusive) {
+		final int tie = inclusive ? 1 : 0;
+		int low = 0, high = block.size;
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			if (comparator.compare(block.get(middle), value) < tie) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * @return slot holding an element equal to the value, or -1 if there is none.
+	 */
+	private int find(Block block, T value) {
+		if (block == null) {
+			return -1;
+		}
+		final int slot = bound(block, value, false);
+		return slot < block.size && comparator.compare(block.get(slot), value) == 0 ? slot : -1;
+	}
+
+	/**
+	 * @return slot of the element of a given rank among the elements of the block passing a filter.
+	 */
+	private int select(Block block, int filterIndex, int rank) {
+		int slot = -1;
+		do {
+			while (!block.passes(++slot, filterIndex)) {
+				// skip
+			}
+		} while (rank-- > 0);
+		return slot;
+	}
+
+	/**
+	 * @return number of elements passing a filter in the slots of a block preceding the given one.
+	 */
+	private int rank(Block block, int filterIndex, int slot) {
+		int rank = 0;
+		for (int i = 0; i < slot; ++i) {
+			if (block.passes(i, filterIndex)) {
+				rank++;
+			}
+		}
+		return rank;
+	}
+
+	private int[] positionOf(Path path, Block block, int slot) {
+		final int[] position = Distance.set(new int[filterCount], path.positions[0]);
+		for (int i = 0; i < slot; ++i) {
+			final long mask = block.masks[i];
+			for (int filterIndex = 0; filterIndex < filterCount; ++filterIndex) {
+				position[filterIndex] += (int) (mask >>> filterIndex & 1);
+			}
+		}
+		return position;
+	}
+
+	private int[] reportedPositionOf(Path path, Block block, int slot) {
+		return observers.isEmpty() || block == null ? zero : positionOf(path, block, slot);
+	}
+
+	private void adjustDistance(Path path, int deltaSize, int[] deltaCount) {
+		for (int level = orbitLevel; level >= 0; --level) {
+			Distance.add(path.blocks[level].distances[level], deltaSize, deltaCount);
+		}
+	}
+
+	@Override
+	public boolean add(T element) {
+		return addPrecomputedDistance(element, project(element));
+	}
+
+	private boolean addPrecomputedDistance(T element, int[] projection) {
+		final Path path = seek(element, false);
+		final Block block = path.target();
+		final int slot = block == null ? 0 : bound(block, element, false);
+		if (!allowDuplicates && block != null && slot < block.size
+				&& comparator.compare(block.get(slot), element) == 0) {
+			return false;
+		}
+		final int[] position = reportedPositionOf(path, block, slot);
+		insertSlot(path, block, slot, element, projection);
+		onElementUpdated(element, position, projection, 1, projection);
+		return true;
+	}
+
+	/**
+	 * Store an element in a block, splitting the block first if it is full.
+	 * @param block block to insert into, or null to start the first one.
+	 */
+	private void insertSlot(Path path, Block block, int slot, T element, int[] projection) {
+		if (block == null) {
+			block = new Block(blockCapacity, randomLevel());
+			for (int level = 0; level <= block.level; ++level) {
+				head.nodes[level] = block; // all edges are empty
+			}
+		} else if (block.size == blockCapacity) {
+			final Block right = split(path, block);
+			if (slot > block.size) {
+				slot -= block.size;
+				final int[] position = Distance.add(Distance.set(new int[filterCount], path.positions[0]), block.counts);
+				for (int level = 0; level <= block.level; ++level) {
+					path.blocks[level] = block;
+					Distance.set(path.positions[level], position);
+				}
+				block = right;
+			}
+		}
+		System.arraycopy(block.elements, slot, block.elements, slot + 1, block.size - slot);
+		System.arraycopy(block.masks, slot, block.masks, slot + 1, block.size - slot);
+		block.elements[slot] = element;
+		block.masks[slot] = maskOf(projection);
+		block.size++;
+		Distance.add(block.counts, projection);
+		adjustDistance(path, 1, projection);
+	}
+
+	/**
+	 * Move the upper half of a full block to a new block linked right after it.
+	 * @return the new block.
+	 */
+	private Block split(Path path, Block left) {
+		final Block right = new Block(blockCapacity, randomLevel());
+		final int keep = left.size / 2;
+		right.size = left.size - keep;
+		System.arraycopy(left.elements, keep, right.elements, 0, right.size);
+		System.arraycopy(left.masks, keep, right.masks, 0, right.size);
+		Arrays.fill(left.elements, keep, left.size, null);
+		left.size = keep;
+		final int[] moved = right.counts;
+		for (int slot = 0; slot < right.size; ++slot) {
+			Distance.add(moved, membershipOf(right.masks[slot]));
+		}
+		// position right after the left block, before the split
+		final int[] end = Distance.add(Distance.set(new int[filterCount], path.positions[0]), left.counts);
+		Distance.sub(left.counts, moved);
+		for (int level = 0; level <= orbitLevel; ++level) {
+			if (level <= left.level) {
+				// the elements now follow the left block
+				Distance.sub(path.blocks[level].distances[level], moved);
+			}
+			if (level <= right.level) {
+				final Block prev;
+				if (level <= left.level) {
+					prev = left;
+					Distance.set(right.distances[level], left.distances[level]);
+					Distance.set(left.distances[level], moved);
+				} else {
+					prev = path.blocks[level];
+					final int[] prevPosition = path.positions[level];
+					for (int filterIndex = 0; filterIndex < filterCount; ++filterIndex) {
+						final int prevEnd = prevPosition[filterIndex] + prev.distances[level][filterIndex];
+						right.distances[level][filterIndex] = prevEnd - end[filterIndex];
+						prev.distances[level][filterIndex] = end[filterIndex] - prevPosition[filterIndex];
+					}
+				}
+				right.nodes[level] = prev.nodes[level];
+				prev.nodes[level] = right;
+			} else if (level <= left.level) {
+				Distance.add(left.distances[level], moved);
+			}
+		}
+		return right;
+	}
+
+	/**
+	 * Drop an element from a block, then unlink the block if empty or merge it with its successor if small.
+	 * @param membership membership still accounted for in the edges.
+	 */
+	private void removeSlot(Path path, Block block, int slot, int[] membership) {
+		block.size--;
+		System.arraycopy(block.elements, slot + 1, block.elements, slot, block.size - slot);
+		System.arraycopy(block.masks, slot + 1, block.masks, slot, block.size - slot);
+		block.elements[block.size] = null;
+		Distance.sub(block.counts, membership);
+		adjustDistance(path, -1, membership);
+		if (block.size == 0) {
+			for (int level = 0; level <= block.level; ++level) {
+				final Block prev = path.blocks[level];
+				Distance.add(prev.distances[level], block.distances[level]);
+				prev.nodes[level] = block.nodes[level];
+			}
+		} else {
+			final Block next = block.nodes[0];
+			if (next != null && block.size + next.size <= blockCapacity / 2) {
+				absorb(path, block, next);
+			}
+		}
+	}
+
+	/**
+	 * Move all elements of a block to its predecessor on level 0 and unlink it.
+	 */
+	private void absorb(Path path, Block left, Block right) {
+		for (int level = 0; level <= orbitLevel; ++level) {
+			if (level <= right.level) {
+				final Block prev = level <= left.level ? left : path.blocks[level];
+				Distance.add(prev.distances[level], right.distances[level]);
+				prev.nodes[level] = right.nodes[level];
+			}
+			if (level <= left.level) {
+				// the elements now precede the edges leaving the left block
+				Distance.sub(left.distances[level], right.counts);
+				Distance.add(path.blocks[level].distances[level], right.counts);
+			}
+		}
+		System.arraycopy(right.elements, 0, left.elements, left.size, right.size);
+		System.arraycopy(right.masks, 0, left.masks, left.size, right.size);
+		left.size += right.size;
+		Distance.add(left.counts, right.counts);
+	}
+
+	private T removeAt(Path path, Block block, int slot) {
+		final T element = block.get(slot);
+		final int[] membership = membershipOf(block.masks[slot]);
+		final int[] position = reportedPositionOf(path, block, slot);
+		removeSlot(path, block, slot, membership);
+		onElementUpdated(element, position, membership, -1, membership);
+		return element;
+	}
+
+	@Override
+	public boolean remove(T element) {
+		final Path path = seek(element, false);
+		final Block block = path.target();
+		final int slot = find(block, element);
+		if (slot < 0) {
+			return false;
+		}
+		removeAt(path, block, slot);
+		return true;
+	}
+
+	@Override
+	public boolean remove(int filterIndex, int elementIndex) {
+		if (elementIndex < 0 || elementIndex >= size(filterIndex)) {
+			return false;
+		}
+		removeIndexed(filterIndex, elementIndex);
+		return true;
+	}
+
+	private T removeIndexed(int filterIndex, int elementIndex) {
+		final Path path = seek(filterIndex, elementIndex);
+		final Block block = path.target();
+		return removeAt(path, block, select(block, filterIndex, elementIndex - path.positions[0][filterIndex]));
+	}
+
+	@Override
+	public T pollFirst(int filterIndex) {
+		return size(filterIndex) == 0 ? null : removeIndexed(filterIndex, 0);
+	}
+
+	@Override
+	public T removeFirst() {
+		final T first = pollFirst(universeFilter);
+		if (first == null) {
+			throw new NoSuchElementException();
+		}
+		return first;
+	}
+
+	@Override
+	public void clear() {
+		final int[] size = head.distances[orbitLevel];
+		comparator = pendingComparator;
+		head = new Block(0, orbitLevel);
+		onElementUpdated(null, zero, size, -1, size);
+	}
+
+	@Override
+	public T get(int elementIndex) {
+		return get(universeFilter, elementIndex);
+	}
+
+	@Override
+	public T get(int filterIndex, int elementIndex) {
+		if (elementIndex < 0 || elementIndex >= size(filterIndex)) {
+			return null;
+		}
+		// scalar descent: only one selection is of interest
+		Block block = head;
+		int position = 0;
+		for (int level = orbitLevel; level >= 0; --level) {
+			Block next;
+			while ((next = block.nodes[level]) != null
+					&& position + block.distances[level][filterIndex] <= elementIndex) {
+				position += block.distances[level][filterIndex];
+				block = next;
+			}
+		}
+		final Block target = block.nodes[0];
+		return target.get(select(target, filterIndex, elementIndex - position));
+	}
+
+	@Override
+	public int indexOf(T item) {
+		return indexOf(universeFilter, item);
+	}
+
+	@Override
+	public int indexOf(int filterIndex, T element) {
+		final Path path = seek(element, false);
+		final Block block = path.target();
+		final int slot = find(block, element);
+		if (slot < 0 || !block.passes(slot, filterIndex)) {
+			return -1;
+		}
+		return path.positions[0][filterIndex] + rank(block, filterIndex, slot);
+	}
+
+	/**
+	 * @return number of selection elements less than (or not greater than, if inclusive) the value.
+	 */
+	private int countPreceding(int filterIndex, T value, boolean inclusive) {
+		final Path path = seek(value, inclusive);
+		final Block block = path.target();
+		final int position = path.positions[0][filterIndex];
+		return block == null ? position : position + rank(block, filterIndex, bound(block, value, inclusive));
+	}
+
+	@Override
+	public int rank(int filterIndex, T value, boolean ceiling) {
+		return ceiling ? countPreceding(filterIndex, value, false) : countPreceding(filterIndex, value, true) - 1;
+	}
+
+	@Override
+	public int countBetween(int filterIndex, T lowest, T highest) {
+		return Math.max(countPreceding(filterIndex, highest, true) - countPreceding(filterIndex, lowest, false), 0);
+	}
+
+	@Override
+	public int convertIndex(int sourceElementIndex, int sourceFilterIndex, int targetFilterIndex) {
+		return convertIndex(sourceElementIndex, sourceFilterIndex, targetFilterIndex, false);
+	}
+
+	@Override
+	public int convertIndex(int sourceElementIndex, int sourceFilterIndex, int targetFilterIndex, boolean ceiling) {
+		if (sourceFilterIndex == targetFilterIndex) {
+			return sourceElementIndex; // no validation
+		} else if (sourceElementIndex < 0) {
+			return -1;
+		} else if (sourceElementIndex >= size(sourceFilterIndex)) {
+			return size(targetFilterIndex);
+		}
+		final Path path = seek(sourceFilterIndex, sourceElementIndex);
+		final Block block = path.target();
+		final int slot = select(block, sourceFilterIndex, sourceElementIndex - path.positions[0][sourceFilterIndex]);
+		final int before = path.positions[0][targetFilterIndex] + rank(block, targetFilterIndex, slot);
+		return block.passes(slot, targetFilterIndex) ? before : before - 1 + (ceiling ? 1 : 0);
+	}
+
+	@Override
+	public T getByOffset(int filterIndex, int weightOffset) {
+		throw new IllegalStateException("Weighted indexing is off");
+	}
+
+	@Override
+	public int offsetOf(int filterIndex, T item) {
+		throw new IllegalStateException("Weighted indexing is off");
+	}
+
+	@Override
+	public int totalWeight(int filterIndex) {
+		throw new IllegalStateException("Weighted indexing is off");
+	}
+
+	@Override
+	public <A> A aggregate(Aggregator<? super T, A> aggregator, int filterIndex, int fromIndex, int toIndex) {
+		throw new IllegalStateException("No aggregator set");
+	}
+
+	@Override
+	public List<T> sample(int filterIndex, int count, Random random) {
+		final int[] indices = Sampling.drawIndices(size(filterIndex), count, random);
+		final List<T> sample = new ArrayList<T>(indices.length);
+		for (int index : indices) {
+			sample.add(get(filterIndex, index));
+		}
+		return sample;
+	}
+
+	@Override
+	public List<T> sampleWeighted(int filterIndex, int count, Random random) {
+		throw new IllegalStateException("Weighted indexing is off");
+	}
+
+	@Override
+	public boolean updateInPlace(T oldValue, Update<? super T> modification) {
+		final Path path = seek(oldValue, false);
+		final Block block = path.target();
+		final int slot = find(block, oldValue);
+		if (slot < 0) {
+			return addMissing(oldValue, modification);
+		}
+		final T element = block.get(slot);
+		final int[] position = reportedPositionOf(path, block, slot);
+		final boolean modified = modification.apply(element);
+		if (modified) {
+			onElementUpdated(element, position, membershipOf(block.masks[slot]), 0, zero);
+		}
+		return modified;
+	}
+
+	@Override
+	public boolean updateFilters(T oldValue, Update<? super T> modification) {
+		final Path path = seek(oldValue, false);
+		final Block block = path.target();
+		final int slot = find(block, oldValue);
+		if (slot < 0) {
+			return addMissing(oldValue, modification);
+		}
+		final T element = block.get(slot);
+		final int[] position = reportedPositionOf(path, block, slot);
+		final int[] oldEdge = membershipOf(block.masks[slot]);
+		final boolean modified = modification.apply(element);
+		if (modified) {
+			final int[] changeEstimate = project(element);
+			block.masks[slot] = maskOf(changeEstimate);
+			final int[] deltaCount = Distance.sub(Distance.set(new int[filterCount], changeEstimate), oldEdge);
+			Distance.add(changeEstimate, oldEdge);
+			Distance.add(block.counts, deltaCount);
+			adjustDistance(path, 1, deltaCount);
+			onElementUpdated(element, position, changeEstimate, 1, deltaCount);
+		}
+		return modified;
+	}
+
+	@Override
+	public boolean updateReorder(T oldValue, Update<? super T> modification) {
+		final Path path = seek(oldValue, false);
+		final Block block = path.target();
+		final int slot = find(block, oldValue);
+		if (slot < 0) {
+			return addMissing(oldValue, modification);
+		}
+		// optimized position-aware remove
+		final T element = block.get(slot);
+		final int[] position = reportedPositionOf(path, block, slot);
+		final int[] oldEdge = membershipOf(block.masks[slot]);
+		block.masks[slot] = 0;
+		Distance.sub(block.counts, oldEdge);
+		adjustDistance(path, -1, oldEdge);
+		if (broadcastOldValue) {
+			onElementUpdated(element, position, oldEdge, -1, oldEdge);
+		}
+		final boolean modified = modification.apply(element);
+		final T prevElement = slot > 0 ? block.get(slot - 1) : path.blocks[0] == head ? null : path.blocks[0].last();
+		final T nextElement = slot + 1 < block.size ? block.get(slot + 1)
+				: block.nodes[0] == null ? null : block.nodes[0].get(0);
+		final boolean diffRank = modified
+				&& (compare(prevElement, element) >= 1 || compare(element, nextElement) >= 1);
+		if (diffRank) {
+			if (!broadcastOldValue) {
+				onElementUpdated(element, position, oldEdge, -1, oldEdge);
+			}
+			// finish removal
+			removeSlot(path, block, slot, zero);
+			addPrecomputedDistance(element, project(element));
+		} else {
+			// voila, order preserved!
+			final int[] projection = project(element);
+			block.masks[slot] = maskOf(projection);
+			Distance.add(block.counts, projection);
+			adjustDistance(path, 1, projection);
+			if (!broadcastOldValue) {
+				Distance.sub(projection, oldEdge);
+			}
+			onElementUpdated(element, position, projection, 1, projection);
+		}
+		return modified;
+	}
+
+	private boolean addMissing(T oldValue, Update<? super T> modification) {
+		final T element = autoAdd ? loader == null ? oldValue : loader.load(oldValue) : null;
+		if (element != null) {
+			modification.apply(element);
+			addPrecomputedDistance(element, project(element));
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public void setAutoAdd(boolean autoAdd) {
+		this.autoAdd = autoAdd;
+	}
+
+	@Override
+	public void setLoader(Loader<T> loader) {
+		this.loader = loader;
+	}
+
+	@Override
+	public BitSet refreshFilters(BitSet dirtyMask) {
+		if (dirtyMask.cardinality() == 0 || head.nodes[0] == null) {
+			return EMPTY;
+		}
+		final int[] indices = Distance.toArray(dirtyMask);
+		final int[] selectionIndex = new int[filterCount];
+		final int[] deltaCount = new int[filterCount];
+		for (Block block = head.nodes[0]; block != null; block = block.nodes[0]) {
+			for (int slot = 0; slot < block.size; ++slot) {
+				final T element = block.get(slot);
+				final int[] oldEdge = membershipOf(block.masks[slot]);
+				final int[] projection = Distance.project(membershipOf(block.masks[slot]), element, indices, this);
+				Distance.sub(Distance.set(deltaCount, oldEdge), projection);
+				if (!Distance.isZero(deltaCount)) {
+					block.masks[slot] = maskOf(projection);
+					Distance.sub(block.counts, deltaCount);
+					onElementUpdated(element, selectionIndex, deltaCount, -1, deltaCount);
+				}
+				Distance.add(selectionIndex, projection);
+			}
+		}
+		rebuildDistances();
+		return dirtyMask;
+	}
+
+	/**
+	 * Recompute all edge lengths from block counts in a single pass.
+	 */
+	private void rebuildDistances() {
+		final Block[] prev = newBlocks(levelCount);
+		final int[][] prevPosition = new int[levelCount][filterCount];
+		final int[] position = new int[filterCount];
+		for (int level = 0; level <= orbitLevel; ++level) {
+			prev[level] = head;
+		}
+		for (Block block = head.nodes[0]; block != null; block = block.nodes[0]) {
+			Distance.add(position, block.counts);
+			for (int level = 0; level <= block.level; ++level) {
+				Distance.sub(Distance.set(prev[level].distances[level], position), prevPosition[level]);
+				prev[level] = block;
+				Distance.set(prevPosition[level], position);
+			}
+		}
+		for (int level = 0; level <= orbitLevel; ++level) {
+			Distance.sub(Distance.set(prev[level].distances[level], position), prevPosition[level]);
+		}
+	}
+
+	@Override
+	public void setComparator(Comparator<? super T> pendingComparator) {
+		this.pendingComparator = pendingComparator;
+	}
+
+	@Override
+	public Comparator<? super T> getComparator() {
+		return comparator;
+	}
+
+	@Override
+	public Iterator<Map.Entry<T, int[]>> iterator() {
+		// entries carry the membership of each element
+		return new Iterator<Map.Entry<T, int[]>>() {
+			Block block = head;
+			int slot;
+
+			@Override
+			public boolean hasNext() {
+				return slot < block.size || block.nodes[0] != null;
+			}
+
+			@Override
+			public Map.Entry<T, int[]> next() {
+				if (slot == block.size) {
+					block = block.nodes[0];
+					slot = 0;
+				}
+				final int[] membership = membershipOf(block.masks[slot]);
+				return new AbstractMap.SimpleImmutableEntry<T, int[]>(block.get(slot++), membership);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException(); // no use case yet
+			}
+		};
+	}
+
+	@Override
+	public Iterator<T> iterator(int filterIndex) {
+		return iterator(filterIndex, 0);
+	}
+
+	@Override
+	public Iterator<T> iterator(int filterIndex, int elementIndex) {
+		if (elementIndex < 0) {
+			throw new IndexOutOfBoundsException("Negative start index " + elementIndex);
+		}
+		return new BlockIterator(filterIndex, elementIndex, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public SplittableIterator<T> splittableIterator(int filterIndex) {
+		return new BlockIterator(filterIndex, 0, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public NavigableSet<T> asNavigableSet(int filterIndex) {
+		return new NavigableSelection<T>(this, filterIndex);
+	}
+
+	@Override
+	public FrozenAdaptable<T> freeze() {
+		return new FrozenAdaptable<T>(this);
+	}
+
+	@Override
+	public void setAll(Adaptable<T> source) {
+		doAddAll(source, true);
+	}
+
+	@Override
+	public void addAll(Adaptable<T> source) {
+		doAddAll(source, source == this);
+	}
+
+	private void doAddAll(Adaptable<T> source, boolean dropExisting) {
+		if (source.getFilterCount() != getFilterCount()) {
+			throw new IllegalArgumentException("Incompatible source!");
+		}
+		Iterator<Map.Entry<T, int[]>> iterator = source.iterator();
+		if (dropExisting) {
+			// clear silently, preserving iterator.
+			clear();
+		}
+		while (iterator.hasNext()) {
+			Map.Entry<T, int[]> entry = iterator.next();
+			addPrecomputedDistance(entry.getKey(), Distance.set(new int[filterCount], entry.getValue()));
+		}
+	}
+
+	/**
+	 * Only forwarded to {@link BulkObserver}s: blocks are split and merged as elements come and go, nothing is deferred.
+	 */
+	@Override
+	public void hintBulkOpBegin() {
+		BulkHints.begin(observers);
+	}
+
+	/**
+	 * Only forwarded, see {@link #hintBulkOpBegin()}.
+	 */
+	@Override
+	public void hintBulkOpCompleted() {
+		BulkHints.completed(observers);
+	}
+
+	@Override
+	public ProjectorEditor<T> getFilterEditor() {
+		return projector;
+	}
+
+	@Override
+	public void addElementObserver(ElementObserver<? super T> observer) {
+		observers.add(observer);
+	}
+
+	@Override
+	public void removeElementObserver(ElementObserver<? super T> observer) {
+		observers.remove(observer);
+	}
+
+	@SuppressWarnings("UnusedDeclaration")
+	void validateIntegrity() {
+		final int[] total = new int[filterCount];
+		T prevElement = null;
+		for (Block block = head.nodes[0]; block != null; block = block.nodes[0]) {
+			if (block.size == 0 || block.size > blockCapacity) {
+				throw new IllegalStateException("Block size out of bounds: " + block.size);
+			}
+			final int[] counts = new int[filterCount];
+			for (int slot = 0; slot < block.size; ++slot) {
+				final T element = block.get(slot);
+				if (prevElement != null && comparator.compare(prevElement, element) > (allowDuplicates ? 0 : -1)) {
+					throw new IllegalStateException("Elements out of order: " + prevElement + ", " + element);
+				}
+				prevElement = element;
+				Distance.add(counts, membershipOf(block.masks[slot]));
+			}
+			for (int filterIndex = 0; filterIndex < filterCount; ++filterIndex) {
+				if (counts[filterIndex] != block.counts[filterIndex]) {
+					throw new IllegalStateException("Block count mismatch for filter " + filterIndex);
+				}
+			}
+			Distance.add(total, counts);
+		}
+		// every level must add up to the same totals, edge by edge
+		for (int level = 0; level <= orbitLevel; ++level) {
+			final int[] covered = new int[filterCount];
+			final int[] expected = new int[filterCount];
+			Block prev = head;
+			for (Block block = head.nodes[0]; block != null; block = block.nodes[0]) {
+				Distance.add(expected, block.counts);
+				if (block.level >= level) {
+					if (prev.nodes[level] != block) {
+						throw new IllegalStateException("Broken link on level " + level);
+					}
+					Distance.add(covered, prev.distances[level]);
+					for (int filterIndex = 0; filterIndex < filterCount; ++filterIndex) {
+						if (covered[filterIndex] != expected[filterIndex]) {
+							throw new IllegalStateException("Edge length mismatch on level " + level);
+						}
+					}
+					prev = block;
+				}
+			}
+			if (prev.nodes[level] != null) {
+				throw new IllegalStateException("Dangling link on level " + level);
+			}
+			Distance.add(covered, prev.distances[level]);
+			for (int filterIndex = 0; filterIndex < filterCount; ++filterIndex) {
+				if (covered[filterIndex] != total[filterIndex]) {
+					throw new IllegalStateException("Total mismatch on level " + level);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Scans block arrays over an index range [returnedCount; returnedSize) of a selection,
+	 * skipping blocks holding no selection elements. Positioning is deferred until
+	 * the first element is requested, see {@link AdaptableSkipList.SplittingIterator}.
+	 */
+	class BlockIterator implements SplittableIterator<T> {
+		final int filterIndex;
+		int returnedSize;
+		int returnedCount;
+		Block block;
+		int slot;
+		boolean positioned;
+
+		BlockIterator(int filterIndex, int elementIndex, int endIndex) {
+			this.filterIndex = filterIndex;
+			returnedSize = Math.min(endIndex, size(filterIndex));
+			returnedCount = Math.min(elementIndex, returnedSize);
+		}
+
+		@Override
+		public boolean hasNext() {
+			return returnedCount < returnedSize;
+		}
+
+		@Override
+		public int remaining() {
+			return Math.max(returnedSize - returnedCount, 0);
+		}
+
+		@Override
+		public SplittableIterator<T> trySplit() {
+			final int remaining = remaining();
+			if (remaining < 2) {
+				return null;
+			}
+			final int splitIndex = returnedCount + remaining / 2;
+			final BlockIterator prefix = new BlockIterator(filterIndex, returnedCount, splitIndex);
+			prefix.block = block;
+			prefix.slot = slot;
+			prefix.positioned = positioned;
+			returnedCount = splitIndex;
+			positioned = false;
+			return prefix;
+		}
+
+		@Override
+		public T next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			if (positioned) {
+				do {
+					if (++slot == block.size) {
+						do {
+							block = block.nodes[0];
+						} while (block.counts[filterIndex] == 0);
+						slot = 0;
+					}
+				} while (!block.passes(slot, filterIndex));
+			} else {
+				final Path path = seek(filterIndex, returnedCount);
+				block = path.target();
+				slot = select(block, filterIndex, returnedCount - path.positions[0][filterIndex]);
+				positioned = true;
+			}
+			returnedCount++;
+			return block.get(slot);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException(); // no use case yet
+		}
+	}
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ *
+ * Licensed under the MIT license.
+ */
+
+package com.skype.research.util.adaptable;
+
+import java.util.Collection;
+
+/**
+ * Forwarding of {@link BulkUpdatable} hints to the {@link BulkObserver}s of a container.
+ */
+final class BulkHints {
+	private BulkHints() {}
+
+	static void begin(Collection<? extends ElementObserver<?>> observers) {
+		for (ElementObserver<?> observer : observers) {
+			if (observer instanceof BulkObserver) {
+				((BulkObserver<?>) observer).onBulkOpBegin();
+			}
+		}
+	}
+
+	static void completed(Collection<? extends ElementObserver<?>> observers) {
+		for (ElementObserver<?> observer : observers) {
+			if (observer instanceof BulkObserver) {
+				((BulkObserver<?>) observer).onBulkOpCompleted();
+			}
+		}
+	}
+}
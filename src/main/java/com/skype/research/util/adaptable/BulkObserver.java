@@ -0,0 +1,25 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ *
+ * Licensed under the MIT license.
+ */
+
+package com.skype.research.util.adaptable;
+
+/**
+ * Incremental change observer that is also told about bulk operations, so that it can
+ * handle the changes of a bulk operation as a whole. Containers forward their
+ * {@link BulkUpdatable} hints to the observers implementing this interface; hints
+ * may be nested.
+ */
+public interface BulkObserver<T> extends ElementObserver<T> {
+	/**
+	 * The observed container is beginning a bulk operation.
+	 */
+	public void onBulkOpBegin();
+
+	/**
+	 * The observed container has completed a bulk operation, changes included.
+	 */
+	public void onBulkOpCompleted();
+}
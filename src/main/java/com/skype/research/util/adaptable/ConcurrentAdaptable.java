@@ -0,0 +1,553 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ *
+ * Licensed under the MIT license.
+ */
+
+package com.skype.research.util.adaptable;
+
+import com.skype.research.util.primitives.Aggregator;
+import com.skype.research.util.primitives.Loader;
+import com.skype.research.util.primitives.Update;
+import com.skype.research.util.projection.ProjectorEditor;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Random;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Thread-safe wrapper of a {@link FlexibleAdaptable}: queries share a read lock and run in parallel,
+ * updates take the write lock. Observers are notified by the wrapped container while the write lock
+ * is held, so they see consistent data, and may query the wrapper (the lock is reentrant).
+ *
+ * Iterators fetch elements in pages of {@link #PAGE_SIZE}, each page under the read lock:
+ * a page is consistent, and the next one resumes past the last element returned, by value,
+ * so that updates made between pages show through without breaking the order.
+ * The write lock is held from {@link #hintBulkOpBegin()} to {@link #hintBulkOpCompleted()},
+ * so that readers see a bulk operation all at once; the calls must be balanced and made by the writer.
+ * Compound operations, such as check-then-add, may hold the {@link #getLock()} locks themselves.
+ *
+ * The wrapped container must not be modified by its queries, which holds for the containers
+ * of this package, and must not be accessed other than through the wrapper.
+ */
+public class ConcurrentAdaptable<T> implements FlexibleAdaptable<T>, PagingIterator.Source<T> {
+	public static final int PAGE_SIZE = 64;
+
+	final FlexibleAdaptable<T> adaptable;
+	final ReadWriteLock lock;
+	final Lock readLock;
+	final Lock writeLock;
+
+	public ConcurrentAdaptable(FlexibleAdaptable<T> adaptable) {
+		this(adaptable, false);
+	}
+
+	/**
+	 * @param adaptable container to wrap.
+	 * @param fair true to grant the locks in arrival order, so that readers cannot starve the writer.
+	 */
+	public ConcurrentAdaptable(FlexibleAdaptable<T> adaptable, boolean fair) {
+		this.adaptable = adaptable;
+		lock = new ReentrantReadWriteLock(fair);
+		readLock = lock.readLock();
+		writeLock = lock.writeLock();
+	}
+
+	/**
+	 * @return the lock pair guarding the wrapped container.
+	 */
+	public ReadWriteLock getLock() {
+		return lock;
+	}
+
+	/**
+	 * Copy a range of a selection, consistently.
+	 * @param filterIndex selection to read.
+	 * @param elementIndex index of the first element to copy.
+	 * @param count maximum number of elements to copy.
+	 * @return elements from the index on, fewer than requested at the end of the selection.
+	 */
+	@Override
+	public List<T> page(int filterIndex, int elementIndex, int count) {
+		readLock.lock();
+		try {
+			return pageAt(filterIndex, elementIndex, count);
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	/**
+	 * Copy a range of a selection located by value, consistently.
+	 * @param filterIndex selection to read.
+	 * @param from value of the first element to consider: the first one not less than it.
+	 * @param skip number of elements to skip from there.
+	 * @param count maximum number of elements to copy.
+	 * @return elements from the located one on, fewer than requested at the end of the selection.
+	 */
+	@Override
+	public List<T> page(int filterIndex, T from, int skip, int count) {
+		readLock.lock();
+		try {
+			return pageAt(filterIndex, adaptable.rank(filterIndex, from, true) + skip, count);
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	private List<T> pageAt(int filterIndex, int elementIndex, int count) {
+		final int size = adaptable.size(filterIndex);
+		final List<T> page = new ArrayList<T>(Math.max(Math.min(count, size - elementIndex), 0));
+		final Iterator<T> iterator = adaptable.iterator(filterIndex, elementIndex);
+		while (page.size() < count && iterator.hasNext()) {
+			page.add(iterator.next());
+		}
+		return page;
+	}
+
+	// queries
+
+	@Override
+	public int getFilterCount() {
+		return adaptable.getFilterCount(); // immutable
+	}
+
+	@Override
+	public int getUniverseFilterIndex() {
+		return adaptable.getUniverseFilterIndex(); // immutable
+	}
+
+	@Override
+	public int size() {
+		readLock.lock();
+		try {
+			return adaptable.size();
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@Override
+	public int size(int filterIndex) {
+		readLock.lock();
+		try {
+			return adaptable.size(filterIndex);
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@Override
+	public T get(int elementIndex) {
+		readLock.lock();
+		try {
+			return adaptable.get(elementIndex);
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@Override
+	public T get(int filterIndex, int elementIndex) {
+		readLock.lock();
+		try {
+			return adaptable.get(filterIndex, elementIndex);
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@Override
+	public int indexOf(T item) {
+		readLock.lock();
+		try {
+			return adaptable.indexOf(item);
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@Override
+	public int indexOf(int filterIndex, T item) {
+		readLock.lock();
+		try {
+			return adaptable.indexOf(filterIndex, item);
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@Override
+	public T getByOffset(int filterIndex, int weightOffset) {
+		readLock.lock();
+		try {
+			return adaptable.getByOffset(filterIndex, weightOffset);
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@Override
+	public int offsetOf(int filterIndex, T item) {
+		readLock.lock();
+		try {
+			return adaptable.offsetOf(filterIndex, item);
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@Override
+	public int totalWeight(int filterIndex) {
+		readLock.lock();
+		try {
+			return adaptable.totalWeight(filterIndex);
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@Override
+	public <A> A aggregate(Aggregator<? super T, A> aggregator, int filterIndex, int fromIndex, int toIndex) {
+		readLock.lock();
+		try {
+			return adaptable.aggregate(aggregator, filterIndex, fromIndex, toIndex);
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@Override
+	public List<T> sample(int filterIndex, int count, Random random) {
+		readLock.lock();
+		try {
+			return adaptable.sample(filterIndex, count, random);
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@Override
+	public List<T> sampleWeighted(int filterIndex, int count, Random random) {
+		readLock.lock();
+		try {
+			return adaptable.sampleWeighted(filterIndex, count, random);
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@Override
+	public int convertIndex(int sourceElementIndex, int sourceFilterIndex, int targetFilterIndex) {
+		readLock.lock();
+		try {
+			return adaptable.convertIndex(sourceElementIndex, sourceFilterIndex, targetFilterIndex);
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@Override
+	public int convertIndex(int sourceElementIndex, int sourceFilterIndex, int targetFilterIndex, boolean roundToCeiling) {
+		readLock.lock();
+		try {
+			return adaptable.convertIndex(sourceElementIndex, sourceFilterIndex, targetFilterIndex, roundToCeiling);
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@Override
+	public int rank(int filterIndex, T value, boolean roundToCeiling) {
+		readLock.lock();
+		try {
+			return adaptable.rank(filterIndex, value, roundToCeiling);
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@Override
+	public int countBetween(int filterIndex, T lowest, T highest) {
+		readLock.lock();
+		try {
+			return adaptable.countBetween(filterIndex, lowest, highest);
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@Override
+	public Comparator<? super T> getComparator() {
+		readLock.lock();
+		try {
+			return adaptable.getComparator();
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@Override
+	public FrozenAdaptable<T> freeze() {
+		readLock.lock();
+		try {
+			return adaptable.freeze();
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	/**
+	 * @return entries copied under the read lock, i.e. a consistent listing of the contents.
+	 */
+	@Override
+	public Iterator<Map.Entry<T, int[]>> iterator() {
+		readLock.lock();
+		try {
+			final List<Map.Entry<T, int[]>> entries = new ArrayList<Map.Entry<T, int[]>>(adaptable.size());
+			for (Map.Entry<T, int[]> entry : adaptable) {
+				entries.add(new AbstractMap.SimpleImmutableEntry<T, int[]>(entry.getKey(), entry.getValue().clone()));
+			}
+			return entries.iterator();
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@Override
+	public Iterator<T> iterator(int filterIndex) {
+		return iterator(filterIndex, 0);
+	}
+
+	@Override
+	public Iterator<T> iterator(int filterIndex, int elementIndex) {
+		if (elementIndex < 0) {
+			throw new IndexOutOfBoundsException("Negative start index " + elementIndex);
+		}
+		return new PagingIterator<T>(this, filterIndex, elementIndex, Integer.MAX_VALUE, PAGE_SIZE);
+	}
+
+	@Override
+	public SplittableIterator<T> splittableIterator(int filterIndex) {
+		return new PagingIterator<T>(this, filterIndex, 0, size(filterIndex), PAGE_SIZE);
+	}
+
+	/**
+	 * @return a live view, not suitable for iteration under concurrent updates; iterate a {@link #freeze()} instead.
+	 */
+	@Override
+	public NavigableSet<T> asNavigableSet(int filterIndex) {
+		return new NavigableSelection<T>(this, filterIndex);
+	}
+
+	// updates
+
+	@Override
+	public boolean add(T element) {
+		writeLock.lock();
+		try {
+			return adaptable.add(element);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public boolean remove(T element) {
+		writeLock.lock();
+		try {
+			return adaptable.remove(element);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public boolean remove(int filterIndex, int elementIndex) {
+		writeLock.lock();
+		try {
+			return adaptable.remove(filterIndex, elementIndex);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public T pollFirst(int filterIndex) {
+		writeLock.lock();
+		try {
+			return adaptable.pollFirst(filterIndex);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public T removeFirst() {
+		writeLock.lock();
+		try {
+			return adaptable.removeFirst();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public void clear() {
+		writeLock.lock();
+		try {
+			adaptable.clear();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public void setAll(Adaptable<T> source) {
+		writeLock.lock();
+		try {
+			adaptable.setAll(source);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public void addAll(Adaptable<T> source) {
+		writeLock.lock();
+		try {
+			adaptable.addAll(source == this ? adaptable : source);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public boolean updateInPlace(T oldValue, Update<? super T> modification) {
+		writeLock.lock();
+		try {
+			return adaptable.updateInPlace(oldValue, modification);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public boolean updateFilters(T oldValue, Update<? super T> modification) {
+		writeLock.lock();
+		try {
+			return adaptable.updateFilters(oldValue, modification);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public boolean updateReorder(T oldValue, Update<? super T> modification) {
+		writeLock.lock();
+		try {
+			return adaptable.updateReorder(oldValue, modification);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public BitSet refreshFilters(BitSet dirtyMask) {
+		writeLock.lock();
+		try {
+			return adaptable.refreshFilters(dirtyMask);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Filters may be edited at any time, as they are only evaluated by updates;
+	 * edits take effect on the elements in place upon {@link #refreshFilters(BitSet)}.
+	 */
+	@Override
+	public ProjectorEditor<T> getFilterEditor() {
+		return adaptable.getFilterEditor();
+	}
+
+	@Override
+	public void setComparator(Comparator<? super T> pendingComparator) {
+		writeLock.lock();
+		try {
+			adaptable.setComparator(pendingComparator);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public void setAutoAdd(boolean autoAdd) {
+		writeLock.lock();
+		try {
+			adaptable.setAutoAdd(autoAdd);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public void setLoader(Loader<T> loader) {
+		writeLock.lock();
+		try {
+			adaptable.setLoader(loader);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public void addElementObserver(ElementObserver<? super T> observer) {
+		writeLock.lock();
+		try {
+			adaptable.addElementObserver(observer);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public void removeElementObserver(ElementObserver<? super T> observer) {
+		writeLock.lock();
+		try {
+			adaptable.removeElementObserver(observer);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Take the write lock until {@link #hintBulkOpCompleted()}.
+	 */
+	@Override
+	public void hintBulkOpBegin() {
+		writeLock.lock();
+		adaptable.hintBulkOpBegin();
+	}
+
+	/**
+	 * Release the write lock taken by {@link #hintBulkOpBegin()}.
+	 */
+	@Override
+	public void hintBulkOpCompleted() {
+		try {
+			adaptable.hintBulkOpCompleted();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+}
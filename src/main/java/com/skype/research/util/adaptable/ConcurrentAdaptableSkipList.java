@@ -0,0 +1,1132 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ *
+ * Licensed under the MIT license.
+ */
+
+package com.skype.research.util.adaptable;
+
+import com.skype.research.util.primitives.Aggregator;
+import com.skype.research.util.primitives.Loader;
+import com.skype.research.util.primitives.Update;
+import com.skype.research.util.projection.CompositeProjector;
+import com.skype.research.util.projection.Projector;
+import com.skype.research.util.projection.ProjectorEditor;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Counted skip list open to concurrent producers. Elements and their filter membership bitmasks
+ * are kept in a {@link ConcurrentSkipListMap}, whose links are updated by compare-and-set,
+ * while selection counts are kept per filter in Fenwick trees over buckets of about {@link #BUCKET_SIZE}
+ * consecutive elements. Counts are adjusted by atomic increments, which commute, so any number
+ * of {@link #add(Object)}, {@link #remove(Object)} and {@link #pollFirst(int)} calls proceed in parallel.
+ *
+ * Positional queries ({@link #get(int, int)}, {@link #size(int)}, {@link #indexOf(int, Object)} etc.)
+ * are version-validated: they run without locking while no update is in flight, and are retried
+ * if one has started meanwhile. A query failing validation {@link #OPTIMISTIC_ATTEMPTS} times
+ * locks updates out, so queries are exact and never starve. Iterators are weakly consistent.
+ *
+ * Rare structural operations take an exclusive lock: splitting a bucket once it outgrows
+ * twice its size, rebucketing once most buckets have emptied, {@link #clear()}, filter changes, reordering updates, and positional removal.
+ * Elements are kept unique. At most {@link #MAX_FILTERS} filters are supported, and filters
+ * must be thread-safe. Observers, duplicates, weighted indexing, aggregation, retention,
+ * capacity and ranging are not supported.
+ */
+public class ConcurrentAdaptableSkipList<T> implements FlexibleAdaptable<T>, Projector<T> {
+
+	public static final int MAX_FILTERS = Long.SIZE;
+	public static final int BUCKET_SIZE = 64;
+	public static final int OPTIMISTIC_ATTEMPTS = 8;
+	static final BitSet EMPTY = new BitSet();
+
+	/**
+	 * Elements along with selection counts of their buckets. Buckets are laid out in slots,
+	 * with a spare slot after each of them and as many after the last one: a bucket is split
+	 * into the spare slot after it in place, and the index is laid out anew once there is none.
+	 */
+	final class Index {
+		final ConcurrentNavigableMap<T, Long> elements;
+		final AtomicReferenceArray<Object> pivots; // slot s holds the elements in (pivots[s - 1]; pivots[s]], null is unbounded
+		final int slotCount;
+		final AtomicIntegerArray trees; // one Fenwick tree of slot counts per filter
+		final AtomicIntegerArray sizes; // element count per slot
+		volatile int bucketCount; // slots in use
+
+		/**
+		 * @param pivots greatest elements of all buckets but the last one.
+		 * @param counts selection counts per bucket.
+		 * @param sizes element count per bucket.
+		 */
+		Index(ConcurrentNavigableMap<T, Long> elements, Object[] pivots, int[][] counts, int[] sizes) {
+			this.elements = elements;
+			bucketCount = counts.length;
+			slotCount = 3 * bucketCount - 1;
+			this.pivots = new AtomicReferenceArray<Object>(slotCount);
+			this.sizes = new AtomicIntegerArray(slotCount);
+			final int[] trees = new int[filterCount * (slotCount + 1)];
+			for (int bucket = 0; bucket < bucketCount; ++bucket) {
+				final int slot = 2 * bucket;
+				if (bucket < pivots.length) {
+					this.pivots.set(slot, pivots[bucket]);
+					this.pivots.set(slot + 1, pivots[bucket]); // empty: (pivot; pivot]
+				}
+				this.sizes.set(slot, sizes[bucket]);
+				for (int filterIndex = 0; filterIndex < filterCount; ++filterIndex) {
+					trees[filterIndex * (slotCount + 1) + slot + 1] = counts[bucket][filterIndex];
+				}
+			}
+			for (int filterIndex = 0; filterIndex < filterCount; ++filterIndex) {
+				final int base = filterIndex * (slotCount + 1);
+				for (int node = 1; node <= slotCount; ++node) {
+					final int parent = node + (node & -node);
+					if (parent <= slotCount) {
+						trees[base + parent] += trees[base + node];
+					}
+				}
+			}
+			this.trees = new AtomicIntegerArray(trees);
+		}
+
+		@SuppressWarnings("unchecked")
+		final T pivot(int slot) {
+			return (T) pivots.get(slot);
+		}
+
+		/**
+		 * @return the first slot whose range may hold the value.
+		 */
+		int bucketOf(T value) {
+			int low = 0, high = slotCount - 1;
+			while (low < high) {
+				final int middle = (low + high) >>> 1;
+				final T pivot = pivot(middle);
+				if (pivot != null && comparator.compare(pivot, value) < 0) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			return low;
+		}
+
+		ConcurrentNavigableMap<T, Long> bucket(int slot) {
+			ConcurrentNavigableMap<T, Long> view = elements;
+			if (slot > 0) {
+				final T lower = pivot(slot - 1);
+				if (lower == null) {
+					return new ConcurrentSkipListMap<T, Long>(comparator); // spare slot past the last bucket
+				}
+				view = view.tailMap(lower, false);
+			}
+			final T upper = pivot(slot);
+			if (upper != null) {
+				view = view.headMap(upper, true);
+			}
+			return view;
+		}
+
+		void add(int slot, long mask, int delta) {
+			sizes.addAndGet(slot, delta);
+			for (int filterIndex = 0; filterIndex < filterCount; ++filterIndex) {
+				if ((mask >>> filterIndex & 1) != 0) {
+					adjust(filterIndex, slot, delta);
+				}
+			}
+		}
+
+		private void adjust(int filterIndex, int slot, int delta) {
+			final int base = filterIndex * (slotCount + 1);
+			for (int node = slot + 1; node <= slotCount; node += node & -node) {
+				trees.addAndGet(base + node, delta);
+			}
+		}
+
+		/**
+		 * @return number of selection elements in the slots before the given one.
+		 */
+		int prefix(int filterIndex, int slot) {
+			final int base = filterIndex * (slotCount + 1);
+			int count = 0;
+			for (int node = slot; node > 0; node -= node & -node) {
+				count += trees.get(base + node);
+			}
+			return count;
+		}
+
+		int size(int filterIndex) {
+			return prefix(filterIndex, slotCount);
+		}
+
+		/**
+		 * @return the slot holding a selection element: the last one with fewer elements before it.
+		 */
+		int locate(int filterIndex, int elementIndex) {
+			final int base = filterIndex * (slotCount + 1);
+			int slot = 0;
+			for (int step = Integer.highestOneBit(slotCount); step > 0; step >>= 1) {
+				final int node = slot + step;
+				if (node <= slotCount) {
+					final int count = trees.get(base + node);
+					if (count <= elementIndex) {
+						slot = node;
+						elementIndex -= count;
+					}
+				}
+			}
+			return slot;
+		}
+
+		/**
+		 * @return the selection element, or null if the counts were changing.
+		 */
+		T get(int filterIndex, int elementIndex) {
+			if (elementIndex < 0 || elementIndex >= size(filterIndex)) {
+				return null;
+			}
+			final int slot = locate(filterIndex, elementIndex);
+			int offset = elementIndex - prefix(filterIndex, slot);
+			for (Map.Entry<T, Long> entry : bucket(slot).entrySet()) {
+				if (ConcurrentAdaptableSkipList.passes(entry.getValue(), filterIndex) && offset-- == 0) {
+					return entry.getKey();
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * @return number of selection elements less than (or not greater than, if inclusive) the value.
+		 */
+		int countPreceding(int filterIndex, T value, boolean inclusive) {
+			final int slot = bucketOf(value);
+			int count = prefix(filterIndex, slot);
+			for (Long mask : bucket(slot).headMap(value, inclusive).values()) {
+				if (ConcurrentAdaptableSkipList.passes(mask, filterIndex)) {
+					count++;
+				}
+			}
+			return count;
+		}
+
+		boolean contains(T element, int filterIndex) {
+			final Long mask = elements.get(element);
+			return mask != null && ConcurrentAdaptableSkipList.passes(mask, filterIndex);
+		}
+
+		/**
+		 * Halve the bucket in a slot into the spare slot after it, in O(log(slots)) per filter
+		 * on top of the bucket size. Only called under the exclusive lock.
+		 * @return false if there is no spare slot after the bucket.
+		 */
+		boolean split(int slot) {
+			if (slot + 1 == slotCount || pivots.get(slot + 1) != pivots.get(slot)) {
+				return false;
+			}
+			final int half = sizes.get(slot) / 2;
+			final int[] moved = new int[filterCount];
+			Object pivot = null;
+			int position = 0;
+			for (Map.Entry<T, Long> entry : bucket(slot).entrySet()) {
+				if (position++ < half) {
+					pivot = entry.getKey();
+				} else {
+					Distance.add(moved, membershipOf(entry.getValue()));
+				}
+			}
+			for (int filterIndex = 0; filterIndex < filterCount; ++filterIndex) {
+				adjust(filterIndex, slot, -moved[filterIndex]);
+				adjust(filterIndex, slot + 1, moved[filterIndex]);
+			}
+			sizes.set(slot + 1, sizes.get(slot) - half);
+			sizes.set(slot, half);
+			pivots.set(slot, pivot); // the spare slot keeps the former pivot
+			bucketCount++;
+			return true;
+		}
+
+		/**
+		 * Lay the buckets out anew, with spare slots, in O(slots) per filter. Only called under the exclusive lock.
+		 * @return index over the same elements and buckets.
+		 */
+		Index relayout() {
+			final int[][] slotCounts = new int[slotCount][filterCount];
+			for (int filterIndex = 0; filterIndex < filterCount; ++filterIndex) {
+				// slot counts out of the tree, by undoing its construction
+				final int base = filterIndex * (slotCount + 1);
+				final int[] tree = new int[slotCount + 1];
+				for (int node = 1; node <= slotCount; ++node) {
+					tree[node] = trees.get(base + node);
+				}
+				for (int node = slotCount; node > 0; --node) {
+					final int parent = node + (node & -node);
+					if (parent <= slotCount) {
+						tree[parent] -= tree[node];
+					}
+				}
+				for (int slot = 0; slot < slotCount; ++slot) {
+					slotCounts[slot][filterIndex] = tree[slot + 1];
+				}
+			}
+			final List<Object> pivots = new ArrayList<Object>();
+			final List<int[]> counts = new ArrayList<int[]>();
+			final int[] sizes = new int[bucketCount];
+			for (int slot = 0; counts.size() < bucketCount; ++slot) {
+				// spare slots are empty, and have the pivot of the slot before
+				if (slot == 0 || pivot(slot - 1) != pivot(slot)) {
+					sizes[counts.size()] = this.sizes.get(slot);
+					counts.add(slotCounts[slot]);
+					if (pivot(slot) != null) {
+						pivots.add(pivot(slot));
+					}
+				}
+			}
+			return new Index(elements, pivots.toArray(), counts.toArray(new int[counts.size()][]), sizes);
+		}
+	}
+
+	/**
+	 * A read of several related values, to be validated against concurrent updates.
+	 */
+	abstract class Query<R> {
+		abstract R run(Index index);
+	}
+
+	// configuration
+	final int universeFilter;
+	final CompositeProjector<T> projector;
+	final int filterCount;
+
+	// mutable state
+	volatile Comparator<? super T> comparator, pendingComparator;
+	volatile Index index;
+	volatile boolean autoAdd;
+	volatile Loader<T> loader;
+
+	// concurrency control
+	final AtomicLong started = new AtomicLong(); // updates begun
+	final AtomicLong completed = new AtomicLong(); // updates done
+	final Lock shared; // held by concurrent updates
+	final Lock exclusive; // held by structural updates and by queries failing validation
+
+	public ConcurrentAdaptableSkipList(Comparator<? super T> comparator, int universeFilter, CompositeProjector<T> projector) {
+		if (projector.getFilterCount() > MAX_FILTERS) {
+			throw new IllegalArgumentException("At most " + MAX_FILTERS + " filters supported");
+		}
+		this.comparator = comparator;
+		this.pendingComparator = comparator;
+		this.universeFilter = universeFilter;
+		this.projector = projector;
+		this.filterCount = projector.getFilterCount();
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		shared = lock.readLock();
+		exclusive = lock.writeLock();
+		index = createIndex(new ConcurrentSkipListMap<T, Long>(comparator));
+	}
+
+	/**
+	 * @see AdaptableSkipList#accept(Object, int, int[])
+	 */
+	@Override
+	public boolean accept(T element, int filterIndex, int[] precomputed) {
+		return projector.accept(element, filterIndex, precomputed);
+	}
+
+	private static boolean passes(long mask, int filterIndex) {
+		return (mask >>> filterIndex & 1) != 0;
+	}
+
+	private long maskOf(T element) {
+		return maskOf(Distance.project(new int[filterCount], element, projector.getHorizon(), this));
+	}
+
+	private static long maskOf(int[] membership) {
+		long mask = 0;
+		for (int filterIndex = 0; filterIndex < membership.length; ++filterIndex) {
+			if (membership[filterIndex] != 0) {
+				mask |= 1L << filterIndex;
+			}
+		}
+		return mask;
+	}
+
+	private int[] membershipOf(long mask) {
+		final int[] membership = new int[filterCount];
+		for (int filterIndex = 0; filterIndex < filterCount; ++filterIndex) {
+			membership[filterIndex] = (int) (mask >>> filterIndex & 1);
+		}
+		return membership;
+	}
+
+	/**
+	 * Run a query without locking while no update is in flight, and validate it was not overlapped by one.
+	 * All state read is volatile, so a validated query observed a consistent state.
+	 */
+	<R> R read(Query<R> query) {
+		for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; ++attempt) {
+			final long version = completed.get();
+			if (started.get() == version) {
+				try {
+					final R result = query.run(index);
+					if (started.get() == version) {
+						return result;
+					}
+				} catch (RuntimeException e) {
+					if (started.get() == version) {
+						throw e;
+					} // else observed an inconsistent state, retry
+				}
+			}
+		}
+		exclusive.lock();
+		try {
+			return query.run(index);
+		} finally {
+			exclusive.unlock();
+		}
+	}
+
+	/**
+	 * Bucket elements anew, BUCKET_SIZE per bucket. Only called under the exclusive lock.
+	 */
+	private Index createIndex(ConcurrentNavigableMap<T, Long> elements) {
+		final List<Object> pivots = new ArrayList<Object>();
+		final List<int[]> counts = new ArrayList<int[]>();
+		int[] bucketCounts = new int[filterCount];
+		int bucketSize = 0;
+		for (Map.Entry<T, Long> entry : elements.entrySet()) {
+			final long mask = entry.getValue();
+			for (int filterIndex = 0; filterIndex < filterCount; ++filterIndex) {
+				bucketCounts[filterIndex] += mask >>> filterIndex & 1;
+			}
+			if (++bucketSize == BUCKET_SIZE) {
+				pivots.add(entry.getKey());
+				counts.add(bucketCounts);
+				bucketCounts = new int[filterCount];
+				bucketSize = 0;
+			}
+		}
+		counts.add(bucketCounts);
+		final int[] sizes = new int[counts.size()];
+		for (int bucket = 0; bucket < pivots.size(); ++bucket) {
+			sizes[bucket] = BUCKET_SIZE;
+		}
+		sizes[pivots.size()] = bucketSize;
+		return new Index(elements, pivots.toArray(), counts.toArray(new int[counts.size()][]), sizes);
+	}
+
+	private void rebuild(ConcurrentNavigableMap<T, Long> elements) {
+		started.incrementAndGet();
+		try {
+			index = createIndex(elements);
+		} finally {
+			completed.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Halve the bucket of an element if it has grown too large. Other buckets are kept as they are,
+	 * and only moved to other slots once there is no spare slot left next to the bucket.
+	 * @param element element just inserted.
+	 */
+	private void split(T element) {
+		exclusive.lock();
+		try {
+			Index index = this.index;
+			if (index.sizes.get(index.bucketOf(element)) > 2 * BUCKET_SIZE) {
+				started.incrementAndGet();
+				try {
+					if (!index.split(index.bucketOf(element))) {
+						index = this.index = index.relayout();
+						index.split(index.bucketOf(element));
+					}
+				} finally {
+					completed.incrementAndGet();
+				}
+			}
+		} finally {
+			exclusive.unlock();
+		}
+	}
+
+	/**
+	 * Rebucket once most buckets have emptied.
+	 * @param stale index observed to be unbalanced; no-op if rebucketed since.
+	 */
+	private void rebalance(Index stale) {
+		exclusive.lock();
+		try {
+			if (index == stale) {
+				rebuild(stale.elements);
+			}
+		} finally {
+			exclusive.unlock();
+		}
+	}
+
+	private boolean shouldShrink(Index index) {
+		if (index.bucketCount == 1) {
+			return false;
+		}
+		int size = 0;
+		for (int slot = 0; slot < index.slotCount; ++slot) {
+			size += index.sizes.get(slot);
+		}
+		return size * 4 < index.bucketCount * BUCKET_SIZE;
+	}
+
+	@Override
+	public int size() {
+		return size(universeFilter);
+	}
+
+	@Override
+	public int size(final int filterIndex) {
+		return read(new Query<Integer>() {
+			@Override
+			Integer run(Index index) {
+				return index.size(filterIndex);
+			}
+		});
+	}
+
+	@Override
+	public int getFilterCount() {
+		return filterCount;
+	}
+
+	@Override
+	public int getUniverseFilterIndex() {
+		return universeFilter;
+	}
+
+	@Override
+	public boolean add(T element) {
+		return insert(element, maskOf(element));
+	}
+
+	private boolean insert(T element, long mask) {
+		final Index index;
+		final int bucket;
+		shared.lock();
+		try {
+			index = this.index;
+			started.incrementAndGet();
+			try {
+				if (index.elements.putIfAbsent(element, mask) != null) {
+					return false;
+				}
+				bucket = index.bucketOf(element);
+				index.add(bucket, mask, 1);
+			} finally {
+				completed.incrementAndGet();
+			}
+		} finally {
+			shared.unlock();
+		}
+		if (index.sizes.get(bucket) > 2 * BUCKET_SIZE) {
+			split(element);
+		}
+		return true;
+	}
+
+	@Override
+	public boolean remove(T element) {
+		return detach(element, null) != null;
+	}
+
+	/**
+	 * @param mask expected membership of the element, or null to remove it regardless.
+	 * @return membership of the element removed, or null if not removed.
+	 */
+	private Long detach(T element, Long mask) {
+		final Index index;
+		final int bucket;
+		final Long removed;
+		shared.lock();
+		try {
+			index = this.index;
+			started.incrementAndGet();
+			try {
+				if (mask == null) {
+					removed = index.elements.remove(element);
+				} else {
+					removed = index.elements.remove(element, mask) ? mask : null;
+				}
+				if (removed == null) {
+					return null;
+				}
+				bucket = index.bucketOf(element);
+				index.add(bucket, removed, -1);
+			} finally {
+				completed.incrementAndGet();
+			}
+		} finally {
+			shared.unlock();
+		}
+		if (index.sizes.get(bucket) == 0 && shouldShrink(index)) {
+			rebalance(index);
+		}
+		return removed;
+	}
+
+	/**
+	 * Exclusive: the element at an index is only well-defined while no other update proceeds.
+	 */
+	@Override
+	public boolean remove(int filterIndex, int elementIndex) {
+		exclusive.lock();
+		try {
+			final T element = get(filterIndex, elementIndex);
+			return element != null && remove(element);
+		} finally {
+			exclusive.unlock();
+		}
+	}
+
+	/**
+	 * Lock-free: removes the first selection element not removed concurrently.
+	 */
+	@Override
+	public T pollFirst(int filterIndex) {
+		for (Map.Entry<T, Long> entry : index.elements.entrySet()) {
+			if (passes(entry.getValue(), filterIndex) && detach(entry.getKey(), entry.getValue()) != null) {
+				return entry.getKey();
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public T removeFirst() {
+		final T first = pollFirst(universeFilter);
+		if (first == null) {
+			throw new NoSuchElementException();
+		}
+		return first;
+	}
+
+	@Override
+	public void clear() {
+		exclusive.lock();
+		try {
+			comparator = pendingComparator;
+			rebuild(new ConcurrentSkipListMap<T, Long>(comparator));
+		} finally {
+			exclusive.unlock();
+		}
+	}
+
+	@Override
+	public T get(int elementIndex) {
+		return get(universeFilter, elementIndex);
+	}
+
+	@Override
+	public T get(final int filterIndex, final int elementIndex) {
+		return read(new Query<T>() {
+			@Override
+			T run(Index index) {
+				return index.get(filterIndex, elementIndex);
+			}
+		});
+	}
+
+	@Override
+	public int indexOf(T item) {
+		return indexOf(universeFilter, item);
+	}
+
+	@Override
+	public int indexOf(final int filterIndex, final T element) {
+		return read(new Query<Integer>() {
+			@Override
+			Integer run(Index index) {
+				return index.contains(element, filterIndex) ? index.countPreceding(filterIndex, element, false) : -1;
+			}
+		});
+	}
+
+	@Override
+	public int rank(final int filterIndex, final T value, final boolean ceiling) {
+		return read(new Query<Integer>() {
+			@Override
+			Integer run(Index index) {
+				return ceiling ? index.countPreceding(filterIndex, value, false)
+						: index.countPreceding(filterIndex, value, true) - 1;
+			}
+		});
+	}
+
+	@Override
+	public int countBetween(final int filterIndex, final T lowest, final T highest) {
+		return read(new Query<Integer>() {
+			@Override
+			Integer run(Index index) {
+				return Math.max(index.countPreceding(filterIndex, highest, true)
+						- index.countPreceding(filterIndex, lowest, false), 0);
+			}
+		});
+	}
+
+	@Override
+	public int convertIndex(int sourceElementIndex, int sourceFilterIndex, int targetFilterIndex) {
+		return convertIndex(sourceElementIndex, sourceFilterIndex, targetFilterIndex, false);
+	}
+
+	@Override
+	public int convertIndex(final int sourceElementIndex, final int sourceFilterIndex, final int targetFilterIndex,
+	                        final boolean ceiling) {
+		if (sourceFilterIndex == targetFilterIndex) {
+			return sourceElementIndex; // no validation
+		} else if (sourceElementIndex < 0) {
+			return -1;
+		}
+		return read(new Query<Integer>() {
+			@Override
+			Integer run(Index index) {
+				if (sourceElementIndex >= index.size(sourceFilterIndex)) {
+					return index.size(targetFilterIndex);
+				}
+				final T element = index.get(sourceFilterIndex, sourceElementIndex);
+				if (element == null) {
+					return -1; // inconsistent, will not validate
+				}
+				final int before = index.countPreceding(targetFilterIndex, element, false);
+				return index.contains(element, targetFilterIndex) ? before : before - 1 + (ceiling ? 1 : 0);
+			}
+		});
+	}
+
+	@Override
+	public T getByOffset(int filterIndex, int weightOffset) {
+		throw new IllegalStateException("Weighted indexing is off");
+	}
+
+	@Override
+	public int offsetOf(int filterIndex, T item) {
+		throw new IllegalStateException("Weighted indexing is off");
+	}
+
+	@Override
+	public int totalWeight(int filterIndex) {
+		throw new IllegalStateException("Weighted indexing is off");
+	}
+
+	@Override
+	public <A> A aggregate(Aggregator<? super T, A> aggregator, int filterIndex, int fromIndex, int toIndex) {
+		throw new IllegalStateException("No aggregator set");
+	}
+
+	@Override
+	public List<T> sample(final int filterIndex, final int count, final Random random) {
+		if (count < 0) {
+			throw new IllegalArgumentException("Negative sample size " + count);
+		}
+		return read(new Query<List<T>>() {
+			@Override
+			List<T> run(Index index) {
+				final int[] drawn = Sampling.drawIndices(index.size(filterIndex), count, random);
+				final List<T> sample = new ArrayList<T>(drawn.length);
+				for (int drawnIndex : drawn) {
+					sample.add(index.get(filterIndex, drawnIndex));
+				}
+				return sample;
+			}
+		});
+	}
+
+	@Override
+	public List<T> sampleWeighted(int filterIndex, int count, Random random) {
+		throw new IllegalStateException("Weighted indexing is off");
+	}
+
+	/**
+	 * @return the stored element equal to the value, or null.
+	 */
+	private T find(T value) {
+		final T element = index.elements.ceilingKey(value);
+		return element != null && comparator.compare(element, value) == 0 ? element : null;
+	}
+
+	/**
+	 * Lock-free: the modification must keep both order and filter membership, and be thread-safe.
+	 */
+	@Override
+	public boolean updateInPlace(T oldValue, Update<? super T> modification) {
+		final T element = find(oldValue);
+		if (element == null) {
+			return addMissing(oldValue, modification);
+		}
+		return modification.apply(element);
+	}
+
+	@Override
+	public boolean updateFilters(T oldValue, Update<? super T> modification) {
+		exclusive.lock();
+		try {
+			final T element = find(oldValue);
+			if (element == null) {
+				return addMissing(oldValue, modification);
+			}
+			final Index index = this.index;
+			final long oldMask = index.elements.get(element);
+			final boolean modified = modification.apply(element);
+			if (modified) {
+				final long mask = maskOf(element);
+				if (mask != oldMask) {
+					started.incrementAndGet();
+					try {
+						index.elements.put(element, mask);
+						final int bucket = index.bucketOf(element);
+						index.add(bucket, oldMask, -1);
+						index.add(bucket, mask, 1);
+					} finally {
+						completed.incrementAndGet();
+					}
+				}
+			}
+			return modified;
+		} finally {
+			exclusive.unlock();
+		}
+	}
+
+	@Override
+	public boolean updateReorder(T oldValue, Update<? super T> modification) {
+		exclusive.lock();
+		try {
+			final T element = find(oldValue);
+			if (element == null) {
+				return addMissing(oldValue, modification);
+			}
+			detach(element, null);
+			final boolean modified = modification.apply(element);
+			insert(element, maskOf(element));
+			return modified;
+		} finally {
+			exclusive.unlock();
+		}
+	}
+
+	private boolean addMissing(T oldValue, Update<? super T> modification) {
+		final Loader<T> loader = this.loader;
+		final T element = autoAdd ? loader == null ? oldValue : loader.load(oldValue) : null;
+		if (element != null) {
+			modification.apply(element);
+			add(element);
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public void setAutoAdd(boolean autoAdd) {
+		this.autoAdd = autoAdd;
+	}
+
+	@Override
+	public void setLoader(Loader<T> loader) {
+		this.loader = loader;
+	}
+
+	@Override
+	public BitSet refreshFilters(BitSet dirtyMask) {
+		if (dirtyMask.cardinality() == 0) {
+			return EMPTY;
+		}
+		final int[] indices = Distance.toArray(dirtyMask);
+		exclusive.lock();
+		try {
+			final ConcurrentNavigableMap<T, Long> elements = index.elements;
+			started.incrementAndGet();
+			try {
+				for (Map.Entry<T, Long> entry : elements.entrySet()) {
+					final long oldMask = entry.getValue();
+					final long mask = maskOf(Distance.project(membershipOf(oldMask), entry.getKey(), indices, this));
+					if (mask != oldMask) {
+						elements.put(entry.getKey(), mask);
+					}
+				}
+				rebuild(elements);
+			} finally {
+				completed.incrementAndGet();
+			}
+		} finally {
+			exclusive.unlock();
+		}
+		return dirtyMask;
+	}
+
+	/**
+	 * Takes effect on {@link #clear()}.
+	 */
+	@Override
+	public void setComparator(Comparator<? super T> pendingComparator) {
+		this.pendingComparator = pendingComparator;
+	}
+
+	@Override
+	public Comparator<? super T> getComparator() {
+		return comparator;
+	}
+
+	/**
+	 * @return weakly consistent entries carrying the membership of each element.
+	 */
+	@Override
+	public Iterator<Map.Entry<T, int[]>> iterator() {
+		final Iterator<Map.Entry<T, Long>> iterator = index.elements.entrySet().iterator();
+		return new Iterator<Map.Entry<T, int[]>>() {
+			@Override
+			public boolean hasNext() {
+				return iterator.hasNext();
+			}
+
+			@Override
+			public Map.Entry<T, int[]> next() {
+				final Map.Entry<T, Long> entry = iterator.next();
+				return new AbstractMap.SimpleImmutableEntry<T, int[]>(entry.getKey(), membershipOf(entry.getValue()));
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException(); // no use case yet
+			}
+		};
+	}
+
+	@Override
+	public Iterator<T> iterator(int filterIndex) {
+		return iterator(filterIndex, 0);
+	}
+
+	@Override
+	public Iterator<T> iterator(int filterIndex, int elementIndex) {
+		if (elementIndex < 0) {
+			throw new IndexOutOfBoundsException("Negative start index " + elementIndex);
+		}
+		return new SelectionIterator(filterIndex, elementIndex, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public SplittableIterator<T> splittableIterator(int filterIndex) {
+		return new SelectionIterator(filterIndex, 0, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public NavigableSet<T> asNavigableSet(int filterIndex) {
+		return new NavigableSelection<T>(this, filterIndex);
+	}
+
+	/**
+	 * @return a consistent snapshot, taken with updates locked out.
+	 */
+	@Override
+	public FrozenAdaptable<T> freeze() {
+		exclusive.lock();
+		try {
+			return new FrozenAdaptable<T>(this);
+		} finally {
+			exclusive.unlock();
+		}
+	}
+
+	@Override
+	public void setAll(Adaptable<T> source) {
+		exclusive.lock();
+		try {
+			doAddAll(source, true);
+		} finally {
+			exclusive.unlock();
+		}
+	}
+
+	@Override
+	public void addAll(Adaptable<T> source) {
+		doAddAll(source, false);
+	}
+
+	private void doAddAll(Adaptable<T> source, boolean dropExisting) {
+		if (source.getFilterCount() != getFilterCount()) {
+			throw new IllegalArgumentException("Incompatible source!");
+		}
+		Iterator<Map.Entry<T, int[]>> iterator = source.iterator();
+		if (dropExisting) {
+			// clear, preserving iterator.
+			clear();
+		}
+		while (iterator.hasNext()) {
+			Map.Entry<T, int[]> entry = iterator.next();
+			insert(entry.getKey(), maskOf(entry.getValue()));
+		}
+	}
+
+	/**
+	 * No-op: buckets are rebalanced as they grow, nothing is deferred.
+	 */
+	@Override
+	public void hintBulkOpBegin() {
+	}
+
+	/**
+	 * No-op, see {@link #hintBulkOpBegin()}.
+	 */
+	@Override
+	public void hintBulkOpCompleted() {
+	}
+
+	@Override
+	public ProjectorEditor<T> getFilterEditor() {
+		return projector;
+	}
+
+	/**
+	 * @throws UnsupportedOperationException always: positions of concurrent updates are not well-defined.
+	 */
+	@Override
+	public void addElementObserver(ElementObserver<? super T> observer) {
+		throw new UnsupportedOperationException("Observers are not supported by concurrent lists");
+	}
+
+	@Override
+	public void removeElementObserver(ElementObserver<? super T> observer) {
+		// never added
+	}
+
+	@SuppressWarnings("UnusedDeclaration")
+	void validateIntegrity() {
+		exclusive.lock();
+		try {
+			final Index index = this.index;
+			final int[] total = new int[filterCount];
+			int bucket = 0;
+			int bucketSize = 0;
+			T prevElement = null;
+			for (Map.Entry<T, Long> entry : index.elements.entrySet()) {
+				final T element = entry.getKey();
+				while (index.pivot(bucket) != null && comparator.compare(element, index.pivot(bucket)) > 0) {
+					validateBucket(index, bucket++, total, bucketSize);
+					bucketSize = 0;
+				}
+				if (prevElement != null && comparator.compare(prevElement, element) >= 0) {
+					throw new IllegalStateException("Elements out of order: " + prevElement + ", " + element);
+				}
+				prevElement = element;
+				Distance.add(total, membershipOf(entry.getValue()));
+				bucketSize++;
+			}
+			while (bucket < index.slotCount) {
+				validateBucket(index, bucket++, total, bucketSize);
+				bucketSize = 0;
+			}
+		} finally {
+			exclusive.unlock();
+		}
+	}
+
+	private void validateBucket(Index index, int bucket, int[] total, int bucketSize) {
+		if (index.sizes.get(bucket) != bucketSize) {
+			throw new IllegalStateException("Bucket " + bucket + " size " + index.sizes.get(bucket) + ", expected " + bucketSize);
+		}
+		for (int filterIndex = 0; filterIndex < filterCount; ++filterIndex) {
+			if (index.prefix(filterIndex, bucket + 1) != total[filterIndex]) {
+				throw new IllegalStateException("Bucket " + bucket + " count mismatch in filter " + filterIndex);
+			}
+		}
+	}
+
+	/**
+	 * Walks the elements from a validated starting point over an index range [returnedCount; returnedSize)
+	 * of a selection. Positioning is deferred until the first element is requested.
+	 */
+	class SelectionIterator implements SplittableIterator<T> {
+		final int filterIndex;
+		int returnedSize;
+		int returnedCount;
+		Iterator<Map.Entry<T, Long>> cursor; // null until positioned
+		T pending;
+
+		SelectionIterator(int filterIndex, int elementIndex, int endIndex) {
+			this.filterIndex = filterIndex;
+			returnedSize = Math.min(endIndex, size(filterIndex));
+			returnedCount = Math.min(elementIndex, returnedSize);
+		}
+
+		private T peek() {
+			if (pending == null) {
+				if (cursor == null) {
+					final T first = get(filterIndex, returnedCount);
+					if (first == null) {
+						return null; // shrunk meanwhile
+					}
+					cursor = index.elements.tailMap(first, true).entrySet().iterator();
+				}
+				while (pending == null && cursor.hasNext()) {
+					final Map.Entry<T, Long> entry = cursor.next();
+					if (passes(entry.getValue(), filterIndex)) {
+						pending = entry.getKey();
+					}
+				}
+			}
+			return pending;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return returnedCount < returnedSize && peek() != null;
+		}
+
+		@Override
+		public int remaining() {
+			return Math.max(returnedSize - returnedCount, 0);
+		}
+
+		@Override
+		public SplittableIterator<T> trySplit() {
+			final int remaining = remaining();
+			if (remaining < 2) {
+				return null;
+			}
+			final int splitIndex = returnedCount + remaining / 2;
+			final SelectionIterator prefix = new SelectionIterator(filterIndex, returnedCount, splitIndex);
+			prefix.cursor = cursor;
+			prefix.pending = pending;
+			returnedCount = splitIndex;
+			cursor = null;
+			pending = null;
+			return prefix;
+		}
+
+		@Override
+		public T next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			final T next = pending;
+			pending = null;
+			returnedCount++;
+			return next;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException(); // no use case yet
+		}
+	}
+}
@@ -77,6 +77,20 @@ class Distance {
 		return target;
 	}
 
+	static int[] mul(int[] target, int multiplier, int horizon) {
+		for (int filterIndex = 0; filterIndex < horizon; ++filterIndex) {
+			target[filterIndex] *= multiplier;
+		}
+		return target;
+	}
+
+	static int[] div(int[] target, int divisor, int horizon) {
+		for (int filterIndex = 0; filterIndex < horizon; ++filterIndex) {
+			target[filterIndex] /= divisor;
+		}
+		return target;
+	}
+
 	static int[] add(int[] target, int[] source, int[] indices) {
 		for (int fi : indices) {
 			target[fi] += source[fi];
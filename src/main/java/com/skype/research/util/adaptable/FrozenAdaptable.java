@@ -0,0 +1,426 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ *
+ * Licensed under the MIT license.
+ */
+
+package com.skype.research.util.adaptable;
+
+import com.skype.research.util.primitives.Aggregator;
+import com.skype.research.util.primitives.Copier;
+import com.skype.research.util.primitives.Loader;
+import com.skype.research.util.primitives.Update;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Immutable snapshot of an {@link Adaptable}: the elements in container order,
+ * plus one {@link SuccinctBitVector} per filter marking the elements passing it.
+ * Selection sizes are precomputed, index conversion is a rank of a select,
+ * positional lookups are a select, and scans read the element array sequentially.
+ *
+ * All state is final, so a snapshot may be shared by any number of reader threads once published.
+ * The elements themselves are shared with the source unless a {@link Copier} is given: shared
+ * elements must not be modified while the snapshot is in use, or its order and filter
+ * memberships no longer hold.
+ * Modifications throw {@link UnsupportedOperationException}; observers are accepted but never notified.
+ * Weighted indexing and aggregation are not carried over.
+ *
+ * @see Adaptable#freeze()
+ */
+public class FrozenAdaptable<T> implements Adaptable<T> {
+	final Object[] elements;
+	final SuccinctBitVector[] selections;
+	final Comparator<? super T> comparator;
+	final int universeFilter;
+
+	/**
+	 * @param source container to take the snapshot of, sharing its elements.
+	 */
+	public FrozenAdaptable(Adaptable<T> source) {
+		this(source, null);
+	}
+
+	/**
+	 * @param source container to take the snapshot of.
+	 * @param copier copies the elements, so that the source may go on updating its own; null to share them.
+	 */
+	public FrozenAdaptable(Adaptable<T> source, Copier<T> copier) {
+		final int filterCount = source.getFilterCount();
+		final List<T> elements = new ArrayList<T>(source.size());
+		final BitSet[] members = new BitSet[filterCount];
+		for (int filterIndex = 0; filterIndex < filterCount; ++filterIndex) {
+			members[filterIndex] = new BitSet();
+		}
+		for (Map.Entry<T, int[]> entry : source) {
+			final int[] membership = entry.getValue();
+			for (int filterIndex = 0; filterIndex < filterCount; ++filterIndex) {
+				if (membership[filterIndex] != 0) {
+					members[filterIndex].set(elements.size());
+				}
+			}
+			elements.add(copier == null ? entry.getKey() : copier.copy(entry.getKey()));
+		}
+		this.elements = elements.toArray();
+		selections = new SuccinctBitVector[filterCount];
+		for (int filterIndex = 0; filterIndex < filterCount; ++filterIndex) {
+			selections[filterIndex] = new SuccinctBitVector(members[filterIndex].toLongArray());
+		}
+		comparator = source.getComparator();
+		universeFilter = source.getUniverseFilterIndex();
+	}
+
+	@SuppressWarnings("unchecked")
+	final T element(int position) {
+		return (T) elements[position];
+	}
+
+	/**
+	 * @return first position holding an element not less than (or greater than, if inclusive) the value.
+	 */
+	private int bound(T value, boolean inclusive) {
+		final int tie = inclusive ? 1 : 0;
+		int low = 0, high = elements.length;
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			if (comparator.compare(element(middle), value) < tie) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	@Override
+	public FrozenAdaptable<T> freeze() {
+		return this;
+	}
+
+	@Override
+	public int getFilterCount() {
+		return selections.length;
+	}
+
+	@Override
+	public int getUniverseFilterIndex() {
+		return universeFilter;
+	}
+
+	@Override
+	public int size() {
+		return size(universeFilter);
+	}
+
+	@Override
+	public int size(int filterIndex) {
+		return selections[filterIndex].ones();
+	}
+
+	@Override
+	public T get(int elementIndex) {
+		return get(universeFilter, elementIndex);
+	}
+
+	@Override
+	public T get(int filterIndex, int elementIndex) {
+		if (elementIndex < 0 || elementIndex >= size(filterIndex)) {
+			return null;
+		}
+		return element(selections[filterIndex].select(elementIndex));
+	}
+
+	@Override
+	public int indexOf(T item) {
+		return indexOf(universeFilter, item);
+	}
+
+	@Override
+	public int indexOf(int filterIndex, T item) {
+		final int position = bound(item, false);
+		if (position == elements.length || comparator.compare(element(position), item) != 0
+				|| !selections[filterIndex].get(position)) {
+			return -1;
+		}
+		return selections[filterIndex].rank(position);
+	}
+
+	@Override
+	public int rank(int filterIndex, T value, boolean ceiling) {
+		final SuccinctBitVector selection = selections[filterIndex];
+		return ceiling ? selection.rank(bound(value, false)) : selection.rank(bound(value, true)) - 1;
+	}
+
+	@Override
+	public int countBetween(int filterIndex, T lowest, T highest) {
+		final SuccinctBitVector selection = selections[filterIndex];
+		return Math.max(selection.rank(bound(highest, true)) - selection.rank(bound(lowest, false)), 0);
+	}
+
+	@Override
+	public int convertIndex(int sourceElementIndex, int sourceFilterIndex, int targetFilterIndex) {
+		return convertIndex(sourceElementIndex, sourceFilterIndex, targetFilterIndex, false);
+	}
+
+	@Override
+	public int convertIndex(int sourceElementIndex, int sourceFilterIndex, int targetFilterIndex, boolean ceiling) {
+		if (sourceFilterIndex == targetFilterIndex) {
+			return sourceElementIndex; // no validation
+		} else if (sourceElementIndex < 0) {
+			return -1;
+		} else if (sourceElementIndex >= size(sourceFilterIndex)) {
+			return size(targetFilterIndex);
+		}
+		final int position = selections[sourceFilterIndex].select(sourceElementIndex);
+		final SuccinctBitVector target = selections[targetFilterIndex];
+		final int before = target.rank(position);
+		return target.get(position) ? before : before - 1 + (ceiling ? 1 : 0);
+	}
+
+	@Override
+	public T getByOffset(int filterIndex, int weightOffset) {
+		throw new IllegalStateException("Weighted indexing is off");
+	}
+
+	@Override
+	public int offsetOf(int filterIndex, T item) {
+		throw new IllegalStateException("Weighted indexing is off");
+	}
+
+	@Override
+	public int totalWeight(int filterIndex) {
+		throw new IllegalStateException("Weighted indexing is off");
+	}
+
+	@Override
+	public <A> A aggregate(Aggregator<? super T, A> aggregator, int filterIndex, int fromIndex, int toIndex) {
+		throw new IllegalStateException("No aggregator set");
+	}
+
+	@Override
+	public List<T> sample(int filterIndex, int count, Random random) {
+		final int[] indices = Sampling.drawIndices(size(filterIndex), count, random);
+		final List<T> sample = new ArrayList<T>(indices.length);
+		for (int index : indices) {
+			sample.add(get(filterIndex, index));
+		}
+		return sample;
+	}
+
+	@Override
+	public List<T> sampleWeighted(int filterIndex, int count, Random random) {
+		throw new IllegalStateException("Weighted indexing is off");
+	}
+
+	@Override
+	public Comparator<? super T> getComparator() {
+		return comparator;
+	}
+
+	@Override
+	public Iterator<Map.Entry<T, int[]>> iterator() {
+		return new Iterator<Map.Entry<T, int[]>>() {
+			int position;
+
+			@Override
+			public boolean hasNext() {
+				return position < elements.length;
+			}
+
+			@Override
+			public Map.Entry<T, int[]> next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				final int[] membership = new int[selections.length];
+				for (int filterIndex = 0; filterIndex < selections.length; ++filterIndex) {
+					membership[filterIndex] = selections[filterIndex].get(position) ? 1 : 0;
+				}
+				return new AbstractMap.SimpleImmutableEntry<T, int[]>(element(position++), membership);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException("Snapshot is immutable");
+			}
+		};
+	}
+
+	@Override
+	public Iterator<T> iterator(int filterIndex) {
+		return iterator(filterIndex, 0);
+	}
+
+	@Override
+	public Iterator<T> iterator(int filterIndex, int elementIndex) {
+		if (elementIndex < 0) {
+			throw new IndexOutOfBoundsException("Negative start index " + elementIndex);
+		}
+		return new SelectionIterator(filterIndex, elementIndex, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public SplittableIterator<T> splittableIterator(int filterIndex) {
+		return new SelectionIterator(filterIndex, 0, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public NavigableSet<T> asNavigableSet(int filterIndex) {
+		return new NavigableSelection<T>(this, filterIndex);
+	}
+
+	@Override
+	public boolean add(T element) {
+		throw new UnsupportedOperationException("Snapshot is immutable");
+	}
+
+	@Override
+	public boolean remove(T element) {
+		throw new UnsupportedOperationException("Snapshot is immutable");
+	}
+
+	@Override
+	public boolean remove(int filterIndex, int elementIndex) {
+		throw new UnsupportedOperationException("Snapshot is immutable");
+	}
+
+	@Override
+	public T pollFirst(int filterIndex) {
+		throw new UnsupportedOperationException("Snapshot is immutable");
+	}
+
+	@Override
+	public T removeFirst() {
+		throw new UnsupportedOperationException("Snapshot is immutable");
+	}
+
+	@Override
+	public void clear() {
+		throw new UnsupportedOperationException("Snapshot is immutable");
+	}
+
+	@Override
+	public void setAll(Adaptable<T> adaptable) {
+		throw new UnsupportedOperationException("Snapshot is immutable");
+	}
+
+	@Override
+	public void addAll(Adaptable<T> adaptable) {
+		throw new UnsupportedOperationException("Snapshot is immutable");
+	}
+
+	@Override
+	public boolean updateInPlace(T oldValue, Update<? super T> modification) {
+		throw new UnsupportedOperationException("Snapshot is immutable");
+	}
+
+	@Override
+	public boolean updateFilters(T oldValue, Update<? super T> modification) {
+		throw new UnsupportedOperationException("Snapshot is immutable");
+	}
+
+	@Override
+	public boolean updateReorder(T oldValue, Update<? super T> modification) {
+		throw new UnsupportedOperationException("Snapshot is immutable");
+	}
+
+	@Override
+	public void setComparator(Comparator<? super T> pendingComparator) {
+		throw new UnsupportedOperationException("Snapshot is immutable");
+	}
+
+	@Override
+	public void setAutoAdd(boolean autoAdd) {
+		throw new UnsupportedOperationException("Snapshot is immutable");
+	}
+
+	@Override
+	public void setLoader(Loader<T> loader) {
+		throw new UnsupportedOperationException("Snapshot is immutable");
+	}
+
+	@Override
+	public void addElementObserver(ElementObserver<? super T> observer) {
+		// nothing will ever change
+	}
+
+	@Override
+	public void removeElementObserver(ElementObserver<? super T> observer) {
+		// nothing will ever change
+	}
+
+	@Override
+	public void hintBulkOpBegin() {
+	}
+
+	@Override
+	public void hintBulkOpCompleted() {
+	}
+
+	/**
+	 * Scans the element array over an index range [returnedCount; returnedSize) of a selection.
+	 * Positioning is deferred until the first element is requested, see {@link AdaptableSkipList.SplittingIterator}.
+	 */
+	class SelectionIterator implements SplittableIterator<T> {
+		final SuccinctBitVector selection;
+		final int filterIndex;
+		int returnedSize;
+		int returnedCount;
+		int position = -1; // of the last returned element, if positioned
+
+		SelectionIterator(int filterIndex, int elementIndex, int endIndex) {
+			this.filterIndex = filterIndex;
+			selection = selections[filterIndex];
+			returnedSize = Math.min(endIndex, selection.ones());
+			returnedCount = Math.min(elementIndex, returnedSize);
+		}
+
+		@Override
+		public boolean hasNext() {
+			return returnedCount < returnedSize;
+		}
+
+		@Override
+		public int remaining() {
+			return Math.max(returnedSize - returnedCount, 0);
+		}
+
+		@Override
+		public SplittableIterator<T> trySplit() {
+			final int remaining = remaining();
+			if (remaining < 2) {
+				return null;
+			}
+			final int splitIndex = returnedCount + remaining / 2;
+			final SelectionIterator prefix = new SelectionIterator(filterIndex, returnedCount, splitIndex);
+			prefix.position = position;
+			returnedCount = splitIndex;
+			position = -1;
+			return prefix;
+		}
+
+		@Override
+		public T next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			position = position < 0 ? selection.select(returnedCount) : selection.nextSetBit(position + 1);
+			returnedCount++;
+			return element(position);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("Snapshot is immutable");
+		}
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ *
+ * Licensed under the MIT license.
+ */
+
+package com.skype.research.util.adaptable;
+
+import com.skype.research.util.primitives.Update;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Single-writer front end of an {@link Adaptable}: any thread may submit mutations,
+ * which the thread owning the container applies in batches.
+ *
+ * Submissions are queued without locking. {@link #drain()} applies the mutations queued so far
+ * in submission order, wrapped in a single bulk operation, so that subscribers receive one wrap-up
+ * per batch. Consecutive insertions submitted by {@link #submitAdd(Object)} commute, and are applied
+ * sorted by the container comparator for locality. Each submission is acknowledged by a future
+ * of the mutation result, done once the mutation has been applied.
+ *
+ * {@link #drain()} must be called on the thread that owns the container.
+ * {@link #run()} drains, so that the owner thread may be notified with a Runnable to post.
+ */
+public class MutationQueue<T> implements Runnable {
+	final Adaptable<T> adaptable;
+	final BulkUpdatable bulkUpdatable;
+	final Queue<Mutation> submitted = new ConcurrentLinkedQueue<Mutation>();
+	final Runnable onSubmitted;
+	final int batchLimit;
+	final List<Mutation> batch = new ArrayList<Mutation>();
+
+	final class Mutation extends FutureTask<Boolean> {
+		final T element; // to insert, or null
+
+		Mutation(final Update<? super Adaptable<T>> mutation, T element) {
+			super(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					return mutation.apply(adaptable);
+				}
+			});
+			this.element = element;
+		}
+	}
+
+	final Comparator<Mutation> insertionOrder = new Comparator<Mutation>() {
+		@Override
+		public int compare(Mutation lhs, Mutation rhs) {
+			return adaptable.getComparator().compare(lhs.element, rhs.element);
+		}
+	};
+
+	public MutationQueue(Adaptable<T> adaptable) {
+		this(adaptable, adaptable, null, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param adaptable container to mutate.
+	 * @param bulkUpdatable recipient of bulk operation hints, e.g. the Adaptation of the container.
+	 * @param onSubmitted callback to run on the submitting thread after each submission, e.g. to post a drain, or null.
+	 * @param batchLimit maximum number of mutations to apply per drain, so that the owner thread is not monopolized.
+	 */
+	public MutationQueue(Adaptable<T> adaptable, BulkUpdatable bulkUpdatable, Runnable onSubmitted, int batchLimit) {
+		if (batchLimit <= 0) {
+			throw new IllegalArgumentException("Non-positive batch limit " + batchLimit);
+		}
+		this.adaptable = adaptable;
+		this.bulkUpdatable = bulkUpdatable;
+		this.onSubmitted = onSubmitted;
+		this.batchLimit = batchLimit;
+	}
+
+	/**
+	 * Submit a mutation. May be called on any thread.
+	 * @param mutation mutation of the container, as passed to {@link com.skype.research.util.adaptation.Adaptation#apply(Update)}.
+	 * @return future of the mutation result, failing if the mutation throws.
+	 */
+	public Future<Boolean> submit(Update<? super Adaptable<T>> mutation) {
+		return enqueue(new Mutation(mutation, null));
+	}
+
+	/**
+	 * Submit an insertion. May be called on any thread.
+	 * @param element element to add.
+	 * @return future of the {@link Adaptable#add(Object)} result.
+	 */
+	public Future<Boolean> submitAdd(final T element) {
+		return enqueue(new Mutation(new Update<Adaptable<T>>() {
+			@Override
+			public boolean apply(Adaptable<T> adaptable) {
+				return adaptable.add(element);
+			}
+		}, element));
+	}
+
+	private Future<Boolean> enqueue(Mutation mutation) {
+		submitted.add(mutation);
+		if (onSubmitted != null) {
+			onSubmitted.run();
+		}
+		return mutation;
+	}
+
+	/**
+	 * @return true if mutations are waiting to be applied.
+	 */
+	public boolean hasPending() {
+		return !submitted.isEmpty();
+	}
+
+	/**
+	 * Apply the mutations submitted so far, up to the batch limit, in a single bulk operation.
+	 * @return the number of mutations applied.
+	 */
+	public int drain() {
+		Mutation mutation;
+		while (batch.size() < batchLimit && (mutation = submitted.poll()) != null) {
+			batch.add(mutation);
+		}
+		if (batch.isEmpty()) {
+			return 0;
+		}
+		final int count = batch.size();
+		// sort runs of consecutive insertions, stably, keeping the first of equal elements first
+		for (int start = 0, end; start < count; start = end) {
+			end = start + 1;
+			if (batch.get(start).element != null) {
+				while (end < count && batch.get(end).element != null) {
+					end++;
+				}
+				sortInsertions(batch.subList(start, end));
+			}
+		}
+		bulkUpdatable.hintBulkOpBegin();
+		try {
+			for (Mutation applied : batch) {
+				applied.run(); // a failure is reported through its future only
+			}
+		} finally {
+			batch.clear();
+			bulkUpdatable.hintBulkOpCompleted();
+		}
+		return count;
+	}
+
+	/**
+	 * Sort a run of insertions, or keep it in submission order if the comparator fails:
+	 * sorting is for locality only, and the insertions report the failure themselves.
+	 */
+	private void sortInsertions(List<Mutation> run) {
+		final List<Mutation> sorted = new ArrayList<Mutation>(run); // a failed sort may scramble it
+		try {
+			Collections.sort(sorted, insertionOrder);
+		} catch (RuntimeException e) {
+			return;
+		}
+		for (int i = 0; i < sorted.size(); ++i) {
+			run.set(i, sorted.get(i));
+		}
+	}
+
+	@Override
+	public void run() {
+		drain();
+	}
+}
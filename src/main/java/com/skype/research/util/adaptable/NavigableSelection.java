@@ -0,0 +1,457 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ *
+ * Licensed under the MIT license.
+ */
+
+package com.skype.research.util.adaptable;
+
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+
+/**
+ * Live {@link NavigableSet} view of an {@link Adaptable} selection, optionally bounded by value.
+ *
+ * Bounds are kept as values and translated into selection indices on demand, so the view
+ * follows container updates and its size is computed in O(log N) rather than by counting.
+ * A null bound means "unbounded", as the container does not store nulls.
+ */
+public class NavigableSelection<T> extends AbstractSet<T> implements NavigableSet<T> {
+	final Adaptable<T> adaptable;
+	final int filterIndex;
+	final T lowest, highest;
+	final boolean lowInclusive, highInclusive;
+
+	public NavigableSelection(Adaptable<T> adaptable, int filterIndex) {
+		this(adaptable, filterIndex, null, false, null, false);
+	}
+
+	NavigableSelection(Adaptable<T> adaptable, int filterIndex,
+	                   T lowest, boolean lowInclusive,
+	                   T highest, boolean highInclusive) {
+		this.adaptable = adaptable;
+		this.filterIndex = filterIndex;
+		this.lowest = lowest;
+		this.lowInclusive = lowInclusive;
+		this.highest = highest;
+		this.highInclusive = highInclusive;
+	}
+
+	/**
+	 * @return selection index of the first element within bounds.
+	 */
+	final int lowIndex() {
+		if (lowest == null) {
+			return 0;
+		}
+		return lowInclusive
+				? adaptable.rank(filterIndex, lowest, true)
+				: adaptable.rank(filterIndex, lowest, false) + 1;
+	}
+
+	/**
+	 * @return selection index right past the last element within bounds.
+	 */
+	final int highIndex() {
+		if (highest == null) {
+			return adaptable.size(filterIndex);
+		}
+		return highInclusive
+				? adaptable.rank(filterIndex, highest, false) + 1
+				: adaptable.rank(filterIndex, highest, true);
+	}
+
+	final int compare(T lhs, T rhs) {
+		return adaptable.getComparator().compare(lhs, rhs);
+	}
+
+	final boolean tooLow(T value) {
+		if (lowest != null) {
+			final int comparison = compare(value, lowest);
+			return comparison < 0 || comparison == 0 && !lowInclusive;
+		}
+		return false;
+	}
+
+	final boolean tooHigh(T value) {
+		if (highest != null) {
+			final int comparison = compare(value, highest);
+			return comparison > 0 || comparison == 0 && !highInclusive;
+		}
+		return false;
+	}
+
+	final boolean inRange(T value) {
+		return !tooLow(value) && !tooHigh(value);
+	}
+
+	/**
+	 * Return the first element within bounds at or after a given selection index.
+	 * @param elementIndex selection index of the element, possibly out of bounds.
+	 * @return the element, or null if there is none.
+	 */
+	final T ceilingAt(int elementIndex) {
+		elementIndex = Math.max(elementIndex, lowIndex());
+		return elementIndex < highIndex() ? adaptable.get(filterIndex, elementIndex) : null;
+	}
+
+	/**
+	 * Return the last element within bounds at or before a given selection index.
+	 * @param elementIndex selection index of the element, possibly out of bounds.
+	 * @return the element, or null if there is none.
+	 */
+	final T floorAt(int elementIndex) {
+		elementIndex = Math.min(elementIndex, highIndex() - 1);
+		return elementIndex >= lowIndex() ? adaptable.get(filterIndex, elementIndex) : null;
+	}
+
+	@Override
+	public int size() {
+		return Math.max(highIndex() - lowIndex(), 0);
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		@SuppressWarnings("unchecked") // compared, as in TreeSet
+		final T value = (T) o;
+		return inRange(value) && adaptable.indexOf(filterIndex, value) >= 0;
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		@SuppressWarnings("unchecked") // contained, hence comparable
+		final T value = (T) o;
+		return contains(value) && adaptable.remove(value);
+	}
+
+	@Override
+	public void clear() {
+		//noinspection StatementWithEmptyBody
+		while (pollFirst() != null);
+	}
+
+	@Override
+	public T lower(T value) {
+		return floorAt(adaptable.rank(filterIndex, value, true) - 1);
+	}
+
+	@Override
+	public T floor(T value) {
+		return floorAt(adaptable.rank(filterIndex, value, false));
+	}
+
+	@Override
+	public T ceiling(T value) {
+		return ceilingAt(adaptable.rank(filterIndex, value, true));
+	}
+
+	@Override
+	public T higher(T value) {
+		return ceilingAt(adaptable.rank(filterIndex, value, false) + 1);
+	}
+
+	@Override
+	public T first() {
+		final int lowIndex = lowIndex();
+		if (lowIndex >= highIndex()) {
+			throw new NoSuchElementException();
+		}
+		return adaptable.get(filterIndex, lowIndex);
+	}
+
+	@Override
+	public T last() {
+		final int highIndex = highIndex();
+		if (highIndex <= lowIndex()) {
+			throw new NoSuchElementException();
+		}
+		return adaptable.get(filterIndex, highIndex - 1);
+	}
+
+	@Override
+	public T pollFirst() {
+		if (lowest == null) {
+			return highIndex() > 0 ? adaptable.pollFirst(filterIndex) : null;
+		}
+		final int lowIndex = lowIndex();
+		return lowIndex < highIndex() ? pollAt(lowIndex) : null;
+	}
+
+	@Override
+	public T pollLast() {
+		final int highIndex = highIndex();
+		return highIndex > lowIndex() ? pollAt(highIndex - 1) : null;
+	}
+
+	private T pollAt(int elementIndex) {
+		final T element = adaptable.get(filterIndex, elementIndex);
+		adaptable.remove(filterIndex, elementIndex);
+		return element;
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		final int lowIndex = lowIndex();
+		final int count = highIndex() - lowIndex;
+		final Iterator<T> iterator = adaptable.iterator(filterIndex, lowIndex);
+		return new Iterator<T>() {
+			int remaining = count;
+
+			@Override
+			public boolean hasNext() {
+				return remaining > 0;
+			}
+
+			@Override
+			public T next() {
+				if (remaining <= 0) {
+					throw new NoSuchElementException();
+				}
+				remaining--;
+				return iterator.next();
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException(); // no use case yet
+			}
+		};
+	}
+
+	@Override
+	public Iterator<T> descendingIterator() {
+		final int lowIndex = lowIndex();
+		final int highIndex = highIndex();
+		return new Iterator<T>() {
+			int elementIndex = highIndex;
+
+			@Override
+			public boolean hasNext() {
+				return elementIndex > lowIndex;
+			}
+
+			@Override
+			public T next() {
+				if (elementIndex <= lowIndex) {
+					throw new NoSuchElementException();
+				}
+				return adaptable.get(filterIndex, --elementIndex);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException(); // no use case yet
+			}
+		};
+	}
+
+	@Override
+	public NavigableSet<T> descendingSet() {
+		return new Descending<T>(this);
+	}
+
+	@Override
+	public NavigableSet<T> subSet(T fromElement, boolean fromInclusive, T toElement, boolean toInclusive) {
+		if (compare(fromElement, toElement) > 0) {
+			throw new IllegalArgumentException("fromElement > toElement");
+		}
+		return bounded(fromElement, fromInclusive, toElement, toInclusive);
+	}
+
+	@Override
+	public NavigableSet<T> headSet(T toElement, boolean inclusive) {
+		return bounded(null, false, toElement, inclusive);
+	}
+
+	@Override
+	public NavigableSet<T> tailSet(T fromElement, boolean inclusive) {
+		return bounded(fromElement, inclusive, null, false);
+	}
+
+	@Override
+	public SortedSet<T> subSet(T fromElement, T toElement) {
+		return subSet(fromElement, true, toElement, false);
+	}
+
+	@Override
+	public SortedSet<T> headSet(T toElement) {
+		return headSet(toElement, false);
+	}
+
+	@Override
+	public SortedSet<T> tailSet(T fromElement) {
+		return tailSet(fromElement, true);
+	}
+
+	/**
+	 * Narrow the view down. New bounds must not exceed the existing ones.
+	 */
+	private NavigableSelection<T> bounded(T newLowest, boolean newLowInclusive,
+	                                      T newHighest, boolean newHighInclusive) {
+		if (newLowest == null) {
+			newLowest = lowest;
+			newLowInclusive = lowInclusive;
+		} else if (!inRange(newLowest, newLowInclusive)) {
+			throw new IllegalArgumentException("fromElement out of range");
+		}
+		if (newHighest == null) {
+			newHighest = highest;
+			newHighInclusive = highInclusive;
+		} else if (!inRange(newHighest, newHighInclusive)) {
+			throw new IllegalArgumentException("toElement out of range");
+		}
+		return new NavigableSelection<T>(adaptable, filterIndex,
+				newLowest, newLowInclusive, newHighest, newHighInclusive);
+	}
+
+	/**
+	 * Check whether a value is a valid bound of a narrower view.
+	 * An exclusive bound may coincide with an exclusive bound of this view.
+	 */
+	private boolean inRange(T bound, boolean inclusive) {
+		return inclusive ? inRange(bound)
+				: (lowest == null || compare(bound, lowest) >= 0)
+				&& (highest == null || compare(bound, highest) <= 0);
+	}
+
+	@Override
+	public Comparator<? super T> comparator() {
+		return adaptable.getComparator();
+	}
+
+	/**
+	 * Reverse-order view of a {@link NavigableSet}, as returned by {@link #descendingSet()}.
+	 */
+	static class Descending<T> extends AbstractSet<T> implements NavigableSet<T> {
+		final NavigableSet<T> ascending;
+
+		Descending(NavigableSet<T> ascending) {
+			this.ascending = ascending;
+		}
+
+		@Override
+		public int size() {
+			return ascending.size();
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return ascending.isEmpty();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return ascending.contains(o);
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			return ascending.remove(o);
+		}
+
+		@Override
+		public void clear() {
+			ascending.clear();
+		}
+
+		@Override
+		public T lower(T value) {
+			return ascending.higher(value);
+		}
+
+		@Override
+		public T floor(T value) {
+			return ascending.ceiling(value);
+		}
+
+		@Override
+		public T ceiling(T value) {
+			return ascending.floor(value);
+		}
+
+		@Override
+		public T higher(T value) {
+			return ascending.lower(value);
+		}
+
+		@Override
+		public T first() {
+			return ascending.last();
+		}
+
+		@Override
+		public T last() {
+			return ascending.first();
+		}
+
+		@Override
+		public T pollFirst() {
+			return ascending.pollLast();
+		}
+
+		@Override
+		public T pollLast() {
+			return ascending.pollFirst();
+		}
+
+		@Override
+		public Iterator<T> iterator() {
+			return ascending.descendingIterator();
+		}
+
+		@Override
+		public Iterator<T> descendingIterator() {
+			return ascending.iterator();
+		}
+
+		@Override
+		public NavigableSet<T> descendingSet() {
+			return ascending;
+		}
+
+		@Override
+		public NavigableSet<T> subSet(T fromElement, boolean fromInclusive, T toElement, boolean toInclusive) {
+			return ascending.subSet(toElement, toInclusive, fromElement, fromInclusive).descendingSet();
+		}
+
+		@Override
+		public NavigableSet<T> headSet(T toElement, boolean inclusive) {
+			return ascending.tailSet(toElement, inclusive).descendingSet();
+		}
+
+		@Override
+		public NavigableSet<T> tailSet(T fromElement, boolean inclusive) {
+			return ascending.headSet(fromElement, inclusive).descendingSet();
+		}
+
+		@Override
+		public SortedSet<T> subSet(T fromElement, T toElement) {
+			return subSet(fromElement, true, toElement, false);
+		}
+
+		@Override
+		public SortedSet<T> headSet(T toElement) {
+			return headSet(toElement, false);
+		}
+
+		@Override
+		public SortedSet<T> tailSet(T fromElement) {
+			return tailSet(fromElement, true);
+		}
+
+		@Override
+		public Comparator<? super T> comparator() {
+			return Collections.reverseOrder(ascending.comparator());
+		}
+	}
+}
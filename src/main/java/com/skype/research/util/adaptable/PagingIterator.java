@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ *
+ * Licensed under the MIT license.
+ */
+
+package com.skype.research.util.adaptable;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over a selection page by page, for containers that can only be read consistently a range at a time.
+ * The first page is read by index; every next one resumes past the last element returned, by value,
+ * so that iteration stays sorted and weakly consistent: elements added or removed between pages
+ * may or may not be seen, but none is returned twice and none present throughout is skipped.
+ */
+class PagingIterator<T> implements SplittableIterator<T> {
+	/**
+	 * Container read a range at a time.
+	 */
+	interface Source<T> {
+		/**
+		 * @return up to count selection elements from the index on, fewer at the end of the selection.
+		 */
+		List<T> page(int filterIndex, int elementIndex, int count);
+
+		/**
+		 * @return up to count selection elements, starting a number of elements past the first one
+		 * not less than the value, fewer at the end of the selection.
+		 */
+		List<T> page(int filterIndex, T from, int skip, int count);
+
+		Comparator<? super T> getComparator();
+	}
+
+	final Source<T> source;
+	final Comparator<? super T> comparator;
+	final int filterIndex;
+	final int pageSize;
+	// resume point: the last element returned and the number of equal ones returned,
+	// or no element and the index of the first one to return
+	T from;
+	int skip;
+	final T stop; // first value past the range, or null for the rest of the selection
+	boolean exhausted;
+	// estimates, for remaining()
+	int returnedSize;
+	int returnedCount;
+	List<T> page = new ArrayList<T>(0);
+	int pageIndex;
+
+	PagingIterator(Source<T> source, int filterIndex, int elementIndex, int endIndex, int pageSize) {
+		this(source, filterIndex, null, elementIndex, null, elementIndex, endIndex, pageSize);
+	}
+
+	private PagingIterator(Source<T> source, int filterIndex, T from, int skip, T stop,
+	                       int elementIndex, int endIndex, int pageSize) {
+		this.source = source;
+		this.comparator = source.getComparator();
+		this.filterIndex = filterIndex;
+		this.pageSize = pageSize;
+		this.from = from;
+		this.skip = skip;
+		this.stop = stop;
+		returnedSize = endIndex;
+		returnedCount = elementIndex;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (pageIndex == page.size() && !exhausted) {
+			page = from == null ? source.page(filterIndex, skip, pageSize) : source.page(filterIndex, from, skip, pageSize);
+			pageIndex = 0;
+			exhausted = page.size() < pageSize;
+			if (stop != null) {
+				int end = page.size();
+				while (end > 0 && comparator.compare(page.get(end - 1), stop) >= 0) {
+					end--;
+				}
+				if (end < page.size()) {
+					page = page.subList(0, end);
+					exhausted = true;
+				}
+			}
+			if (exhausted) {
+				returnedSize = returnedCount + page.size(); // the estimate is exact now
+			}
+		}
+		return pageIndex < page.size();
+	}
+
+	@Override
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		final T next = page.get(pageIndex++);
+		returnedCount++;
+		if (from != null && comparator.compare(from, next) == 0) {
+			skip++;
+		} else {
+			from = next;
+			skip = 1;
+		}
+		return next;
+	}
+
+	@Override
+	public int remaining() {
+		return Math.max(returnedSize - returnedCount, 0);
+	}
+
+	/**
+	 * Split at the value of the element in the middle of the remaining range, as currently placed.
+	 */
+	@Override
+	public SplittableIterator<T> trySplit() {
+		final int remaining = remaining();
+		if (remaining < 2 || pageIndex < page.size() || exhausted) {
+			return null; // split between pages only
+		}
+		final int half = remaining / 2;
+		final List<T> middle = from == null ? source.page(filterIndex, skip + half, 1)
+				: source.page(filterIndex, from, skip + half, 1);
+		if (middle.isEmpty()) {
+			return null;
+		}
+		final T split = middle.get(0);
+		if (stop != null && comparator.compare(split, stop) >= 0
+				|| from != null && comparator.compare(split, from) == 0) {
+			return null; // no value boundary in range
+		}
+		final PagingIterator<T> prefix = new PagingIterator<T>(source, filterIndex, from, skip, split,
+				returnedCount, returnedCount + half, pageSize);
+		from = split;
+		skip = 0;
+		returnedCount += half;
+		return prefix;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException(); // no use case yet
+	}
+}
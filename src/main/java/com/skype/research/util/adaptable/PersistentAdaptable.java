@@ -0,0 +1,1217 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ *
+ * Licensed under the MIT license.
+ */
+
+package com.skype.research.util.adaptable;
+
+import com.skype.research.util.primitives.Aggregator;
+import com.skype.research.util.primitives.Copier;
+import com.skype.research.util.primitives.Loader;
+import com.skype.research.util.primitives.Update;
+import com.skype.research.util.projection.CompositeProjector;
+import com.skype.research.util.projection.Projector;
+import com.skype.research.util.projection.ProjectorEditor;
+
+import java.lang.reflect.Array;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * {@link Adaptable} implementation with a persistent treap: nodes are immutable and carry
+ * per-filter element counts of their subtrees, and every update copies the nodes on the path
+ * to the changed element, O(log N) of them, leaving all other nodes shared with previous versions.
+ *
+ * A {@link #snapshot()} is therefore just the current root: it is taken in O(1), reads
+ * a consistent version from any thread while the writer goes on, and is reclaimed with
+ * the nodes no longer shared once it is dropped. The container itself has a single writer,
+ * as any other {@link Adaptable}.
+ *
+ * Snapshots share the elements too, so once one is taken, updates modify copies made by
+ * the {@link #setCopier(Copier) copier} and fail without one; they would otherwise change
+ * the elements, and break the order, of versions being read. {@link Trivial#refresh()}
+ * modifies nothing and is always accepted.
+ *
+ * At most {@link #MAX_FILTERS} filters are supported. Duplicate counting, weighted indexing,
+ * aggregation, retention, capacity and ranging are only offered by {@link AdaptableSkipList}.
+ */
+public class PersistentAdaptable<T> implements FlexibleAdaptable<T>, Projector<T> {
+
+	public static final int MAX_FILTERS = Long.SIZE;
+	static final BitSet EMPTY = new BitSet();
+
+	/**
+	 * Immutable treap node, ordered by position and heap-ordered by priority.
+	 */
+	final class Node {
+		final T element;
+		final long mask; // filter membership, bit per filter
+		final int priority;
+		final Node left, right;
+		final int size; // elements in the subtree
+		final int[] counts; // elements of the subtree passing each filter
+
+		Node(T element, long mask, int priority, Node left, Node right) {
+			this.element = element;
+			this.mask = mask;
+			this.priority = priority;
+			this.left = left;
+			this.right = right;
+			size = total(left) + 1 + total(right);
+			counts = new int[filterCount];
+			for (int filterIndex = 0; filterIndex < filterCount; ++filterIndex) {
+				counts[filterIndex] = count(left, filterIndex) + (int) (mask >>> filterIndex & 1) + count(right, filterIndex);
+			}
+		}
+
+		Node with(Node left, Node right) {
+			return new Node(element, mask, priority, left, right);
+		}
+
+		Node with(T element, long mask) {
+			return new Node(element, mask, priority, left, right);
+		}
+
+		boolean passes(int filterIndex) {
+			return (mask >>> filterIndex & 1) != 0;
+		}
+	}
+
+	// raw materials
+	final Random random = new Random();
+
+	// mutable state
+	Comparator<? super T> comparator, pendingComparator;
+	final int[] zero;
+	volatile Node root; // read by snapshot() from any thread
+	final int universeFilter;
+	boolean allowDuplicates;
+	boolean broadcastOldValue;
+	boolean autoAdd;
+	Loader<T> loader;
+	Copier<T> copier;
+	volatile boolean shared; // elements may be referenced by snapshots
+
+	// multiple representations
+	final CompositeProjector<T> projector;
+	final int filterCount;
+
+	// observation
+	final List<ElementObserver<? super T>> observers = new LinkedList<ElementObserver<? super T>>();
+
+	public PersistentAdaptable(Comparator<? super T> comparator, int universeFilter, CompositeProjector<T> projector) {
+		if (projector.getFilterCount() > MAX_FILTERS) {
+			throw new IllegalArgumentException("At most " + MAX_FILTERS + " filters supported");
+		}
+		this.comparator = comparator;
+		this.pendingComparator = comparator;
+		this.universeFilter = universeFilter;
+		this.projector = projector;
+		this.filterCount = projector.getFilterCount();
+		zero = new int[filterCount];
+	}
+
+	/**
+	 * Ensure determinism. Good for unit testing and other repeatable scenarios.
+	 */
+	public void setSeed(long seed) {
+		random.setSeed(seed);
+	}
+
+	public void setAllowDuplicates(boolean allowDuplicates) {
+		this.allowDuplicates = allowDuplicates;
+	}
+
+	/**
+	 * @see AdaptableSkipList#setBroadcastOldValue(boolean)
+	 */
+	public void setBroadcastOldValue(boolean broadcastOldValue) {
+		this.broadcastOldValue = broadcastOldValue;
+	}
+
+	/**
+	 * Capture the current version of the contents. Later updates of the container
+	 * are not visible through the snapshot, which may be read by any thread.
+	 * @return read-only view of the current version; modifications throw {@link UnsupportedOperationException}.
+	 */
+	public Adaptable<T> snapshot() {
+		shared = true;
+		return new Snapshot(root, comparator);
+	}
+
+	/**
+	 * @param copier copies the elements shared with snapshots before they are updated,
+	 * or null to reject updates once a snapshot is taken.
+	 */
+	public void setCopier(Copier<T> copier) {
+		this.copier = copier;
+	}
+
+	/**
+	 * @return the element to modify: the stored one, or its copy if snapshots may reference it.
+	 */
+	private T detach(T element, Update<? super T> modification) {
+		if (!shared || modification == Trivial.refresh()) {
+			return element;
+		}
+		if (copier == null) {
+			throw new IllegalStateException("Elements are shared with snapshots, a copier is needed to update them");
+		}
+		return copier.copy(element);
+	}
+
+	protected void onElementUpdated(T element, int[] position, int[] estimate, int deltaSign, int[] deltaCount) {
+		if (!observers.isEmpty()) {
+			for (ElementObserver<? super T> observer : observers) {
+				observer.onElementUpdated(element, position, estimate, deltaSign, deltaCount);
+			}
+		}
+	}
+
+	/**
+	 * @see AdaptableSkipList#accept(Object, int, int[])
+	 */
+	@Override
+	public boolean accept(T element, int filterIndex, int[] precomputed) {
+		return projector.accept(element, filterIndex, precomputed);
+	}
+
+	// tree primitives: the nodes along the path are copied, the rest is shared
+
+	static int total(PersistentAdaptable<?>.Node node) {
+		return node == null ? 0 : node.size;
+	}
+
+	static int count(PersistentAdaptable<?>.Node node, int filterIndex) {
+		return node == null ? 0 : node.counts[filterIndex];
+	}
+
+	private Node insertAt(Node node, int index, Node leaf) {
+		if (node == null) {
+			return leaf;
+		}
+		if (leaf.priority > node.priority) {
+			@SuppressWarnings("unchecked") // Node is inner to a generic class
+			final Node[] halves = (Node[]) Array.newInstance(Node.class, 2);
+			split(node, index, halves);
+			return leaf.with(halves[0], halves[1]);
+		}
+		final int leftSize = total(node.left);
+		return index <= leftSize
+				? node.with(insertAt(node.left, index, leaf), node.right)
+				: node.with(node.left, insertAt(node.right, index - leftSize - 1, leaf));
+	}
+
+	/**
+	 * Split a subtree into its first elements and the rest.
+	 * @param halves receives both halves, either may be null.
+	 */
+	private void split(Node node, int index, Node[] halves) {
+		if (node == null) {
+			halves[0] = halves[1] = null;
+			return;
+		}
+		final int leftSize = total(node.left);
+		if (index <= leftSize) {
+			split(node.left, index, halves);
+			halves[1] = node.with(halves[1], node.right);
+		} else {
+			split(node.right, index - leftSize - 1, halves);
+			halves[0] = node.with(node.left, halves[0]);
+		}
+	}
+
+	private Node join(Node left, Node right) {
+		if (left == null) {
+			return right;
+		}
+		if (right == null) {
+			return left;
+		}
+		return left.priority > right.priority
+				? left.with(left.left, join(left.right, right))
+				: right.with(join(left, right.left), right.right);
+	}
+
+	private Node removeAt(Node node, int index) {
+		final int leftSize = total(node.left);
+		if (index < leftSize) {
+			return node.with(removeAt(node.left, index), node.right);
+		} else if (index > leftSize) {
+			return node.with(node.left, removeAt(node.right, index - leftSize - 1));
+		}
+		return join(node.left, node.right);
+	}
+
+	private Node replaceAt(Node node, int index, T element, long mask) {
+		final int leftSize = total(node.left);
+		if (index < leftSize) {
+			return node.with(replaceAt(node.left, index, element, mask), node.right);
+		} else if (index > leftSize) {
+			return node.with(node.left, replaceAt(node.right, index - leftSize - 1, element, mask));
+		}
+		return node.with(element, mask);
+	}
+
+	// tree lookups, by position among all elements ("index") unless stated otherwise
+
+	private Node nodeAt(Node node, int index) {
+		while (true) {
+			final int leftSize = total(node.left);
+			if (index < leftSize) {
+				node = node.left;
+			} else if (index > leftSize) {
+				index -= leftSize + 1;
+				node = node.right;
+			} else {
+				return node;
+			}
+		}
+	}
+
+	private T elementAt(Node root, int index) {
+		return index < 0 || index >= total(root) ? null : nodeAt(root, index).element;
+	}
+
+	/**
+	 * @return index of a selection element, assumed to be within bounds.
+	 */
+	private int select(Node node, int filterIndex, int elementIndex) {
+		int index = 0;
+		while (true) {
+			final int leftCount = count(node.left, filterIndex);
+			if (elementIndex < leftCount) {
+				node = node.left;
+			} else {
+				elementIndex -= leftCount;
+				index += total(node.left);
+				if (node.passes(filterIndex)) {
+					if (elementIndex == 0) {
+						return index;
+					}
+					elementIndex--;
+				}
+				index++;
+				node = node.right;
+			}
+		}
+	}
+
+	/**
+	 * @return number of selection elements among the first elements.
+	 */
+	private int rank(Node node, int filterIndex, int index) {
+		int rank = 0;
+		while (node != null) {
+			final int leftSize = total(node.left);
+			if (index <= leftSize) {
+				node = node.left;
+			} else {
+				rank += count(node.left, filterIndex) + (node.passes(filterIndex) ? 1 : 0);
+				index -= leftSize + 1;
+				node = node.right;
+			}
+		}
+		return rank;
+	}
+
+	/**
+	 * @return selection sizes among the first elements.
+	 */
+	private int[] positionOf(Node node, int index) {
+		final int[] position = new int[filterCount];
+		while (node != null) {
+			final int leftSize = total(node.left);
+			if (index <= leftSize) {
+				node = node.left;
+			} else {
+				if (node.left != null) {
+					Distance.add(position, node.left.counts);
+				}
+				for (int filterIndex = 0; filterIndex < filterCount; ++filterIndex) {
+					position[filterIndex] += (int) (node.mask >>> filterIndex & 1);
+				}
+				index -= leftSize + 1;
+				node = node.right;
+			}
+		}
+		return position;
+	}
+
+	private int[] reportedPositionOf(int index) {
+		return observers.isEmpty() ? zero : positionOf(root, index);
+	}
+
+	/**
+	 * @return number of elements less than (or not greater than, if inclusive) the value.
+	 */
+	private int bound(Node node, Comparator<? super T> comparator, T value, boolean inclusive) {
+		final int tie = inclusive ? 1 : 0;
+		int index = 0;
+		while (node != null) {
+			if (comparator.compare(node.element, value) < tie) {
+				index += total(node.left) + 1;
+				node = node.right;
+			} else {
+				node = node.left;
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * @return index of an element equal to the value, or -1 if there is none.
+	 */
+	private int find(Node root, Comparator<? super T> comparator, T value) {
+		final int index = bound(root, comparator, value, false);
+		return index < total(root) && comparator.compare(nodeAt(root, index).element, value) == 0 ? index : -1;
+	}
+
+	private static long maskOf(int[] membership) {
+		long mask = 0;
+		for (int filterIndex = 0; filterIndex < membership.length; ++filterIndex) {
+			if (membership[filterIndex] != 0) {
+				mask |= 1L << filterIndex;
+			}
+		}
+		return mask;
+	}
+
+	private int[] membershipOf(long mask) {
+		final int[] membership = new int[filterCount];
+		for (int filterIndex = 0; filterIndex < filterCount; ++filterIndex) {
+			membership[filterIndex] = (int) (mask >>> filterIndex & 1);
+		}
+		return membership;
+	}
+
+	private int[] project(T element) {
+		return Distance.project(new int[filterCount], element, projector.getHorizon(), this);
+	}
+
+	private int compare(T prev, T next) {
+		return prev == null || next == null
+				? -1 // prev is absMin or next is absMax
+				: comparator.compare(prev, next);
+	}
+
+	// updates
+
+	@Override
+	public boolean add(T element) {
+		return addPrecomputedDistance(element, project(element));
+	}
+
+	private boolean addPrecomputedDistance(T element, int[] projection) {
+		final Node root = this.root;
+		final int index = bound(root, comparator, element, false);
+		if (!allowDuplicates && index < total(root) && comparator.compare(nodeAt(root, index).element, element) == 0) {
+			return false;
+		}
+		final int[] position = reportedPositionOf(index);
+		this.root = insertAt(root, index, new Node(element, maskOf(projection), random.nextInt(), null, null));
+		onElementUpdated(element, position, projection, 1, projection);
+		return true;
+	}
+
+	private T removeIndexed(int index) {
+		final Node node = nodeAt(root, index);
+		final int[] membership = membershipOf(node.mask);
+		final int[] position = reportedPositionOf(index);
+		root = removeAt(root, index);
+		onElementUpdated(node.element, position, membership, -1, membership);
+		return node.element;
+	}
+
+	@Override
+	public boolean remove(T element) {
+		final int index = find(root, comparator, element);
+		if (index < 0) {
+			return false;
+		}
+		removeIndexed(index);
+		return true;
+	}
+
+	@Override
+	public boolean remove(int filterIndex, int elementIndex) {
+		if (elementIndex < 0 || elementIndex >= size(filterIndex)) {
+			return false;
+		}
+		removeIndexed(select(root, filterIndex, elementIndex));
+		return true;
+	}
+
+	@Override
+	public T pollFirst(int filterIndex) {
+		return size(filterIndex) == 0 ? null : removeIndexed(select(root, filterIndex, 0));
+	}
+
+	@Override
+	public T removeFirst() {
+		final T first = pollFirst(universeFilter);
+		if (first == null) {
+			throw new NoSuchElementException();
+		}
+		return first;
+	}
+
+	@Override
+	public void clear() {
+		final Node root = this.root;
+		final int[] size = root == null ? zero : root.counts;
+		comparator = pendingComparator;
+		this.root = null;
+		shared = false; // snapshots keep the old elements only
+		onElementUpdated(null, zero, size, -1, size);
+	}
+
+	@Override
+	public boolean updateInPlace(T oldValue, Update<? super T> modification) {
+		final int index = find(root, comparator, oldValue);
+		if (index < 0) {
+			return addMissing(oldValue, modification);
+		}
+		final Node node = nodeAt(root, index);
+		final T element = detach(node.element, modification);
+		final int[] position = reportedPositionOf(index);
+		final boolean modified = modification.apply(element);
+		if (modified) {
+			if (element != node.element) {
+				root = replaceAt(root, index, element, node.mask);
+			}
+			onElementUpdated(element, position, membershipOf(node.mask), 0, zero);
+		}
+		return modified;
+	}
+
+	@Override
+	public boolean updateFilters(T oldValue, Update<? super T> modification) {
+		final int index = find(root, comparator, oldValue);
+		if (index < 0) {
+			return addMissing(oldValue, modification);
+		}
+		final Node node = nodeAt(root, index);
+		final T element = detach(node.element, modification);
+		final int[] position = reportedPositionOf(index);
+		final int[] oldEdge = membershipOf(node.mask);
+		final boolean modified = modification.apply(element);
+		if (modified) {
+			final int[] changeEstimate = project(element);
+			root = replaceAt(root, index, element, maskOf(changeEstimate));
+			final int[] deltaCount = Distance.sub(Distance.set(new int[filterCount], changeEstimate), oldEdge);
+			Distance.add(changeEstimate, oldEdge);
+			onElementUpdated(element, position, changeEstimate, 1, deltaCount);
+		}
+		return modified;
+	}
+
+	@Override
+	public boolean updateReorder(T oldValue, Update<? super T> modification) {
+		final int index = find(root, comparator, oldValue);
+		if (index < 0) {
+			return addMissing(oldValue, modification);
+		}
+		// optimized position-aware remove
+		final Node node = nodeAt(root, index);
+		final T element = detach(node.element, modification);
+		final int[] position = reportedPositionOf(index);
+		final int[] oldEdge = membershipOf(node.mask);
+		root = replaceAt(root, index, element, 0);
+		if (broadcastOldValue) {
+			onElementUpdated(element, position, oldEdge, -1, oldEdge);
+		}
+		final boolean modified = modification.apply(element);
+		final boolean diffRank = modified
+				&& (compare(elementAt(root, index - 1), element) >= 1 || compare(element, elementAt(root, index + 1)) >= 1);
+		if (diffRank) {
+			if (!broadcastOldValue) {
+				onElementUpdated(element, position, oldEdge, -1, oldEdge);
+			}
+			// finish removal
+			root = removeAt(root, index);
+			addPrecomputedDistance(element, project(element));
+		} else {
+			// voila, order preserved!
+			final int[] projection = project(element);
+			root = replaceAt(root, index, element, maskOf(projection));
+			if (!broadcastOldValue) {
+				Distance.sub(projection, oldEdge);
+			}
+			onElementUpdated(element, position, projection, 1, projection);
+		}
+		return modified;
+	}
+
+	private boolean addMissing(T oldValue, Update<? super T> modification) {
+		final T element = autoAdd ? loader == null ? oldValue : loader.load(oldValue) : null;
+		if (element != null) {
+			modification.apply(element);
+			addPrecomputedDistance(element, project(element));
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public void setAutoAdd(boolean autoAdd) {
+		this.autoAdd = autoAdd;
+	}
+
+	@Override
+	public void setLoader(Loader<T> loader) {
+		this.loader = loader;
+	}
+
+	@Override
+	public BitSet refreshFilters(BitSet dirtyMask) {
+		if (dirtyMask.cardinality() == 0 || root == null) {
+			return EMPTY;
+		}
+		root = refresh(root, Distance.toArray(dirtyMask), new int[filterCount]);
+		return dirtyMask;
+	}
+
+	/**
+	 * Re-project a subtree in order, copying every node.
+	 * @param selectionIndex selection sizes before the subtree, advanced past it.
+	 */
+	private Node refresh(Node node, int[] indices, int[] selectionIndex) {
+		if (node == null) {
+			return null;
+		}
+		final Node left = refresh(node.left, indices, selectionIndex);
+		final int[] oldEdge = membershipOf(node.mask);
+		final int[] projection = Distance.project(membershipOf(node.mask), node.element, indices, this);
+		final int[] deltaCount = Distance.sub(oldEdge, projection);
+		if (!Distance.isZero(deltaCount)) {
+			onElementUpdated(node.element, selectionIndex, deltaCount, -1, deltaCount);
+		}
+		Distance.add(selectionIndex, projection);
+		final Node right = refresh(node.right, indices, selectionIndex);
+		return new Node(node.element, maskOf(projection), node.priority, left, right);
+	}
+
+	@Override
+	public void setComparator(Comparator<? super T> pendingComparator) {
+		this.pendingComparator = pendingComparator;
+	}
+
+	@Override
+	public Comparator<? super T> getComparator() {
+		return comparator;
+	}
+
+	@Override
+	public void setAll(Adaptable<T> source) {
+		doAddAll(source, true);
+	}
+
+	@Override
+	public void addAll(Adaptable<T> source) {
+		doAddAll(source, source == this);
+	}
+
+	private void doAddAll(Adaptable<T> source, boolean dropExisting) {
+		if (source.getFilterCount() != getFilterCount()) {
+			throw new IllegalArgumentException("Incompatible source!");
+		}
+		Iterator<Map.Entry<T, int[]>> iterator = source.iterator();
+		if (dropExisting) {
+			// clear silently, preserving iterator.
+			clear();
+		}
+		while (iterator.hasNext()) {
+			Map.Entry<T, int[]> entry = iterator.next();
+			addPrecomputedDistance(entry.getKey(), Distance.set(new int[filterCount], entry.getValue()));
+		}
+	}
+
+	/**
+	 * Only forwarded to {@link BulkObserver}s: every update publishes a new version, nothing is deferred.
+	 */
+	@Override
+	public void hintBulkOpBegin() {
+		BulkHints.begin(observers);
+	}
+
+	/**
+	 * Only forwarded, see {@link #hintBulkOpBegin()}.
+	 */
+	@Override
+	public void hintBulkOpCompleted() {
+		BulkHints.completed(observers);
+	}
+
+	@Override
+	public ProjectorEditor<T> getFilterEditor() {
+		return projector;
+	}
+
+	@Override
+	public void addElementObserver(ElementObserver<? super T> observer) {
+		observers.add(observer);
+	}
+
+	@Override
+	public void removeElementObserver(ElementObserver<? super T> observer) {
+		observers.remove(observer);
+	}
+
+	// queries, shared by the container and its snapshots
+
+	@Override
+	public int getFilterCount() {
+		return filterCount;
+	}
+
+	@Override
+	public int getUniverseFilterIndex() {
+		return universeFilter;
+	}
+
+	@Override
+	public int size() {
+		return size(universeFilter);
+	}
+
+	@Override
+	public int size(int filterIndex) {
+		return count(root, filterIndex);
+	}
+
+	@Override
+	public T get(int elementIndex) {
+		return get(universeFilter, elementIndex);
+	}
+
+	@Override
+	public T get(int filterIndex, int elementIndex) {
+		return get(root, filterIndex, elementIndex);
+	}
+
+	private T get(Node root, int filterIndex, int elementIndex) {
+		if (elementIndex < 0 || elementIndex >= count(root, filterIndex)) {
+			return null;
+		}
+		return nodeAt(root, select(root, filterIndex, elementIndex)).element;
+	}
+
+	@Override
+	public int indexOf(T item) {
+		return indexOf(universeFilter, item);
+	}
+
+	@Override
+	public int indexOf(int filterIndex, T item) {
+		return indexOf(root, comparator, filterIndex, item);
+	}
+
+	private int indexOf(Node root, Comparator<? super T> comparator, int filterIndex, T item) {
+		final int index = find(root, comparator, item);
+		if (index < 0 || !nodeAt(root, index).passes(filterIndex)) {
+			return -1;
+		}
+		return rank(root, filterIndex, index);
+	}
+
+	@Override
+	public int rank(int filterIndex, T value, boolean ceiling) {
+		return rank(root, comparator, filterIndex, value, ceiling);
+	}
+
+	private int rank(Node root, Comparator<? super T> comparator, int filterIndex, T value, boolean ceiling) {
+		return ceiling
+				? rank(root, filterIndex, bound(root, comparator, value, false))
+				: rank(root, filterIndex, bound(root, comparator, value, true)) - 1;
+	}
+
+	@Override
+	public int countBetween(int filterIndex, T lowest, T highest) {
+		return countBetween(root, comparator, filterIndex, lowest, highest);
+	}
+
+	private int countBetween(Node root, Comparator<? super T> comparator, int filterIndex, T lowest, T highest) {
+		return Math.max(rank(root, filterIndex, bound(root, comparator, highest, true))
+				- rank(root, filterIndex, bound(root, comparator, lowest, false)), 0);
+	}
+
+	@Override
+	public int convertIndex(int sourceElementIndex, int sourceFilterIndex, int targetFilterIndex) {
+		return convertIndex(sourceElementIndex, sourceFilterIndex, targetFilterIndex, false);
+	}
+
+	@Override
+	public int convertIndex(int sourceElementIndex, int sourceFilterIndex, int targetFilterIndex, boolean ceiling) {
+		return convertIndex(root, sourceElementIndex, sourceFilterIndex, targetFilterIndex, ceiling);
+	}
+
+	private int convertIndex(Node root, int sourceElementIndex, int sourceFilterIndex, int targetFilterIndex, boolean ceiling) {
+		if (sourceFilterIndex == targetFilterIndex) {
+			return sourceElementIndex; // no validation
+		} else if (sourceElementIndex < 0) {
+			return -1;
+		} else if (sourceElementIndex >= count(root, sourceFilterIndex)) {
+			return count(root, targetFilterIndex);
+		}
+		final int index = select(root, sourceFilterIndex, sourceElementIndex);
+		final int before = rank(root, targetFilterIndex, index);
+		return nodeAt(root, index).passes(targetFilterIndex) ? before : before - 1 + (ceiling ? 1 : 0);
+	}
+
+	@Override
+	public T getByOffset(int filterIndex, int weightOffset) {
+		throw new IllegalStateException("Weighted indexing is off");
+	}
+
+	@Override
+	public int offsetOf(int filterIndex, T item) {
+		throw new IllegalStateException("Weighted indexing is off");
+	}
+
+	@Override
+	public int totalWeight(int filterIndex) {
+		throw new IllegalStateException("Weighted indexing is off");
+	}
+
+	@Override
+	public <A> A aggregate(Aggregator<? super T, A> aggregator, int filterIndex, int fromIndex, int toIndex) {
+		throw new IllegalStateException("No aggregator set");
+	}
+
+	@Override
+	public List<T> sample(int filterIndex, int count, Random random) {
+		return sample(root, filterIndex, count, random);
+	}
+
+	private List<T> sample(Node root, int filterIndex, int count, Random random) {
+		final int[] indices = Sampling.drawIndices(count(root, filterIndex), count, random);
+		final List<T> sample = new ArrayList<T>(indices.length);
+		for (int index : indices) {
+			sample.add(get(root, filterIndex, index));
+		}
+		return sample;
+	}
+
+	@Override
+	public List<T> sampleWeighted(int filterIndex, int count, Random random) {
+		throw new IllegalStateException("Weighted indexing is off");
+	}
+
+	@Override
+	public Iterator<Map.Entry<T, int[]>> iterator() {
+		return entryIterator(root);
+	}
+
+	private Iterator<Map.Entry<T, int[]>> entryIterator(Node root) {
+		final Walker nodes = new Walker(root, -1, 0, Integer.MAX_VALUE);
+		// entries carry the membership of each element
+		return new Iterator<Map.Entry<T, int[]>>() {
+			@Override
+			public boolean hasNext() {
+				return nodes.hasNext();
+			}
+
+			@Override
+			public Map.Entry<T, int[]> next() {
+				final Node node = nodes.nextNode();
+				return new AbstractMap.SimpleImmutableEntry<T, int[]>(node.element, membershipOf(node.mask));
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException(); // no use case yet
+			}
+		};
+	}
+
+	@Override
+	public Iterator<T> iterator(int filterIndex) {
+		return iterator(filterIndex, 0);
+	}
+
+	@Override
+	public Iterator<T> iterator(int filterIndex, int elementIndex) {
+		return new SelectionIterator(root, filterIndex, elementIndex);
+	}
+
+	@Override
+	public SplittableIterator<T> splittableIterator(int filterIndex) {
+		return new SelectionIterator(root, filterIndex, 0);
+	}
+
+	@Override
+	public NavigableSet<T> asNavigableSet(int filterIndex) {
+		return new NavigableSelection<T>(this, filterIndex);
+	}
+
+	@Override
+	public FrozenAdaptable<T> freeze() {
+		return new FrozenAdaptable<T>(snapshot());
+	}
+
+	/**
+	 * In-order walk over the nodes of one version within an index range [returnedCount; returnedSize)
+	 * of a selection, skipping subtrees with no selection elements. Positioning is deferred until
+	 * the first node is requested, see {@link AdaptableSkipList.SplittingIterator}.
+	 * A negative filter index walks all nodes.
+	 */
+	class Walker {
+		final Node root;
+		final int filterIndex;
+		int returnedSize;
+		int returnedCount;
+		final Deque<Node> pending = new ArrayDeque<Node>(); // nodes whose element and right subtree are yet to walk
+		boolean positioned;
+
+		Walker(Node root, int filterIndex, int elementIndex, int endIndex) {
+			this.root = root;
+			this.filterIndex = filterIndex;
+			returnedSize = Math.min(endIndex, filterIndex < 0 ? total(root) : count(root, filterIndex));
+			returnedCount = Math.min(elementIndex, returnedSize);
+		}
+
+		private int weight(Node node) {
+			return filterIndex < 0 ? total(node) : count(node, filterIndex);
+		}
+
+		private boolean passes(Node node) {
+			return filterIndex < 0 || node.passes(filterIndex);
+		}
+
+		private void seek() {
+			int elementIndex = returnedCount;
+			Node node = root;
+			while (node != null) {
+				final int leftWeight = weight(node.left);
+				if (elementIndex < leftWeight) {
+					pending.push(node);
+					node = node.left;
+				} else {
+					elementIndex -= leftWeight;
+					if (passes(node)) {
+						if (elementIndex == 0) {
+							pending.push(node);
+							return;
+						}
+						elementIndex--;
+					}
+					node = node.right;
+				}
+			}
+		}
+
+		private void pushLeft(Node node) {
+			while (node != null && weight(node) > 0) {
+				pending.push(node);
+				node = node.left;
+			}
+		}
+
+		public boolean hasNext() {
+			return returnedCount < returnedSize;
+		}
+
+		final Node nextNode() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			if (!positioned) {
+				seek();
+				positioned = true;
+			}
+			while (true) {
+				final Node node = pending.pop();
+				pushLeft(node.right);
+				if (passes(node)) {
+					returnedCount++;
+					return node;
+				}
+			}
+		}
+	}
+
+	class SelectionIterator extends Walker implements SplittableIterator<T> {
+		SelectionIterator(Node root, int filterIndex, int elementIndex) {
+			this(root, filterIndex, elementIndex, Integer.MAX_VALUE);
+			if (elementIndex < 0) {
+				throw new IndexOutOfBoundsException("Negative start index " + elementIndex);
+			}
+		}
+
+		SelectionIterator(Node root, int filterIndex, int elementIndex, int endIndex) {
+			super(root, filterIndex, elementIndex, endIndex);
+		}
+
+		@Override
+		public int remaining() {
+			return Math.max(returnedSize - returnedCount, 0);
+		}
+
+		@Override
+		public SplittableIterator<T> trySplit() {
+			final int remaining = remaining();
+			if (remaining < 2) {
+				return null;
+			}
+			final int splitIndex = returnedCount + remaining / 2;
+			final SelectionIterator prefix = new SelectionIterator(root, filterIndex, returnedCount, splitIndex);
+			if (positioned) {
+				prefix.pending.addAll(pending);
+				prefix.positioned = true;
+			}
+			returnedCount = splitIndex;
+			pending.clear();
+			positioned = false;
+			return prefix;
+		}
+
+		@Override
+		public T next() {
+			return nextNode().element;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException(); // no use case yet
+		}
+	}
+
+	/**
+	 * Read-only view of one version of the contents.
+	 */
+	final class Snapshot implements Adaptable<T> {
+		final Node root;
+		final Comparator<? super T> comparator;
+
+		Snapshot(Node root, Comparator<? super T> comparator) {
+			this.root = root;
+			this.comparator = comparator;
+		}
+
+		@Override
+		public int getFilterCount() {
+			return filterCount;
+		}
+
+		@Override
+		public int getUniverseFilterIndex() {
+			return universeFilter;
+		}
+
+		@Override
+		public int size() {
+			return size(universeFilter);
+		}
+
+		@Override
+		public int size(int filterIndex) {
+			return count(root, filterIndex);
+		}
+
+		@Override
+		public T get(int elementIndex) {
+			return get(universeFilter, elementIndex);
+		}
+
+		@Override
+		public T get(int filterIndex, int elementIndex) {
+			return PersistentAdaptable.this.get(root, filterIndex, elementIndex);
+		}
+
+		@Override
+		public int indexOf(T item) {
+			return indexOf(universeFilter, item);
+		}
+
+		@Override
+		public int indexOf(int filterIndex, T item) {
+			return PersistentAdaptable.this.indexOf(root, comparator, filterIndex, item);
+		}
+
+		@Override
+		public int rank(int filterIndex, T value, boolean ceiling) {
+			return PersistentAdaptable.this.rank(root, comparator, filterIndex, value, ceiling);
+		}
+
+		@Override
+		public int countBetween(int filterIndex, T lowest, T highest) {
+			return PersistentAdaptable.this.countBetween(root, comparator, filterIndex, lowest, highest);
+		}
+
+		@Override
+		public int convertIndex(int sourceElementIndex, int sourceFilterIndex, int targetFilterIndex) {
+			return convertIndex(sourceElementIndex, sourceFilterIndex, targetFilterIndex, false);
+		}
+
+		@Override
+		public int convertIndex(int sourceElementIndex, int sourceFilterIndex, int targetFilterIndex, boolean ceiling) {
+			return PersistentAdaptable.this.convertIndex(root, sourceElementIndex, sourceFilterIndex, targetFilterIndex, ceiling);
+		}
+
+		@Override
+		public T getByOffset(int filterIndex, int weightOffset) {
+			throw new IllegalStateException("Weighted indexing is off");
+		}
+
+		@Override
+		public int offsetOf(int filterIndex, T item) {
+			throw new IllegalStateException("Weighted indexing is off");
+		}
+
+		@Override
+		public int totalWeight(int filterIndex) {
+			throw new IllegalStateException("Weighted indexing is off");
+		}
+
+		@Override
+		public <A> A aggregate(Aggregator<? super T, A> aggregator, int filterIndex, int fromIndex, int toIndex) {
+			throw new IllegalStateException("No aggregator set");
+		}
+
+		@Override
+		public List<T> sample(int filterIndex, int count, Random random) {
+			return PersistentAdaptable.this.sample(root, filterIndex, count, random);
+		}
+
+		@Override
+		public List<T> sampleWeighted(int filterIndex, int count, Random random) {
+			throw new IllegalStateException("Weighted indexing is off");
+		}
+
+		@Override
+		public Comparator<? super T> getComparator() {
+			return comparator;
+		}
+
+		@Override
+		public Iterator<Map.Entry<T, int[]>> iterator() {
+			return entryIterator(root);
+		}
+
+		@Override
+		public Iterator<T> iterator(int filterIndex) {
+			return iterator(filterIndex, 0);
+		}
+
+		@Override
+		public Iterator<T> iterator(int filterIndex, int elementIndex) {
+			return new SelectionIterator(root, filterIndex, elementIndex);
+		}
+
+		@Override
+		public SplittableIterator<T> splittableIterator(int filterIndex) {
+			return new SelectionIterator(root, filterIndex, 0);
+		}
+
+		@Override
+		public NavigableSet<T> asNavigableSet(int filterIndex) {
+			return new NavigableSelection<T>(this, filterIndex);
+		}
+
+		@Override
+		public FrozenAdaptable<T> freeze() {
+			return new FrozenAdaptable<T>(this);
+		}
+
+		@Override
+		public boolean add(T element) {
+			throw new UnsupportedOperationException("Snapshot is immutable");
+		}
+
+		@Override
+		public boolean remove(T element) {
+			throw new UnsupportedOperationException("Snapshot is immutable");
+		}
+
+		@Override
+		public boolean remove(int filterIndex, int elementIndex) {
+			throw new UnsupportedOperationException("Snapshot is immutable");
+		}
+
+		@Override
+		public T pollFirst(int filterIndex) {
+			throw new UnsupportedOperationException("Snapshot is immutable");
+		}
+
+		@Override
+		public T removeFirst() {
+			throw new UnsupportedOperationException("Snapshot is immutable");
+		}
+
+		@Override
+		public void clear() {
+			throw new UnsupportedOperationException("Snapshot is immutable");
+		}
+
+		@Override
+		public void setAll(Adaptable<T> adaptable) {
+			throw new UnsupportedOperationException("Snapshot is immutable");
+		}
+
+		@Override
+		public void addAll(Adaptable<T> adaptable) {
+			throw new UnsupportedOperationException("Snapshot is immutable");
+		}
+
+		@Override
+		public boolean updateInPlace(T oldValue, Update<? super T> modification) {
+			throw new UnsupportedOperationException("Snapshot is immutable");
+		}
+
+		@Override
+		public boolean updateFilters(T oldValue, Update<? super T> modification) {
+			throw new UnsupportedOperationException("Snapshot is immutable");
+		}
+
+		@Override
+		public boolean updateReorder(T oldValue, Update<? super T> modification) {
+			throw new UnsupportedOperationException("Snapshot is immutable");
+		}
+
+		@Override
+		public void setComparator(Comparator<? super T> pendingComparator) {
+			throw new UnsupportedOperationException("Snapshot is immutable");
+		}
+
+		@Override
+		public void setAutoAdd(boolean autoAdd) {
+			throw new UnsupportedOperationException("Snapshot is immutable");
+		}
+
+		@Override
+		public void setLoader(Loader<T> loader) {
+			throw new UnsupportedOperationException("Snapshot is immutable");
+		}
+
+		@Override
+		public void addElementObserver(ElementObserver<? super T> observer) {
+			// nothing will ever change
+		}
+
+		@Override
+		public void removeElementObserver(ElementObserver<? super T> observer) {
+			// nothing will ever change
+		}
+
+		@Override
+		public void hintBulkOpBegin() {
+		}
+
+		@Override
+		public void hintBulkOpCompleted() {
+		}
+	}
+}
@@ -116,9 +116,34 @@ public class RangedAdaptableSkipList<G, T> extends AdaptableSkipList<T> implemen
 		super.clear();
 	}
 
+	/**
+	 * Not supported: batch evictions cannot be attributed to ranges.
+	 */
+	@Override
+	public void setRetention(Retention<? super T> retention) {
+		throw new UnsupportedOperationException("Retention is not supported with ranging");
+	}
+
+	/**
+	 * Not supported: batch evictions cannot be attributed to ranges.
+	 */
+	@Override
+	public void setCapacity(long capacity) {
+		throw new UnsupportedOperationException("Capacity is not supported with ranging");
+	}
+
+	/**
+	 * Not supported: range aggregation counts distinct elements.
+	 */
+	@Override
+	public void setCountDuplicates(boolean countDuplicates) {
+		throw new UnsupportedOperationException("Duplicate counting is not supported with ranging");
+	}
+
 	@Override
 	public void hintBulkOpBegin() {
 		delayAggregation = true;
+		super.hintBulkOpBegin();
 	}
 
     @Override
@@ -132,6 +157,7 @@ public class RangedAdaptableSkipList<G, T> extends AdaptableSkipList<T> implemen
 		    }
 	    }
 	    delayAggregation = false;
+	    super.hintBulkOpCompleted();
 	}
 
     @Override
@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ *
+ * Licensed under the MIT license.
+ */
+
+package com.skype.research.util.adaptable;
+
+import com.skype.research.util.primitives.Clock;
+import com.skype.research.util.primitives.Copier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Read replica of an {@link Adaptable}, for reader threads other than the one owning the container.
+ *
+ * The replica observes the primary container on its owner thread and buffers the changes.
+ * Changes are handed over to a background applier at batch boundaries: after every change outside
+ * of bulk operations, and once per bulk operation of the primary container, whose hints the replica
+ * receives as a {@link BulkObserver}, so that a bulk operation is never seen half done.
+ * The applier replays all the changes handed over so far on a second container, then publishes
+ * an immutable {@link Version} of it by reference swap. Readers call {@link #current()} and never
+ * contend with either the owner or the applier; the more changes pile up while the applier runs,
+ * the larger the next batch.
+ *
+ * Versions are O(1) snapshots if the second container is a {@link PersistentAdaptable},
+ * and {@link Adaptable#freeze()} copies otherwise. By default, elements are shared with
+ * the replica and read by the applier, so they must be immutable. Given a {@link Copier},
+ * the replica copies the elements added or updated on the owner thread, and replaces its
+ * copies of updated elements by removing them and adding the new copies; elements must
+ * then be unique, so that the new copies take the place of the old ones.
+ */
+public class ReadReplica<T> implements BulkObserver<T> {
+
+	/**
+	 * Immutable published state of the replica.
+	 */
+	public static final class Version<T> {
+		final Adaptable<T> adaptable;
+		final long sequence;
+		final int batchSize;
+		final long latency;
+
+		Version(Adaptable<T> adaptable, long sequence, int batchSize, long latency) {
+			this.adaptable = adaptable;
+			this.sequence = sequence;
+			this.batchSize = batchSize;
+			this.latency = latency;
+		}
+
+		/**
+		 * @return read-only container contents, never modified.
+		 */
+		public Adaptable<T> getAdaptable() {
+			return adaptable;
+		}
+
+		/**
+		 * @return number of primary changes reflected in this version.
+		 */
+		public long getSequence() {
+			return sequence;
+		}
+
+		/**
+		 * @return number of primary changes applied in the batch published as this version.
+		 */
+		public int getBatchSize() {
+			return batchSize;
+		}
+
+		/**
+		 * @return time from the hand-over of the oldest change of the batch to its publication, in clock units.
+		 */
+		public long getLatency() {
+			return latency;
+		}
+	}
+
+	static final int ADD = 0;
+	static final int REMOVE = 1;
+	static final int REFILTER = 2;
+	static final int REPLACE = 3;
+
+	static final class Change<T> {
+		final int kind;
+		final T element;
+		final int position;
+		final int count;
+
+		Change(int kind, T element, int position, int count) {
+			this.kind = kind;
+			this.element = element;
+			this.position = position;
+			this.count = count;
+		}
+	}
+
+	static final class Batch<T> {
+		final List<Change<T>> changes;
+		final long time;
+
+		Batch(List<Change<T>> changes, long time) {
+			this.changes = changes;
+			this.time = time;
+		}
+	}
+
+	final Adaptable<T> primary;
+	final FlexibleAdaptable<T> replica; // confined to the applier
+	final Executor executor;
+	final Clock clock;
+	final Copier<T> copier; // null to share the elements
+	final int universeFilter;
+
+	// owner thread
+	List<Change<T>> pending = new ArrayList<Change<T>>();
+	int bulkDepth;
+	volatile long observed;
+
+	// hand-over
+	final Queue<Batch<T>> batches = new ConcurrentLinkedQueue<Batch<T>>();
+	final AtomicBoolean scheduled = new AtomicBoolean();
+	final AtomicReference<Version<T>> published = new AtomicReference<Version<T>>();
+
+	final Runnable applier = new Runnable() {
+		@Override
+		public void run() {
+			do {
+				apply();
+				scheduled.set(false);
+			} while (!batches.isEmpty() && scheduled.compareAndSet(false, true));
+		}
+	};
+
+	/**
+	 * Copy the primary container and start observing it, sharing immutable elements.
+	 * @see #ReadReplica(Adaptable, FlexibleAdaptable, Executor, Clock, Copier)
+	 */
+	public ReadReplica(Adaptable<T> primary, FlexibleAdaptable<T> replica, Executor executor, Clock clock) {
+		this(primary, replica, executor, clock, null);
+	}
+
+	/**
+	 * Copy the primary container and start observing it. Must be called on the thread owning the primary.
+	 * @param primary container to replicate.
+	 * @param replica empty container with the same filters and comparator, to replay the changes on.
+	 * @param executor executor to apply the changes on, e.g. a single background thread.
+	 * @param clock time source to measure latency with.
+	 * @param copier copies the elements of the primary container as they change, or null to share them.
+	 */
+	public ReadReplica(Adaptable<T> primary, FlexibleAdaptable<T> replica, Executor executor, Clock clock, Copier<T> copier) {
+		if (primary.getFilterCount() != replica.getFilterCount()) {
+			throw new IllegalArgumentException("Incompatible replica!");
+		}
+		this.primary = primary;
+		this.replica = replica;
+		this.executor = executor;
+		this.clock = clock;
+		this.copier = copier;
+		universeFilter = primary.getUniverseFilterIndex();
+		replica.setAll(copier == null ? primary : new FrozenAdaptable<T>(primary, copier));
+		published.set(new Version<T>(versionOf(replica), 0, 0, 0));
+		primary.addElementObserver(this);
+	}
+
+	/**
+	 * Stop observing the primary container. Changes handed over already are still published.
+	 */
+	public void detach() {
+		primary.removeElementObserver(this);
+	}
+
+	/**
+	 * @return the latest published version. May be called on any thread.
+	 */
+	public Version<T> current() {
+		return published.get();
+	}
+
+	/**
+	 * @return number of primary changes not yet published, i.e. the replication lag.
+	 */
+	public long getLag() {
+		return observed - published.get().sequence;
+	}
+
+	@Override
+	public void onElementUpdated(T element, int[] position, int[] changeEstimate, int deltaSign, int[] deltaCount) {
+		final int delta = deltaSign * deltaCount[universeFilter];
+		if (element == null) {
+			if (delta < 0) {
+				// range removal: clear or eviction
+				pending.add(new Change<T>(REMOVE, null, position[universeFilter], -delta));
+			}
+		} else if (delta > 0) {
+			pending.add(new Change<T>(ADD, copyOf(element), position[universeFilter], 1));
+		} else if (delta < 0) {
+			pending.add(new Change<T>(REMOVE, null, position[universeFilter], 1));
+		} else if (copier != null) {
+			pending.add(new Change<T>(REPLACE, copier.copy(element), position[universeFilter], 1));
+		} else if (deltaSign != 0) {
+			pending.add(new Change<T>(REFILTER, null, position[universeFilter], 1));
+		} else {
+			return; // changed in place, and shared
+		}
+		observed++;
+		if (bulkDepth == 0) {
+			flush();
+		}
+	}
+
+	private T copyOf(T element) {
+		return copier == null ? element : copier.copy(element);
+	}
+
+	@Override
+	public void onBulkOpBegin() {
+		bulkDepth++;
+	}
+
+	@Override
+	public void onBulkOpCompleted() {
+		if (bulkDepth > 0 && --bulkDepth == 0) {
+			flush();
+		}
+	}
+
+	/**
+	 * Hand the buffered changes over to the applier. Called at batch boundaries.
+	 */
+	void flush() {
+		if (pending.isEmpty()) {
+			return;
+		}
+		batches.add(new Batch<T>(pending, clock.now()));
+		pending = new ArrayList<Change<T>>();
+		if (scheduled.compareAndSet(false, true)) {
+			executor.execute(applier);
+		}
+	}
+
+	/**
+	 * Replay all the batches handed over so far and publish the result. Runs on the applier only.
+	 */
+	void apply() {
+		final Version<T> previous = published.get();
+		Batch<T> batch;
+		long oldest = Long.MAX_VALUE;
+		int batchSize = 0;
+		while ((batch = batches.poll()) != null) {
+			oldest = Math.min(oldest, batch.time);
+			for (Change<T> change : batch.changes) {
+				replay(change);
+			}
+			batchSize += batch.changes.size();
+		}
+		if (batchSize > 0) {
+			published.set(new Version<T>(versionOf(replica), previous.sequence + batchSize,
+					batchSize, clock.now() - oldest));
+		}
+	}
+
+	private void replay(Change<T> change) {
+		switch (change.kind) {
+			case ADD:
+				replica.add(change.element);
+				break;
+			case REMOVE:
+				for (int i = 0; i < change.count; ++i) {
+					replica.remove(universeFilter, change.position);
+				}
+				break;
+			case REFILTER:
+				replica.updateFilters(replica.get(universeFilter, change.position), Trivial.refresh());
+				break;
+			case REPLACE:
+				replica.remove(universeFilter, change.position);
+				replica.add(change.element);
+				break;
+		}
+	}
+
+	private static <T> Adaptable<T> versionOf(FlexibleAdaptable<T> replica) {
+		return replica instanceof PersistentAdaptable ? ((PersistentAdaptable<T>) replica).snapshot() : replica.freeze();
+	}
+}
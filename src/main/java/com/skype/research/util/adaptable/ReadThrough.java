@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ *
+ * Licensed under the MIT license.
+ */
+
+package com.skype.research.util.adaptable;
+
+import com.skype.research.util.primitives.Loader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Ordered read-through cache front end: an {@link Adaptable} backed by a slower store.
+ * 
+ * Misses are loaded asynchronously on the supplied executor. Concurrent misses for the same key,
+ * as defined by the container comparator, share a single load. Loaded elements are not inserted
+ * one by one as they arrive: {@link #drain()} inserts all the elements loaded so far in one batch,
+ * sorted and wrapped in a single bulk operation.
+ * 
+ * Except for the loads themselves, all methods must be called on the thread that owns the container.
+ * {@link #run()} drains, so that the owner thread may be notified with a Runnable to post.
+ */
+public class ReadThrough<T> implements Runnable {
+	final Adaptable<T> adaptable;
+	final BulkUpdatable bulkUpdatable;
+	final Loader<T> loader;
+	final Executor executor;
+	final Map<T, LoadTask> pending;
+	final Queue<LoadTask> loaded = new ConcurrentLinkedQueue<LoadTask>();
+	final Runnable onLoaded;
+
+	final class LoadTask extends FutureTask<T> {
+		final T key;
+
+		LoadTask(final T key) {
+			super(new Callable<T>() {
+				@Override
+				public T call() throws Exception {
+					return loader.load(key);
+				}
+			});
+			this.key = key;
+		}
+
+		@Override
+		protected void done() {
+			loaded.add(this);
+			if (onLoaded != null) {
+				onLoaded.run();
+			}
+		}
+	}
+
+	public ReadThrough(Adaptable<T> adaptable, Loader<T> loader, Executor executor) {
+		this(adaptable, adaptable, loader, executor, null);
+	}
+
+	/**
+	 * @param adaptable container to read through.
+	 * @param bulkUpdatable recipient of bulk operation hints, e.g. the Adaptation of the container.
+	 * @param loader loader of missing elements; called on the executor.
+	 * @param executor executor to run the loads on.
+	 * @param onLoaded callback to run on the loading thread after each load, e.g. to post a drain, or null.
+	 */
+	public ReadThrough(Adaptable<T> adaptable, BulkUpdatable bulkUpdatable,
+	                   Loader<T> loader, Executor executor, Runnable onLoaded) {
+		this.adaptable = adaptable;
+		this.bulkUpdatable = bulkUpdatable;
+		this.loader = loader;
+		this.executor = executor;
+		this.onLoaded = onLoaded;
+		pending = new TreeMap<T, LoadTask>(adaptable.getComparator());
+	}
+
+	/**
+	 * Look an element up, loading it if it is not in the container yet.
+	 * @param key partial value identifying the element.
+	 * @return the stored element if found, or null if a load is pending (see {@link #request(Object)}).
+	 */
+	public T get(T key) {
+		final int elementIndex = adaptable.indexOf(key);
+		if (elementIndex >= 0) {
+			return adaptable.get(elementIndex);
+		}
+		request(key);
+		return null;
+	}
+
+	/**
+	 * Request an element, loading it if it is not in the container yet.
+	 * @param key partial value identifying the element.
+	 * @return future of the element, which is null if the store has no such element.
+	 * The element is in the container by the time the future is done and {@link #drain()} is called.
+	 */
+	public Future<T> request(final T key) {
+		final int elementIndex = adaptable.indexOf(key);
+		if (elementIndex >= 0) {
+			final FutureTask<T> present = new FutureTask<T>(new Callable<T>() {
+				@Override
+				public T call() throws Exception {
+					return adaptable.get(elementIndex);
+				}
+			});
+			present.run();
+			return present;
+		}
+		LoadTask task = pending.get(key);
+		if (task == null) {
+			task = new LoadTask(key);
+			pending.put(key, task);
+			executor.execute(task);
+		}
+		return task;
+	}
+
+	/**
+	 * @return the number of keys being loaded or loaded but not yet inserted.
+	 */
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Insert all the elements loaded so far in a single sorted bulk operation.
+	 * Failed loads and elements missing from the store are dropped, so that they may be requested again.
+	 * @return the number of elements inserted.
+	 */
+	public int drain() {
+		final List<T> batch = new ArrayList<T>();
+		LoadTask task;
+		while ((task = loaded.poll()) != null) {
+			T element = null;
+			try {
+				element = task.get();
+			} catch (Exception e) {
+				// failed or cancelled load, same as a miss
+			}
+			if (element != null) {
+				batch.add(element);
+			}
+			pending.remove(task.key);
+		}
+		if (batch.isEmpty()) {
+			return 0;
+		}
+		// sorted batches go through the append path when past the current maximum
+		Collections.sort(batch, adaptable.getComparator());
+		int inserted = 0;
+		bulkUpdatable.hintBulkOpBegin();
+		try {
+			for (T element : batch) {
+				if (adaptable.indexOf(element) < 0 && adaptable.add(element)) {
+					inserted++;
+				}
+			}
+		} finally {
+			bulkUpdatable.hintBulkOpCompleted();
+		}
+		return inserted;
+	}
+
+	@Override
+	public void run() {
+		drain();
+	}
+}
@@ -0,0 +1,21 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ *
+ * Licensed under the MIT license.
+ */
+
+package com.skype.research.util.adaptable;
+
+/**
+ * Sliding window retention policy for time-ordered containers, such as "last 15 minutes".
+ * The window is defined relative to the current maximum and must be monotone:
+ * if an element is expired, so are all the elements sorting before it.
+ */
+public interface Retention<T> {
+	/**
+	 * @param element element to evaluate, not greater than the newest one.
+	 * @param newest the greatest element stored.
+	 * @return true if the element is outside the window and should be evicted.
+	 */
+	public boolean isExpired(T element, T newest);
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ *
+ * Licensed under the MIT license.
+ */
+
+package com.skype.research.util.adaptable;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Index draws shared by the {@link Adaptable#sample(int, int, Random)} implementations.
+ */
+final class Sampling {
+	private Sampling() {}
+
+	/**
+	 * Draw distinct indices uniformly, with Floyd's algorithm: one draw per index.
+	 * @param size number of indices to draw from.
+	 * @param count number of indices to draw, at most the size.
+	 * @param random source of randomness.
+	 * @return drawn indices in ascending order, i.e. in the selection order.
+	 */
+	static int[] drawIndices(int size, int count, Random random) {
+		if (count < 0) {
+			throw new IllegalArgumentException("Negative sample size " + count);
+		}
+		count = Math.min(count, size);
+		final Set<Integer> drawn = new HashSet<Integer>(2 * count);
+		for (int bound = size - count; bound < size; ++bound) {
+			final int index = random.nextInt(bound + 1);
+			drawn.add(drawn.contains(index) ? bound : index);
+		}
+		final int[] indices = new int[count];
+		int i = 0;
+		for (Integer index : drawn) {
+			indices[i++] = index;
+		}
+		Arrays.sort(indices);
+		return indices;
+	}
+}
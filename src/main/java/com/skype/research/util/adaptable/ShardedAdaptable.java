@@ -0,0 +1,1280 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ *
+ * Licensed under the MIT license.
+ */
+
+package com.skype.research.util.adaptable;
+
+import com.skype.research.util.primitives.Aggregator;
+import com.skype.research.util.primitives.Factory;
+import com.skype.research.util.primitives.Loader;
+import com.skype.research.util.primitives.Update;
+import com.skype.research.util.projection.ProjectorEditor;
+
+import java.lang.reflect.Array;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Container partitioned by value into shards, each a container of its own guarded by its own lock,
+ * so that updates of different shards proceed in parallel. Shard boundaries ("pivots") are values
+ * of the comparator order: shard s holds the elements in (pivots[s - 1]; pivots[s]].
+ * Pivots are elements of the shards below them: a reordering update of a pivot moves the boundary first.
+ *
+ * Selection sizes of all shards are kept in a Fenwick tree per filter, so that a global index
+ * is resolved to a shard in O(log M), and then within the shard in O(log N). Global queries are
+ * version-validated, as in {@link ConcurrentAdaptableSkipList}: they are retried if an update
+ * has overlapped them, and eventually lock all shards. Iterators fetch consistent pages of
+ * {@link #PAGE_SIZE} elements, each resuming past the last element returned, by value.
+ *
+ * A shard growing beyond the maximum shard size is split in two at its median; {@link #rebalance(int)}
+ * repartitions all elements evenly. Both lock the container as a whole, as do reordering updates,
+ * which may move an element to another shard. Neither is observable:
+ * {@link ElementObserver}s are notified of global positions, one update at a time.
+ * Observers reading the container from their callbacks must not be combined with concurrent updates.
+ *
+ * Shards are created by a factory, which must produce empty containers sharing filters and order,
+ * e.g. an {@link AdaptableFactory}. Weighted indexing and aggregation walk the shards in order,
+ * summing up shard weights and combining shard summaries, in O(M log N).
+ */
+public class ShardedAdaptable<T> implements FlexibleAdaptable<T>, PagingIterator.Source<T> {
+	public static final int PAGE_SIZE = 64;
+
+	/**
+	 * A shard: a container, its lock, and its current place in the layout.
+	 */
+	final class Shard implements ElementObserver<T> {
+		final FlexibleAdaptable<T> adaptable;
+		final Lock lock = new ReentrantLock();
+		int index; // set under the exclusive lock
+		boolean silent = true; // while moving elements
+
+		Shard(FlexibleAdaptable<T> adaptable) {
+			this.adaptable = adaptable;
+			adaptable.setAutoAdd(autoAdd);
+			adaptable.setLoader(loader);
+			adaptable.addElementObserver(this);
+		}
+
+		@Override
+		public void onElementUpdated(T element, int[] position, int[] changeEstimate, int deltaSign, int[] deltaCount) {
+			if (!silent) {
+				onShardUpdated(this, element, position, changeEstimate, deltaSign, deltaCount);
+			}
+		}
+	}
+
+	/**
+	 * Shards, pivots and Fenwick trees of shard selection sizes. Replaced as a whole, never resized.
+	 */
+	final class Layout {
+		final Shard[] shards;
+		final Object[] pivots;
+		final AtomicIntegerArray trees; // one Fenwick tree of shard sizes per filter
+
+		Layout(List<Shard> shards, List<T> pivots) {
+			@SuppressWarnings("unchecked") // Shard is inner to a generic class
+			final Shard[] array = (Shard[]) Array.newInstance(Shard.class, shards.size());
+			this.shards = shards.toArray(array);
+			this.pivots = pivots.toArray();
+			final int shardCount = this.shards.length;
+			final int[] trees = new int[filterCount * (shardCount + 1)];
+			for (int filterIndex = 0; filterIndex < filterCount; ++filterIndex) {
+				final int base = filterIndex * (shardCount + 1);
+				for (int shard = 0; shard < shardCount; ++shard) {
+					trees[base + shard + 1] = this.shards[shard].adaptable.size(filterIndex);
+				}
+				for (int node = 1; node <= shardCount; ++node) {
+					final int parent = node + (node & -node);
+					if (parent <= shardCount) {
+						trees[base + parent] += trees[base + node];
+					}
+				}
+			}
+			this.trees = new AtomicIntegerArray(trees);
+			for (int shard = 0; shard < shardCount; ++shard) {
+				this.shards[shard].index = shard;
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		final T pivot(int position) {
+			return (T) pivots[position];
+		}
+
+		/**
+		 * @return the shard that holds or would hold the value: the number of pivots less than the value.
+		 */
+		Shard shardOf(T value) {
+			int low = 0, high = pivots.length;
+			while (low < high) {
+				final int middle = (low + high) >>> 1;
+				if (comparator.compare(pivot(middle), value) < 0) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			return shards[low];
+		}
+
+		void add(int shard, int deltaSign, int[] deltaCount) {
+			final int base = shards.length + 1;
+			for (int filterIndex = 0; filterIndex < filterCount; ++filterIndex) {
+				final int delta = deltaSign * deltaCount[filterIndex];
+				if (delta != 0) {
+					for (int node = shard + 1; node < base; node += node & -node) {
+						trees.addAndGet(filterIndex * base + node, delta);
+					}
+				}
+			}
+		}
+
+		/**
+		 * @return number of selection elements in the shards before the given one.
+		 */
+		int prefix(int filterIndex, int shard) {
+			final int base = filterIndex * (shards.length + 1);
+			int count = 0;
+			for (int node = shard; node > 0; node -= node & -node) {
+				count += trees.get(base + node);
+			}
+			return count;
+		}
+
+		int size(int filterIndex) {
+			return prefix(filterIndex, shards.length);
+		}
+
+		/**
+		 * @return the shard holding a selection element: the last one with fewer elements before it.
+		 */
+		int locate(int filterIndex, int elementIndex) {
+			final int base = filterIndex * (shards.length + 1);
+			int shard = 0;
+			for (int step = Integer.highestOneBit(shards.length); step > 0; step >>= 1) {
+				final int node = shard + step;
+				if (node <= shards.length) {
+					final int count = trees.get(base + node);
+					if (count <= elementIndex) {
+						shard = node;
+						elementIndex -= count;
+					}
+				}
+			}
+			return Math.min(shard, shards.length - 1);
+		}
+	}
+
+	/**
+	 * A read of several related values, to be validated against concurrent updates.
+	 */
+	abstract class Query<R> {
+		abstract R run(Layout layout);
+	}
+
+	/**
+	 * An update of the shard holding a value.
+	 */
+	abstract class Write<R> {
+		abstract R run(FlexibleAdaptable<T> shard);
+	}
+
+	// configuration
+	final Factory<? extends FlexibleAdaptable<T>> factory;
+	final int maxShardSize;
+	final int filterCount;
+	final int universeFilter;
+
+	// mutable state
+	volatile Comparator<? super T> comparator, pendingComparator;
+	volatile Layout layout;
+	volatile boolean autoAdd;
+	volatile Loader<T> loader;
+
+	// concurrency control
+	final AtomicLong started = new AtomicLong(); // updates begun
+	final AtomicLong completed = new AtomicLong(); // updates done
+	final Lock shared; // held by shard updates and queries
+	final Lock exclusive; // held by layout changes
+	final Lock notifyLock = new ReentrantLock();
+
+	// observation
+	final List<ElementObserver<? super T>> observers = new CopyOnWriteArrayList<ElementObserver<? super T>>();
+
+	/**
+	 * @param factory factory of empty shards sharing filters and order.
+	 * @param pivots initial shard boundaries, in ascending order, possibly none.
+	 * @param maxShardSize number of elements beyond which a shard is split.
+	 */
+	public ShardedAdaptable(Factory<? extends FlexibleAdaptable<T>> factory, List<? extends T> pivots, int maxShardSize) {
+		if (maxShardSize < 2) {
+			throw new IllegalArgumentException("Maximum shard size must be at least 2, not " + maxShardSize);
+		}
+		this.factory = factory;
+		this.maxShardSize = maxShardSize;
+		final List<Shard> shards = new ArrayList<Shard>();
+		shards.add(new Shard(factory.create()));
+		final FlexibleAdaptable<T> first = shards.get(0).adaptable;
+		filterCount = first.getFilterCount();
+		universeFilter = first.getUniverseFilterIndex();
+		comparator = pendingComparator = first.getComparator();
+		for (int pivot = 0; pivot < pivots.size(); ++pivot) {
+			if (pivot > 0 && comparator.compare(pivots.get(pivot - 1), pivots.get(pivot)) >= 0) {
+				throw new IllegalArgumentException("Pivots out of order: " + pivots.get(pivot - 1) + ", " + pivots.get(pivot));
+			}
+			shards.add(new Shard(factory.create()));
+		}
+		layout = new Layout(shards, new ArrayList<T>(pivots));
+		for (Shard shard : shards) {
+			shard.silent = false;
+		}
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		shared = lock.readLock();
+		exclusive = lock.writeLock();
+	}
+
+	/**
+	 * @return current number of shards.
+	 */
+	public int getShardCount() {
+		return layout.shards.length;
+	}
+
+	/**
+	 * Count a shard update, then notify the observers of it, translated to global positions.
+	 * Called under the shard lock.
+	 */
+	void onShardUpdated(Shard shard, T element, int[] position, int[] changeEstimate, int deltaSign, int[] deltaCount) {
+		final Layout layout = this.layout;
+		if (observers.isEmpty()) {
+			layout.add(shard.index, deltaSign, deltaCount);
+			return;
+		}
+		notifyLock.lock();
+		try {
+			layout.add(shard.index, deltaSign, deltaCount);
+			final int[] global = new int[filterCount];
+			for (int filterIndex = 0; filterIndex < filterCount; ++filterIndex) {
+				global[filterIndex] = position[filterIndex] + layout.prefix(filterIndex, shard.index);
+			}
+			for (ElementObserver<? super T> observer : observers) {
+				observer.onElementUpdated(element, global, changeEstimate, deltaSign, deltaCount);
+			}
+		} finally {
+			notifyLock.unlock();
+		}
+	}
+
+	/**
+	 * Run a query while no update is in flight, and validate it was not overlapped by one.
+	 * Shards are read under their locks; the layout counts are atomic.
+	 */
+	<R> R read(Query<R> query) {
+		shared.lock();
+		try {
+			for (int attempt = 0; attempt < ConcurrentAdaptableSkipList.OPTIMISTIC_ATTEMPTS; ++attempt) {
+				final long version = completed.get();
+				if (started.get() == version) {
+					final R result = query.run(layout);
+					if (started.get() == version) {
+						return result;
+					}
+				}
+			}
+			final Layout layout = this.layout;
+			lockAll(layout);
+			try {
+				return query.run(layout);
+			} finally {
+				unlockAll(layout);
+			}
+		} finally {
+			shared.unlock();
+		}
+	}
+
+	/**
+	 * Update the shard holding a value under its lock, then split it if it has grown too large.
+	 */
+	<R> R write(T value, Write<R> write) {
+		final Shard shard;
+		final boolean oversized;
+		final R result;
+		shared.lock();
+		try {
+			shard = layout.shardOf(value);
+			shard.lock.lock();
+			try {
+				started.incrementAndGet();
+				try {
+					result = write.run(shard.adaptable);
+				} finally {
+					completed.incrementAndGet();
+				}
+				oversized = shard.adaptable.size() > maxShardSize;
+			} finally {
+				shard.lock.unlock();
+			}
+		} finally {
+			shared.unlock();
+		}
+		if (oversized) {
+			split(shard);
+		}
+		return result;
+	}
+
+	private static <T> void lockAll(ShardedAdaptable<T>.Layout layout) {
+		for (ShardedAdaptable<T>.Shard shard : layout.shards) {
+			shard.lock.lock();
+		}
+	}
+
+	private static <T> void unlockAll(ShardedAdaptable<T>.Layout layout) {
+		for (ShardedAdaptable<T>.Shard shard : layout.shards) {
+			shard.lock.unlock();
+		}
+	}
+
+	private <R> R get(Shard shard, Query<R> query, Layout layout) {
+		shard.lock.lock();
+		try {
+			return query.run(layout);
+		} finally {
+			shard.lock.unlock();
+		}
+	}
+
+	// layout changes
+
+	/**
+	 * Split a shard in two at its median, elements equal to the median staying in the lower half.
+	 */
+	void split(Shard shard) {
+		exclusive.lock();
+		try {
+			final Layout layout = this.layout;
+			if (shard.index >= layout.shards.length || layout.shards[shard.index] != shard
+					|| shard.adaptable.size() <= maxShardSize) {
+				return; // split already
+			}
+			final List<T> elements = new ArrayList<T>(shard.adaptable.size());
+			for (Map.Entry<T, int[]> entry : shard.adaptable) {
+				elements.add(entry.getKey());
+			}
+			final List<T> pivots = new ArrayList<T>();
+			final List<Shard> halves = partition(elements, (elements.size() + 1) / 2, pivots);
+			if (halves.size() > 1) {
+				replace(layout, shard.index, shard.index + 1, halves, pivots);
+			}
+		} finally {
+			exclusive.unlock();
+		}
+	}
+
+	/**
+	 * Repartition all elements into shards of equal size.
+	 * @param shardCount number of shards to create, at most.
+	 */
+	public void rebalance(int shardCount) {
+		if (shardCount <= 0) {
+			throw new IllegalArgumentException("Non-positive shard count " + shardCount);
+		}
+		exclusive.lock();
+		try {
+			final Layout layout = this.layout;
+			final List<T> elements = new ArrayList<T>();
+			for (Shard shard : layout.shards) {
+				for (Map.Entry<T, int[]> entry : shard.adaptable) {
+					elements.add(entry.getKey());
+				}
+			}
+			final List<T> pivots = new ArrayList<T>();
+			final List<Shard> shards = partition(elements, (elements.size() + shardCount - 1) / shardCount, pivots);
+			replace(layout, 0, layout.shards.length, shards, pivots);
+		} finally {
+			exclusive.unlock();
+		}
+	}
+
+	/**
+	 * Replace the upper pivot of a shard, once its element has been removed, with the shard's
+	 * new greatest element, or drop the shard if empty. Called under the exclusive lock.
+	 * @return the new layout.
+	 */
+	private Layout unpin(Layout layout, Shard shard) {
+		final Shard next = layout.shards[shard.index + 1];
+		final List<T> pivots = new ArrayList<T>();
+		final List<Shard> shards = new ArrayList<Shard>();
+		if (shard.adaptable.size() > 0) {
+			pivots.add(shard.adaptable.get(universeFilter, shard.adaptable.size() - 1));
+			shards.add(shard);
+		}
+		shards.add(next);
+		replace(layout, shard.index, shard.index + 2, shards, pivots);
+		return this.layout;
+	}
+
+	/**
+	 * Fill new shards with consecutive runs of sorted elements, never splitting a run of equal elements.
+	 * @param pivots receives the boundaries between the new shards.
+	 */
+	private List<Shard> partition(List<T> elements, int shardSize, List<T> pivots) {
+		final List<Shard> shards = new ArrayList<Shard>();
+		int start = 0;
+		do {
+			int end = Math.min(start + Math.max(shardSize, 1), elements.size());
+			while (end < elements.size() && comparator.compare(elements.get(end - 1), elements.get(end)) == 0) {
+				end++;
+			}
+			final Shard shard = new Shard(factory.create());
+			for (T element : elements.subList(start, end)) {
+				shard.adaptable.add(element);
+			}
+			shards.add(shard);
+			if (end < elements.size()) {
+				pivots.add(elements.get(end - 1));
+			}
+			start = end;
+		} while (start < elements.size());
+		return shards;
+	}
+
+	/**
+	 * Replace a range of shards with new ones holding the same elements. Called under the exclusive lock.
+	 */
+	private void replace(Layout layout, int fromShard, int toShard, List<Shard> replacement, List<T> innerPivots) {
+		final List<Shard> shards = new ArrayList<Shard>();
+		final List<T> pivots = new ArrayList<T>();
+		for (int shard = 0; shard < fromShard; ++shard) {
+			shards.add(layout.shards[shard]);
+			pivots.add(layout.pivot(shard));
+		}
+		shards.addAll(replacement);
+		pivots.addAll(innerPivots);
+		for (int shard = toShard; shard < layout.shards.length; ++shard) {
+			pivots.add(layout.pivot(shard - 1));
+			shards.add(layout.shards[shard]);
+		}
+		started.incrementAndGet();
+		try {
+			this.layout = new Layout(shards, pivots);
+		} finally {
+			completed.incrementAndGet();
+		}
+		for (Shard shard : replacement) {
+			shard.silent = false;
+		}
+	}
+
+	// queries
+
+	@Override
+	public int getFilterCount() {
+		return filterCount;
+	}
+
+	@Override
+	public int getUniverseFilterIndex() {
+		return universeFilter;
+	}
+
+	@Override
+	public int size() {
+		return size(universeFilter);
+	}
+
+	@Override
+	public int size(final int filterIndex) {
+		return read(new Query<Integer>() {
+			@Override
+			Integer run(Layout layout) {
+				return layout.size(filterIndex);
+			}
+		});
+	}
+
+	@Override
+	public T get(int elementIndex) {
+		return get(universeFilter, elementIndex);
+	}
+
+	@Override
+	public T get(final int filterIndex, final int elementIndex) {
+		return read(new Query<T>() {
+			@Override
+			T run(Layout layout) {
+				if (elementIndex < 0 || elementIndex >= layout.size(filterIndex)) {
+					return null;
+				}
+				final int shard = layout.locate(filterIndex, elementIndex);
+				final int offset = elementIndex - layout.prefix(filterIndex, shard);
+				return get(layout.shards[shard], new Query<T>() {
+					@Override
+					T run(Layout layout) {
+						return layout.shards[shard].adaptable.get(filterIndex, offset);
+					}
+				}, layout);
+			}
+		});
+	}
+
+	@Override
+	public int indexOf(T item) {
+		return indexOf(universeFilter, item);
+	}
+
+	@Override
+	public int indexOf(final int filterIndex, final T item) {
+		return read(new Query<Integer>() {
+			@Override
+			Integer run(final Layout layout) {
+				final Shard shard = layout.shardOf(item);
+				final int offset = get(shard, new Query<Integer>() {
+					@Override
+					Integer run(Layout layout) {
+						return shard.adaptable.indexOf(filterIndex, item);
+					}
+				}, layout);
+				return offset < 0 ? -1 : layout.prefix(filterIndex, shard.index) + offset;
+			}
+		});
+	}
+
+	@Override
+	public int rank(final int filterIndex, final T value, final boolean ceiling) {
+		return read(new Query<Integer>() {
+			@Override
+			Integer run(Layout layout) {
+				final Shard shard = layout.shardOf(value);
+				return layout.prefix(filterIndex, shard.index) + get(shard, new Query<Integer>() {
+					@Override
+					Integer run(Layout layout) {
+						return shard.adaptable.rank(filterIndex, value, ceiling);
+					}
+				}, layout);
+			}
+		});
+	}
+
+	@Override
+	public int countBetween(final int filterIndex, final T lowest, final T highest) {
+		return read(new Query<Integer>() {
+			@Override
+			Integer run(Layout layout) {
+				// rank(highest, floor) + 1 elements up to highest, rank(lowest, ceiling) before lowest
+				return Math.max(rank(filterIndex, highest, false) + 1 - rank(filterIndex, lowest, true), 0);
+			}
+		});
+	}
+
+	@Override
+	public int convertIndex(int sourceElementIndex, int sourceFilterIndex, int targetFilterIndex) {
+		return convertIndex(sourceElementIndex, sourceFilterIndex, targetFilterIndex, false);
+	}
+
+	@Override
+	public int convertIndex(final int sourceElementIndex, final int sourceFilterIndex, final int targetFilterIndex,
+	                        final boolean ceiling) {
+		if (sourceFilterIndex == targetFilterIndex) {
+			return sourceElementIndex; // no validation
+		} else if (sourceElementIndex < 0) {
+			return -1;
+		}
+		return read(new Query<Integer>() {
+			@Override
+			Integer run(Layout layout) {
+				if (sourceElementIndex >= layout.size(sourceFilterIndex)) {
+					return layout.size(targetFilterIndex);
+				}
+				final int shard = layout.locate(sourceFilterIndex, sourceElementIndex);
+				final int offset = sourceElementIndex - layout.prefix(sourceFilterIndex, shard);
+				return layout.prefix(targetFilterIndex, shard) + get(layout.shards[shard], new Query<Integer>() {
+					@Override
+					Integer run(Layout layout) {
+						return layout.shards[shard].adaptable.convertIndex(offset, sourceFilterIndex, targetFilterIndex, ceiling);
+					}
+				}, layout);
+			}
+		});
+	}
+
+	@Override
+	public List<T> page(final int filterIndex, final int elementIndex, final int count) {
+		return read(new Query<List<T>>() {
+			@Override
+			List<T> run(Layout layout) {
+				return pageAt(layout, filterIndex, elementIndex, count);
+			}
+		});
+	}
+
+	@Override
+	public List<T> page(final int filterIndex, final T from, final int skip, final int count) {
+		return read(new Query<List<T>>() {
+			@Override
+			List<T> run(Layout layout) {
+				// validated as a whole: the element located is still there when the page is read
+				return pageAt(layout, filterIndex, rank(filterIndex, from, true) + skip, count);
+			}
+		});
+	}
+
+	private List<T> pageAt(Layout layout, int filterIndex, int elementIndex, int count) {
+		final List<T> page = new ArrayList<T>();
+		if (elementIndex >= layout.size(filterIndex)) {
+			return page;
+		}
+		int shard = layout.locate(filterIndex, elementIndex);
+		int offset = elementIndex - layout.prefix(filterIndex, shard);
+		for (; page.size() < count && shard < layout.shards.length; ++shard, offset = 0) {
+			final FlexibleAdaptable<T> adaptable = layout.shards[shard].adaptable;
+			layout.shards[shard].lock.lock();
+			try {
+				final Iterator<T> iterator = adaptable.iterator(filterIndex, offset);
+				while (page.size() < count && iterator.hasNext()) {
+					page.add(iterator.next());
+				}
+			} finally {
+				layout.shards[shard].lock.unlock();
+			}
+		}
+		return page;
+	}
+
+	@Override
+	public T getByOffset(final int filterIndex, final int weightOffset) {
+		return read(new Query<T>() {
+			@Override
+			T run(Layout layout) {
+				return getByOffset(layout, filterIndex, weightOffset);
+			}
+		});
+	}
+
+	private T getByOffset(Layout layout, final int filterIndex, int weightOffset) {
+		if (weightOffset < 0) {
+			return null;
+		}
+		for (final Shard shard : layout.shards) {
+			final int weight = weightOf(layout, filterIndex, shard);
+			if (weightOffset < weight) {
+				final int offset = weightOffset;
+				return get(shard, new Query<T>() {
+					@Override
+					T run(Layout layout) {
+						return shard.adaptable.getByOffset(filterIndex, offset);
+					}
+				}, layout);
+			}
+			weightOffset -= weight;
+		}
+		return null;
+	}
+
+	@Override
+	public int offsetOf(final int filterIndex, final T item) {
+		return read(new Query<Integer>() {
+			@Override
+			Integer run(Layout layout) {
+				final Shard shard = layout.shardOf(item);
+				final int offset = get(shard, new Query<Integer>() {
+					@Override
+					Integer run(Layout layout) {
+						return shard.adaptable.offsetOf(filterIndex, item);
+					}
+				}, layout);
+				if (offset < 0) {
+					return -1;
+				}
+				int before = 0;
+				for (int preceding = 0; preceding < shard.index; ++preceding) {
+					before += weightOf(layout, filterIndex, layout.shards[preceding]);
+				}
+				return before + offset;
+			}
+		});
+	}
+
+	/**
+	 * Sums up the weights of all shards, as weights are not tracked by the layout.
+	 */
+	@Override
+	public int totalWeight(final int filterIndex) {
+		return read(new Query<Integer>() {
+			@Override
+			Integer run(Layout layout) {
+				return totalWeight(layout, filterIndex);
+			}
+		});
+	}
+
+	private int totalWeight(Layout layout, int filterIndex) {
+		int weight = 0;
+		for (Shard shard : layout.shards) {
+			weight += weightOf(layout, filterIndex, shard);
+		}
+		return weight;
+	}
+
+	private int weightOf(Layout layout, final int filterIndex, final Shard shard) {
+		return get(shard, new Query<Integer>() {
+			@Override
+			Integer run(Layout layout) {
+				return shard.adaptable.totalWeight(filterIndex);
+			}
+		}, layout);
+	}
+
+	/**
+	 * Combines the summaries of the shard sub-ranges, in shard order.
+	 */
+	@Override
+	public <A> A aggregate(final Aggregator<? super T, A> aggregator, final int filterIndex,
+	                       final int fromIndex, final int toIndex) {
+		return read(new Query<A>() {
+			@Override
+			A run(Layout layout) {
+				final int from = Math.max(fromIndex, 0);
+				final int to = Math.min(toIndex, layout.size(filterIndex));
+				if (from >= to) {
+					// still checks the aggregator
+					return aggregate(layout, layout.shards[0], aggregator, filterIndex, 0, 0);
+				}
+				A result = null;
+				for (int shard = layout.locate(filterIndex, from); shard < layout.shards.length; ++shard) {
+					final int prefix = layout.prefix(filterIndex, shard);
+					if (prefix >= to) {
+						break;
+					}
+					final A summary = aggregate(layout, layout.shards[shard], aggregator, filterIndex,
+							from - prefix, to - prefix);
+					result = result == null ? summary : aggregator.combine(result, summary);
+				}
+				return result;
+			}
+		});
+	}
+
+	private <A> A aggregate(Layout layout, final Shard shard, final Aggregator<? super T, A> aggregator,
+	                        final int filterIndex, final int fromIndex, final int toIndex) {
+		return get(shard, new Query<A>() {
+			@Override
+			A run(Layout layout) {
+				// clipped to the shard
+				return shard.adaptable.aggregate(aggregator, filterIndex, fromIndex, toIndex);
+			}
+		}, layout);
+	}
+
+	@Override
+	public List<T> sample(final int filterIndex, final int count, final Random random) {
+		if (count < 0) {
+			throw new IllegalArgumentException("Negative sample size " + count);
+		}
+		return read(new Query<List<T>>() {
+			@Override
+			List<T> run(Layout layout) {
+				final int[] drawn = Sampling.drawIndices(layout.size(filterIndex), count, random);
+				final List<T> sample = new ArrayList<T>(drawn.length);
+				for (int drawnIndex : drawn) {
+					sample.add(get(filterIndex, drawnIndex));
+				}
+				return sample;
+			}
+		});
+	}
+
+	@Override
+	public List<T> sampleWeighted(final int filterIndex, final int count, final Random random) {
+		if (count < 0) {
+			throw new IllegalArgumentException("Negative sample size " + count);
+		}
+		return read(new Query<List<T>>() {
+			@Override
+			List<T> run(Layout layout) {
+				final int totalWeight = totalWeight(layout, filterIndex);
+				if (totalWeight == 0) {
+					return new ArrayList<T>(0);
+				}
+				final int[] offsets = new int[count];
+				for (int i = 0; i < count; ++i) {
+					offsets[i] = random.nextInt(totalWeight);
+				}
+				Arrays.sort(offsets);
+				final List<T> sample = new ArrayList<T>(count);
+				for (int offset : offsets) {
+					sample.add(getByOffset(layout, filterIndex, offset));
+				}
+				return sample;
+			}
+		});
+	}
+
+	@Override
+	public Comparator<? super T> getComparator() {
+		return comparator;
+	}
+
+	/**
+	 * @return entries copied with all shards locked, i.e. a consistent listing of the contents.
+	 */
+	@Override
+	public Iterator<Map.Entry<T, int[]>> iterator() {
+		shared.lock();
+		try {
+			final Layout layout = this.layout;
+			lockAll(layout);
+			try {
+				final List<Map.Entry<T, int[]>> entries = new ArrayList<Map.Entry<T, int[]>>();
+				for (Shard shard : layout.shards) {
+					for (Map.Entry<T, int[]> entry : shard.adaptable) {
+						entries.add(new AbstractMap.SimpleImmutableEntry<T, int[]>(entry.getKey(), entry.getValue().clone()));
+					}
+				}
+				return entries.iterator();
+			} finally {
+				unlockAll(layout);
+			}
+		} finally {
+			shared.unlock();
+		}
+	}
+
+	@Override
+	public Iterator<T> iterator(int filterIndex) {
+		return iterator(filterIndex, 0);
+	}
+
+	@Override
+	public Iterator<T> iterator(int filterIndex, int elementIndex) {
+		if (elementIndex < 0) {
+			throw new IndexOutOfBoundsException("Negative start index " + elementIndex);
+		}
+		return new PagingIterator<T>(this, filterIndex, elementIndex, Integer.MAX_VALUE, PAGE_SIZE);
+	}
+
+	@Override
+	public SplittableIterator<T> splittableIterator(int filterIndex) {
+		return new PagingIterator<T>(this, filterIndex, 0, size(filterIndex), PAGE_SIZE);
+	}
+
+	/**
+	 * @return a live view, not suitable for iteration under concurrent updates; iterate a {@link #freeze()} instead.
+	 */
+	@Override
+	public NavigableSet<T> asNavigableSet(int filterIndex) {
+		return new NavigableSelection<T>(this, filterIndex);
+	}
+
+	@Override
+	public FrozenAdaptable<T> freeze() {
+		return new FrozenAdaptable<T>(this); // iterates a consistent copy
+	}
+
+	// updates
+
+	@Override
+	public boolean add(final T element) {
+		return write(element, new Write<Boolean>() {
+			@Override
+			Boolean run(FlexibleAdaptable<T> shard) {
+				return shard.add(element);
+			}
+		});
+	}
+
+	@Override
+	public boolean remove(final T element) {
+		return write(element, new Write<Boolean>() {
+			@Override
+			Boolean run(FlexibleAdaptable<T> shard) {
+				return shard.remove(element);
+			}
+		});
+	}
+
+	/**
+	 * Locks all shards: the element at an index is only well-defined while no other update proceeds.
+	 */
+	@Override
+	public boolean remove(int filterIndex, int elementIndex) {
+		return removeIndexed(filterIndex, elementIndex) != null;
+	}
+
+	private T removeIndexed(int filterIndex, int elementIndex) {
+		shared.lock();
+		try {
+			final Layout layout = this.layout;
+			lockAll(layout);
+			try {
+				if (elementIndex < 0 || elementIndex >= layout.size(filterIndex)) {
+					return null;
+				}
+				final int shard = layout.locate(filterIndex, elementIndex);
+				final FlexibleAdaptable<T> adaptable = layout.shards[shard].adaptable;
+				final int offset = elementIndex - layout.prefix(filterIndex, shard);
+				final T element = adaptable.get(filterIndex, offset);
+				started.incrementAndGet();
+				try {
+					adaptable.remove(filterIndex, offset);
+				} finally {
+					completed.incrementAndGet();
+				}
+				return element;
+			} finally {
+				unlockAll(layout);
+			}
+		} finally {
+			shared.unlock();
+		}
+	}
+
+	/**
+	 * Locks one shard at a time: removes the first selection element of the first non-empty shard.
+	 */
+	@Override
+	public T pollFirst(int filterIndex) {
+		shared.lock();
+		try {
+			for (Shard shard : layout.shards) {
+				shard.lock.lock();
+				try {
+					if (shard.adaptable.size(filterIndex) > 0) {
+						started.incrementAndGet();
+						try {
+							return shard.adaptable.pollFirst(filterIndex);
+						} finally {
+							completed.incrementAndGet();
+						}
+					}
+				} finally {
+					shard.lock.unlock();
+				}
+			}
+			return null;
+		} finally {
+			shared.unlock();
+		}
+	}
+
+	@Override
+	public T removeFirst() {
+		final T first = pollFirst(universeFilter);
+		if (first == null) {
+			throw new NoSuchElementException();
+		}
+		return first;
+	}
+
+	/**
+	 * Applies the pending comparator, if any, merging all shards into one.
+	 */
+	@Override
+	public void clear() {
+		exclusive.lock();
+		try {
+			final Layout layout = this.layout;
+			for (Shard shard : layout.shards) {
+				started.incrementAndGet();
+				try {
+					shard.adaptable.setComparator(pendingComparator);
+					shard.adaptable.clear();
+				} finally {
+					completed.incrementAndGet();
+				}
+			}
+			if (comparator != pendingComparator) {
+				comparator = pendingComparator;
+				final List<Shard> first = new ArrayList<Shard>();
+				first.add(layout.shards[0]);
+				started.incrementAndGet();
+				try {
+					this.layout = new Layout(first, new ArrayList<T>());
+				} finally {
+					completed.incrementAndGet();
+				}
+			}
+		} finally {
+			exclusive.unlock();
+		}
+	}
+
+	@Override
+	public void setAll(Adaptable<T> source) {
+		exclusive.lock();
+		try {
+			doAddAll(source, true);
+		} finally {
+			exclusive.unlock();
+		}
+	}
+
+	@Override
+	public void addAll(Adaptable<T> source) {
+		doAddAll(source, false);
+	}
+
+	private void doAddAll(Adaptable<T> source, boolean dropExisting) {
+		if (source.getFilterCount() != getFilterCount()) {
+			throw new IllegalArgumentException("Incompatible source!");
+		}
+		Iterator<Map.Entry<T, int[]>> iterator = source.iterator();
+		if (dropExisting) {
+			// clear, preserving iterator.
+			clear();
+		}
+		while (iterator.hasNext()) {
+			add(iterator.next().getKey());
+		}
+	}
+
+	@Override
+	public boolean updateInPlace(final T oldValue, final Update<? super T> modification) {
+		return write(oldValue, new Write<Boolean>() {
+			@Override
+			Boolean run(FlexibleAdaptable<T> shard) {
+				return shard.updateInPlace(oldValue, modification);
+			}
+		});
+	}
+
+	@Override
+	public boolean updateFilters(final T oldValue, final Update<? super T> modification) {
+		return write(oldValue, new Write<Boolean>() {
+			@Override
+			Boolean run(FlexibleAdaptable<T> shard) {
+				return shard.updateFilters(oldValue, modification);
+			}
+		});
+	}
+
+	/**
+	 * Exclusive, as the element may move to another shard: it is routed by its modified value,
+	 * and moved while both shards are locked. Observers see it removed, then added.
+	 */
+	@Override
+	public boolean updateReorder(T oldValue, Update<? super T> modification) {
+		final Shard target;
+		final boolean modified;
+		exclusive.lock();
+		try {
+			Layout layout = this.layout;
+			final Shard source = layout.shardOf(oldValue);
+			source.lock.lock();
+			started.incrementAndGet();
+			try {
+				final int elementIndex = source.adaptable.indexOf(universeFilter, oldValue);
+				final T element;
+				final boolean detached;
+				if (elementIndex >= 0) {
+					element = source.adaptable.get(universeFilter, elementIndex);
+					detached = source.index < layout.pivots.length && layout.pivots[source.index] == element;
+					if (detached) {
+						// the shard boundary must not change along with its element
+						source.adaptable.remove(element);
+						layout = unpin(layout, source);
+						modified = modification.apply(element);
+					} else {
+						modified = source.adaptable.updateReorder(oldValue, modification);
+					}
+				} else {
+					detached = true;
+					// added once modified, as a shard would do, but to the shard of the modified value
+					element = autoAdd ? loader == null ? oldValue : loader.load(oldValue) : null;
+					if (element == null) {
+						return false;
+					}
+					modification.apply(element);
+					modified = true;
+				}
+				target = layout.shardOf(element);
+				if (target != source) {
+					target.lock.lock();
+				}
+				try {
+					if (detached) {
+						target.adaptable.add(element);
+					} else if (target != source) {
+						source.adaptable.remove(element);
+						target.adaptable.add(element);
+					}
+				} finally {
+					if (target != source) {
+						target.lock.unlock();
+					}
+				}
+			} finally {
+				completed.incrementAndGet();
+				source.lock.unlock();
+			}
+		} finally {
+			exclusive.unlock();
+		}
+		if (target.adaptable.size() > maxShardSize) {
+			split(target);
+		}
+		return modified;
+	}
+
+	@Override
+	public void setAutoAdd(boolean autoAdd) {
+		exclusive.lock();
+		try {
+			this.autoAdd = autoAdd;
+			for (Shard shard : layout.shards) {
+				shard.adaptable.setAutoAdd(autoAdd);
+			}
+		} finally {
+			exclusive.unlock();
+		}
+	}
+
+	@Override
+	public void setLoader(Loader<T> loader) {
+		exclusive.lock();
+		try {
+			this.loader = loader;
+			for (Shard shard : layout.shards) {
+				shard.adaptable.setLoader(loader);
+			}
+		} finally {
+			exclusive.unlock();
+		}
+	}
+
+	@Override
+	public BitSet refreshFilters(BitSet dirtyMask) {
+		exclusive.lock();
+		try {
+			final BitSet refreshed = new BitSet();
+			for (Shard shard : layout.shards) {
+				started.incrementAndGet();
+				try {
+					refreshed.or(shard.adaptable.refreshFilters(dirtyMask));
+				} finally {
+					completed.incrementAndGet();
+				}
+			}
+			return refreshed;
+		} finally {
+			exclusive.unlock();
+		}
+	}
+
+	/**
+	 * @return the filter editor of the first shard, which shards created by an {@link AdaptableFactory} share.
+	 */
+	@Override
+	public ProjectorEditor<T> getFilterEditor() {
+		return layout.shards[0].adaptable.getFilterEditor();
+	}
+
+	/**
+	 * Takes effect on {@link #clear()}.
+	 */
+	@Override
+	public void setComparator(Comparator<? super T> pendingComparator) {
+		this.pendingComparator = pendingComparator;
+	}
+
+	@Override
+	public void addElementObserver(ElementObserver<? super T> observer) {
+		observers.add(observer);
+	}
+
+	@Override
+	public void removeElementObserver(ElementObserver<? super T> observer) {
+		observers.remove(observer);
+	}
+
+	@Override
+	public void hintBulkOpBegin() {
+		shared.lock();
+		try {
+			for (Shard shard : layout.shards) {
+				shard.lock.lock();
+				try {
+					shard.adaptable.hintBulkOpBegin();
+				} finally {
+					shard.lock.unlock();
+				}
+			}
+		} finally {
+			shared.unlock();
+		}
+		BulkHints.begin(observers);
+	}
+
+	@Override
+	public void hintBulkOpCompleted() {
+		shared.lock();
+		try {
+			for (Shard shard : layout.shards) {
+				shard.lock.lock();
+				try {
+					shard.adaptable.hintBulkOpCompleted();
+				} finally {
+					shard.lock.unlock();
+				}
+			}
+		} finally {
+			shared.unlock();
+		}
+		BulkHints.completed(observers);
+	}
+
+	@SuppressWarnings("UnusedDeclaration")
+	void validateIntegrity() {
+		exclusive.lock();
+		try {
+			final Layout layout = this.layout;
+			for (int pivot = 1; pivot < layout.pivots.length; ++pivot) {
+				if (comparator.compare(layout.pivot(pivot - 1), layout.pivot(pivot)) >= 0) {
+					throw new IllegalStateException("Pivot " + pivot + " out of order");
+				}
+			}
+			for (int shard = 0; shard < layout.shards.length; ++shard) {
+				final FlexibleAdaptable<T> adaptable = layout.shards[shard].adaptable;
+				if (layout.shards[shard].index != shard) {
+					throw new IllegalStateException("Shard " + shard + " misplaced at " + layout.shards[shard].index);
+				}
+				for (int filterIndex = 0; filterIndex < filterCount; ++filterIndex) {
+					if (layout.prefix(filterIndex, shard + 1) - layout.prefix(filterIndex, shard) != adaptable.size(filterIndex)) {
+						throw new IllegalStateException("Shard " + shard + " count mismatch in filter " + filterIndex);
+					}
+				}
+				final int size = adaptable.size(universeFilter);
+				if (size > 0 && shard > 0 && comparator.compare(layout.pivot(shard - 1), adaptable.get(universeFilter, 0)) >= 0) {
+					throw new IllegalStateException("Shard " + shard + " starts before its lower bound");
+				}
+				if (size > 0 && shard < layout.pivots.length
+						&& comparator.compare(adaptable.get(universeFilter, size - 1), layout.pivot(shard)) > 0) {
+					throw new IllegalStateException("Shard " + shard + " ends past its upper bound");
+				}
+				if (adaptable instanceof AdaptableSkipList) {
+					((AdaptableSkipList<T>) adaptable).validateIntegrity();
+				}
+			}
+		} finally {
+			exclusive.unlock();
+		}
+	}
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ *
+ * Licensed under the MIT license.
+ */
+
+package com.skype.research.util.adaptable;
+
+import java.util.Iterator;
+
+/**
+ * Sized iterator over a contiguous range of a selection that may be split in two,
+ * so that the halves can be traversed independently (e.g. by different threads).
+ * The returned order is the container order; the remaining size is always exact.
+ */
+public interface SplittableIterator<T> extends Iterator<T> {
+	/**
+	 * @return exact number of elements yet to be returned by this iterator.
+	 */
+	int remaining();
+	
+	/**
+	 * Split off the first half of the remaining elements, if there are enough of them.
+	 * On success, the returned iterator covers the elements this one would have returned first,
+	 * and this iterator is left with the rest of them.
+	 * @return iterator over the prefix of the remaining range, or null if the range is too small to split.
+	 */
+	SplittableIterator<T> trySplit();
+}
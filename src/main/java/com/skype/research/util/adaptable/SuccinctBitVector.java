@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ *
+ * Licensed under the MIT license.
+ */
+
+package com.skype.research.util.adaptable;
+
+/**
+ * Immutable bit vector indexed for constant time rank and near-constant time select.
+ * Ones are counted before every block of {@link #BLOCK_WORDS} words (about 6% on top of the bits),
+ * and the block holding every {@link #SELECT_SAMPLE}-th one is recorded (at most as much again).
+ * Rank inspects a handful of adjacent words; select binary-searches the blocks between two samples,
+ * which are few unless the ones are sparse, then inspects a handful of words.
+ */
+final class SuccinctBitVector {
+	static final int BLOCK_WORDS = 8; // 512 bits per rank sample
+	static final int SELECT_SAMPLE = 512; // ones per select sample
+
+	final long[] words;
+	final int[] blockRanks; // ones before each block
+	final int[] selectSamples; // block holding each SELECT_SAMPLE-th one
+	final int ones;
+
+	/**
+	 * @param words bits, little-endian, as returned by {@link java.util.BitSet#toLongArray()}. Not copied.
+	 */
+	SuccinctBitVector(long[] words) {
+		this.words = words;
+		final int blockCount = (words.length + BLOCK_WORDS - 1) / BLOCK_WORDS;
+		blockRanks = new int[blockCount];
+		int ones = 0;
+		for (int block = 0; block < blockCount; ++block) {
+			blockRanks[block] = ones;
+			final int end = Math.min(words.length, (block + 1) * BLOCK_WORDS);
+			for (int word = block * BLOCK_WORDS; word < end; ++word) {
+				ones += Long.bitCount(words[word]);
+			}
+		}
+		this.ones = ones;
+		selectSamples = new int[(ones + SELECT_SAMPLE - 1) / SELECT_SAMPLE];
+		for (int block = 0, sample = 0; sample < selectSamples.length; ++sample) {
+			while (block + 1 < blockCount && blockRanks[block + 1] <= sample * SELECT_SAMPLE) {
+				block++;
+			}
+			selectSamples[sample] = block;
+		}
+	}
+
+	int ones() {
+		return ones;
+	}
+
+	boolean get(int index) {
+		final int word = index >>> 6;
+		return word < words.length && (words[word] & 1L << index) != 0;
+	}
+
+	/**
+	 * @return number of ones before the index.
+	 */
+	int rank(int index) {
+		final int word = index >>> 6;
+		if (word >= words.length) {
+			return ones;
+		}
+		int rank = blockRanks[word / BLOCK_WORDS];
+		for (int w = word - word % BLOCK_WORDS; w < word; ++w) {
+			rank += Long.bitCount(words[w]);
+		}
+		return rank + Long.bitCount(words[word] & (1L << index) - 1);
+	}
+
+	/**
+	 * @param rank number of ones preceding the one to find, less than {@link #ones()}.
+	 * @return index of the one.
+	 */
+	int select(int rank) {
+		// the last block with at most rank ones before it, between the samples around the rank
+		final int sample = rank / SELECT_SAMPLE;
+		int block = selectSamples[sample];
+		int high = sample + 1 < selectSamples.length ? selectSamples[sample + 1] : blockRanks.length - 1;
+		while (block < high) {
+			final int middle = (block + high + 1) >>> 1;
+			if (blockRanks[middle] <= rank) {
+				block = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		int remaining = rank - blockRanks[block];
+		int word = block * BLOCK_WORDS;
+		int count;
+		while ((count = Long.bitCount(words[word])) <= remaining) {
+			remaining -= count;
+			word++;
+		}
+		long bits = words[word];
+		for (; remaining > 0; --remaining) {
+			bits &= bits - 1; // drop the lowest one
+		}
+		return (word << 6) + Long.numberOfTrailingZeros(bits);
+	}
+
+	/**
+	 * @return index of the first one at or after the index, or -1 if there is none.
+	 */
+	int nextSetBit(int index) {
+		int word = index >>> 6;
+		if (word >= words.length) {
+			return -1;
+		}
+		long bits = words[word] & -1L << index;
+		while (bits == 0) {
+			if (++word == words.length) {
+				return -1;
+			}
+			bits = words[word];
+		}
+		return (word << 6) + Long.numberOfTrailingZeros(bits);
+	}
+}
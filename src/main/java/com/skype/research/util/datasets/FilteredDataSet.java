@@ -8,6 +8,7 @@ package com.skype.research.util.datasets;
 
 import com.skype.research.util.adaptable.Adaptable;
 import com.skype.research.util.adaptable.RangedAdaptable;
+import com.skype.research.util.adaptable.SplittableIterator;
 import com.skype.research.util.model.DataSet;
 
 import java.util.AbstractList;
@@ -100,6 +101,13 @@ public class FilteredDataSet<T> extends AbstractList<T> implements DataSet<T> {
         return adaptable.iterator(getFilterIndex());
     }
 
+    /**
+     * @return sized iterator over the data set that can be split for parallel traversal.
+     */
+    public SplittableIterator<T> splittableIterator() {
+        return adaptable.splittableIterator(getFilterIndex());
+    }
+
     @Override
     public int size() {
         return getCount();
@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ *
+ * Licensed under the MIT license.
+ */
+
+package com.skype.research.util.datasets;
+
+import com.skype.research.util.adaptable.Adaptable;
+import com.skype.research.util.adaptable.ElementObserver;
+import com.skype.research.util.adaptable.RangedAdaptable;
+import com.skype.research.util.model.DataSet;
+import com.skype.research.util.model.RecyclerAdapter;
+import com.skype.research.util.model.Subscriber;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A data set merging the same selection of several Adaptables, without copying their contents.
+ * The sources must share the comparator and the filter layout; equal elements of different sources
+ * are ordered by source. Ancillaries are the same selections of the same sources.
+ *
+ * Elements are located by an order-statistic search: a pivot element is taken from the widest
+ * remaining index range of any source, its merged position is the sum of its ranks in all sources,
+ * and the ranges of all sources are narrowed to the side of the pivot the requested index is on.
+ * Each pivot costs O(K log N) for K sources of N elements.
+ *
+ * Subscribers are notified of source updates. {@link RecyclerAdapter}s receive item updates
+ * translated to merged positions; the others, and all of them on range updates (e.g. a source
+ * cleared), whose elements are scattered over the merged data set, receive whole-set updates.
+ * A reordered element may change its merged position even if it keeps its source position, and
+ * its old merged position depends on its old value: the sources must broadcast old values
+ * (see {@link com.skype.research.util.adaptable.AdaptableFactory#setBroadcastOldValue(boolean)}),
+ * so that every reorder is reported as a removal before the update and an insertion after it.
+ * Single-thread.
+ */
+public class MergedDataSet<T> extends AbstractList<T> implements DataSet<T> {
+    private final List<? extends Adaptable<T>> sources;
+    private final int filterIndex;
+    private final Comparator<? super T> comparator;
+    private int[] ancillaries;
+
+    private final Map<Subscriber<T>, Boolean> subscribers = new IdentityHashMap<Subscriber<T>, Boolean>();
+    private final List<ElementObserver<T>> observers = new ArrayList<ElementObserver<T>>();
+
+    /**
+     * @param sources containers to merge, sharing the comparator and the filter layout,
+     *                broadcasting old values if subscribed to and reordered.
+     * @param filterIndex index of the selection to merge.
+     */
+    public MergedDataSet(List<? extends Adaptable<T>> sources, int filterIndex) {
+        if (sources.isEmpty()) {
+            throw new IllegalArgumentException("No sources to merge");
+        }
+        for (Adaptable<T> source : sources) {
+            if (source.getFilterCount() != sources.get(0).getFilterCount()) {
+                throw new IllegalArgumentException("Incompatible source!");
+            }
+        }
+        this.sources = sources;
+        this.filterIndex = filterIndex;
+        this.comparator = sources.get(0).getComparator();
+    }
+
+    public void setAncillaries(int... ancillaries) {
+        this.ancillaries = ancillaries;
+    }
+
+    @Override
+    public int getCount() {
+        return getCount(filterIndex);
+    }
+
+    private int getCount(int filterIndex) {
+        int count = 0;
+        for (Adaptable<T> source : sources) {
+            count += source.size(filterIndex);
+        }
+        return count;
+    }
+
+    @Override
+    public T getItem(int index) {
+        final int[] location = locate(filterIndex, index);
+        if (location == null) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of " + getCount());
+        }
+        return sources.get(location[0]).get(filterIndex, location[1]);
+    }
+
+    @Override
+    public DataSet<T> getAncillaryDataSet(int ancillaryIndex) {
+        return ancillaries == null ? null : new MergedDataSet<T>(sources, ancillaries[ancillaryIndex]);
+    }
+
+    @Override
+    public int indexOf(Object element) {
+        @SuppressWarnings("unchecked")
+        final T item = (T) element;
+        for (int source = 0; source < sources.size(); ++source) {
+            final int localIndex = sources.get(source).indexOf(filterIndex, item);
+            if (localIndex >= 0) {
+                return toMerged(filterIndex, source, localIndex, item);
+            }
+        }
+        return -1; // not found
+    }
+
+    @Override
+    public int toAncillary(int ancillaryIndex, int elementIndex, boolean ceiling) {
+        return convertIndex(elementIndex, filterIndex, ancillaries[ancillaryIndex], ceiling);
+    }
+
+    @Override
+    public int fromAncillary(int ancillaryIndex, int elementIndex, boolean ceiling) {
+        return convertIndex(elementIndex, ancillaries[ancillaryIndex], filterIndex, ceiling);
+    }
+
+    /**
+     * Merged counterpart of {@link Adaptable#convertIndex(int, int, int, boolean)}:
+     * convert within the source holding the element, then add the preceding elements of the other sources.
+     */
+    private int convertIndex(int elementIndex, int sourceFilterIndex, int targetFilterIndex, boolean ceiling) {
+        if (sourceFilterIndex == targetFilterIndex) {
+            return elementIndex;
+        }
+        final int[] location = locate(sourceFilterIndex, elementIndex);
+        if (location == null) {
+            return elementIndex < 0 ? -1 : getCount(targetFilterIndex);
+        }
+        final Adaptable<T> source = sources.get(location[0]);
+        final T element = source.get(sourceFilterIndex, location[1]);
+        final int localIndex = source.convertIndex(location[1], sourceFilterIndex, targetFilterIndex, ceiling);
+        return toMerged(targetFilterIndex, location[0], localIndex, element);
+    }
+
+    @Override
+    public int getChildCount(T item) {
+        for (Adaptable<T> source : sources) {
+            if (source instanceof RangedAdaptable && source.indexOf(filterIndex, item) >= 0) {
+                return ((RangedAdaptable<T>) source).getChildCount(item, filterIndex);
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public List<T> asList() {
+        return this;
+    }
+
+    @Override
+    public T get(int location) {
+        return getItem(location);
+    }
+
+    @Override
+    public int size() {
+        return getCount();
+    }
+
+    /**
+     * Iterates by merging the source selections, O(K) per element.
+     */
+    @Override
+    public Iterator<T> iterator() {
+        final List<Iterator<T>> iterators = new ArrayList<Iterator<T>>(sources.size());
+        final List<T> heads = new ArrayList<T>(sources.size());
+        for (Adaptable<T> source : sources) {
+            final Iterator<T> iterator = source.iterator(filterIndex);
+            iterators.add(iterator);
+            heads.add(iterator.hasNext() ? iterator.next() : null);
+        }
+        return new Iterator<T>() {
+            @Override
+            public boolean hasNext() {
+                for (T head : heads) {
+                    if (head != null) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public T next() {
+                int next = -1;
+                for (int source = 0; source < heads.size(); ++source) {
+                    final T head = heads.get(source);
+                    if (head != null && (next < 0 || comparator.compare(head, heads.get(next)) < 0)) {
+                        next = source;
+                    }
+                }
+                if (next < 0) {
+                    throw new NoSuchElementException();
+                }
+                final Iterator<T> iterator = iterators.get(next);
+                return heads.set(next, iterator.hasNext() ? iterator.next() : null);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException(); // read-only
+            }
+        };
+    }
+
+    /**
+     * Find the element at a merged index.
+     * @return the source index and the index within the source selection, or null if out of range.
+     */
+    private int[] locate(int filterIndex, int index) {
+        if (index < 0 || index >= getCount(filterIndex)) {
+            return null;
+        }
+        final int sourceCount = sources.size();
+        // the element is preceded by low[s]..high[s] elements of source s, and is one of source s if low[s] < high[s]
+        final int[] low = new int[sourceCount];
+        final int[] high = new int[sourceCount];
+        for (int source = 0; source < sourceCount; ++source) {
+            high[source] = sources.get(source).size(filterIndex);
+        }
+        final int[] preceding = new int[sourceCount];
+        while (true) {
+            int widest = 0;
+            for (int source = 1; source < sourceCount; ++source) {
+                if (high[source] - low[source] > high[widest] - low[widest]) {
+                    widest = source;
+                }
+            }
+            final int localIndex = (low[widest] + high[widest]) >>> 1;
+            final T pivot = sources.get(widest).get(filterIndex, localIndex);
+            final int position = countPreceding(filterIndex, widest, localIndex, pivot, preceding);
+            if (position == index) {
+                return new int[] {widest, localIndex};
+            } else if (position < index) {
+                preceding[widest]++; // the pivot precedes
+                for (int source = 0; source < sourceCount; ++source) {
+                    low[source] = Math.max(low[source], preceding[source]);
+                }
+            } else {
+                for (int source = 0; source < sourceCount; ++source) {
+                    high[source] = Math.min(high[source], preceding[source]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return merged index of a source element, given its index in the source selection.
+     */
+    private int toMerged(int filterIndex, int source, int localIndex, T element) {
+        return countPreceding(filterIndex, source, localIndex, element, new int[sources.size()]);
+    }
+
+    /**
+     * Count the elements of all sources merged before a source element.
+     * @param preceding receives the number of elements preceding it in each source.
+     * @return the total.
+     */
+    private int countPreceding(int filterIndex, int source, int localIndex, T element, int[] preceding) {
+        int total = 0;
+        for (int other = 0; other < sources.size(); ++other) {
+            if (other == source) {
+                preceding[other] = localIndex;
+            } else if (other < source) {
+                // equal elements of earlier sources precede
+                preceding[other] = sources.get(other).rank(filterIndex, element, false) + 1;
+            } else {
+                preceding[other] = sources.get(other).rank(filterIndex, element, true);
+            }
+            total += preceding[other];
+        }
+        return total;
+    }
+
+    // subscription
+
+    /**
+     * Start notifying a subscriber of source updates. Observes the sources while there are subscribers.
+     */
+    public void subscribe(Subscriber<T> subscriber) {
+        subscriber.setDataSet(this);
+        if (subscribers.isEmpty()) {
+            for (int source = 0; source < sources.size(); ++source) {
+                final ElementObserver<T> observer = new SourceObserver(source);
+                observers.add(observer);
+                sources.get(source).addElementObserver(observer);
+            }
+        }
+        subscribers.put(subscriber, subscriber instanceof RecyclerAdapter);
+    }
+
+    public void unsubscribe(Subscriber<T> subscriber) {
+        if (subscribers.remove(subscriber) != null && subscribers.isEmpty()) {
+            for (int source = 0; source < sources.size(); ++source) {
+                sources.get(source).removeElementObserver(observers.get(source));
+            }
+            observers.clear();
+        }
+    }
+
+    private class SourceObserver implements ElementObserver<T> {
+        final int source;
+
+        SourceObserver(int source) {
+            this.source = source;
+        }
+
+        @Override
+        public void onElementUpdated(T element, int[] position, int[] changeEstimate, int deltaSign, int[] deltaCount) {
+            if (changeEstimate[filterIndex] == 0) {
+                return; // not in the selection before or after
+            }
+            final int realDelta = deltaSign * deltaCount[filterIndex];
+            // the other sources are unchanged: count what precedes the element there
+            final int mergedPosition = element == null ? -1 : toMerged(filterIndex, source, position[filterIndex], element);
+            for (Map.Entry<Subscriber<T>, Boolean> subscription : subscribers.entrySet()) {
+                if (element == null || !subscription.getValue()) {
+                    subscription.getKey().notifyDataSetChanged();
+                } else {
+                    final RecyclerAdapter adapter = (RecyclerAdapter) subscription.getKey();
+                    if (realDelta > 0) {
+                        adapter.notifyItemInserted(mergedPosition);
+                    } else if (realDelta < 0) {
+                        adapter.notifyItemRemoved(mergedPosition);
+                    } else {
+                        adapter.notifyItemChanged(mergedPosition);
+                    }
+                }
+            }
+        }
+    }
+}
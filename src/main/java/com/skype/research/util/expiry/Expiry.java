@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ *
+ * Licensed under the MIT license.
+ */
+
+package com.skype.research.util.expiry;
+
+import com.skype.research.util.adaptable.Adaptable;
+import com.skype.research.util.adaptable.BulkUpdatable;
+import com.skype.research.util.primitives.Clock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-element expiry for an {@link Adaptable}, independent of the sort order.
+ * 
+ * Deadlines are kept in a {@link TimerWheel}. Each call to {@link #expire()} removes
+ * the elements expired by the current time of the supplied {@link Clock} in a single batch,
+ * wrapped in {@link BulkUpdatable#hintBulkOpBegin()}/{@link BulkUpdatable#hintBulkOpCompleted()}
+ * of the bulk updatable supplied (typically, the Adaptation observing the container),
+ * so that subscribers receive one wrap-up per batch.
+ * 
+ * Expiry may be driven explicitly, or by a {@link ScheduledExecutorService}. In the latter case,
+ * the executor must run on the thread that owns the container, as containers are not thread-safe.
+ */
+public class Expiry<T> implements Runnable {
+	final Adaptable<T> adaptable;
+	final BulkUpdatable bulkUpdatable;
+	final Clock clock;
+	final TimerWheel<T> wheel;
+	final List<T> expired = new ArrayList<T>();
+
+	public Expiry(Adaptable<T> adaptable, Clock clock, long tickDuration) {
+		this(adaptable, adaptable, clock, tickDuration);
+	}
+
+	/**
+	 * @param adaptable container to remove expired elements from.
+	 * @param bulkUpdatable recipient of bulk operation hints, e.g. the Adaptation of the container.
+	 * @param clock time source; deadlines are expressed in its units.
+	 * @param tickDuration expiry resolution, in clock units.
+	 */
+	public Expiry(Adaptable<T> adaptable, BulkUpdatable bulkUpdatable, Clock clock, long tickDuration) {
+		this.adaptable = adaptable;
+		this.bulkUpdatable = bulkUpdatable;
+		this.clock = clock;
+		this.wheel = new TimerWheel<T>(tickDuration, clock.now());
+	}
+
+	/**
+	 * Set or move the deadline of an element. The element is not added to the container.
+	 * @param element element to expire.
+	 * @param deadline time at which the element is to be removed, in clock units.
+	 */
+	public void expireAt(T element, long deadline) {
+		wheel.schedule(element, deadline);
+	}
+
+	/**
+	 * Set or move the deadline of an element relative to the current time.
+	 * @param element element to expire.
+	 * @param timeToLive time before the element is to be removed, in clock units.
+	 */
+	public void expireAfter(T element, long timeToLive) {
+		expireAt(element, clock.now() + timeToLive);
+	}
+
+	/**
+	 * Keep an element indefinitely. Elements removed from the container by other means
+	 * should be cancelled, as the expiry would otherwise keep them referenced until their deadline.
+	 * @param element element not to expire.
+	 * @return true if the element was to expire.
+	 */
+	public boolean cancel(T element) {
+		return wheel.cancel(element);
+	}
+
+	/**
+	 * @return the number of elements pending expiry.
+	 */
+	public int size() {
+		return wheel.size();
+	}
+
+	/**
+	 * Remove all elements expired by now in a single bulk operation.
+	 * @return the number of elements actually removed from the container.
+	 */
+	public int expire() {
+		if (wheel.advance(clock.now(), expired) == 0) {
+			return 0;
+		}
+		int removed = 0;
+		bulkUpdatable.hintBulkOpBegin();
+		try {
+			for (T element : expired) {
+				if (adaptable.remove(element)) {
+					removed++;
+				}
+			}
+		} finally {
+			expired.clear();
+			bulkUpdatable.hintBulkOpCompleted();
+		}
+		return removed;
+	}
+
+	@Override
+	public void run() {
+		expire();
+	}
+
+	/**
+	 * Drive expiry periodically.
+	 * @param executor executor running on the thread that owns the container.
+	 * @param period period of expiry checks.
+	 * @param unit time unit of the period.
+	 * @return handle to cancel periodic expiry.
+	 */
+	public ScheduledFuture<?> scheduleOn(ScheduledExecutorService executor, long period, TimeUnit unit) {
+		return executor.scheduleWithFixedDelay(this, period, period, unit);
+	}
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ *
+ * Licensed under the MIT license.
+ */
+
+package com.skype.research.util.expiry;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hierarchical timer wheel: schedules elements by deadline and collects the expired ones.
+ * 
+ * Time is divided into ticks. Each level of the wheel has 2^slotBits slots, every slot of
+ * level <i>l</i> spanning 2^(slotBits * l) ticks. Scheduling and cancellation take O(1);
+ * advancing takes O(1) per tick elapsed plus O(1) per element cascaded to a lower level.
+ * Deadlines are rounded up to the tick, so an element is never reported before its deadline,
+ * but may be reported up to a tick late.
+ * 
+ * Elements are matched by {@link Object#equals(Object)}. An element is scheduled once at most;
+ * scheduling it again moves its deadline. Not thread-safe.
+ */
+public class TimerWheel<E> {
+	static final class Entry<E> {
+		final E element;
+		long deadlineTick;
+		Entry<E> prev = this, next = this;
+
+		Entry(E element) {
+			this.element = element;
+		}
+
+		final void unlink() {
+			prev.next = next;
+			next.prev = prev;
+			prev = next = this;
+		}
+
+		final void linkBefore(Entry<E> sentinel) {
+			prev = sentinel.prev;
+			next = sentinel;
+			prev.next = this;
+			sentinel.prev = this;
+		}
+	}
+
+	final long tickDuration;
+	final int slotBits;
+	final int slotMask;
+	final int levelCount;
+	final Entry<E>[][] slots; // sentinels of circular lists
+	final Entry<E> overdue = new Entry<E>(null);
+	final Map<E, Entry<E>> entries = new HashMap<E, Entry<E>>();
+	long cursor; // next tick to process
+
+	public TimerWheel(long tickDuration, long startTime) {
+		this(tickDuration, 6, 4, startTime);
+	}
+
+	/**
+	 * @param tickDuration duration of the smallest slot, in clock units.
+	 * @param slotBits binary logarithm of the slot count per level.
+	 * @param levelCount number of levels.
+	 * @param startTime current time, in clock units.
+	 */
+	public TimerWheel(long tickDuration, int slotBits, int levelCount, long startTime) {
+		if (tickDuration <= 0) {
+			throw new IllegalArgumentException("Non-positive tick duration " + tickDuration);
+		}
+		if (slotBits <= 0 || levelCount <= 0 || slotBits * levelCount >= Long.SIZE - 1) {
+			throw new IllegalArgumentException("Unsupported wheel geometry " + slotBits + "x" + levelCount);
+		}
+		this.tickDuration = tickDuration;
+		this.slotBits = slotBits;
+		this.slotMask = (1 << slotBits) - 1;
+		this.levelCount = levelCount;
+		@SuppressWarnings("unchecked")
+		final Entry<E>[][] slots = (Entry<E>[][]) new Entry<?>[levelCount][1 << slotBits];
+		this.slots = slots;
+		for (Entry<E>[] level : slots) {
+			for (int slot = 0; slot < level.length; ++slot) {
+				level[slot] = new Entry<E>(null);
+			}
+		}
+		cursor = tickOf(startTime) + 1;
+	}
+
+	final long tickOf(long time) {
+		return time / tickDuration - (time % tickDuration < 0 ? 1 : 0); // floor
+	}
+
+	/**
+	 * @return the number of elements scheduled.
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Schedule an element, or move its deadline if it is already scheduled.
+	 * An element whose deadline tick has passed is reported on the next {@link #advance(long, Collection)}.
+	 * @param element element to schedule.
+	 * @param deadline time at which the element expires, in clock units.
+	 */
+	public void schedule(E element, long deadline) {
+		Entry<E> entry = entries.get(element);
+		if (entry == null) {
+			entry = new Entry<E>(element);
+			entries.put(element, entry);
+		} else {
+			entry.unlink();
+		}
+		entry.deadlineTick = -tickOf(-deadline); // ceiling
+		place(entry);
+	}
+
+	/**
+	 * @param element element to unschedule.
+	 * @return true if the element was scheduled.
+	 */
+	public boolean cancel(E element) {
+		final Entry<E> entry = entries.remove(element);
+		if (entry != null) {
+			entry.unlink();
+			return true;
+		}
+		return false;
+	}
+
+	private void place(Entry<E> entry) {
+		final long delta = entry.deadlineTick - cursor;
+		if (delta < 0) {
+			// its tick has been processed already
+			entry.linkBefore(overdue);
+			return;
+		}
+		int level = 0;
+		while (level < levelCount - 1 && delta >> (slotBits * (level + 1)) != 0) {
+			++level;
+		}
+		// beyond the wheel span, park in the farthest slot and re-place on cascade
+		final long tick = delta >> (slotBits * levelCount) == 0
+				? entry.deadlineTick
+				: cursor + (1L << (slotBits * levelCount)) - 1;
+		entry.linkBefore(slots[level][(int) (tick >> (slotBits * level)) & slotMask]);
+	}
+
+	/**
+	 * Process the ticks elapsed up to a given time and collect the elements expired by then.
+	 * @param now current time, in clock units.
+	 * @param expired collection to receive the expired elements, in no particular order.
+	 * @return the number of elements expired.
+	 */
+	public int advance(long now, Collection<? super E> expired) {
+		final long targetTick = tickOf(now);
+		int count = drain(overdue, expired);
+		while (cursor <= targetTick) {
+			if (entries.isEmpty()) {
+				cursor = targetTick + 1;
+				break;
+			}
+			final int index = (int) cursor & slotMask;
+			if (index == 0) {
+				cascade(1);
+			}
+			count += drain(slots[0][index], expired);
+			++cursor;
+		}
+		return count;
+	}
+
+	private int drain(Entry<E> sentinel, Collection<? super E> expired) {
+		int count = 0;
+		while (sentinel.next != sentinel) {
+			final Entry<E> entry = sentinel.next;
+			entry.unlink();
+			entries.remove(entry.element);
+			expired.add(entry.element);
+			count++;
+		}
+		return count;
+	}
+
+	private void cascade(int level) {
+		if (level < levelCount) {
+			final int index = (int) (cursor >> (slotBits * level)) & slotMask;
+			if (index == 0) {
+				cascade(level + 1);
+			}
+			// detach the slot contents first, as entries may be placed back into the same slot
+			final Entry<E> sentinel = slots[level][index];
+			Entry<E> entry = sentinel.next;
+			sentinel.prev = sentinel.next = sentinel;
+			while (entry != sentinel) {
+				final Entry<E> next = entry.next;
+				entry.prev = entry.next = entry;
+				place(entry);
+				entry = next;
+			}
+		}
+	}
+}
@@ -10,6 +10,7 @@ import com.skype.research.util.primitives.Factory;
 import com.skype.research.util.primitives.Update;
 
 import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Abstract pool implementation.
@@ -24,6 +25,8 @@ public abstract class AbstractPool<T> implements Pool<T> {
     
     final Factory<? extends T> factory;
     final Update<? super T> laundry;
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
 
     public AbstractPool(Factory<? extends T> factory) {
         this(factory, NO_UPDATE);
@@ -37,7 +40,26 @@ public abstract class AbstractPool<T> implements Pool<T> {
     @Override
     public final T allocate() {
         T candidate = tryGet();
-        return candidate != null ? candidate : factory.create();
+        if (candidate != null) {
+            hits.incrementAndGet();
+            return candidate;
+        }
+        misses.incrementAndGet();
+        return factory.create();
+    }
+
+    /**
+     * @return number of allocations served with a recycled instance.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of allocations that had to create a new instance.
+     */
+    public long getMissCount() {
+        return misses.get();
     }
 
     protected abstract T tryGet();
@@ -26,6 +26,13 @@ public class MultipleEntryPool<T> extends AbstractPool<T> {
         this.queue = queue;
     }
 
+    /**
+     * @return number of instances ready for reuse.
+     */
+    public int size() {
+        return queue.size();
+    }
+
     @Override
     protected T tryGet() {
         return queue.poll();
@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ *
+ * Licensed under the MIT license.
+ */
+
+package com.skype.research.util.primitives;
+
+/**
+ * Folds a sequence of elements into a summary value, e.g. a sum, a minimum or a maximum of a field.
+ * Summaries form a monoid: {@link #combine(Object, Object)} must be associative,
+ * and {@link #identity()} must be neutral to it. It need not be commutative.
+ */
+public interface Aggregator<T, A> {
+	/**
+	 * @return summary of an empty sequence.
+	 */
+	public A identity();
+
+	/**
+	 * @param element element to summarize. Its summary must not change while it is stored.
+	 * @return summary of a single element.
+	 */
+	public A lift(T element);
+
+	/**
+	 * @param left summary of a sequence.
+	 * @param right summary of the sequence that follows it.
+	 * @return summary of both sequences, in order. The arguments must not be modified.
+	 */
+	public A combine(A left, A right);
+}
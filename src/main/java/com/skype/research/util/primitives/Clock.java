@@ -0,0 +1,24 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ *
+ * Licensed under the MIT license.
+ */
+
+package com.skype.research.util.primitives;
+
+/**
+ * Source of monotonic time, in units of the client's choice.
+ */
+public interface Clock {
+	/**
+	 * Wall clock time in milliseconds.
+	 */
+	public static final Clock SYSTEM = new Clock() {
+		@Override
+		public long now() {
+			return System.currentTimeMillis();
+		}
+	};
+	
+	public long now();
+}
@@ -0,0 +1,18 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ *
+ * Licensed under the MIT license.
+ */
+
+package com.skype.research.util.primitives;
+
+/**
+ * Copies elements, so that an update can modify a copy instead of a shared original.
+ */
+public interface Copier<T> {
+	/**
+	 * @param element element to copy.
+	 * @return an independent element with the same contents; immutable elements may be returned as they are.
+	 */
+	public T copy(T element);
+}
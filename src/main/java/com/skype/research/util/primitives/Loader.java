@@ -0,0 +1,18 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ *
+ * Licensed under the MIT license.
+ */
+
+package com.skype.research.util.primitives;
+
+/**
+ * Source of full element values, such as a slower backing store.
+ */
+public interface Loader<T> {
+	/**
+	 * @param key partial value that identifies the element, as a locator does.
+	 * @return the full element comparing equal to the key, or null if there is no such element.
+	 */
+	public T load(T key);
+}
@@ -0,0 +1,18 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ *
+ * Licensed under the MIT license.
+ */
+
+package com.skype.research.util.primitives;
+
+/**
+ * Estimates the cost of keeping an element, e.g. its memory footprint in bytes.
+ */
+public interface Weigher<T> {
+	/**
+	 * @param element element to evaluate. Its weight must not change while it is stored.
+	 * @return non-negative weight of the element.
+	 */
+	public int weigh(T element);
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ *
+ * Licensed under the MIT license.
+ */
+
+package com.skype.research.util.adaptable;
+
+import com.skype.research.util.adaptable.mocks.DivisionFilter;
+import com.skype.research.util.adaptable.mocks.IntValue;
+
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Benchmark write-heavy ingest by several threads into {@link ConcurrentAdaptableSkipList}
+ * and {@link ShardedAdaptable}, against {@link AdaptableSkipList} under a global lock ({@link ConcurrentAdaptable}).
+ */
+public class ConcurrentBenchmark {
+
+	static final int OPERATION_COUNT = 1 << 20;
+	static final int SHARD_SIZE = 1 << 14;
+
+	public static void main(String[] args) throws InterruptedException {
+		final PrintStream out = System.err;
+		final int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		for (int threads = 1; threads <= maxThreads; threads <<= 1) {
+			out.println("Threads: " + threads);
+			runIngestBenchmark(out, "Global lock", new ConcurrentAdaptable<IntValue>(createFactory(false).create()), threads);
+			runIngestBenchmark(out, "Concurrent", createFactory(true).create(), threads);
+			runIngestBenchmark(out, "Sharded", new ShardedAdaptable<IntValue>(createFactory(false),
+					Collections.<IntValue>emptyList(), SHARD_SIZE), threads);
+		}
+	}
+
+	/**
+	 * Every thread adds random values, removes one in four of them and reads one selection element in sixteen.
+	 */
+	protected static void runIngestBenchmark(PrintStream out, String name, final FlexibleAdaptable<IntValue> adaptable,
+	                                         int threadCount) throws InterruptedException {
+		final Thread[] threads = new Thread[threadCount];
+		final int operationCount = OPERATION_COUNT / threadCount;
+		for (int t = 0; t < threadCount; ++t) {
+			final Random random = new Random(t);
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < operationCount; ++i) {
+						final IntValue value = new IntValue(random.nextInt(1 << 20));
+						if ((i & 3) == 3) {
+							adaptable.remove(value);
+						} else {
+							adaptable.add(value);
+						}
+						if ((i & 15) == 15) {
+							adaptable.get(1, random.nextInt(adaptable.size(1) + 1));
+						}
+					}
+				}
+			};
+		}
+		long time = System.currentTimeMillis();
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long done = System.currentTimeMillis();
+		out.println(name + ": " + OPERATION_COUNT + " updates done in " + (done - time) + " ms, size " + adaptable.size());
+	}
+
+	protected static AdaptableFactory<IntValue> createFactory(boolean concurrent) {
+		AdaptableFactory<IntValue> factory = new AdaptableFactory<IntValue>();
+		factory.addFilter(new DivisionFilter(2));
+		factory.addFilter(new DivisionFilter(4));
+		factory.setConcurrent(concurrent);
+		return factory;
+	}
+}
@@ -7,8 +7,13 @@
 package com.skype.research.util.adaptable;
 
 import com.skype.research.util.adaptable.mocks.DivisibleBy;
+import com.skype.research.util.primitives.Aggregator;
+import com.skype.research.util.primitives.Clock;
+import com.skype.research.util.primitives.Copier;
 import com.skype.research.util.primitives.Filter;
+import com.skype.research.util.primitives.Loader;
 import com.skype.research.util.primitives.Update;
+import com.skype.research.util.primitives.Weigher;
 import com.skype.research.util.projection.Derivative;
 import com.skype.research.util.projection.ProjectorEditor;
 import org.junit.Assert;
@@ -17,16 +22,33 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
 
 /**
@@ -604,6 +626,96 @@ public class TestAdaptable {
 		}
 	}
 
+	@Test
+	public void testRank() throws Exception {
+		FlexibleAdaptable<Integer> adaptable = createIntegerSkipList();
+		final Random random = new Random(1024);
+		for (int i = 0; i < 1024; ++i) {
+			final int filterIndex = random.nextInt(adaptable.getFilterCount());
+			final int value = random.nextInt(1 << 17);
+			final Integer other = random.nextBoolean() ? adaptable.get(random.nextInt(adaptable.size())) : value;
+			final int lowest = Math.min(value, other);
+			final int highest = Math.max(value, other);
+			int less = 0, notGreater = 0, between = 0;
+			for (int elementIndex = 0; elementIndex < adaptable.size(filterIndex); ++elementIndex) {
+				final int element = adaptable.get(filterIndex, elementIndex);
+				if (element < value) {
+					less++;
+				}
+				if (element <= value) {
+					notGreater++;
+				}
+				if (element >= lowest && element <= highest) {
+					between++;
+				}
+			}
+			Assert.assertEquals(String.format("Ceiling of %d in %d", value, filterIndex),
+					less, adaptable.rank(filterIndex, value, true));
+			Assert.assertEquals(String.format("Floor of %d in %d", value, filterIndex),
+					notGreater - 1, adaptable.rank(filterIndex, value, false));
+			Assert.assertEquals(String.format("Count between %d and %d in %d", lowest, highest, filterIndex),
+					between, adaptable.countBetween(filterIndex, lowest, highest));
+			Assert.assertEquals("Empty range", 0, adaptable.countBetween(filterIndex, highest + 1, lowest));
+		}
+	}
+
+	@Test
+	public void testNavigableSet() throws Exception {
+		FlexibleAdaptable<Integer> adaptable = createEmptyIntegerSkipList();
+		final int filterIndex = 1; // isEven
+		final TreeSet<Integer> reference = new TreeSet<Integer>();
+		for (int i = 0; i < 2048; ++i) {
+			final int value = (i * 7919) % 10007; // distinct
+			adaptable.add(value);
+			if (isEven.accept(value)) {
+				reference.add(value);
+			}
+		}
+		final NavigableSet<Integer> selection = adaptable.asNavigableSet(filterIndex);
+		assertSameSet(reference, selection);
+		assertSameSet(reference.descendingSet(), selection.descendingSet());
+		final Random random = new Random(10007);
+		for (int i = 0; i < 256; ++i) {
+			final int probe = random.nextInt(10007);
+			Assert.assertEquals("lower", reference.lower(probe), selection.lower(probe));
+			Assert.assertEquals("floor", reference.floor(probe), selection.floor(probe));
+			Assert.assertEquals("ceiling", reference.ceiling(probe), selection.ceiling(probe));
+			Assert.assertEquals("higher", reference.higher(probe), selection.higher(probe));
+			Assert.assertEquals("contains", reference.contains(probe), selection.contains(probe));
+			final int other = probe + random.nextInt(2048);
+			final boolean fromInclusive = random.nextBoolean(), toInclusive = random.nextBoolean();
+			final NavigableSet<Integer> subSet = selection.subSet(probe, fromInclusive, other, toInclusive);
+			final NavigableSet<Integer> refSubSet = reference.subSet(probe, fromInclusive, other, toInclusive);
+			Assert.assertEquals("subSet size", refSubSet.size(), subSet.size());
+			Assert.assertEquals("headSet size", reference.headSet(probe).size(), selection.headSet(probe).size());
+			Assert.assertEquals("tailSet size", reference.tailSet(probe).size(), selection.tailSet(probe).size());
+			if (!refSubSet.isEmpty()) {
+				Assert.assertEquals("first", refSubSet.first(), subSet.first());
+				Assert.assertEquals("last", refSubSet.last(), subSet.last());
+				Assert.assertEquals("nested floor", refSubSet.floor(other + 1), subSet.floor(other + 1));
+				Assert.assertEquals("nested ceiling", refSubSet.ceiling(probe - 1), subSet.ceiling(probe - 1));
+			}
+		}
+		final NavigableSet<Integer> tail = selection.tailSet(5000, false);
+		final NavigableSet<Integer> refTail = reference.tailSet(5000, false);
+		for (int i = 0; i < 16; ++i) {
+			Assert.assertEquals("pollFirst", refTail.pollFirst(), tail.pollFirst());
+			Assert.assertEquals("pollLast", refTail.pollLast(), tail.pollLast());
+		}
+		Assert.assertEquals("removal through the view", reference.size(), adaptable.size(filterIndex));
+		assertSameSet(reference, selection);
+		Validation.validateIntegrity(adaptable);
+	}
+
+	private static void assertSameSet(NavigableSet<Integer> expected, NavigableSet<Integer> actual) {
+		Assert.assertEquals("size", expected.size(), actual.size());
+		Iterator<Integer> iterator = actual.iterator();
+		for (Integer element : expected) {
+			Assert.assertEquals("iteration order", element, iterator.next());
+		}
+		Assert.assertFalse("no extra elements", iterator.hasNext());
+	}
+
 	private void validateIndexConversion(FlexibleAdaptable<Integer> adaptable,
 	                                     int sourceFilterIndex, int targetFilterIndex, 
 	                                     Filter<? super Integer> targetFilter) {
@@ -650,6 +762,2170 @@ public class TestAdaptable {
 		}
 	}
 	
+	@Test
+	public void testSplittableIterator() throws Exception {
+		FlexibleAdaptable<Integer> adaptable = createIntegerSkipList();
+		final Random random = new Random(4096);
+		for (int filterIndex = 0; filterIndex < adaptable.getFilterCount(); ++filterIndex) {
+			final int filteredSize = adaptable.size(filterIndex);
+			final SplittableIterator<Integer> whole = adaptable.splittableIterator(filterIndex);
+			Assert.assertEquals("Initial size is exact", filteredSize, whole.remaining());
+			// split depth-first, consuming some elements before splitting, and collect chunks in order
+			final LinkedList<SplittableIterator<Integer>> pending = new LinkedList<SplittableIterator<Integer>>();
+			pending.add(whole);
+			int elementIndex = 0;
+			while (!pending.isEmpty()) {
+				final SplittableIterator<Integer> iterator = pending.removeFirst();
+				while (iterator.remaining() > 16 && random.nextInt(4) == 0) {
+					assertNextEquals(adaptable, filterIndex, elementIndex++, iterator);
+				}
+				final int remaining = iterator.remaining();
+				final SplittableIterator<Integer> prefix = remaining > 16 ? iterator.trySplit() : null;
+				if (prefix != null) {
+					Assert.assertEquals("Split sizes add up", remaining, prefix.remaining() + iterator.remaining());
+					pending.addFirst(iterator);
+					pending.addFirst(prefix);
+				} else {
+					while (iterator.hasNext()) {
+						assertNextEquals(adaptable, filterIndex, elementIndex++, iterator);
+					}
+					Assert.assertEquals("Exhausted", 0, iterator.remaining());
+					Assert.assertNull("Cannot split an empty range", iterator.trySplit());
+				}
+			}
+			Assert.assertEquals("All elements returned", filteredSize, elementIndex);
+		}
+	}
+
+	private static void assertNextEquals(Adaptable<Integer> adaptable, int filterIndex, int elementIndex, Iterator<Integer> iterator) {
+		Assert.assertTrue("Has element " + elementIndex, iterator.hasNext());
+		Assert.assertEquals("Element " + elementIndex + " in " + filterIndex,
+				adaptable.get(filterIndex, elementIndex), iterator.next());
+	}
+
+	@Test
+	public void testAppendAndPoll() throws Exception {
+		FlexibleAdaptable<Integer> adaptable = createEmptyIntegerSkipList();
+		final LinkedList<Integer> reference = new LinkedList<Integer>();
+		final Random random = new Random(2048);
+		int newest = 0;
+		for (int i = 0; i < 4096; ++i) {
+			final int action = random.nextInt(8);
+			if (action < 5) {
+				newest += random.nextInt(3); // mostly ascending, with occasional repeats
+				final boolean expected = allowDuplicates || reference.isEmpty() || reference.getLast() != newest;
+				Assert.assertEquals("Repeats only added with duplicates", expected, adaptable.add(newest));
+				if (expected) {
+					reference.addLast(newest);
+				}
+			} else if (action < 7) {
+				final Integer expected = reference.pollFirst();
+				if (expected == null) {
+					Assert.assertNull("Nothing to poll", adaptable.pollFirst(0));
+				} else {
+					Assert.assertEquals("Head removed", expected, adaptable.removeFirst());
+				}
+			} else {
+				final int filterIndex = 1 + random.nextInt(adaptable.getFilterCount() - 1);
+				final Integer expected = adaptable.size(filterIndex) == 0 ? null : adaptable.get(filterIndex, 0);
+				Assert.assertEquals("Selection head removed", expected, adaptable.pollFirst(filterIndex));
+				if (expected != null) {
+					reference.remove(expected);
+				}
+			}
+			Assert.assertEquals("Size", reference.size(), adaptable.size());
+		}
+		Validation.validateIntegrity(adaptable);
+		Assert.assertArrayEquals(reference.toArray(), toObjects(takeSelectionSnapshot(adaptable, 0)));
+		adaptable.clear();
+		Validation.validateIntegrity(adaptable);
+		adaptable.add(1);
+		Assert.assertEquals("Single element after clear", 1, adaptable.removeFirst().intValue());
+		try {
+			adaptable.removeFirst();
+			Assert.fail("Must not remove from an empty container");
+		} catch (NoSuchElementException expected) {
+			// expected
+		}
+	}
+
+	private static Object[] toObjects(int[] values) {
+		final Object[] objects = new Object[values.length];
+		for (int i = 0; i < values.length; ++i) {
+			objects[i] = values[i];
+		}
+		return objects;
+	}
+
+	@Test
+	public void testRetention() throws Exception {
+		final int window = 100;
+		AdaptableFactory<Integer> builder = createAdaptableFactory();
+		builder.addFilter(isEven);
+		builder.setRetention(new Retention<Integer>() {
+			@Override
+			public boolean isExpired(Integer element, Integer newest) {
+				return element < newest - window;
+			}
+		});
+		FlexibleAdaptable<Integer> adaptable = builder.create();
+		final int[] evictions = new int[2];
+		adaptable.addElementObserver(new ElementObserver<Integer>() {
+			@Override
+			public void onElementUpdated(Integer element, int[] position, int[] changeEstimate, int deltaSign, int[] deltaCount) {
+				if (element == null) {
+					Assert.assertEquals("Batch eviction is a removal", -1, deltaSign);
+					Assert.assertEquals("Batch eviction starts at the head", 0, position[1]);
+					evictions[0]++;
+					evictions[1] += deltaCount[0];
+				}
+			}
+		});
+		final List<Integer> reference = new ArrayList<Integer>(); // sorted, may hold duplicates
+		final Random random = new Random(100);
+		int newest = 0, added = 0;
+		for (int i = 0; i < 4096; ++i) {
+			final int value = random.nextInt(16) == 0
+					? newest - random.nextInt(2 * window) // late arrival, maybe expired already
+					: (newest += random.nextInt(4));
+			if (adaptable.add(value)) {
+				added++;
+				final int insertionPoint = Collections.binarySearch(reference, value);
+				reference.add(insertionPoint < 0 ? -insertionPoint - 1 : insertionPoint, value);
+			}
+			final int newestKept = reference.get(reference.size() - 1);
+			while (reference.get(0) < newestKept - window) {
+				reference.remove(0);
+			}
+			Assert.assertEquals("Window size", reference.size(), adaptable.size());
+		}
+		Validation.validateIntegrity(adaptable);
+		Assert.assertEquals("Head", reference.get(0), adaptable.get(0));
+		Assert.assertEquals("Evicted count", added - adaptable.size(), evictions[1]);
+		Assert.assertTrue("Evictions batched", evictions[0] <= evictions[1]);
+		// bulk appends evict once, at completion
+		final int evictionsBefore = evictions[0];
+		adaptable.hintBulkOpBegin();
+		for (int i = 1; i <= window * 4; ++i) {
+			adaptable.add(newest + i);
+		}
+		Assert.assertEquals("No eviction during bulk op", evictionsBefore, evictions[0]);
+		adaptable.hintBulkOpCompleted();
+		Assert.assertEquals("Single eviction after bulk op", evictionsBefore + 1, evictions[0]);
+		Assert.assertEquals("Window after bulk op", window + 1, adaptable.size());
+		Assert.assertEquals("Even selection after bulk op", (window + 1) / 2 + ((newest + window * 4) % 2 == 0 ? 1 : 0),
+				adaptable.size(1));
+		Validation.validateIntegrity(adaptable);
+		// a rejected bulk addition leaves no bulk op open
+		try {
+			adaptable.addAll(this.<Integer>createAdaptableFactory().create());
+			Assert.fail("Incompatible source");
+		} catch (IllegalArgumentException expected) {
+			// different filter count
+		}
+		newest += window * 8;
+		adaptable.add(newest);
+		Assert.assertEquals("Evicted after rejected bulk op", 1, adaptable.size());
+	}
+
+	@Test
+	public void testCapacity() throws Exception {
+		final Weigher<Integer> weigher = new Weigher<Integer>() {
+			@Override
+			public int weigh(Integer element) {
+				return element % 7 + 1;
+			}
+		};
+		for (int mode = 0; mode < 8; ++mode) {
+			final boolean weighed = (mode & 1) != 0;
+			final boolean evictFromTail = (mode & 2) != 0;
+			final boolean keepEven = (mode & 4) != 0;
+			final String scenario = String.format("weighed=%b tail=%b keep=%b", weighed, evictFromTail, keepEven);
+			final long capacity = weighed ? 1000 : 250;
+			AdaptableFactory<Integer> builder = createAdaptableFactory();
+			builder.addFilter(isEven);
+			builder.setCapacity(capacity);
+			builder.setWeigher(weighed ? weigher : null);
+			builder.setEvictFromTail(evictFromTail);
+			builder.setKeepFilter(keepEven ? 1 : -1);
+			FlexibleAdaptable<Integer> adaptable = builder.create();
+			final List<Integer> reference = new ArrayList<Integer>(); // sorted
+			final Random random = new Random(mode);
+			for (int i = 0; i < 2048; ++i) {
+				final int value = random.nextInt(4096);
+				final int insertionPoint = Collections.binarySearch(reference, value);
+				if (adaptable.add(value)) {
+					reference.add(insertionPoint < 0 ? -insertionPoint - 1 : insertionPoint, value);
+				}
+				long load = 0;
+				for (Integer element : reference) {
+					load += weighed ? weigher.weigh(element) : 1;
+				}
+				while (load > capacity) {
+					int victim = -1;
+					for (int j = 0; j < reference.size(); ++j) {
+						final int candidate = evictFromTail ? reference.size() - 1 - j : j;
+						if (!keepEven || !isEven.accept(reference.get(candidate))) {
+							victim = candidate;
+							break;
+						}
+					}
+					if (victim < 0) {
+						break;
+					}
+					final Integer evicted = reference.remove(victim);
+					load -= weighed ? weigher.weigh(evicted) : 1;
+				}
+				Assert.assertEquals(scenario + " size", reference.size(), adaptable.size());
+				Assert.assertEquals(scenario + " load", load, ((AdaptableSkipList<Integer>) adaptable).getLoad());
+			}
+			Validation.validateIntegrity(adaptable);
+			Assert.assertArrayEquals(scenario, reference.toArray(), toObjects(takeSelectionSnapshot(adaptable, 0)));
+		}
+	}
+
+	@Test
+	public void testLoader() throws Exception {
+		FlexibleAdaptable<Integer> adaptable = createEmptyIntegerSkipList();
+		final List<Integer> loads = new ArrayList<Integer>();
+		adaptable.setAutoAdd(true);
+		adaptable.setLoader(new Loader<Integer>() {
+			@Override
+			public Integer load(Integer key) {
+				loads.add(key);
+				return key < 100 ? new Integer(key) : null; // the store only has 0..99
+			}
+		});
+		final Update<? super Integer> noChange = Trivial.refresh();
+		Assert.assertTrue("Loaded in place", adaptable.updateInPlace(10, noChange));
+		Assert.assertTrue("Loaded with filters", adaptable.updateFilters(12, noChange));
+		Assert.assertTrue("Loaded with reorder", adaptable.updateReorder(11, noChange));
+		Assert.assertFalse("Missing from the store", adaptable.updateInPlace(100, noChange));
+		adaptable.updateFilters(10, noChange); // present, not loaded
+		Assert.assertEquals("Loads on misses only", Arrays.asList(10, 12, 11, 100), loads);
+		Assert.assertEquals("Loaded elements stored", 3, adaptable.size());
+		Assert.assertEquals("Even ones selected", 2, adaptable.size(1));
+		Validation.validateIntegrity(adaptable);
+	}
+
+	@Test
+	public void testReadThrough() throws Exception {
+		FlexibleAdaptable<Integer> adaptable = createEmptyIntegerSkipList();
+		final Map<Integer, Integer> loads = new HashMap<Integer, Integer>();
+		final List<Runnable> queued = new ArrayList<Runnable>();
+		final int[] bulkOps = new int[1];
+		final ReadThrough<Integer> readThrough = new ReadThrough<Integer>(adaptable, new BulkUpdatable() {
+			@Override
+			public void hintBulkOpBegin() {
+				bulkOps[0]++;
+			}
+
+			@Override
+			public void hintBulkOpCompleted() {
+			}
+		}, new Loader<Integer>() {
+			@Override
+			public Integer load(Integer key) {
+				final Integer count = loads.get(key);
+				loads.put(key, count == null ? 1 : count + 1);
+				return key % 5 == 0 ? null : key; // multiples of 5 are missing
+			}
+		}, new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				queued.add(command);
+			}
+		}, null);
+		final Random random = new Random(33);
+		final Set<Integer> requested = new TreeSet<Integer>();
+		for (int i = 0; i < 256; ++i) {
+			final int key = random.nextInt(64);
+			Assert.assertNull("Not loaded yet", readThrough.get(key));
+			requested.add(key);
+		}
+		Assert.assertEquals("Misses coalesced", requested.size(), queued.size());
+		Assert.assertEquals("Pending", requested.size(), readThrough.getPendingCount());
+		Assert.assertEquals("Nothing loaded before the loads run", 0, readThrough.drain());
+		for (Runnable load : queued) {
+			load.run();
+		}
+		int expected = 0;
+		for (Integer key : requested) {
+			Assert.assertEquals("Loaded once", Integer.valueOf(1), loads.get(key));
+			if (key % 5 != 0) {
+				expected++;
+			}
+		}
+		Assert.assertEquals("Inserted in a batch", expected, readThrough.drain());
+		Assert.assertEquals("Single bulk operation", 1, bulkOps[0]);
+		Assert.assertEquals("Nothing pending", 0, readThrough.getPendingCount());
+		Assert.assertEquals("Stored", expected, adaptable.size());
+		for (Integer key : requested) {
+			if (key % 5 != 0) {
+				Assert.assertEquals("Hit", key, readThrough.get(key));
+				Assert.assertEquals("Hit", key, readThrough.request(key).get());
+			}
+		}
+		Validation.validateIntegrity(adaptable);
+	}
+
+	@Test
+	public void testMutationQueue() throws Exception {
+		final FlexibleAdaptable<Integer> adaptable = createEmptyIntegerSkipList();
+		final List<Integer> inserted = new ArrayList<Integer>();
+		adaptable.addElementObserver(new ElementObserver<Integer>() {
+			@Override
+			public void onElementUpdated(Integer element, int[] position, int[] changeEstimate, int deltaSign, int[] deltaCount) {
+				inserted.add(deltaSign > 0 ? element : -element);
+			}
+		});
+		final int[] bulkOps = new int[1];
+		final int[] submissions = new int[1];
+		final MutationQueue<Integer> queue = new MutationQueue<Integer>(adaptable, new BulkUpdatable() {
+			@Override
+			public void hintBulkOpBegin() {
+				bulkOps[0]++;
+			}
+
+			@Override
+			public void hintBulkOpCompleted() {
+			}
+		}, new Runnable() {
+			@Override
+			public void run() {
+				submissions[0]++;
+			}
+		}, 16);
+		final List<Future<Boolean>> acks = new ArrayList<Future<Boolean>>();
+		for (int value : new int[] {5, 3, 9, 3}) {
+			acks.add(queue.submitAdd(value));
+		}
+		acks.add(queue.submit(new Update<Adaptable<Integer>>() {
+			@Override
+			public boolean apply(Adaptable<Integer> element) {
+				return element.remove((Integer) 3);
+			}
+		}));
+		acks.add(queue.submit(new Update<Adaptable<Integer>>() {
+			@Override
+			public boolean apply(Adaptable<Integer> element) {
+				throw new IllegalStateException("Failing mutation");
+			}
+		}));
+		acks.add(queue.submitAdd(7));
+		acks.add(queue.submitAdd(1));
+		Assert.assertEquals("Callback per submission", acks.size(), submissions[0]);
+		Assert.assertTrue(queue.hasPending());
+		Assert.assertFalse("Not applied before drained", acks.get(0).isDone());
+		Assert.assertEquals("Applied in a batch", acks.size(), queue.drain());
+		Assert.assertEquals("Single bulk operation", 1, bulkOps[0]);
+		Assert.assertFalse(queue.hasPending());
+		Assert.assertEquals("Insertion runs sorted", allowDuplicates
+				? Arrays.asList(3, 3, 5, 9, -3, 1, 7) : Arrays.asList(3, 5, 9, -3, 1, 7), inserted);
+		final Boolean[] results = {true, true, true, allowDuplicates, true, null, true, true};
+		for (int i = 0; i < acks.size(); ++i) {
+			try {
+				Assert.assertEquals("Result " + i, results[i], acks.get(i).get());
+			} catch (ExecutionException e) {
+				Assert.assertNull("Failure " + i, results[i]);
+				Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+			}
+		}
+		Assert.assertEquals("Nothing to apply", 0, queue.drain());
+		// a failing comparator fails the insertions it cannot place, and no other mutation
+		final AdaptableFactory<Integer> failingFactory = createAdaptableFactory();
+		failingFactory.setComparator(new Comparator<Integer>() {
+			@Override
+			public int compare(Integer lhs, Integer rhs) {
+				if (lhs == 13 || rhs == 13) {
+					throw new IllegalArgumentException("Unlucky");
+				}
+				return lhs.compareTo(rhs);
+			}
+		});
+		final FlexibleAdaptable<Integer> failing = failingFactory.create();
+		failing.add(2);
+		final MutationQueue<Integer> failingQueue = new MutationQueue<Integer>(failing);
+		final List<Future<Boolean>> failingAcks = new ArrayList<Future<Boolean>>();
+		for (int value : new int[] {5, 13, 1}) {
+			failingAcks.add(failingQueue.submitAdd(value));
+		}
+		Assert.assertEquals(3, failingQueue.drain());
+		Assert.assertTrue(failingAcks.get(0).get());
+		try {
+			failingAcks.get(1).get();
+			Assert.fail("Comparator failure");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof IllegalArgumentException);
+		}
+		Assert.assertTrue(failingAcks.get(2).get());
+		Assert.assertEquals(Arrays.asList(1, 2, 5), Arrays.asList(toArray(failing, 0)));
+		// producers submit concurrently, the owner drains in limited batches
+		final FlexibleAdaptable<Integer> target = createEmptyIntegerSkipList();
+		final MutationQueue<Integer> ingest = new MutationQueue<Integer>(target, target, null, 16);
+		final Thread[] producers = new Thread[3];
+		final List<List<Future<Boolean>>> produced = new ArrayList<List<Future<Boolean>>>();
+		for (int t = 0; t < producers.length; ++t) {
+			final int residue = t;
+			final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+			produced.add(futures);
+			producers[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 1000; ++i) {
+						futures.add(ingest.submitAdd(i * producers.length + residue));
+					}
+				}
+			};
+			producers[t].start();
+		}
+		int applied = 0;
+		while (applied < 3000) {
+			final int drained = ingest.drain();
+			Assert.assertTrue("Batch limit", drained <= 16);
+			applied += drained;
+		}
+		for (Thread producer : producers) {
+			producer.join();
+		}
+		for (List<Future<Boolean>> futures : produced) {
+			for (Future<Boolean> future : futures) {
+				Assert.assertTrue(future.get());
+			}
+		}
+		Assert.assertEquals(3000, target.size());
+		Validation.validateIntegrity(target);
+	}
+
+	@Test
+	public void testCountDuplicates() throws Exception {
+		AdaptableFactory<Integer> builder = createAdaptableFactory();
+		builder.addFilter(isEven);
+		builder.setCountDuplicates(true);
+		FlexibleAdaptable<Integer> adaptable = builder.create();
+		final List<Integer> reference = new ArrayList<Integer>(); // sorted, with duplicates
+		final Random random = new Random(34);
+		for (int i = 0; i < 2048; ++i) {
+			final Integer value = random.nextInt(64);
+			final int insertionPoint = Collections.binarySearch(reference, value);
+			if (random.nextInt(3) == 0) {
+				Assert.assertEquals("Removed " + value, insertionPoint >= 0, adaptable.remove(value));
+				if (insertionPoint >= 0) {
+					reference.remove(insertionPoint);
+				}
+			} else {
+				Assert.assertTrue("Added " + value, adaptable.add(value));
+				reference.add(insertionPoint < 0 ? -insertionPoint - 1 : insertionPoint, value);
+			}
+			Assert.assertEquals("Size", reference.size(), adaptable.size());
+		}
+		Validation.validateIntegrity(adaptable);
+		Validation.validateIterators(adaptable);
+		Assert.assertArrayEquals(reference.toArray(), toObjects(takeSelectionSnapshot(adaptable, 0)));
+		final List<Integer> evens = new ArrayList<Integer>();
+		for (Integer value : reference) {
+			if (isEven.accept(value)) {
+				evens.add(value);
+			}
+		}
+		Assert.assertArrayEquals(evens.toArray(), toObjects(takeSelectionSnapshot(adaptable, 1)));
+		for (int value = 0; value < 64; ++value) {
+			Assert.assertEquals("indexOf " + value, reference.indexOf(value), adaptable.indexOf(value));
+			Assert.assertEquals("rank " + value, countLess(evens, value), adaptable.rank(1, value, true));
+		}
+		for (int i = 0; i < reference.size(); ++i) {
+			final int converted = adaptable.convertIndex(i, 0, 1, true);
+			Assert.assertEquals("convertIndex " + i, countLess(evens, reference.get(i))
+					+ (isEven.accept(reference.get(i)) ? i - reference.indexOf(reference.get(i)) : 0), converted);
+		}
+		for (int start = 0; start < evens.size(); start += 17) {
+			final Iterator<Integer> iterator = adaptable.iterator(1, start);
+			for (int i = start; i < evens.size(); ++i) {
+				Assert.assertEquals("Iterator from " + start, evens.get(i), iterator.next());
+			}
+			Assert.assertFalse(iterator.hasNext());
+		}
+		final SplittableIterator<Integer> suffix = adaptable.splittableIterator(0);
+		final SplittableIterator<Integer> prefix = suffix.trySplit();
+		final List<Integer> split = new ArrayList<Integer>();
+		while (prefix.hasNext()) {
+			split.add(prefix.next());
+		}
+		while (suffix.hasNext()) {
+			split.add(suffix.next());
+		}
+		Assert.assertEquals("Split", reference, split);
+		// copies expand to an ordinary list
+		AdaptableFactory<Integer> copyBuilder = new AdaptableFactory<Integer>();
+		copyBuilder.addFilter(isEven);
+		copyBuilder.setAllowDuplicates(true);
+		FlexibleAdaptable<Integer> copy = copyBuilder.create();
+		copy.addAll(adaptable);
+		Assert.assertArrayEquals(reference.toArray(), toObjects(takeSelectionSnapshot(copy, 0)));
+		// evictions split runs
+		final AdaptableSkipList<Integer> cache = (AdaptableSkipList<Integer>) adaptable;
+		cache.setEvictFromTail(true);
+		cache.setCapacity(reference.size() - 3);
+		cache.setEvictFromTail(false);
+		cache.setCapacity(reference.size() - 8);
+		final List<Integer> retained = reference.subList(5, reference.size() - 3);
+		Validation.validateIntegrity(adaptable);
+		Assert.assertArrayEquals(retained.toArray(), toObjects(takeSelectionSnapshot(adaptable, 0)));
+		Assert.assertEquals("Distinct count", new TreeSet<Integer>(retained).size(), countNodes(cache));
+	}
+
+	@Test
+	public void testWeightedIndexing() throws Exception {
+		final Weigher<Integer> heights = new Weigher<Integer>() {
+			@Override
+			public int weigh(Integer element) {
+				return element % 7 + 1;
+			}
+		};
+		final Weigher<Integer> sparse = new Weigher<Integer>() {
+			@Override
+			public int weigh(Integer element) {
+				return element % 3 == 0 ? 0 : 5;
+			}
+		};
+		AdaptableFactory<Integer> builder = createAdaptableFactory();
+		builder.addFilter(isEven);
+		builder.setWeightedIndexing(true);
+		builder.setIndexWeigher(heights);
+		FlexibleAdaptable<Integer> adaptable = builder.create();
+		final List<Integer> reference = new ArrayList<Integer>(); // sorted
+		final Random random = new Random(35);
+		for (int i = 0; i < 1024; ++i) {
+			final int value = random.nextInt(2048);
+			final int insertionPoint = Collections.binarySearch(reference, value);
+			if (i % 4 == 3) {
+				if (adaptable.remove(value)) {
+					reference.remove(insertionPoint);
+				}
+			} else if (adaptable.add(value)) {
+				reference.add(insertionPoint < 0 ? -insertionPoint - 1 : insertionPoint, value);
+			}
+		}
+		Validation.validateIntegrity(adaptable);
+		assertOffsets(adaptable, reference, Trivial.<Integer>universeFilter(), 0, heights);
+		assertOffsets(adaptable, reference, isEven, 1, heights);
+		adaptable.refreshFilters(adaptable.getFilterEditor().setFilter(1, isPowerOf2));
+		Validation.validateIntegrity(adaptable);
+		assertOffsets(adaptable, reference, isPowerOf2, 1, heights);
+		((AdaptableSkipList<Integer>) adaptable).setIndexWeigher(sparse);
+		Validation.validateIntegrity(adaptable);
+		assertOffsets(adaptable, reference, Trivial.<Integer>universeFilter(), 0, sparse);
+		assertOffsets(adaptable, reference, isPowerOf2, 1, sparse);
+		// the load weigher does not weigh the offsets
+		((AdaptableSkipList<Integer>) adaptable).setWeigher(heights);
+		assertOffsets(adaptable, reference, isPowerOf2, 1, sparse);
+		// observers and entries only see the filter counts
+		final List<int[]> observed = new ArrayList<int[]>();
+		adaptable.addElementObserver(new ElementObserver<Integer>() {
+			@Override
+			public void onElementUpdated(Integer element, int[] position, int[] changeEstimate, int deltaSign, int[] deltaCount) {
+				observed.add(position);
+				observed.add(changeEstimate);
+				observed.add(deltaCount);
+			}
+		});
+		adaptable.add(4097);
+		adaptable.remove(4097);
+		Assert.assertEquals(6, observed.size());
+		for (int[] vector : observed) {
+			Assert.assertEquals(adaptable.getFilterCount(), vector.length);
+		}
+		for (Map.Entry<Integer, int[]> entry : adaptable) {
+			Assert.assertEquals(adaptable.getFilterCount(), entry.getValue().length);
+		}
+	}
+
+	private static void assertOffsets(Adaptable<Integer> adaptable, List<Integer> reference,
+	                                  Filter<? super Integer> filter, int filterIndex, Weigher<Integer> weigher) {
+		int offset = 0;
+		Integer previous = null;
+		for (Integer element : reference) {
+			final int weight = weigher.weigh(element);
+			if (filter.accept(element)) {
+				if (!element.equals(previous)) {
+					// any of the duplicates may be found
+					final int found = adaptable.offsetOf(filterIndex, element) - offset;
+					Assert.assertTrue("offsetOf " + element, found >= 0 && (weight == 0 ? found == 0 : found % weight == 0
+							&& found / weight < Collections.frequency(reference, element)));
+				}
+				for (int within = 0; within < weight; ++within) {
+					Assert.assertEquals("getByOffset " + (offset + within), element,
+							adaptable.getByOffset(filterIndex, offset + within));
+				}
+				offset += weight;
+			} else if (!element.equals(previous)) {
+				Assert.assertEquals("offsetOf " + element, -1, adaptable.offsetOf(filterIndex, element));
+			}
+			previous = element;
+		}
+		Assert.assertEquals("totalWeight", offset, adaptable.totalWeight(filterIndex));
+		Assert.assertNull("Past the end", adaptable.getByOffset(filterIndex, offset));
+	}
+
+	// associative but not commutative, so it catches misordered folds too
+	final Aggregator<Integer, String> concatenation = new Aggregator<Integer, String>() {
+		@Override
+		public String identity() {
+			return "";
+		}
+
+		@Override
+		public String lift(Integer element) {
+			return element + ";";
+		}
+
+		@Override
+		public String combine(String left, String right) {
+			return left + right;
+		}
+	};
+
+	@Test
+	public void testAggregate() throws Exception {
+		for (int mode = 0; mode < 2; ++mode) {
+			final boolean countDuplicates = mode != 0;
+			AdaptableFactory<Integer> builder = createAdaptableFactory();
+			builder.addFilter(isEven);
+			builder.setCountDuplicates(countDuplicates);
+			builder.setAggregator(concatenation);
+			FlexibleAdaptable<Integer> adaptable = builder.create();
+			try {
+				adaptable.aggregate(new Aggregator<Integer, String>() {
+					@Override
+					public String identity() {
+						return "";
+					}
+
+					@Override
+					public String lift(Integer element) {
+						return "";
+					}
+
+					@Override
+					public String combine(String left, String right) {
+						return "";
+					}
+				}, 0, 0, 1);
+				Assert.fail("Summary typed by another aggregator");
+			} catch (IllegalArgumentException expected) {
+				// not the aggregator set
+			}
+			final List<Integer> reference = new ArrayList<Integer>(); // sorted
+			final Random random = new Random(36 + mode);
+			for (int i = 0; i < 1024; ++i) {
+				final int value = random.nextInt(countDuplicates ? 128 : 2048);
+				final int insertionPoint = Collections.binarySearch(reference, value);
+				if (i % 3 == 2) {
+					if (adaptable.remove(value)) {
+						reference.remove(insertionPoint);
+					}
+				} else if (adaptable.add(value)) {
+					reference.add(insertionPoint < 0 ? -insertionPoint - 1 : insertionPoint, value);
+				}
+			}
+			Validation.validateIntegrity(adaptable);
+			assertAggregates(adaptable, reference, concatenation, random);
+			// evictions relink the ends
+			final AdaptableSkipList<Integer> cache = (AdaptableSkipList<Integer>) adaptable;
+			cache.setCapacity(reference.size() - 10);
+			cache.setEvictFromTail(true);
+			cache.setCapacity(reference.size() - 20);
+			reference.subList(reference.size() - 10, reference.size()).clear();
+			reference.subList(0, 10).clear();
+			Validation.validateIntegrity(adaptable);
+			assertAggregates(adaptable, reference, concatenation, random);
+		}
+	}
+
+	private void assertAggregates(FlexibleAdaptable<Integer> adaptable, List<Integer> reference,
+	                              Aggregator<Integer, String> aggregator, Random random) {
+		final List<Integer> evens = new ArrayList<Integer>();
+		for (Integer value : reference) {
+			if (isEven.accept(value)) {
+				evens.add(value);
+			}
+		}
+		for (int filterIndex = 0; filterIndex < 2; ++filterIndex) {
+			final List<Integer> selection = filterIndex == 0 ? reference : evens;
+			for (int i = 0; i < 256; ++i) {
+				final int from = random.nextInt(selection.size() + 1);
+				final int to = from + random.nextInt(selection.size() + 2 - from);
+				String expected = aggregator.identity();
+				for (Integer element : selection.subList(from, Math.min(to, selection.size()))) {
+					expected = aggregator.combine(expected, aggregator.lift(element));
+				}
+				Assert.assertEquals("aggregate " + from + ".." + to, expected, adaptable.aggregate(aggregator, filterIndex, from, to));
+			}
+		}
+	}
+
+	@Test
+	public void testSampleOrder() throws Exception {
+		final List<Adaptable<Integer>> variants = new ArrayList<Adaptable<Integer>>();
+		for (int variant = 0; variant < 4; ++variant) {
+			final AdaptableFactory<Integer> builder = createAdaptableFactory();
+			builder.addFilter(isEven);
+			builder.setBlockSize(variant == 1 ? 4 : 0);
+			builder.setPersistent(variant == 2);
+			builder.setConcurrent(variant == 3 && !allowDuplicates);
+			variants.add(builder.create());
+		}
+		final AdaptableFactory<Integer> builder = createAdaptableFactory();
+		builder.addFilter(isEven);
+		variants.add(new ShardedAdaptable<Integer>(builder, Arrays.asList(256, 512), 64));
+		final Random random = new Random(42);
+		for (int i = 0; i < 1024; ++i) {
+			final int value = random.nextInt(1024);
+			for (Adaptable<Integer> adaptable : variants) {
+				adaptable.add(value);
+			}
+		}
+		variants.add(variants.get(0).freeze());
+		for (Adaptable<Integer> adaptable : variants) {
+			for (int filterIndex = 0; filterIndex < 2; ++filterIndex) {
+				final List<Integer> sample = adaptable.sample(filterIndex, 100, random);
+				Assert.assertEquals(100, sample.size());
+				for (int j = 1; j < sample.size(); ++j) {
+					Assert.assertTrue(adaptable.getClass().getSimpleName() + " sample in the selection order",
+							sample.get(j - 1) <= sample.get(j));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testSampling() throws Exception {
+		AdaptableFactory<Integer> builder = createAdaptableFactory();
+		builder.addFilter(isEven);
+		builder.setWeightedIndexing(true);
+		builder.setIndexWeigher(new Weigher<Integer>() {
+			@Override
+			public int weigh(Integer element) {
+				return element % 4 == 0 ? 3 : 1; // multiples of 4 are three times as likely
+			}
+		});
+		FlexibleAdaptable<Integer> adaptable = builder.create();
+		for (int i = 0; i < 1000; ++i) {
+			adaptable.add(i);
+		}
+		final Random random = new Random(37);
+		final int[] hits = new int[1000];
+		final int rounds = 400;
+		for (int round = 0; round < rounds; ++round) {
+			final List<Integer> sample = adaptable.sample(1, 50, random);
+			Assert.assertEquals("Sample size", 50, sample.size());
+			for (int i = 0; i < sample.size(); ++i) {
+				final Integer element = sample.get(i);
+				Assert.assertTrue("In selection", isEven.accept(element));
+				Assert.assertTrue("Distinct and ordered", i == 0 || sample.get(i - 1) < element);
+				hits[element]++;
+			}
+		}
+		// 400 rounds of 50 out of 500: 40 hits per element expected
+		for (int element = 0; element < hits.length; element += 2) {
+			Assert.assertTrue("Uniform: " + element + " hit " + hits[element], hits[element] > 15 && hits[element] < 70);
+		}
+		Assert.assertEquals("Whole selection", adaptable.size(1), adaptable.sample(1, 5000, random).size());
+		final List<Integer> weighted = adaptable.sampleWeighted(1, 20000, random);
+		int heavy = 0;
+		for (int i = 0; i < weighted.size(); ++i) {
+			Assert.assertTrue("Ordered", i == 0 || weighted.get(i - 1) <= weighted.get(i));
+			if (weighted.get(i) % 4 == 0) {
+				heavy++;
+			}
+		}
+		// 250 heavy elements of weight 3 vs 250 light ones of weight 1
+		Assert.assertEquals("Weighted", 0.75, heavy / (double) weighted.size(), 0.02);
+	}
+
+	@Test
+	public void testLazyRemoval() throws Exception {
+		AdaptableFactory<Integer> builder = createAdaptableFactory();
+		builder.addFilter(isEven);
+		builder.setAllowDuplicates(false);
+		builder.setLazyRemoval(true);
+		final AdaptableSkipList<Integer> adaptable = (AdaptableSkipList<Integer>) builder.create();
+		final List<Integer> reference = new ArrayList<Integer>(); // sorted
+		final Random random = new Random(38);
+		for (int i = 0; i < 4096; ++i) {
+			final int value = random.nextInt(1024);
+			final int insertionPoint = Collections.binarySearch(reference, value);
+			switch (i % 4) {
+				case 0:
+					if (adaptable.remove(value)) {
+						reference.remove(insertionPoint);
+					}
+					break;
+				case 1:
+					if (!reference.isEmpty()) {
+						final int index = random.nextInt(reference.size());
+						Assert.assertTrue("Removed at " + index, adaptable.remove(0, index));
+						reference.remove(index);
+					}
+					break;
+				default:
+					if (adaptable.add(value)) {
+						reference.add(insertionPoint < 0 ? -insertionPoint - 1 : insertionPoint, value);
+					}
+			}
+		}
+		Validation.validateIntegrity(adaptable);
+		Assert.assertTrue("Tombstones left", countNodes(adaptable) > adaptable.size());
+		assertSelections(adaptable, reference);
+		for (Integer value : reference) {
+			Assert.assertFalse("Duplicate " + value, adaptable.add(value));
+			Assert.assertEquals("Index of " + value, reference.indexOf(value), adaptable.indexOf(0, value));
+		}
+		// a removed element comes back in place of its tombstone
+		final int middle = reference.size() / 2;
+		final Integer revived = reference.remove(middle);
+		Assert.assertTrue(adaptable.remove(revived));
+		Assert.assertEquals(-1, adaptable.indexOf(0, revived));
+		Assert.assertTrue(adaptable.add(revived));
+		reference.add(middle, revived);
+		Validation.validateIntegrity(adaptable);
+		assertSelections(adaptable, reference);
+		// tombstones never outnumber the living
+		while (reference.size() > 10) {
+			Assert.assertEquals(reference.remove(0), adaptable.pollFirst(0));
+			Assert.assertTrue("Compacted", countNodes(adaptable) <= 2 * adaptable.size() + 1);
+		}
+		Validation.validateIntegrity(adaptable);
+		final int before = countNodes(adaptable);
+		Assert.assertEquals("Purged", before - adaptable.size(), adaptable.compact());
+		Assert.assertEquals("Compact", adaptable.size(), countNodes(adaptable));
+		Assert.assertEquals("Nothing to purge", 0, adaptable.compact());
+		Validation.validateIntegrity(adaptable);
+		assertSelections(adaptable, reference);
+		try {
+			adaptable.setAllowDuplicates(true);
+			Assert.fail("Duplicates cannot be told from tombstones");
+		} catch (IllegalStateException expected) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testLazyRemovalNeighbors() throws Exception {
+		final AdaptableFactory<StringBuilder> builder = createAdaptableFactory();
+		builder.setComparator(contentsComparator);
+		builder.setAllowDuplicates(false);
+		builder.setLazyRemoval(true);
+		final FlexibleAdaptable<StringBuilder> adaptable = builder.create();
+		for (String word : new String[] {"alpha", "bravo", "charlie", "delta"}) {
+			adaptable.add(new StringBuilder(word));
+		}
+		// an element reordered to the value of a tombstone replaces it, whichever side it is on
+		Assert.assertTrue(adaptable.remove(new StringBuilder("bravo")));
+		Assert.assertTrue(adaptable.updateReorder(new StringBuilder("charlie"), rename("bravo")));
+		Assert.assertEquals(1, adaptable.indexOf(new StringBuilder("bravo")));
+		Assert.assertTrue(adaptable.remove(new StringBuilder("delta")));
+		Assert.assertTrue(adaptable.updateReorder(new StringBuilder("bravo"), rename("delta")));
+		Assert.assertEquals(1, adaptable.indexOf(new StringBuilder("delta")));
+		Validation.validateIntegrity(adaptable);
+		Assert.assertEquals("[alpha, delta]", contentsOf(adaptable));
+		Assert.assertTrue(adaptable.remove(new StringBuilder("delta")));
+		Assert.assertEquals(1, adaptable.size());
+		// the retention window is measured from the newest live element
+		final AdaptableFactory<Integer> retaining = createAdaptableFactory();
+		retaining.setAllowDuplicates(false);
+		retaining.setLazyRemoval(true);
+		retaining.setRetention(new Retention<Integer>() {
+			@Override
+			public boolean isExpired(Integer element, Integer newest) {
+				return element < newest - 50;
+			}
+		});
+		final FlexibleAdaptable<Integer> window = retaining.create();
+		window.hintBulkOpBegin();
+		window.add(10);
+		window.add(50);
+		window.add(100);
+		Assert.assertTrue(window.remove(100));
+		window.hintBulkOpCompleted();
+		window.add(40);
+		Validation.validateIntegrity(window);
+		Assert.assertEquals(Arrays.asList(10, 40, 50), Arrays.asList(toArray(window, 0)));
+	}
+
+	@Test
+	public void testNodePool() throws Exception {
+		AdaptableFactory<Integer> builder = createAdaptableFactory();
+		builder.addFilter(isEven);
+		builder.setAllowDuplicates(false);
+		builder.setNodePoolCapacity(16);
+		final AdaptableSkipList<Integer> adaptable = (AdaptableSkipList<Integer>) builder.create();
+		final List<Integer> reference = new ArrayList<Integer>(); // sorted
+		final Random random = new Random(39);
+		int additions = 0;
+		for (int i = 0; i < 4096; ++i) {
+			final int value = random.nextInt(512);
+			final int insertionPoint = Collections.binarySearch(reference, value);
+			if (i % 2 == 0) {
+				if (adaptable.remove(value)) {
+					reference.remove(insertionPoint);
+				}
+			} else if (adaptable.add(value)) {
+				reference.add(insertionPoint < 0 ? -insertionPoint - 1 : insertionPoint, value);
+				additions++;
+			}
+			Assert.assertTrue("Bounded", adaptable.getNodePoolSize() <= 16);
+		}
+		Validation.validateIntegrity(adaptable);
+		assertSelections(adaptable, reference);
+		Assert.assertEquals("Every addition counted", additions,
+				adaptable.getNodePoolHitCount() + adaptable.getNodePoolMissCount());
+		Assert.assertTrue("Removed nodes reused", adaptable.getNodePoolHitCount() > additions / 4);
+		// batch evictions recycle too
+		adaptable.setCapacity(reference.size() - 40);
+		reference.subList(0, 40).clear();
+		Assert.assertEquals("Refilled", 16, adaptable.getNodePoolSize());
+		for (int i = 0; i < 16; ++i) {
+			final int value = reference.get(reference.size() - 1) + 1;
+			Assert.assertTrue(adaptable.add(value));
+			reference.add(value);
+			reference.remove(0);
+		}
+		Assert.assertEquals("Reused", 16, adaptable.getNodePoolSize());
+		Validation.validateIntegrity(adaptable);
+		assertSelections(adaptable, reference);
+		adaptable.setNodePoolCapacity(0);
+		Assert.assertEquals("Disabled", 0, adaptable.getNodePoolHitCount());
+	}
+
+	@Test
+	public void testRebalance() throws Exception {
+		AdaptableFactory<Integer> builder = createAdaptableFactory();
+		builder.addFilter(isEven);
+		builder.setAllowDuplicates(false);
+		builder.setAutoRebalance(true);
+		final AdaptableSkipList<Integer> adaptable = (AdaptableSkipList<Integer>) builder.create();
+		final List<Integer> reference = new ArrayList<Integer>();
+		for (int i = 0; i < 8192; ++i) {
+			adaptable.add(i);
+			reference.add(i);
+		}
+		Validation.validateIntegrity(adaptable);
+		Assert.assertEquals("Nodes", reference.size(), adaptable.getLevelCounts()[0]);
+		Assert.assertTrue("Balanced: " + adaptable.getLevelSkew(), adaptable.getLevelSkew() < 0.5);
+		// removing exactly the tall nodes leaves long edges on level 0 only
+		final List<Integer> tall = new ArrayList<Integer>();
+		for (AdaptableSkipList<Integer>.Node node = adaptable.absMinNode.nodes[1]; node != null; node = node.nodes[1]) {
+			tall.add(node.element);
+		}
+		adaptable.hintBulkOpBegin();
+		for (Integer element : tall) {
+			Assert.assertTrue(adaptable.remove(element));
+			reference.remove(element);
+		}
+		Assert.assertEquals("No tall nodes", 0, adaptable.getLevelCounts()[1]);
+		Assert.assertEquals("Skewed", 1.0, adaptable.getLevelSkew(), 0.0);
+		adaptable.hintBulkOpCompleted();
+		Assert.assertTrue("Rebalanced: " + adaptable.getLevelSkew(), adaptable.getLevelSkew() < 0.5);
+		Validation.validateIntegrity(adaptable);
+		assertSelections(adaptable, reference);
+		// batch evictions keep the counts
+		adaptable.setCapacity(reference.size() - 1000);
+		adaptable.setEvictFromTail(true);
+		adaptable.setCapacity(reference.size() - 2000);
+		reference.subList(reference.size() - 1000, reference.size()).clear();
+		reference.subList(0, 1000).clear();
+		Validation.validateIntegrity(adaptable);
+		assertSelections(adaptable, reference);
+		adaptable.rebalance();
+		Validation.validateIntegrity(adaptable);
+		assertSelections(adaptable, reference);
+	}
+
+	@Test
+	public void testDeterministic() throws Exception {
+		final Aggregator<Integer, Long> sum = new Aggregator<Integer, Long>() {
+			@Override
+			public Long identity() {
+				return 0L;
+			}
+
+			@Override
+			public Long lift(Integer element) {
+				return (long) element;
+			}
+
+			@Override
+			public Long combine(Long left, Long right) {
+				return left + right;
+			}
+		};
+		final int[][] levelCounts = new int[2][];
+		for (int seed = 0; seed < 2; ++seed) {
+			AdaptableFactory<Integer> builder = createAdaptableFactory();
+			builder.addFilter(isEven);
+			builder.setAllowDuplicates(false);
+			builder.setDeterministic(true);
+			builder.setAggregator(sum);
+			final AdaptableSkipList<Integer> adaptable = (AdaptableSkipList<Integer>) builder.create();
+			adaptable.setSeed(seed);
+			final List<Integer> reference = new ArrayList<Integer>(); // sorted
+			final Random random = new Random(41);
+			for (int i = 0; i < 8192; ++i) {
+				final int value = random.nextInt(2048);
+				final int insertionPoint = Collections.binarySearch(reference, value);
+				switch (i % 5) {
+					case 0:
+						if (adaptable.remove(value)) {
+							reference.remove(insertionPoint);
+						}
+						break;
+					case 1:
+						if (!reference.isEmpty()) {
+							Assert.assertEquals(reference.remove(0), adaptable.pollFirst(0));
+						}
+						break;
+					default:
+						if (adaptable.add(value)) {
+							reference.add(insertionPoint < 0 ? -insertionPoint - 1 : insertionPoint, value);
+						}
+				}
+				if (i % 512 == 0) {
+					Validation.validateIntegrity(adaptable);
+				}
+			}
+			Validation.validateIntegrity(adaptable);
+			assertSelections(adaptable, reference);
+			long total = 0;
+			for (Integer value : reference) {
+				total += value;
+			}
+			Assert.assertEquals("Sum", total, (long) adaptable.aggregate(sum, 0, 0, reference.size()));
+			levelCounts[seed] = adaptable.getLevelCounts();
+		}
+		Assert.assertArrayEquals("Independent of the seed", levelCounts[0], levelCounts[1]);
+		// switching on relevels an existing random structure
+		AdaptableFactory<Integer> builder = createAdaptableFactory();
+		builder.setAllowDuplicates(false);
+		final AdaptableSkipList<Integer> adaptable = (AdaptableSkipList<Integer>) builder.create();
+		for (int i = 0; i < 1000; ++i) {
+			adaptable.add(i * 7 % 1000);
+		}
+		adaptable.setDeterministic(true);
+		Validation.validateIntegrity(adaptable);
+		for (int i = 0; i < 1000; i += 2) {
+			Assert.assertTrue(adaptable.remove((Integer) i));
+		}
+		Validation.validateIntegrity(adaptable);
+		for (int i = 0; i < 500; ++i) {
+			Assert.assertEquals(Integer.valueOf(2 * i + 1), adaptable.get(0, i));
+		}
+	}
+
+	@Test
+	public void testBlocked() throws Exception {
+		final List<FlexibleAdaptable<Integer>> adaptables = new ArrayList<FlexibleAdaptable<Integer>>();
+		final List<List<String>> events = new ArrayList<List<String>>();
+		for (int blockSize = 0; blockSize < 2; ++blockSize) {
+			AdaptableFactory<Integer> builder = createAdaptableFactory();
+			builder.addFilter(isEven);
+			builder.setBlockSize(blockSize * 4);
+			final FlexibleAdaptable<Integer> created = builder.create();
+			final List<String> log = new ArrayList<String>();
+			adaptables.add(created);
+			events.add(log);
+			created.addElementObserver(new ElementObserver<Integer>() {
+				@Override
+				public void onElementUpdated(Integer element, int[] position, int[] changeEstimate, int deltaSign, int[] deltaCount) {
+					log.add(element + "@" + Arrays.toString(position) + Arrays.toString(changeEstimate)
+							+ deltaSign + Arrays.toString(deltaCount));
+				}
+			});
+		}
+		final FlexibleAdaptable<Integer> expected = adaptables.get(0);
+		final FlexibleAdaptable<Integer> adaptable = adaptables.get(1);
+		Assert.assertTrue(adaptable instanceof BlockedAdaptableSkipList);
+		final Random random = new Random(42);
+		for (int i = 0; i < 8192; ++i) {
+			final int value = random.nextInt(512);
+			// with duplicates, lookups by value may pick different occurrences
+			switch (random.nextInt(allowDuplicates ? 6 : 8)) {
+				case 0:
+					final int index = random.nextInt(expected.size(1) + 1);
+					Assert.assertEquals(expected.remove(1, index), adaptable.remove(1, index));
+					break;
+				case 1:
+					final int filterIndex = value & 1;
+					Assert.assertEquals(expected.pollFirst(filterIndex), adaptable.pollFirst(filterIndex));
+					break;
+				case 6:
+					Assert.assertEquals(expected.remove((Integer) value), adaptable.remove((Integer) value));
+					break;
+				case 7:
+					Assert.assertEquals(expected.updateReorder(value, Trivial.refresh()), adaptable.updateReorder(value, Trivial.refresh()));
+					break;
+				default:
+					Assert.assertEquals(expected.add(value), adaptable.add(value));
+			}
+			Assert.assertEquals("Events", events.get(0), events.get(1));
+			if (i % 256 == 0) {
+				Validation.validateIntegrity(adaptable);
+			}
+		}
+		Validation.validateIntegrity(adaptable);
+		Validation.validateIterators(adaptable);
+		for (int filterIndex = 0; filterIndex < 2; ++filterIndex) {
+			for (int i = -1; i <= expected.size(filterIndex); ++i) {
+				Assert.assertEquals(expected.get(filterIndex, i), adaptable.get(filterIndex, i));
+				Assert.assertEquals(expected.convertIndex(i, filterIndex, 1 - filterIndex, true),
+						adaptable.convertIndex(i, filterIndex, 1 - filterIndex, true));
+			}
+			for (int value = -1; value <= 512; ++value) {
+				if (!allowDuplicates) {
+					Assert.assertEquals(expected.indexOf(filterIndex, value), adaptable.indexOf(filterIndex, value));
+				}
+				Assert.assertEquals(expected.rank(filterIndex, value, false), adaptable.rank(filterIndex, value, false));
+				Assert.assertEquals(expected.countBetween(filterIndex, value, value + 31),
+						adaptable.countBetween(filterIndex, value, value + 31));
+			}
+		}
+		final SplittableIterator<Integer> suffix = adaptable.splittableIterator(1);
+		final SplittableIterator<Integer> prefix = suffix.trySplit();
+		Assert.assertEquals(adaptable.size(1), prefix.remaining() + suffix.remaining());
+		Assert.assertEquals(adaptable.get(1, prefix.remaining()), suffix.next());
+		// blocks drain and merge without losing track of positions
+		while (expected.size() > 0) {
+			Assert.assertEquals(expected.remove(0, expected.size() / 2), adaptable.remove(0, adaptable.size() / 2));
+			Assert.assertEquals("Events", events.get(0), events.get(1));
+		}
+		Validation.validateIntegrity(adaptable);
+		AdaptableFactory<Integer> builder = createAdaptableFactory();
+		builder.setBlockSize(4);
+		builder.setWeightedIndexing(true);
+		try {
+			builder.create();
+			Assert.fail("Weighted indexing is not supported with blocks");
+		} catch (IllegalStateException expectedException) {
+			// unsupported combination
+		}
+	}
+
+	@Test
+	public void testSuccinctBitVector() throws Exception {
+		final Random random = new Random(43);
+		for (int density : new int[] {2, 64, 4096}) {
+			final BitSet bits = new BitSet();
+			for (int i = 0; i < 1 << 20; ++i) {
+				if (random.nextInt(density) == 0) {
+					bits.set(i);
+				}
+			}
+			final SuccinctBitVector vector = new SuccinctBitVector(bits.toLongArray());
+			Assert.assertEquals(bits.cardinality(), vector.ones());
+			int rank = 0;
+			for (int index = bits.nextSetBit(0); index >= 0; index = bits.nextSetBit(index + 1)) {
+				Assert.assertEquals("rank of " + index, rank, vector.rank(index));
+				Assert.assertEquals("select " + rank, index, vector.select(rank++));
+			}
+		}
+	}
+
+	@Test
+	public void testFreeze() throws Exception {
+		AdaptableFactory<Integer> builder = createAdaptableFactory();
+		builder.addFilter(isEven);
+		final FlexibleAdaptable<Integer> adaptable = builder.create();
+		final Random random = new Random(43);
+		for (int i = 0; i < 5000; ++i) {
+			adaptable.add(random.nextInt(20000));
+		}
+		final FrozenAdaptable<Integer> frozen = adaptable.freeze();
+		Assert.assertSame(frozen, frozen.freeze());
+		for (int filterIndex = 0; filterIndex < 2; ++filterIndex) {
+			Assert.assertEquals(adaptable.size(filterIndex), frozen.size(filterIndex));
+			final Iterator<Integer> iterator = frozen.iterator(filterIndex);
+			for (int i = -1; i <= adaptable.size(filterIndex); ++i) {
+				Assert.assertEquals(adaptable.get(filterIndex, i), frozen.get(filterIndex, i));
+				if (i >= 0 && i < adaptable.size(filterIndex)) {
+					Assert.assertEquals(adaptable.get(filterIndex, i), iterator.next());
+				}
+				for (boolean ceiling : new boolean[] {false, true}) {
+					Assert.assertEquals(adaptable.convertIndex(i, filterIndex, 1 - filterIndex, ceiling),
+							frozen.convertIndex(i, filterIndex, 1 - filterIndex, ceiling));
+				}
+			}
+			Assert.assertFalse(iterator.hasNext());
+			for (int value = -1; value <= 20000; value += 7) {
+				if (!allowDuplicates) {
+					Assert.assertEquals(adaptable.indexOf(filterIndex, value), frozen.indexOf(filterIndex, value));
+				}
+				Assert.assertEquals(adaptable.rank(filterIndex, value, true), frozen.rank(filterIndex, value, true));
+				Assert.assertEquals(adaptable.rank(filterIndex, value, false), frozen.rank(filterIndex, value, false));
+				Assert.assertEquals(adaptable.countBetween(filterIndex, value, value + 100),
+						frozen.countBetween(filterIndex, value, value + 100));
+			}
+		}
+		final SplittableIterator<Integer> suffix = frozen.splittableIterator(1);
+		final SplittableIterator<Integer> prefix = suffix.trySplit();
+		Assert.assertEquals(frozen.get(1, 0), prefix.next());
+		Assert.assertEquals(frozen.get(1, prefix.remaining() + 1), suffix.next());
+		final Iterator<Map.Entry<Integer, int[]>> entries = frozen.iterator();
+		for (Map.Entry<Integer, int[]> entry : adaptable) {
+			final Map.Entry<Integer, int[]> frozenEntry = entries.next();
+			Assert.assertEquals(entry.getKey(), frozenEntry.getKey());
+			Assert.assertArrayEquals(entry.getValue(), frozenEntry.getValue());
+		}
+		Assert.assertFalse(entries.hasNext());
+		// the snapshot is detached from the container
+		final int size = frozen.size();
+		adaptable.clear();
+		Assert.assertEquals(size, frozen.size());
+		try {
+			frozen.add(1);
+			Assert.fail("Snapshot is immutable");
+		} catch (UnsupportedOperationException expected) {
+			// read-only
+		}
+		Assert.assertEquals(0, adaptable.freeze().size(1));
+	}
+
+	@Test
+	public void testFreezeCopies() throws Exception {
+		final FlexibleAdaptable<StringBuilder> adaptable = createMutableFilterableAdaptable();
+		populatePseudoDictionary(adaptable, new TreeMap<String, StringBuilder>());
+		final FrozenAdaptable<StringBuilder> shared = adaptable.freeze();
+		final FrozenAdaptable<StringBuilder> copied = new FrozenAdaptable<StringBuilder>(adaptable, new Copier<StringBuilder>() {
+			@Override
+			public StringBuilder copy(StringBuilder element) {
+				return new StringBuilder(element);
+			}
+		});
+		final String before = contentsOf(copied);
+		Assert.assertEquals(before, contentsOf(shared));
+		final StringBuilder first = adaptable.get(0, 0);
+		Assert.assertSame(first, shared.get(0, 0));
+		Assert.assertNotSame(first, copied.get(0, 0));
+		// modified in place: the sharing snapshot follows, the copying one does not
+		adaptable.updateReorder(new StringBuilder(first), new Update<StringBuilder>() {
+			@Override
+			public boolean apply(StringBuilder element) {
+				element.insert(0, '~');
+				return true;
+			}
+		});
+		Assert.assertEquals(before, contentsOf(copied));
+		Assert.assertNotEquals(before, contentsOf(shared));
+	}
+
+	@Test
+	public void testPersistent() throws Exception {
+		final FlexibleAdaptable<Integer> expected = createEvenAdaptable(false);
+		final PersistentAdaptable<Integer> adaptable = (PersistentAdaptable<Integer>) createEvenAdaptable(true);
+		final List<String> expectedEvents = new ArrayList<String>();
+		final List<String> events = new ArrayList<String>();
+		recordEvents(expected, expectedEvents);
+		recordEvents(adaptable, events);
+		final List<Adaptable<Integer>> snapshots = new ArrayList<Adaptable<Integer>>();
+		final List<List<Integer>> versions = new ArrayList<List<Integer>>();
+		final Random random = new Random(44);
+		for (int i = 0; i < 4096; ++i) {
+			final int value = random.nextInt(512);
+			// with duplicates, lookups by value may pick different occurrences
+			switch (random.nextInt(allowDuplicates ? 4 : 6)) {
+				case 0:
+					final int index = random.nextInt(expected.size(1) + 1);
+					Assert.assertEquals(expected.remove(1, index), adaptable.remove(1, index));
+					break;
+				case 4:
+					Assert.assertEquals(expected.remove((Integer) value), adaptable.remove((Integer) value));
+					break;
+				case 5:
+					Assert.assertEquals(expected.updateReorder(value, Trivial.refresh()), adaptable.updateReorder(value, Trivial.refresh()));
+					break;
+				default:
+					Assert.assertEquals(expected.add(value), adaptable.add(value));
+			}
+			Assert.assertEquals("Events", expectedEvents, events);
+			if (i % 512 == 0) {
+				snapshots.add(adaptable.snapshot());
+				versions.add(Arrays.asList(toArray(expected, 1)));
+			}
+		}
+		assertSame(expected, adaptable);
+		assertSame(expected, adaptable.snapshot());
+		// earlier versions are intact
+		for (int version = 0; version < versions.size(); ++version) {
+			Assert.assertEquals(versions.get(version), Arrays.asList(toArray(snapshots.get(version), 1)));
+		}
+		// a reader sees consistent versions while the writer goes on
+		final AtomicReference<Adaptable<Integer>> published = new AtomicReference<Adaptable<Integer>>(adaptable.snapshot());
+		final String[] failure = new String[1];
+		final Thread reader = new Thread() {
+			@Override
+			public void run() {
+				while (!isInterrupted()) {
+					final Adaptable<Integer> snapshot = published.get();
+					final int size = snapshot.size(1);
+					int count = 0;
+					Integer last = null;
+					for (Iterator<Integer> iterator = snapshot.iterator(1); iterator.hasNext(); count++) {
+						final Integer next = iterator.next();
+						if (next % 2 != 0 || last != null && last > next) {
+							failure[0] = "Inconsistent element " + next;
+						}
+						last = next;
+					}
+					if (count != size || size > 0 && !last.equals(snapshot.get(1, size - 1))) {
+						failure[0] = "Inconsistent size " + size;
+					}
+				}
+			}
+		};
+		reader.start();
+		for (int i = 0; i < 20000; ++i) {
+			adaptable.add(random.nextInt(1 << 16));
+			adaptable.remove(0, random.nextInt(adaptable.size()));
+			if (i % 64 == 0) {
+				published.set(adaptable.snapshot());
+			}
+		}
+		reader.interrupt();
+		reader.join();
+		Assert.assertNull(failure[0], failure[0]);
+		try {
+			adaptable.snapshot().add(1);
+			Assert.fail("Snapshot is immutable");
+		} catch (UnsupportedOperationException expectedException) {
+			// read-only
+		}
+	}
+
+	@Test
+	public void testPersistentCopies() throws Exception {
+		final AdaptableFactory<StringBuilder> builder = createAdaptableFactory();
+		builder.setComparator(contentsComparator);
+		builder.addFilter(isLowercase);
+		builder.setPersistent(true);
+		final PersistentAdaptable<StringBuilder> adaptable = (PersistentAdaptable<StringBuilder>) builder.create();
+		for (String word : new String[] {"bravo", "Delta", "foxtrot", "Hotel"}) {
+			adaptable.add(new StringBuilder(word));
+		}
+		final Update<StringBuilder> capitalize = new Update<StringBuilder>() {
+			@Override
+			public boolean apply(StringBuilder element) {
+				element.setCharAt(0, Character.toUpperCase(element.charAt(0)));
+				return true;
+			}
+		};
+		// not shared yet: elements are modified where they are
+		final StringBuilder bravo = adaptable.get(0, 2);
+		Assert.assertTrue(adaptable.updateInPlace(new StringBuilder("bravo"), Trivial.<StringBuilder>refresh()));
+		Assert.assertSame(bravo, adaptable.get(0, 2));
+		final Adaptable<StringBuilder> snapshot = adaptable.snapshot();
+		try {
+			adaptable.updateReorder(new StringBuilder("foxtrot"), capitalize);
+			Assert.fail("Shared elements need a copier");
+		} catch (IllegalStateException expected) {
+			// no copier
+		}
+		adaptable.setCopier(new Copier<StringBuilder>() {
+			@Override
+			public StringBuilder copy(StringBuilder element) {
+				return new StringBuilder(element);
+			}
+		});
+		Assert.assertTrue(adaptable.updateReorder(new StringBuilder("foxtrot"), capitalize));
+		Assert.assertTrue(adaptable.updateReorder(new StringBuilder("bravo"), capitalize));
+		Assert.assertEquals("[Bravo, Delta, Foxtrot, Hotel]", contentsOf(adaptable));
+		Assert.assertEquals(0, adaptable.size(1));
+		// the snapshot keeps its elements, their contents and order
+		Assert.assertEquals("[Delta, Hotel, bravo, foxtrot]", contentsOf(snapshot));
+		Assert.assertEquals(2, snapshot.size(1));
+		Assert.assertSame(bravo, snapshot.get(0, 2));
+		// cleared: no element is shared any more
+		adaptable.clear();
+		adaptable.setCopier(null);
+		adaptable.add(new StringBuilder("golf"));
+		Assert.assertTrue(adaptable.updateInPlace(new StringBuilder("golf"), capitalize));
+		Assert.assertEquals("[Delta, Hotel, bravo, foxtrot]", contentsOf(snapshot));
+	}
+
+	@Test
+	public void testConcurrent() throws Exception {
+		final FlexibleAdaptable<Integer> expected = createEvenAdaptable(false);
+		final ConcurrentAdaptable<Integer> adaptable = new ConcurrentAdaptable<Integer>(createEvenAdaptable(false));
+		final List<String> expectedEvents = new ArrayList<String>();
+		final List<String> events = new ArrayList<String>();
+		recordEvents(expected, expectedEvents);
+		recordEvents(adaptable, events);
+		final Random random = new Random(45);
+		for (int i = 0; i < 1024; ++i) {
+			final int value = random.nextInt(512);
+			if (random.nextInt(4) == 0) {
+				final int index = random.nextInt(expected.size(1) + 1);
+				Assert.assertEquals(expected.remove(1, index), adaptable.remove(1, index));
+			} else {
+				Assert.assertEquals(expected.add(value), adaptable.add(value));
+			}
+		}
+		Assert.assertEquals("Events", expectedEvents, events);
+		assertSame(expected, adaptable);
+		// observers run under the write lock and may read through the wrapper
+		final int[] observedSize = new int[1];
+		adaptable.addElementObserver(new ElementObserver<Integer>() {
+			@Override
+			public void onElementUpdated(Integer element, int[] position, int[] changeEstimate, int deltaSign, int[] deltaCount) {
+				observedSize[0] = adaptable.size();
+			}
+		});
+		adaptable.add(1024);
+		Assert.assertEquals(adaptable.size(), observedSize[0]);
+		// readers see bulk operations at once: the size never changes
+		final int size = adaptable.size();
+		final String[] failure = new String[1];
+		final Thread[] readers = new Thread[4];
+		for (int r = 0; r < readers.length; ++r) {
+			readers[r] = new Thread() {
+				@Override
+				public void run() {
+					while (!isInterrupted()) {
+						if (adaptable.size() != size) {
+							failure[0] = "Inconsistent size " + adaptable.size();
+						}
+						final List<Integer> page = adaptable.page(1, adaptable.size(1) / 2, ConcurrentAdaptable.PAGE_SIZE);
+						for (int i = 1; i < page.size(); ++i) {
+							if (page.get(i) % 2 != 0 || page.get(i - 1) > page.get(i)) {
+								failure[0] = "Inconsistent page " + page;
+							}
+						}
+						Integer last = null;
+						for (Integer next : adaptable.freeze().asNavigableSet(1)) {
+							if (last != null && last > next) {
+								failure[0] = "Inconsistent order " + last + ", " + next;
+							}
+							last = next;
+						}
+						// live iterators resume by value, and stay sorted too
+						last = null;
+						for (Iterator<Integer> iterator = adaptable.iterator(1); iterator.hasNext(); ) {
+							final Integer next = iterator.next();
+							if (last != null && last > next) {
+								failure[0] = "Inconsistent live order " + last + ", " + next;
+							}
+							last = next;
+						}
+					}
+				}
+			};
+			readers[r].start();
+		}
+		for (int i = 0; i < 20000; ++i) {
+			adaptable.hintBulkOpBegin();
+			try {
+				if (adaptable.add(random.nextInt(1 << 16))) {
+					adaptable.remove(0, random.nextInt(adaptable.size()));
+				}
+			} finally {
+				adaptable.hintBulkOpCompleted();
+			}
+		}
+		for (Thread reader : readers) {
+			reader.interrupt();
+			reader.join();
+		}
+		Assert.assertNull(failure[0], failure[0]);
+		Assert.assertEquals(size, adaptable.size());
+	}
+
+	@Test
+	public void testPagingIterators() throws Exception {
+		final AdaptableFactory<Integer> builder = createAdaptableFactory();
+		builder.addFilter(isEven);
+		builder.setAllowDuplicates(false);
+		final List<FlexibleAdaptable<Integer>> containers = new ArrayList<FlexibleAdaptable<Integer>>();
+		containers.add(new ConcurrentAdaptable<Integer>(builder.create()));
+		containers.add(new ShardedAdaptable<Integer>(builder, Arrays.asList(1000, 2000), 64));
+		for (FlexibleAdaptable<Integer> adaptable : containers) {
+			for (int i = 0; i < 1000; ++i) {
+				adaptable.add(i * 4);
+			}
+			// updates behind the cursor shift the indices, but neither repeat nor skip elements
+			List<Integer> present = Arrays.asList(toArray(adaptable, 1));
+			final List<Integer> iterated = new ArrayList<Integer>();
+			for (Iterator<Integer> iterator = adaptable.iterator(1); iterator.hasNext(); ) {
+				iterated.add(iterator.next());
+				if (iterated.size() % 16 == 0) {
+					final Integer last = iterated.get(iterated.size() - 1);
+					Assert.assertTrue(adaptable.add(last - 2));
+					Assert.assertTrue(adaptable.remove(iterated.get(iterated.size() - 8)));
+				}
+			}
+			assertResumed(present, iterated);
+			// so do a split iterator and its prefix
+			present = Arrays.asList(toArray(adaptable, 1));
+			final SplittableIterator<Integer> suffix = adaptable.splittableIterator(1);
+			final SplittableIterator<Integer> prefix = suffix.trySplit();
+			Assert.assertNotNull("Split", prefix);
+			iterated.clear();
+			while (prefix.hasNext()) {
+				iterated.add(prefix.next());
+				if (iterated.size() % 16 == 0) {
+					Assert.assertTrue(adaptable.remove(iterated.get(iterated.size() - 8)));
+				}
+			}
+			Assert.assertTrue(adaptable.add(1));
+			while (suffix.hasNext()) {
+				iterated.add(suffix.next());
+			}
+			assertResumed(present, iterated);
+		}
+	}
+
+	private static void assertResumed(List<Integer> present, List<Integer> iterated) {
+		for (int i = 1; i < iterated.size(); ++i) {
+			Assert.assertTrue("Order at " + i, iterated.get(i - 1) < iterated.get(i));
+		}
+		for (Integer element : present) {
+			Assert.assertTrue("Missed " + element, Collections.binarySearch(iterated, element) >= 0);
+		}
+	}
+
+	@Test
+	public void testConcurrentSkipList() throws Exception {
+		final AdaptableFactory<Integer> builder = new AdaptableFactory<Integer>();
+		builder.addFilter(isEven);
+		final FlexibleAdaptable<Integer> expected = builder.create();
+		builder.setConcurrent(true);
+		final FlexibleAdaptable<Integer> adaptable = builder.create();
+		Assert.assertTrue(adaptable instanceof ConcurrentAdaptableSkipList);
+		final Random random = new Random(46);
+		for (int i = 0; i < 4096; ++i) {
+			final int value = random.nextInt(512);
+			switch (random.nextInt(6)) {
+				case 0:
+					final int index = random.nextInt(expected.size(1) + 1);
+					Assert.assertEquals(expected.remove(1, index), adaptable.remove(1, index));
+					break;
+				case 1:
+					Assert.assertEquals(expected.remove((Integer) value), adaptable.remove((Integer) value));
+					break;
+				case 2:
+					Assert.assertEquals(expected.pollFirst(1), adaptable.pollFirst(1));
+					break;
+				default:
+					Assert.assertEquals(expected.add(value), adaptable.add(value));
+			}
+			if (i % 256 == 0) {
+				Validation.validateIntegrity(adaptable);
+			}
+		}
+		Validation.validateIntegrity(adaptable);
+		assertSame(expected, adaptable);
+		assertSame(expected, adaptable.freeze());
+		// producers of disjoint odd values, a consumer of even values and a reader
+		final Thread[] threads = new Thread[6];
+		final int producerCount = 4;
+		final List<Set<Integer>> produced = new ArrayList<Set<Integer>>();
+		final Set<Integer> consumed = Collections.synchronizedSet(new HashSet<Integer>());
+		final String[] failure = new String[1];
+		for (int t = 0; t < producerCount; ++t) {
+			final int residue = t;
+			final Set<Integer> values = new HashSet<Integer>();
+			produced.add(values);
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					final Random random = new Random(residue);
+					for (int i = 0; i < 20000; ++i) {
+						final Integer value = (random.nextInt(1 << 14) * producerCount + residue) * 2 + 1025;
+						if (random.nextInt(3) == 0) {
+							values.remove(value);
+							adaptable.remove(value);
+						} else {
+							values.add(value);
+							adaptable.add(value);
+						}
+					}
+				}
+			};
+		}
+		threads[4] = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 0; i < 2000; ++i) {
+					final Integer value = adaptable.pollFirst(1);
+					if (value != null) {
+						consumed.add(value);
+					}
+				}
+			}
+		};
+		threads[5] = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 0; i < 20000; ++i) {
+					final int size = adaptable.size(1);
+					final Integer value = adaptable.get(1, size / 2);
+					if (value != null && value % 2 != 0) {
+						failure[0] = "Odd value " + value;
+					}
+					if (adaptable.countBetween(0, 0, Integer.MAX_VALUE) < 0) {
+						failure[0] = "Negative count";
+					}
+				}
+			}
+		};
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		Assert.assertNull(failure[0], failure[0]);
+		Validation.validateIntegrity(adaptable);
+		final Set<Integer> remaining = new HashSet<Integer>(Arrays.asList(toArray(expected, 0)));
+		for (Set<Integer> values : produced) {
+			remaining.addAll(values);
+		}
+		remaining.removeAll(consumed);
+		Assert.assertEquals(remaining, new HashSet<Integer>(Arrays.asList(toArray(adaptable, 0))));
+		Assert.assertEquals(remaining.size(), adaptable.size());
+	}
+
+	@Test
+	public void testReadReplica() throws Exception {
+		for (boolean persistent : new boolean[] {false, true}) {
+			final FlexibleAdaptable<Integer> primary = createEvenAdaptable(false);
+			final Random random = new Random(48);
+			for (int i = 0; i < 256; ++i) {
+				primary.add(random.nextInt(512));
+			}
+			final List<Runnable> queued = new ArrayList<Runnable>();
+			final long[] time = new long[1];
+			final ReadReplica<Integer> replica = new ReadReplica<Integer>(primary, createEvenAdaptable(persistent),
+					new Executor() {
+						@Override
+						public void execute(Runnable command) {
+							queued.add(command);
+						}
+					}, new Clock() {
+						@Override
+						public long now() {
+							return time[0];
+						}
+					});
+			assertSame(primary, replica.current().getAdaptable());
+			final Adaptable<Integer> initial = replica.current().getAdaptable();
+			final Integer[] initialContents = toArray(initial, 0);
+			// single changes are handed over one by one, but applied in one batch
+			primary.add(1001);
+			primary.remove(0, 3);
+			primary.remove(1, 5);
+			Assert.assertEquals("Applier scheduled once", 1, queued.size());
+			Assert.assertEquals("Lag", 3, replica.getLag());
+			Assert.assertSame("Not published yet", initial, replica.current().getAdaptable());
+			time[0] = 10;
+			queued.remove(0).run();
+			Assert.assertEquals("Caught up", 0, replica.getLag());
+			Assert.assertEquals("Batch size", 3, replica.current().getBatchSize());
+			Assert.assertEquals("Latency", 10, replica.current().getLatency());
+			assertSame(primary, replica.current().getAdaptable());
+			Assert.assertArrayEquals("Versions are immutable", initialContents, toArray(initial, 0));
+			// a bulk operation of the primary is published at once
+			primary.hintBulkOpBegin();
+			for (int i = 0; i < 64; ++i) {
+				if (!primary.add(random.nextInt(512))) {
+					primary.remove(0, random.nextInt(primary.size()));
+				}
+			}
+			Assert.assertTrue("Nothing handed over", queued.isEmpty());
+			primary.hintBulkOpCompleted();
+			queued.remove(0).run();
+			Assert.assertEquals("Batch size", 64, replica.current().getBatchSize());
+			assertSame(primary, replica.current().getAdaptable());
+			// filter changes and range removals
+			primary.updateFilters(primary.get(1, 0), new Update<Integer>() {
+				@Override
+				public boolean apply(Integer element) {
+					return true;
+				}
+			});
+			primary.clear();
+			primary.add(2);
+			primary.add(4);
+			queued.remove(0).run();
+			assertSame(primary, replica.current().getAdaptable());
+			Assert.assertEquals(2, replica.current().getAdaptable().size());
+			replica.detach();
+			primary.add(6);
+			Assert.assertEquals("Detached", 0, replica.getLag());
+		}
+		// a background applier while readers read
+		final FlexibleAdaptable<Integer> primary = createEvenAdaptable(false);
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		final ReadReplica<Integer> replica = new ReadReplica<Integer>(primary, createEvenAdaptable(true), executor, Clock.SYSTEM);
+		final String[] failure = new String[1];
+		final Thread reader = new Thread() {
+			@Override
+			public void run() {
+				while (!isInterrupted()) {
+					final ReadReplica.Version<Integer> version = replica.current();
+					final Adaptable<Integer> adaptable = version.getAdaptable();
+					// the writer keeps the size even between batches
+					if (adaptable.size() % 2 != 0 || adaptable.size() != toArray(adaptable, 0).length) {
+						failure[0] = "Inconsistent version " + version.getSequence();
+					}
+				}
+			}
+		};
+		reader.start();
+		for (int i = 0; i < 2000; ++i) {
+			primary.hintBulkOpBegin();
+			primary.add(2 * i);
+			primary.add(2 * i + 1);
+			primary.hintBulkOpCompleted();
+		}
+		executor.shutdown();
+		Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		reader.interrupt();
+		reader.join();
+		Assert.assertNull(failure[0], failure[0]);
+		Assert.assertEquals(0, replica.getLag());
+		assertSame(primary, replica.current().getAdaptable());
+	}
+
+	@Test
+	public void testReadReplicaCopies() throws Exception {
+		final FlexibleAdaptable<StringBuilder> primary = createMutableFilterableAdaptable();
+		populatePseudoDictionary(primary, new TreeMap<String, StringBuilder>());
+		final List<Runnable> queued = new ArrayList<Runnable>();
+		final ReadReplica<StringBuilder> replica = new ReadReplica<StringBuilder>(primary, createMutableFilterableAdaptable(),
+				new Executor() {
+					@Override
+					public void execute(Runnable command) {
+						queued.add(command);
+					}
+				}, Clock.SYSTEM, new Copier<StringBuilder>() {
+					@Override
+					public StringBuilder copy(StringBuilder element) {
+						return new StringBuilder(element);
+					}
+				});
+		final Adaptable<StringBuilder> initial = replica.current().getAdaptable();
+		final String initialContents = contentsOf(initial);
+		Assert.assertEquals(contentsOf(primary), initialContents);
+		Assert.assertNotSame(primary.get(0, 0), initial.get(0, 0));
+		// the primary updates its elements while the replica lags
+		final Update<StringBuilder> shout = new Update<StringBuilder>() {
+			@Override
+			public boolean apply(StringBuilder element) {
+				final String upper = element.toString().toUpperCase();
+				element.replace(0, element.length(), upper);
+				return true;
+			}
+		};
+		final Update<StringBuilder> pad = new Update<StringBuilder>() {
+			@Override
+			public boolean apply(StringBuilder element) {
+				element.append(' ');
+				return true;
+			}
+		};
+		final Update<StringBuilder> extend = new Update<StringBuilder>() {
+			@Override
+			public boolean apply(StringBuilder element) {
+				element.append('0'); // neither reordered nor refiltered
+				return true;
+			}
+		};
+		primary.hintBulkOpBegin();
+		for (int i = 0; i < 64; ++i) {
+			final StringBuilder locator = new StringBuilder(primary.get(0, i * 8));
+			switch (i % 3) {
+				case 0:
+					primary.updateReorder(locator, shout);
+					break;
+				case 1:
+					primary.updateFilters(locator, pad);
+					break;
+				default:
+					primary.updateInPlace(locator, extend);
+			}
+		}
+		primary.hintBulkOpCompleted();
+		Assert.assertEquals("One batch", 1, queued.size());
+		final String updatedContents = contentsOf(primary);
+		queued.remove(0).run();
+		final Adaptable<StringBuilder> updated = replica.current().getAdaptable();
+		Assert.assertEquals(updatedContents, contentsOf(updated));
+		Assert.assertEquals("Versions are intact", initialContents, contentsOf(initial));
+		// updated again, the primary elements no longer are those of the replica
+		for (int i = 0; i < 16; ++i) {
+			primary.updateInPlace(new StringBuilder(primary.get(0, i)), extend);
+		}
+		Assert.assertEquals(updatedContents, contentsOf(updated));
+		queued.remove(0).run();
+		Assert.assertEquals(contentsOf(primary), contentsOf(replica.current().getAdaptable()));
+		for (int filterIndex = 0; filterIndex < primary.getFilterCount(); ++filterIndex) {
+			Assert.assertEquals(primary.size(filterIndex), replica.current().getAdaptable().size(filterIndex));
+		}
+	}
+
+	@Test
+	public void testSharded() throws Exception {
+		final FlexibleAdaptable<Integer> expected = createEvenAdaptable(false);
+		final AdaptableFactory<Integer> builder = createAdaptableFactory();
+		builder.addFilter(isEven);
+		final ShardedAdaptable<Integer> adaptable = new ShardedAdaptable<Integer>(builder, Arrays.asList(128, 256, 384), 32);
+		Assert.assertEquals(4, adaptable.getShardCount());
+		final List<String> expectedEvents = new ArrayList<String>();
+		final List<String> events = new ArrayList<String>();
+		recordEvents(expected, expectedEvents);
+		recordEvents(adaptable, events);
+		final Random random = new Random(49);
+		for (int i = 0; i < 2048; ++i) {
+			final int value = random.nextInt(512);
+			switch (random.nextInt(6)) {
+				case 0:
+					final int index = random.nextInt(expected.size(1) + 1);
+					Assert.assertEquals(expected.remove(1, index), adaptable.remove(1, index));
+					break;
+				case 1:
+					Assert.assertEquals(expected.remove((Integer) value), adaptable.remove((Integer) value));
+					break;
+				case 2:
+					Assert.assertEquals(expected.pollFirst(1), adaptable.pollFirst(1));
+					break;
+				default:
+					Assert.assertEquals(expected.add(value), adaptable.add(value));
+			}
+			if (i % 256 == 0) {
+				Validation.validateIntegrity(adaptable);
+			}
+		}
+		if (!allowDuplicates) {
+			// which of equal elements is removed is up to each skip list
+			Assert.assertEquals("Events", expectedEvents, events);
+		}
+		Assert.assertTrue("Hot shards split", adaptable.getShardCount() > 4);
+		Validation.validateIntegrity(adaptable);
+		assertSame(expected, adaptable);
+		assertSame(expected, adaptable.freeze());
+		adaptable.rebalance(3);
+		Assert.assertEquals(3, adaptable.getShardCount());
+		Validation.validateIntegrity(adaptable);
+		assertSame(expected, adaptable);
+		// writers of disjoint values in different shards, and a reader
+		adaptable.clear();
+		final Thread[] threads = new Thread[5];
+		final Set<Integer> added = Collections.synchronizedSet(new HashSet<Integer>());
+		final String[] failure = new String[1];
+		for (int t = 0; t < 4; ++t) {
+			final int residue = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					final Random random = new Random(residue);
+					final Set<Integer> values = new HashSet<Integer>();
+					for (int i = 0; i < 5000; ++i) {
+						final Integer value = random.nextInt(1 << 12) * 4 + residue;
+						if (values.remove(value)) {
+							adaptable.remove(value);
+						} else if (random.nextInt(3) != 0) {
+							values.add(value);
+							adaptable.add(value);
+						}
+					}
+					added.addAll(values);
+				}
+			};
+		}
+		threads[4] = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 0; i < 5000; ++i) {
+					final int size = adaptable.size(1);
+					final Integer value = adaptable.get(1, size / 2);
+					if (value != null && value % 2 != 0) {
+						failure[0] = "Odd value " + value;
+					}
+					if (adaptable.convertIndex(size / 2, 1, 0) >= adaptable.size(0) + 1) {
+						failure[0] = "Index out of range";
+					}
+				}
+			}
+		};
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		Assert.assertNull(failure[0], failure[0]);
+		Validation.validateIntegrity(adaptable);
+		Assert.assertEquals(added, new HashSet<Integer>(Arrays.asList(toArray(adaptable, 0))));
+		Assert.assertEquals(added.size(), adaptable.size());
+	}
+
+	@Test
+	public void testShardedReorder() throws Exception {
+		final AdaptableFactory<StringBuilder> builder = createAdaptableFactory();
+		builder.setComparator(contentsComparator);
+		builder.addFilter(isLowercase);
+		final ShardedAdaptable<StringBuilder> adaptable = new ShardedAdaptable<StringBuilder>(builder,
+				Arrays.asList(new StringBuilder("h"), new StringBuilder("p")), 1024);
+		for (String word : new String[] {"alpha", "bravo", "kilo", "lima", "tango"}) {
+			adaptable.add(new StringBuilder(word));
+		}
+		final Update<StringBuilder> toZulu = rename("zulu");
+		Assert.assertTrue(adaptable.updateReorder(new StringBuilder("bravo"), toZulu));
+		Validation.validateIntegrity(adaptable);
+		Assert.assertEquals("[alpha, kilo, lima, tango, zulu]", contentsOf(adaptable));
+		// added once modified, to the shard of the modified value
+		adaptable.setAutoAdd(true);
+		Assert.assertTrue(adaptable.updateReorder(new StringBuilder("charlie"), rename("yankee")));
+		Validation.validateIntegrity(adaptable);
+		Assert.assertEquals("[alpha, kilo, lima, tango, yankee, zulu]", contentsOf(adaptable));
+		adaptable.setAutoAdd(false);
+		Assert.assertFalse(adaptable.updateReorder(new StringBuilder("delta"), toZulu));
+		// elements move across shards without ever being missing
+		final String[] failure = new String[1];
+		final Thread reader = new Thread() {
+			@Override
+			public void run() {
+				while (!isInterrupted()) {
+					if (adaptable.size() != 6) {
+						failure[0] = "Size " + adaptable.size();
+					}
+				}
+			}
+		};
+		reader.start();
+		for (int i = 0; i < 2000; ++i) {
+			adaptable.updateReorder(new StringBuilder("alpha"), rename("omega"));
+			adaptable.updateReorder(new StringBuilder("omega"), rename("alpha"));
+		}
+		reader.interrupt();
+		reader.join();
+		Assert.assertNull(failure[0], failure[0]);
+		Validation.validateIntegrity(adaptable);
+		Assert.assertEquals("[alpha, kilo, lima, tango, yankee, zulu]", contentsOf(adaptable));
+	}
+
+	@Test
+	public void testShardedPivotReorder() throws Exception {
+		final AdaptableFactory<StringBuilder> builder = createAdaptableFactory();
+		builder.setComparator(contentsComparator);
+		builder.addFilter(isLowercase);
+		final ShardedAdaptable<StringBuilder> adaptable = new ShardedAdaptable<StringBuilder>(builder,
+				Collections.<StringBuilder>emptyList(), 4);
+		final Set<String> expected = new TreeSet<String>();
+		for (char c = 'a'; c <= 'x'; c += 2) {
+			final String word = c + "" + c;
+			adaptable.add(new StringBuilder(word));
+			expected.add(word);
+		}
+		Assert.assertTrue(adaptable.layout.pivots.length > 1);
+		// shard boundaries are elements: moving one must not move the boundary along
+		for (int round = 0; round < 3; ++round) {
+			final StringBuilder pivot = (StringBuilder) adaptable.layout.pivots[round];
+			final String word = pivot.toString();
+			final String renamed = "z" + word;
+			Assert.assertTrue(adaptable.updateReorder(new StringBuilder(word), rename(renamed)));
+			expected.remove(word);
+			expected.add(renamed);
+			Validation.validateIntegrity(adaptable);
+			Assert.assertEquals(expected.toString(), contentsOf(adaptable));
+			for (String present : expected) {
+				Assert.assertTrue(present, adaptable.indexOf(new StringBuilder(present)) >= 0);
+			}
+		}
+		// a pivot left alone in its shard
+		final StringBuilder pivot = (StringBuilder) adaptable.layout.pivots[0];
+		final String word = pivot.toString();
+		for (String present : new ArrayList<String>(expected)) {
+			if (present.compareTo(word) < 0) {
+				Assert.assertTrue(adaptable.remove(new StringBuilder(present)));
+				expected.remove(present);
+			}
+		}
+		Assert.assertEquals(1, adaptable.layout.shards[0].adaptable.size());
+		Assert.assertTrue(adaptable.updateReorder(new StringBuilder(word), rename("zz")));
+		expected.remove(word);
+		expected.add("zz");
+		Validation.validateIntegrity(adaptable);
+		Assert.assertEquals(expected.toString(), contentsOf(adaptable));
+		for (String present : expected) {
+			Assert.assertTrue(present, adaptable.indexOf(new StringBuilder(present)) >= 0);
+		}
+	}
+
+	@Test
+	public void testShardedAggregate() throws Exception {
+		final Weigher<Integer> heights = new Weigher<Integer>() {
+			@Override
+			public int weigh(Integer element) {
+				return element % 7;
+			}
+		};
+		final AdaptableFactory<Integer> builder = createAdaptableFactory();
+		builder.addFilter(isEven);
+		builder.setAggregator(concatenation);
+		builder.setWeightedIndexing(true);
+		builder.setIndexWeigher(heights);
+		final ShardedAdaptable<Integer> adaptable = new ShardedAdaptable<Integer>(builder, Arrays.asList(100, 1000), 32);
+		final List<Integer> reference = new ArrayList<Integer>(); // sorted
+		final Random random = new Random(49);
+		for (int i = 0; i < 1024; ++i) {
+			final int value = random.nextInt(allowDuplicates ? 512 : 2048);
+			final int insertionPoint = Collections.binarySearch(reference, value);
+			if (i % 3 == 2) {
+				if (adaptable.remove(value)) {
+					reference.remove(insertionPoint);
+				}
+			} else if (adaptable.add(value)) {
+				reference.add(insertionPoint < 0 ? -insertionPoint - 1 : insertionPoint, value);
+			}
+		}
+		Validation.validateIntegrity(adaptable);
+		Assert.assertTrue(adaptable.layout.shards.length > 8);
+		// summaries combined across shards, in order
+		assertAggregates(adaptable, reference, concatenation, random);
+		Assert.assertEquals("", adaptable.aggregate(concatenation, 1, 10, 10));
+		try {
+			adaptable.aggregate(new Aggregator<Integer, String>() {
+				@Override
+				public String identity() {
+					return "";
+				}
+
+				@Override
+				public String lift(Integer element) {
+					return "";
+				}
+
+				@Override
+				public String combine(String left, String right) {
+					return "";
+				}
+			}, 0, 0, 0);
+			Assert.fail("Summary typed by another aggregator");
+		} catch (IllegalArgumentException expected) {
+			// not the aggregator set
+		}
+		// offsets summed up across shards
+		assertOffsets(adaptable, reference, Trivial.<Integer>universeFilter(), 0, heights);
+		assertOffsets(adaptable, reference, isEven, 1, heights);
+		final List<Integer> sample = adaptable.sampleWeighted(1, 200, random);
+		Assert.assertEquals(200, sample.size());
+		for (int i = 0; i < sample.size(); ++i) {
+			Assert.assertTrue("In selection", isEven.accept(sample.get(i)) && heights.weigh(sample.get(i)) > 0);
+			Assert.assertTrue("Ordered", i == 0 || sample.get(i - 1) <= sample.get(i));
+		}
+	}
+
+	private static Update<StringBuilder> rename(final String name) {
+		return new Update<StringBuilder>() {
+			@Override
+			public boolean apply(StringBuilder element) {
+				element.replace(0, element.length(), name);
+				return true;
+			}
+		};
+	}
+
+	private FlexibleAdaptable<Integer> createEvenAdaptable(boolean persistent) {
+		AdaptableFactory<Integer> builder = createAdaptableFactory();
+		builder.addFilter(isEven);
+		builder.setPersistent(persistent);
+		return builder.create();
+	}
+
+	private static void recordEvents(Adaptable<Integer> adaptable, final List<String> log) {
+		adaptable.addElementObserver(new ElementObserver<Integer>() {
+			@Override
+			public void onElementUpdated(Integer element, int[] position, int[] changeEstimate, int deltaSign, int[] deltaCount) {
+				log.add(element + "@" + Arrays.toString(position) + Arrays.toString(changeEstimate)
+						+ deltaSign + Arrays.toString(deltaCount));
+			}
+		});
+	}
+
+	private static String contentsOf(Adaptable<StringBuilder> adaptable) {
+		final List<String> contents = new ArrayList<String>();
+		for (Iterator<StringBuilder> iterator = adaptable.iterator(0); iterator.hasNext(); ) {
+			contents.add(iterator.next().toString());
+		}
+		return contents.toString();
+	}
+
+	private static Integer[] toArray(Adaptable<Integer> adaptable, int filterIndex) {
+		final Integer[] elements = new Integer[adaptable.size(filterIndex)];
+		final Iterator<Integer> iterator = adaptable.iterator(filterIndex);
+		for (int i = 0; i < elements.length; ++i) {
+			elements[i] = iterator.next();
+		}
+		return elements;
+	}
+
+	private void assertSame(Adaptable<Integer> expected, Adaptable<Integer> adaptable) {
+		for (int filterIndex = 0; filterIndex < 2; ++filterIndex) {
+			Assert.assertArrayEquals(toArray(expected, filterIndex), toArray(adaptable, filterIndex));
+			for (int i = -1; i <= expected.size(filterIndex); ++i) {
+				Assert.assertEquals(expected.get(filterIndex, i), adaptable.get(filterIndex, i));
+				Assert.assertEquals(expected.convertIndex(i, filterIndex, 1 - filterIndex, true),
+						adaptable.convertIndex(i, filterIndex, 1 - filterIndex, true));
+			}
+			for (int value = -1; value <= 512; ++value) {
+				if (!allowDuplicates) {
+					Assert.assertEquals(expected.indexOf(filterIndex, value), adaptable.indexOf(filterIndex, value));
+				}
+				Assert.assertEquals(expected.rank(filterIndex, value, false), adaptable.rank(filterIndex, value, false));
+				Assert.assertEquals(expected.countBetween(filterIndex, value, value + 31),
+						adaptable.countBetween(filterIndex, value, value + 31));
+			}
+		}
+		final SplittableIterator<Integer> suffix = adaptable.splittableIterator(1);
+		final SplittableIterator<Integer> prefix = suffix.trySplit();
+		Assert.assertEquals(adaptable.get(1, 0), prefix.next());
+		Assert.assertEquals(adaptable.get(1, prefix.remaining() + 1), suffix.next());
+	}
+
+	private void assertSelections(FlexibleAdaptable<Integer> adaptable, List<Integer> reference) {
+		final List<Integer> evens = new ArrayList<Integer>();
+		for (Integer value : reference) {
+			if (isEven.accept(value)) {
+				evens.add(value);
+			}
+		}
+		Assert.assertEquals("Size", reference.size(), adaptable.size());
+		Assert.assertEquals("Even size", evens.size(), adaptable.size(1));
+		final List<Integer> iterated = new ArrayList<Integer>();
+		for (Map.Entry<Integer, int[]> entry : adaptable) {
+			iterated.add(entry.getKey());
+		}
+		Assert.assertEquals("Entries", reference, iterated);
+		for (int i = 0; i < evens.size(); ++i) {
+			Assert.assertEquals("Even at " + i, evens.get(i), adaptable.get(1, i));
+		}
+	}
+
+	private static int countNodes(AdaptableSkipList<?> adaptable) {
+		int count = 0;
+		for (AdaptableSkipList<?>.Node node = adaptable.absMinNode.nodes[0]; node != null; node = node.nodes[0]) {
+			count++;
+		}
+		return count;
+	}
+
+	private static int countLess(List<Integer> sorted, int value) {
+		int count = 0;
+		while (count < sorted.size() && sorted.get(count) < value) {
+			count++;
+		}
+		return count;
+	}
+
 	@Test
 	public void testIterators() throws Exception {
 		AdaptableFactory<Integer> builder = createAdaptableFactory();
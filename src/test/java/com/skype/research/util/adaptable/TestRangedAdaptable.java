@@ -16,11 +16,13 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
@@ -310,6 +312,34 @@ public class TestRangedAdaptable {
         verifyRanges(ras, 0);
     }
 
+    @Test
+    public void testRebalance() throws Exception {
+        AdaptableFactory<Sample> builder = createRangeAdaptableFactory();
+        builder.setComparator(sampleComparator);
+        builder.setAutoRebalance(true);
+        RangedAdaptable<Sample> ras = builder.create(ranger);
+        AdaptableSkipList<Sample> asl = (AdaptableSkipList<Sample>) ras;
+        for (int i = 0; i < 4096; ++i) {
+            ras.add(new Sample());
+        }
+        // removing the tall samples skews the levels, until the bulk op completes
+        List<Sample> tall = new ArrayList<Sample>();
+        for (AdaptableSkipList<Sample>.Node node = asl.absMinNode.nodes[1]; node != null; node = node.nodes[1]) {
+            if (!node.element.boundary) {
+                tall.add(node.element);
+            }
+        }
+        asl.hintBulkOpBegin();
+        for (Sample sample : tall) {
+            Assert.assertTrue(ras.remove(sample));
+        }
+        Assert.assertTrue("Skewed", asl.getLevelSkew() > AdaptableSkipList.MAX_LEVEL_SKEW);
+        asl.hintBulkOpCompleted();
+        Assert.assertTrue("Rebalanced: " + asl.getLevelSkew(), asl.getLevelSkew() < AdaptableSkipList.MAX_LEVEL_SKEW);
+        asl.validateIntegrity();
+        verifyRanges(ras, 0);
+    }
+
     void verifyRanges(RangedAdaptable<Sample> ras, int filterIndex) {
         int lastRange = Integer.MIN_VALUE;
         int maxSample = Integer.MIN_VALUE;
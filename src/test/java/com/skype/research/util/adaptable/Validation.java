@@ -15,7 +15,15 @@ import java.util.Iterator;
  */
 public class Validation {
 	public static <T> void validateIntegrity(FlexibleAdaptable<T> asl) {
-	    ((AdaptableSkipList<T>) asl).validateIntegrity();
+		if (asl instanceof BlockedAdaptableSkipList) {
+			((BlockedAdaptableSkipList<T>) asl).validateIntegrity();
+		} else if (asl instanceof ConcurrentAdaptableSkipList) {
+			((ConcurrentAdaptableSkipList<T>) asl).validateIntegrity();
+		} else if (asl instanceof ShardedAdaptable) {
+			((ShardedAdaptable<T>) asl).validateIntegrity();
+		} else {
+			((AdaptableSkipList<T>) asl).validateIntegrity();
+		}
 	}
 	
 	public static <T> void validateIterators(FlexibleAdaptable<T> adaptable) {
@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ *
+ * Licensed under the MIT license.
+ */
+
+package com.skype.research.util.datasets;
+
+import com.skype.research.util.adaptable.AdaptableFactory;
+import com.skype.research.util.adaptable.FlexibleAdaptable;
+import com.skype.research.util.adaptable.mocks.DivisibleBy;
+import com.skype.research.util.adaptable.mocks.DivisionFilter;
+import com.skype.research.util.adaptable.mocks.IntValue;
+import com.skype.research.util.model.DataSet;
+import com.skype.research.util.model.RecyclerAdapter;
+import com.skype.research.util.model.Subscriber;
+import com.skype.research.util.primitives.Update;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Test merged positional lookups and update routing against a merged copy.
+ */
+public class TestMergedDataSet {
+
+	static final int SOURCE_COUNT = 3;
+
+	static class Representation<T> implements Subscriber<T>, RecyclerAdapter {
+		final List<T> selection = new ArrayList<T>();
+		final List<String> itemUpdates = new ArrayList<String>();
+		DataSet<T> dataSet;
+		int resetCount;
+
+		@Override
+		public void setDataSet(DataSet<T> dataSet) {
+			this.dataSet = dataSet;
+			notifyDataSetChanged();
+		}
+
+		@Override
+		public void notifyDataSetChanged() {
+			selection.clear();
+			selection.addAll(dataSet.asList());
+			resetCount++;
+		}
+
+		@Override
+		public List<? extends Subscriber<T>> getAncillarySubscribers() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public void notifyItemChanged(int position) {
+			selection.set(position, dataSet.getItem(position));
+			itemUpdates.add("changed@" + position);
+		}
+
+		@Override
+		public void notifyItemInserted(int position) {
+			selection.add(position, dataSet.getItem(position));
+			itemUpdates.add("inserted@" + position);
+		}
+
+		@Override
+		public void notifyItemRemoved(int position) {
+			selection.remove(position);
+			itemUpdates.add("removed@" + position);
+		}
+
+		@Override
+		public void notifyItemMoved(int fromPosition, int toPosition) {
+			throw new UnsupportedOperationException(); // should not be triggered
+		}
+
+		@Override
+		public void notifyItemRangeChanged(int positionStart, int itemCount) {
+			throw new UnsupportedOperationException(); // should not be triggered
+		}
+
+		@Override
+		public void notifyItemRangeInserted(int positionStart, int itemCount) {
+			throw new UnsupportedOperationException(); // should not be triggered
+		}
+
+		@Override
+		public void notifyItemRangeRemoved(int positionStart, int itemCount) {
+			throw new UnsupportedOperationException(); // should not be triggered
+		}
+	}
+
+	@Test
+	public void testLookups() throws Exception {
+		final List<FlexibleAdaptable<Integer>> sources = createSources();
+		final Random random = new Random(50);
+		for (int i = 0; i < 1000; ++i) {
+			sources.get(random.nextInt(SOURCE_COUNT)).add(random.nextInt(600));
+		}
+		final MergedDataSet<Integer> merged = new MergedDataSet<Integer>(sources, 1);
+		merged.setAncillaries(0, 2);
+		assertMerged(sources, merged, 1);
+		assertMerged(sources, merged.getAncillaryDataSet(0), 0);
+		assertMerged(sources, merged.getAncillaryDataSet(1), 2);
+		// index conversion: equal elements are ordered by source, and by filter the same in all sources
+		final List<Integer> selection = mergedCopy(sources, 1);
+		final List<Integer> universe = mergedCopy(sources, 0);
+		for (int i = -1; i <= selection.size(); ++i) {
+			final int expected = i < 0 ? -1 : i == selection.size() ? universe.size()
+					: universe.indexOf(selection.get(i)) + countBefore(selection, i, selection.get(i));
+			Assert.assertEquals("To universe at " + i, expected, merged.toAncillary(0, i, true));
+		}
+		for (int i = 0; i < universe.size(); ++i) {
+			final Integer value = universe.get(i);
+			final boolean passes = value % 2 == 0;
+			final int before = countLess(selection, value) + (passes ? countBefore(universe, i, value) : 0);
+			Assert.assertEquals("From universe at " + i, passes ? before : before - 1, merged.fromAncillary(0, i, false));
+			Assert.assertEquals("From universe at " + i, before, merged.fromAncillary(0, i, true));
+		}
+		try {
+			merged.getItem(selection.size());
+			Assert.fail("Out of range");
+		} catch (IndexOutOfBoundsException expected) {
+			// past the end
+		}
+		Assert.assertEquals(-1, merged.indexOf(601));
+	}
+
+	@Test
+	public void testUpdates() throws Exception {
+		final List<FlexibleAdaptable<Integer>> sources = createSources();
+		final MergedDataSet<Integer> merged = new MergedDataSet<Integer>(sources, 1);
+		final Representation<Integer> representation = new Representation<Integer>();
+		merged.subscribe(representation);
+		final Random random = new Random(50);
+		for (int i = 0; i < 2000; ++i) {
+			final FlexibleAdaptable<Integer> source = sources.get(random.nextInt(SOURCE_COUNT));
+			if (random.nextInt(3) == 0 && source.size() > 0) {
+				source.remove(0, random.nextInt(source.size()));
+			} else {
+				source.add(random.nextInt(600));
+			}
+			if (i % 100 == 0) {
+				Assert.assertEquals("Selection at " + i, mergedCopy(sources, 1), representation.selection);
+			}
+		}
+		Assert.assertEquals("Item updates only", 1, representation.resetCount);
+		Assert.assertEquals(mergedCopy(sources, 1), representation.selection);
+		// the elements of a cleared source are scattered over the merged selection
+		sources.get(1).clear();
+		Assert.assertEquals("Reset", 2, representation.resetCount);
+		Assert.assertEquals(mergedCopy(sources, 1), representation.selection);
+		merged.unsubscribe(representation);
+		sources.get(0).add(602);
+		Assert.assertFalse("Unsubscribed", representation.selection.contains(602));
+	}
+
+	@Test
+	public void testReorderPositions() throws Exception {
+		// the old merged position depends on the old value, the new one on the other sources
+		assertReorder(10, 35, "removed@1", "inserted@5");
+		assertReorder(10, 28, "removed@1", "inserted@4"); // same source position
+	}
+
+	private static void assertReorder(int oldValue, final int newValue, String... itemUpdates) {
+		final List<FlexibleAdaptable<IntValue>> sources = createMutableSources(2);
+		for (int value : new int[] {10, 30}) {
+			sources.get(0).add(new IntValue(value));
+		}
+		for (int value : new int[] {5, 15, 20, 25}) {
+			sources.get(1).add(new IntValue(value));
+		}
+		final MergedDataSet<IntValue> merged = new MergedDataSet<IntValue>(sources, 0);
+		final Representation<IntValue> representation = new Representation<IntValue>();
+		merged.subscribe(representation);
+		sources.get(0).updateReorder(new IntValue(oldValue), new Update<IntValue>() {
+			@Override
+			public boolean apply(IntValue element) {
+				element.setValue(newValue);
+				return true;
+			}
+		});
+		Assert.assertEquals(Arrays.asList(itemUpdates), representation.itemUpdates);
+		Assert.assertEquals(mergedCopy(sources, 0), representation.selection);
+	}
+
+	@Test
+	public void testReorders() throws Exception {
+		final List<FlexibleAdaptable<IntValue>> sources = createMutableSources(SOURCE_COUNT);
+		final Random random = new Random(50);
+		for (int i = 0; i < 300; ++i) {
+			sources.get(random.nextInt(SOURCE_COUNT)).add(new IntValue(random.nextInt(600)));
+		}
+		final MergedDataSet<IntValue> merged = new MergedDataSet<IntValue>(sources, 1);
+		final Representation<IntValue> representation = new Representation<IntValue>();
+		merged.subscribe(representation);
+		for (int i = 0; i < 2000; ++i) {
+			final FlexibleAdaptable<IntValue> source = sources.get(random.nextInt(SOURCE_COUNT));
+			final int newValue = random.nextInt(600);
+			source.updateReorder(source.get(0, random.nextInt(source.size())), new Update<IntValue>() {
+				@Override
+				public boolean apply(IntValue element) {
+					element.setValue(newValue);
+					return true;
+				}
+			});
+			Assert.assertEquals("Selection at " + i, mergedCopy(sources, 1), representation.selection);
+		}
+		Assert.assertEquals("Item updates only", 1, representation.resetCount);
+	}
+
+	private static List<FlexibleAdaptable<IntValue>> createMutableSources(int sourceCount) {
+		final AdaptableFactory<IntValue> factory = new AdaptableFactory<IntValue>();
+		factory.addFilter(new DivisionFilter(2));
+		factory.addFilter(new DivisionFilter(3));
+		factory.setBroadcastOldValue(true); // required to reorder merged sources
+		final List<FlexibleAdaptable<IntValue>> sources = new ArrayList<FlexibleAdaptable<IntValue>>();
+		for (int source = 0; source < sourceCount; ++source) {
+			sources.add(factory.create());
+		}
+		return sources;
+	}
+
+	private static List<FlexibleAdaptable<Integer>> createSources() {
+		final AdaptableFactory<Integer> factory = new AdaptableFactory<Integer>();
+		factory.addFilter(new DivisibleBy(2));
+		factory.addFilter(new DivisibleBy(3));
+		final List<FlexibleAdaptable<Integer>> sources = new ArrayList<FlexibleAdaptable<Integer>>();
+		for (int source = 0; source < SOURCE_COUNT; ++source) {
+			sources.add(factory.create());
+		}
+		return sources;
+	}
+
+	private static <T extends Comparable<? super T>> List<T> mergedCopy(List<FlexibleAdaptable<T>> sources, int filterIndex) {
+		final List<T> merged = new ArrayList<T>();
+		for (FlexibleAdaptable<T> source : sources) {
+			for (T value : new FilteredDataSet<T>(source, filterIndex)) {
+				merged.add(value);
+			}
+		}
+		Collections.sort(merged); // stable: equal elements stay in source order
+		return merged;
+	}
+
+	private static void assertMerged(List<FlexibleAdaptable<Integer>> sources, DataSet<Integer> dataSet, int filterIndex) {
+		final List<Integer> expected = mergedCopy(sources, filterIndex);
+		Assert.assertEquals("Count", expected.size(), dataSet.getCount());
+		final List<Integer> iterated = new ArrayList<Integer>();
+		for (Integer value : dataSet) {
+			iterated.add(value);
+		}
+		Assert.assertEquals("Iterated", expected, iterated);
+		for (int i = 0; i < expected.size(); ++i) {
+			Assert.assertEquals("Item at " + i, expected.get(i), dataSet.getItem(i));
+			Assert.assertEquals("Index of " + expected.get(i), expected.indexOf(expected.get(i)), dataSet.indexOf(expected.get(i)));
+		}
+	}
+
+	private static int countLess(List<Integer> sorted, int value) {
+		int count = 0;
+		while (count < sorted.size() && sorted.get(count) < value) {
+			count++;
+		}
+		return count;
+	}
+
+	private static int countBefore(List<Integer> sorted, int index, int value) {
+		int count = 0;
+		while (index - count > 0 && sorted.get(index - count - 1) == value) {
+			count++;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ *
+ * Licensed under the MIT license.
+ */
+
+package com.skype.research.util.expiry;
+
+import com.skype.research.util.adaptable.AdaptableFactory;
+import com.skype.research.util.adaptable.FlexibleAdaptable;
+import com.skype.research.util.adaptation.Adaptation;
+import com.skype.research.util.model.DataSet;
+import com.skype.research.util.model.Subscriber;
+import com.skype.research.util.primitives.Clock;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests of {@link TimerWheel} and {@link Expiry} against a controllable clock.
+ */
+public class TestExpiry {
+
+	static class ManualClock implements Clock {
+		long now;
+
+		ManualClock(long now) {
+			this.now = now;
+		}
+
+		@Override
+		public long now() {
+			return now;
+		}
+	}
+
+	@Test
+	public void testTimerWheel() throws Exception {
+		final long tickDuration = 10;
+		// small geometry to exercise cascading and parking beyond the wheel span (4^3 ticks)
+		final TimerWheel<Integer> wheel = new TimerWheel<Integer>(tickDuration, 2, 3, -55);
+		final Map<Integer, Long> reference = new HashMap<Integer, Long>();
+		final Random random = new Random(31);
+		long now = -55;
+		for (int i = 0; i < 4096; ++i) {
+			final int element = random.nextInt(512);
+			switch (random.nextInt(4)) {
+				case 0:
+					Assert.assertEquals("Cancelled " + element,
+							reference.remove(element) != null, wheel.cancel(element));
+					break;
+				default:
+					// mostly near future, sometimes far beyond the span, sometimes overdue
+					final long deadline = now - 50 + random.nextInt(random.nextBoolean() ? 400 : 4000);
+					wheel.schedule(element, deadline);
+					reference.put(element, deadline);
+			}
+			if (random.nextInt(4) == 0) {
+				now += random.nextInt(random.nextInt(8) == 0 ? 2000 : 40);
+				final List<Integer> expired = new ArrayList<Integer>();
+				Assert.assertEquals("Count reported", wheel.advance(now, expired), expired.size());
+				final long tick = wheel.tickOf(now);
+				for (Integer reported : expired) {
+					final Long deadline = reference.remove(reported);
+					Assert.assertNotNull("Reported once " + reported, deadline);
+					Assert.assertTrue("Not early " + reported, deadline <= now);
+				}
+				for (Map.Entry<Integer, Long> pending : reference.entrySet()) {
+					Assert.assertTrue("Not late " + pending.getKey(),
+							-wheel.tickOf(-pending.getValue()) > tick);
+				}
+				Assert.assertEquals("Pending count", reference.size(), wheel.size());
+			}
+		}
+	}
+
+	@Test
+	public void testExpiry() throws Exception {
+		final AdaptableFactory<Integer> builder = new AdaptableFactory<Integer>();
+		final FlexibleAdaptable<Integer> adaptable = builder.create();
+		final Adaptation<Integer> adaptation = new Adaptation<Integer>(adaptable, false);
+		final int[] wrapUps = new int[1];
+		adaptation.subscribe(0, new Subscriber<Integer>() {
+			@Override
+			public void setDataSet(DataSet<Integer> dataSet) {
+			}
+
+			@Override
+			public void notifyDataSetChanged() {
+				wrapUps[0]++;
+			}
+
+			@Override
+			public List<? extends Subscriber<Integer>> getAncillarySubscribers() {
+				return Collections.emptyList();
+			}
+		});
+		final ManualClock clock = new ManualClock(1000);
+		final Expiry<Integer> expiry = new Expiry<Integer>(adaptable, adaptation, clock, 5);
+		for (int i = 0; i < 1000; ++i) {
+			adaptable.add(i);
+			expiry.expireAfter(i, 1 + i % 100); // typing indicators: 1 to 100 time units
+		}
+		expiry.cancel(42);
+		expiry.expireAfter(43, 1000);
+		Assert.assertEquals("Nothing expired yet", 0, expiry.expire());
+		int remaining = 1000;
+		while (clock.now < 1200) {
+			clock.now += 7;
+			final int wrapUpsBefore = wrapUps[0];
+			final int removed = expiry.expire();
+			Assert.assertEquals("One wrap-up per batch", wrapUpsBefore + (removed > 0 ? 1 : 0), wrapUps[0]);
+			remaining -= removed;
+			Assert.assertEquals("Removed count", remaining, adaptable.size());
+			for (int i = 0; i < 1000; ++i) {
+				final boolean expiring = i != 42 && i != 43;
+				if (expiring && 1001 + i % 100 <= clock.now - 5) {
+					Assert.assertEquals("Removed " + i, -1, adaptable.indexOf(i));
+				} else if (!expiring || 1001 + i % 100 > clock.now) {
+					Assert.assertTrue("Kept " + i, adaptable.indexOf(i) >= 0);
+				}
+			}
+		}
+		Assert.assertTrue("Cancelled kept", adaptable.indexOf(42) >= 0);
+		Assert.assertTrue("Postponed kept", adaptable.indexOf(43) >= 0);
+		clock.now += 1000;
+		Assert.assertEquals("Postponed expired", 1, expiry.expire());
+		Assert.assertEquals("Only the cancelled one remains", 1, adaptable.size());
+		Assert.assertEquals("Nothing pending", 0, expiry.size());
+	}
+}